@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BundlePerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        final Bundle bundle = new Bundle();
+        for (int i = 0; i < 50; i++) {
+            bundle.putString("string" + i, "value of string " + i);
+            bundle.putByteArray("bytes" + i, new byte[256]);
+            bundle.putStringArray("strings" + i, new String[] { "a", "b", "c" });
+            final ArrayList<Integer> list = new ArrayList<>();
+            list.add(i);
+            bundle.putSerializable("serializable" + i, list);
+        }
+        bundle.putInt("key", 42);
+        mParcel = Parcel.obtain();
+        bundle.writeToParcel(mParcel, 0);
+    }
+
+    @After
+    public void tearDown() {
+        BaseBundle.setLazyUnparcel(false);
+        mParcel.recycle();
+        mParcel = null;
+    }
+
+    private void readOneKey() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            final Bundle bundle = mParcel.readBundle();
+            bundle.getInt("key");
+        }
+    }
+
+    @Test
+    public void timeReadOneKey() {
+        BaseBundle.setLazyUnparcel(false);
+        readOneKey();
+    }
+
+    @Test
+    public void timeReadOneKeyLazy() {
+        BaseBundle.setLazyUnparcel(true);
+        readOneKey();
+    }
+}
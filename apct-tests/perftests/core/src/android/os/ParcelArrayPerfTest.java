@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.graphics.Rect;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.filters.LargeTest;
@@ -49,10 +50,12 @@ public class ParcelArrayPerfTest {
     private byte[] mByteArray;
     private int[] mIntArray;
     private long[] mLongArray;
+    private Object[] mMixedArray;
 
     private Parcel mByteParcel;
     private Parcel mIntParcel;
     private Parcel mLongParcel;
+    private Parcel mMixedParcel;
 
     public ParcelArrayPerfTest(int size) {
         mSize = size;
@@ -72,6 +75,29 @@ public class ParcelArrayPerfTest {
         mIntParcel.writeIntArray(mIntArray);
         mLongParcel = Parcel.obtain();
         mLongParcel.writeLongArray(mLongArray);
+
+        // Values of the kinds typically found in a Bundle, cycled through
+        mMixedArray = new Object[mSize];
+        for (int i = 0; i < mSize; i++) {
+            mMixedArray[i] = mixedValue(i);
+        }
+        mMixedParcel = Parcel.obtain();
+        mMixedParcel.writeArray(mMixedArray);
+    }
+
+    private static Object mixedValue(int i) {
+        switch (i % 5) {
+            case 0:
+                return "value" + i;
+            case 1:
+                return i;
+            case 2:
+                return (long) i;
+            case 3:
+                return new Rect(i, i, i + 1, i + 1);
+            default:
+                return new int[] { i };
+        }
     }
 
     @After
@@ -160,4 +186,23 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeWriteMixedArray() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            mWriteParcel.writeArray(mMixedArray);
+        }
+    }
+
+    @Test
+    public void timeReadMixedArray() {
+        final ClassLoader loader = getClass().getClassLoader();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mMixedParcel.setDataPosition(0);
+            mMixedParcel.readArray(loader);
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.graphics.Rect;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.filters.LargeTest;
@@ -167,4 +168,46 @@ public class ParcelPerfTest {
             Parcel.obtain().recycle();
         }
     }
+
+    private static final Object[] MIXED_VALUES = {
+            "string", 42, 42L, true, 4.2f, new byte[16], new int[4], new String[] { "a", "b" },
+            new Rect(1, 2, 3, 4), Bundle.EMPTY,
+    };
+
+    @Test
+    public void timeWriteValueMixed() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            for (Object value : MIXED_VALUES) {
+                mParcel.writeValue(value);
+            }
+        }
+    }
+
+    @Test
+    public void timeReadValueMixed() {
+        for (Object value : MIXED_VALUES) {
+            mParcel.writeValue(value);
+        }
+        final ClassLoader loader = getClass().getClassLoader();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            for (int i = 0; i < MIXED_VALUES.length; i++) {
+                mParcel.readValue(loader);
+            }
+        }
+    }
+
+    @Test
+    public void timeReadParcelable() {
+        mParcel.writeParcelable(new Rect(1, 2, 3, 4), 0);
+        final ClassLoader loader = getClass().getClassLoader();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mParcel.setDataPosition(0);
+            mParcel.readParcelable(loader);
+        }
+    }
 }
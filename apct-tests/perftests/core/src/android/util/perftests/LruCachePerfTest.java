@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.util.LruCache;
+import android.util.StripedLruCache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Compares {@link LruCache} with {@link StripedLruCache} when several threads share one cache.
+ * Each test times a get, followed by a put on a miss, on the benchmark thread while the other
+ * threads run the same operations on the cache as fast as they can.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class LruCachePerfTest {
+    private static final int KEY_COUNT = 1024;
+    private static final int CACHE_SIZE = KEY_COUNT / 2;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "threads={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {1}, {2}, {4}, {8}, {16} });
+    }
+
+    private final int mThreadCount;
+    private final Integer[] mKeys = new Integer[KEY_COUNT];
+    private volatile boolean mStopped;
+
+    public LruCachePerfTest(int threadCount) {
+        mThreadCount = threadCount;
+        // Keys in a fixed random order, boxed up front so that the loops don't allocate
+        final Random random = new Random(0);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = random.nextInt(KEY_COUNT);
+        }
+    }
+
+    @Test
+    public void timeLruCache() throws Exception {
+        final LruCache<Integer, Integer> cache = new LruCache<>(CACHE_SIZE);
+        runContended(key -> {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        });
+    }
+
+    @Test
+    public void timeStripedLruCache() throws Exception {
+        final StripedLruCache<Integer, Integer> cache = new StripedLruCache<>(CACHE_SIZE);
+        runContended(key -> {
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        });
+    }
+
+    private void runContended(Consumer<Integer> operation) throws InterruptedException {
+        mStopped = false;
+        final Thread[] threads = new Thread[mThreadCount - 1];
+        for (int t = 0; t < threads.length; t++) {
+            final int start = (t + 1) * KEY_COUNT / mThreadCount;
+            threads[t] = new Thread(() -> {
+                for (int i = start; !mStopped; i++) {
+                    operation.accept(mKeys[i & (KEY_COUNT - 1)]);
+                }
+            });
+            threads[t].start();
+        }
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            operation.accept(mKeys[(i++) & (KEY_COUNT - 1)]);
+        }
+
+        mStopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
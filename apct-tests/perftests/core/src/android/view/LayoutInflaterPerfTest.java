@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.view;
+
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.widget.FrameLayout;
+
+import com.android.perftests.core.R;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures inflating representative layouts once their view constructors are cached.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class LayoutInflaterPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "{0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+                { "simple_view", R.layout.test_simple_view },
+                { "twelve_key_entry", R.layout.twelve_key_entry },
+                { "linear_layout", R.layout.test_linear_layout },
+                { "relative_layout", R.layout.test_relative_layout },
+        });
+    }
+
+    private final int mLayoutId;
+
+    public LayoutInflaterPerfTest(String name, int layoutId) {
+        mLayoutId = layoutId;
+    }
+
+    @Test
+    public void testInflate() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final LayoutInflater inflater = LayoutInflater.from(context).cloneInContext(context);
+        final FrameLayout root = new FrameLayout(context);
+        // Load the view classes outside of the measured loop
+        inflater.inflate(mLayoutId, root, false);
+        while (state.keepRunning()) {
+            inflater.inflate(mLayoutId, root, false);
+        }
+    }
+}
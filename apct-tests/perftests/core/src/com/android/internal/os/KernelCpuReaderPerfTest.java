@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replays captures of /proc/uid_time_in_state and /proc/uid_cputime/show_uid_stat through
+ * the kernel cpu readers.  Two captures taken a while apart are fed alternately so that every
+ * pass produces deltas.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class KernelCpuReaderPerfTest {
+    private static final int UIDS = 300;
+    private static final int FREQS = 40;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final String[] mFreqTimeCaptures = new String[2];
+    private final byte[][] mFreqTimeBytes = new byte[2][];
+    private final byte[][] mCpuTimeBytes = new byte[2][];
+
+    private final KernelUidCpuFreqTimeReader.Callback mFreqTimeCallback =
+            new KernelUidCpuFreqTimeReader.Callback() {
+                @Override
+                public void onCpuFreqs(long[] cpuFreqs) {
+                }
+
+                @Override
+                public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                }
+            };
+
+    private final KernelUidCpuTimeReader.Callback mCpuTimeCallback =
+            (uid, userTimeUs, systemTimeUs) -> { };
+
+    @Before
+    public void setUp() {
+        for (int capture = 0; capture < 2; capture++) {
+            final StringBuilder sb = new StringBuilder("uid:");
+            for (int f = 0; f < FREQS; f++) {
+                sb.append(' ').append(300000 + f * 50000);
+            }
+            sb.append('\n');
+            for (int u = 0; u < UIDS; u++) {
+                sb.append(10000 + u).append(':');
+                for (int f = 0; f < FREQS; f++) {
+                    sb.append(' ').append((long) (u + 1) * (f + 1) * (capture + 1) * 37);
+                }
+                sb.append('\n');
+            }
+            mFreqTimeCaptures[capture] = sb.toString();
+            mFreqTimeBytes[capture] = sb.toString().getBytes(StandardCharsets.US_ASCII);
+
+            sb.setLength(0);
+            for (int u = 0; u < UIDS; u++) {
+                sb.append(10000 + u).append(": ").append((long) (u + 1) * (capture + 1) * 123457)
+                        .append(' ').append((long) (u + 1) * (capture + 1) * 45679).append('\n');
+            }
+            mCpuTimeBytes[capture] = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Test
+    public void timeUidCpuFreqTimeSplit() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int capture = 0;
+        while (state.keepRunning()) {
+            parseWithSplit(mFreqTimeCaptures[capture]);
+            capture ^= 1;
+        }
+    }
+
+    @Test
+    public void timeUidCpuFreqTimeReader() {
+        final KernelUidCpuFreqTimeReader reader = new KernelUidCpuFreqTimeReader();
+        final ProcFileTokenizer tokenizer = new ProcFileTokenizer(64 * 1024);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int capture = 0;
+        while (state.keepRunning()) {
+            tokenizer.setData(mFreqTimeBytes[capture], mFreqTimeBytes[capture].length);
+            reader.readDelta(tokenizer, mFreqTimeCallback);
+            capture ^= 1;
+        }
+    }
+
+    @Test
+    public void timeUidCpuTimeReader() {
+        final KernelUidCpuTimeReader reader = new KernelUidCpuTimeReader();
+        final ProcFileTokenizer tokenizer = new ProcFileTokenizer(16 * 1024);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int capture = 0;
+        long nowUs = 1000;
+        while (state.keepRunning()) {
+            tokenizer.setData(mCpuTimeBytes[capture], mCpuTimeBytes[capture].length);
+            reader.readDelta(tokenizer, nowUs, mCpuTimeCallback);
+            capture ^= 1;
+            nowUs += 1000;
+        }
+    }
+
+    /**
+     * The line splitting and number parsing the uid_time_in_state reader used to do, for
+     * comparison.
+     */
+    private static long parseWithSplit(String capture) throws Exception {
+        long sum = 0;
+        try (BufferedReader reader = new BufferedReader(new StringReader(capture))) {
+            String line = reader.readLine();
+            final String[] freqStr = line.split(" ");
+            for (int i = 1; i < freqStr.length; i++) {
+                sum += Long.parseLong(freqStr[i], 10);
+            }
+            while ((line = reader.readLine()) != null) {
+                final int index = line.indexOf(' ');
+                sum += Integer.parseInt(line.substring(0, index - 1), 10);
+                final String[] timesStr = line.substring(index + 1, line.length()).split(" ");
+                for (int i = 0; i < timesStr.length; i++) {
+                    sum += Long.parseLong(timesStr[i], 10) * 10;
+                }
+            }
+        }
+        return sum;
+    }
+}
@@ -255,6 +255,13 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /** Number of cache lookups served from the {@link PackageParserCacheIndex}. */
+    public static final AtomicInteger sCacheIndexHitCount = new AtomicInteger();
+    /** Number of cache lookups served from a per-package cache file. */
+    public static final AtomicInteger sCacheFileHitCount = new AtomicInteger();
+    /** Number of cache lookups that found no up to date entry. */
+    public static final AtomicInteger sCacheMissCount = new AtomicInteger();
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -337,6 +344,7 @@ public class PackageParser {
     private DisplayMetrics mMetrics;
     private Callback mCallback;
     private File mCacheDir;
+    private PackageParserCacheIndex mCacheIndex;
 
     private static final int SDK_VERSION = Build.VERSION.SDK_INT;
     private static final String[] SDK_CODENAMES = Build.VERSION.ACTIVE_CODENAMES;
@@ -582,6 +590,13 @@ public class PackageParser {
         mCacheDir = cacheDir;
     }
 
+    /**
+     * Sets the index consulted before the per-package files in the cache directory.
+     */
+    public void setCacheIndex(PackageParserCacheIndex cacheIndex) {
+        mCacheIndex = cacheIndex;
+    }
+
     /**
      * Callback interface for retrieving information that may be needed while parsing
      * a package.
@@ -1141,9 +1156,15 @@ public class PackageParser {
         final String cacheKey = getCacheKey(packageFile, flags);
         final File cacheFile = new File(mCacheDir, cacheKey);
 
+        final Package indexed = getIndexedResult(packageFile, cacheKey);
+        if (indexed != null) {
+            return indexed;
+        }
+
         try {
             // If the cache is not up to date, return null.
             if (!isCacheUpToDate(packageFile, cacheFile)) {
+                sCacheMissCount.incrementAndGet();
                 return null;
             }
 
@@ -1155,11 +1176,13 @@ public class PackageParser {
                     for (String overlayApk : overlayApks) {
                         // If a static RRO is updated, return null.
                         if (!isCacheUpToDate(new File(overlayApk), cacheFile)) {
+                            sCacheMissCount.incrementAndGet();
                             return null;
                         }
                     }
                 }
             }
+            sCacheFileHitCount.incrementAndGet();
             return p;
         } catch (Throwable e) {
             Slog.w(TAG, "Error reading package cache: ", e);
@@ -1171,6 +1194,53 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Returns the parse result stored under {@code cacheKey} in the cache index, or {@code null}
+     * if there is no index, no entry, or the entry is older than the package or its overlays.
+     */
+    private Package getIndexedResult(File packageFile, String cacheKey) {
+        if (mCacheIndex == null) {
+            return null;
+        }
+        final long cacheMtime = mCacheIndex.getCacheMtime(cacheKey);
+        if (cacheMtime < 0 || !isCacheUpToDate(packageFile, cacheMtime)) {
+            return null;
+        }
+        try {
+            final Package p = fromCacheEntry(mCacheIndex.get(cacheKey));
+            if (mCallback != null) {
+                String[] overlayApks = mCallback.getOverlayApks(p.packageName);
+                if (overlayApks != null && overlayApks.length > 0) {
+                    for (String overlayApk : overlayApks) {
+                        // If a static RRO is updated, fall back to the per-package file.
+                        if (!isCacheUpToDate(new File(overlayApk), cacheMtime)) {
+                            return null;
+                        }
+                    }
+                }
+            }
+            mCacheIndex.markUsed(cacheKey);
+            sCacheIndexHitCount.incrementAndGet();
+            return p;
+        } catch (Throwable e) {
+            Slog.w(TAG, "Error reading package cache index entry " + cacheKey, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether a cache entry written at {@code cacheMtime} is up to date with respect
+     * to {@code packageFile}, see {@link #isCacheUpToDate(File, File)}.
+     */
+    private static boolean isCacheUpToDate(File packageFile, long cacheMtime) {
+        try {
+            final StructStat pkg = android.system.Os.stat(packageFile.getAbsolutePath());
+            return pkg.st_mtime < cacheMtime;
+        } catch (ErrnoException ee) {
+            return false;
+        }
+    }
+
     /**
      * Caches the parse result for {@code packageFile} with flags {@code flags}.
      */
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Single-file, memory-mapped index over the {@link PackageParser} cache.
+ *
+ * <p>The package parser writes one cache file per package. After a full scan, those files are
+ * packed into a single index file by {@link #rebuild}, so that the next boot maps one file
+ * instead of opening and reading hundreds of small ones. Each entry remembers the mod-time its
+ * per-package cache file had, and is subject to the same staleness checks.</p>
+ *
+ * <p>File layout (big endian): magic, version, entry count, then for each entry the key
+ * (length-prefixed UTF-8), the cache mod-time, the data offset and the data length, followed by
+ * the concatenated cache entries.</p>
+ *
+ * @hide
+ */
+public class PackageParserCacheIndex {
+    private static final String TAG = "PackageParserCacheIndex";
+
+    @VisibleForTesting
+    static final String INDEX_FILE_NAME = "index";
+
+    private static final int MAGIC = 0x50504349; // 'PPCI'
+    private static final int VERSION = 1;
+
+    private static final class Entry {
+        final long cacheMtime;
+        final int offset;
+        final int length;
+
+        Entry(long cacheMtime, int offset, int length) {
+            this.cacheMtime = cacheMtime;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mCacheDir;
+    private final ByteBuffer mData;
+    private final ArrayMap<String, Entry> mEntries;
+
+    /** Keys whose entries were up to date when used, i.e. are still worth keeping on rebuild. */
+    @GuardedBy("mUsedKeys")
+    private final ArraySet<String> mUsedKeys = new ArraySet<>();
+
+    private PackageParserCacheIndex(File cacheDir, ByteBuffer data,
+            ArrayMap<String, Entry> entries) {
+        mCacheDir = cacheDir;
+        mData = data;
+        mEntries = entries;
+    }
+
+    /**
+     * Maps the index file in {@code cacheDir}. Returns an empty index if there is none yet or
+     * if it cannot be read, in which case the broken file is deleted.
+     */
+    public static PackageParserCacheIndex load(File cacheDir) {
+        final File indexFile = new File(cacheDir, INDEX_FILE_NAME);
+        if (!indexFile.exists()) {
+            return new PackageParserCacheIndex(cacheDir, null, new ArrayMap<>());
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(indexFile);
+            final FileChannel channel = fis.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unknown index format");
+            }
+            final int count = buffer.getInt();
+            final ArrayMap<String, Entry> entries = new ArrayMap<>(count);
+            for (int i = 0; i < count; i++) {
+                final byte[] key = new byte[buffer.getShort() & 0xffff];
+                buffer.get(key);
+                final long cacheMtime = buffer.getLong();
+                final int offset = buffer.getInt();
+                final int length = buffer.getInt();
+                if (offset < 0 || length < 0 || offset > buffer.limit() - length) {
+                    throw new IOException("Corrupt index entry " + i);
+                }
+                entries.put(new String(key, StandardCharsets.UTF_8),
+                        new Entry(cacheMtime, offset, length));
+            }
+            return new PackageParserCacheIndex(cacheDir, buffer, entries);
+        } catch (IOException | BufferUnderflowException e) {
+            Slog.w(TAG, "Error reading package cache index, discarding it", e);
+            indexFile.delete();
+            return new PackageParserCacheIndex(cacheDir, null, new ArrayMap<>());
+        } finally {
+            // The mapping stays valid after the channel is closed
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Returns the mod-time the cache entry for {@code key} was written at, in seconds, or
+     * {@code -1} if the index has no such entry.
+     */
+    public long getCacheMtime(String key) {
+        final Entry entry = mEntries.get(key);
+        return entry != null ? entry.cacheMtime : -1;
+    }
+
+    /**
+     * Returns the cache entry stored for {@code key}, or {@code null} if there is none.
+     */
+    public byte[] get(String key) {
+        final Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        final byte[] bytes = new byte[entry.length];
+        // Absolute reads through a duplicate keep this safe for concurrent parsing threads
+        final ByteBuffer data = mData.duplicate();
+        data.position(entry.offset);
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Marks the entry for {@code key} as served, so that it is kept by {@link #rebuild}. Only
+     * call this once the entry passed all staleness checks.
+     */
+    public void markUsed(String key) {
+        synchronized (mUsedKeys) {
+            mUsedKeys.add(key);
+        }
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Packs the entries used since {@link #load} and all per-package cache files into a new
+     * index file, then deletes the per-package files. Entries that were not used are dropped,
+     * which garbage collects packages that have been removed. Nothing is written if every entry
+     * was used and there are no per-package files.
+     *
+     * @return the number of entries in the index
+     */
+    public int rebuild() {
+        final ArrayList<String> keys = new ArrayList<>();
+        final ArrayList<Long> mtimes = new ArrayList<>();
+        final ArrayList<Entry> usedEntries = new ArrayList<>();
+        final ArrayList<File> files = new ArrayList<>();
+        final ArrayList<Integer> fileLengths = new ArrayList<>();
+
+        final File[] cacheFiles = mCacheDir.listFiles();
+        final ArraySet<String> fileKeys = new ArraySet<>();
+        if (cacheFiles != null) {
+            for (File file : cacheFiles) {
+                final String name = file.getName();
+                if (!file.isFile() || name.equals(INDEX_FILE_NAME)
+                        || name.equals(INDEX_FILE_NAME + ".bak")) {
+                    continue;
+                }
+                try {
+                    final StructStat stat = Os.stat(file.getAbsolutePath());
+                    if (stat.st_size > Integer.MAX_VALUE) {
+                        throw new IOException("Too large");
+                    }
+                    files.add(file);
+                    fileLengths.add((int) stat.st_size);
+                    fileKeys.add(name);
+                    // Per-package files are always newer than the index entry they replace
+                    keys.add(name);
+                    mtimes.add(stat.st_mtime);
+                } catch (ErrnoException | IOException e) {
+                    Slog.w(TAG, "Error reading package cache file " + file, e);
+                }
+            }
+        }
+
+        synchronized (mUsedKeys) {
+            if (files.isEmpty() && mUsedKeys.size() == mEntries.size()) {
+                // Nothing was added or invalidated, the index is up to date.
+                return mEntries.size();
+            }
+            for (int i = mUsedKeys.size() - 1; i >= 0; i--) {
+                final String key = mUsedKeys.valueAt(i);
+                if (fileKeys.contains(key)) {
+                    continue;
+                }
+                final Entry entry = mEntries.get(key);
+                keys.add(key);
+                mtimes.add(entry.cacheMtime);
+                usedEntries.add(entry);
+            }
+        }
+
+        final AtomicFile indexFile = new AtomicFile(new File(mCacheDir, INDEX_FILE_NAME));
+        FileOutputStream fos = null;
+        try {
+            fos = indexFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            final int count = keys.size();
+            final byte[][] keyBytes = new byte[count][];
+            int headerSize = 3 * Integer.BYTES;
+            for (int i = 0; i < count; i++) {
+                keyBytes[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                headerSize += Short.BYTES + keyBytes[i].length + Long.BYTES + 2 * Integer.BYTES;
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            int offset = headerSize;
+            for (int i = 0; i < count; i++) {
+                // Per-package files come first, then the entries kept from the old index
+                final int length = i < files.size()
+                        ? fileLengths.get(i) : usedEntries.get(i - files.size()).length;
+                out.writeShort(keyBytes[i].length);
+                out.write(keyBytes[i]);
+                out.writeLong(mtimes.get(i));
+                out.writeInt(offset);
+                out.writeInt(length);
+                offset += length;
+            }
+
+            // Stream the data instead of holding every entry in memory
+            final byte[] buffer = new byte[8192];
+            for (int i = 0; i < files.size(); i++) {
+                try (FileInputStream in = new FileInputStream(files.get(i))) {
+                    int remaining = fileLengths.get(i);
+                    while (remaining > 0) {
+                        final int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                        if (read < 0) {
+                            throw new IOException("Package cache file changed: " + files.get(i));
+                        }
+                        out.write(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+            }
+            for (int i = 0; i < usedEntries.size(); i++) {
+                final Entry entry = usedEntries.get(i);
+                final ByteBuffer data = mData.duplicate();
+                data.position(entry.offset);
+                int remaining = entry.length;
+                while (remaining > 0) {
+                    final int chunk = Math.min(buffer.length, remaining);
+                    data.get(buffer, 0, chunk);
+                    out.write(buffer, 0, chunk);
+                    remaining -= chunk;
+                }
+            }
+            out.flush();
+            indexFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing package cache index", e);
+            indexFile.failWrite(fos);
+            return 0;
+        }
+
+        for (int i = files.size() - 1; i >= 0; i--) {
+            files.get(i).delete();
+        }
+        return keys.size();
+    }
+}
@@ -70,6 +70,58 @@ public class BaseBundle {
         sShouldDefuse = shouldDefuse;
     }
 
+    private static boolean sLazyUnparcel = false;
+
+    /**
+     * Set global variable indicating that Bundles unparcelled in this process
+     * should only index their keys, leaving values whose length is known up
+     * front (strings, arrays, Serializables and nested Bundles) in the parcel
+     * until they are first accessed.
+     *
+     * @hide
+     */
+    public static void setLazyUnparcel(boolean lazyUnparcel) {
+        sLazyUnparcel = lazyUnparcel;
+    }
+
+    /**
+     * A value that was left in the parcel when its Bundle was unparcelled,
+     * stored in mMap in place of the value until it is first accessed.
+     *
+     * @hide
+     */
+    static final class LazyValue {
+        // Not recycled while any LazyValue refers to it; reads are serialized on it, as
+        // copies of a Bundle share its LazyValues.
+        private final Parcel mSource;
+        private final int mPosition;
+        private final int mLength;
+
+        LazyValue(Parcel source, int position, int length) {
+            mSource = source;
+            mPosition = position;
+            mLength = length;
+        }
+
+        Object decode(ClassLoader loader) {
+            synchronized (mSource) {
+                final int restore = mSource.dataPosition();
+                mSource.setDataPosition(mPosition);
+                try {
+                    return mSource.readValue(loader);
+                } finally {
+                    mSource.setDataPosition(restore);
+                }
+            }
+        }
+
+        void writeToParcel(Parcel dest) {
+            synchronized (mSource) {
+                dest.appendFrom(mSource, mPosition, mLength);
+            }
+        }
+    }
+
     // A parcel cannot be obtained during compile-time initialization. Put the
     // empty parcel into an inner class that can be initialized separately. This
     // allows to initialize BaseBundle, and classes depending on it.
@@ -189,7 +241,7 @@ public class BaseBundle {
         if (size == 0) {
             return null;
         }
-        Object o = mMap.valueAt(0);
+        Object o = getValueAt(0);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -217,9 +269,19 @@ public class BaseBundle {
 
     /**
      * If the underlying data are stored as a Parcel, unparcel them
-     * using the currently assigned class loader.
+     * using the currently assigned class loader.  In lazy mode, some values
+     * may still be left in the parcel afterwards; read them through
+     * {@link #getValue} and {@link #getValueAt}.
      */
     /* package */ void unparcel() {
+        unparcel(/* itemwise= */ false);
+    }
+
+    /**
+     * Like {@link #unparcel()}, but if {@code itemwise} is true also decodes
+     * any values left in the parcel, so that mMap holds only real values.
+     */
+    /* package */ void unparcel(boolean itemwise) {
         synchronized (this) {
             final Parcel source = mParcelledData;
             if (source != null) {
@@ -232,6 +294,49 @@ public class BaseBundle {
                 }
             }
         }
+        if (itemwise) {
+            for (int i = 0, N = mMap.size(); i < N; i++) {
+                getValueAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the value for {@code key}, decoding it first if it was left in
+     * the parcel.  Must be called after {@link #unparcel()}.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        return i >= 0 ? getValueAt(i) : null;
+    }
+
+    /**
+     * Returns the value at index {@code i} of mMap, decoding it first if it
+     * was left in the parcel.  Must be called after {@link #unparcel()}.
+     */
+    final Object getValueAt(int i) {
+        Object object = mMap.valueAt(i);
+        if (object instanceof LazyValue) {
+            try {
+                object = ((LazyValue) object).decode(mClassLoader);
+            } catch (BadParcelableException e) {
+                if (sShouldDefuse) {
+                    Log.w(TAG, "Failed to parse Bundle value, but defusing quietly", e);
+                    object = null;
+                } else {
+                    throw e;
+                }
+            } catch (RuntimeException e) {
+                if (sShouldDefuse && (e.getCause() instanceof ClassNotFoundException)) {
+                    Log.w(TAG, "Failed to parse Bundle value, but defusing quietly", e);
+                    object = null;
+                } else {
+                    throw e;
+                }
+            }
+            mMap.setValueAt(i, object);
+        }
+        return object;
     }
 
     private void initializeFromParcelLocked(@NonNull Parcel parcelledData, boolean recycleParcel) {
@@ -269,8 +374,15 @@ public class BaseBundle {
             map.erase();
             map.ensureCapacity(count);
         }
+        int lazyValues = 0;
         try {
-            parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            // A parcel with file descriptors is read eagerly so that recycling it closes
+            // them right away, rather than whenever its lazy values become unreachable.
+            if (sLazyUnparcel && recycleParcel && !parcelledData.hasFileDescriptors()) {
+                lazyValues = readArrayMapLazily(parcelledData, map, count);
+            } else {
+                parcelledData.readArrayMapInternal(map, count, mClassLoader);
+            }
         } catch (BadParcelableException e) {
             if (sShouldDefuse) {
                 Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
@@ -287,7 +399,12 @@ public class BaseBundle {
             }
         } finally {
             mMap = map;
-            if (recycleParcel) {
+            if (map.isEmpty()) {
+                lazyValues = 0;
+            }
+            // Any values left in the parcel still need it; it is freed once they are all
+            // unreachable.
+            if (recycleParcel && lazyValues == 0) {
                 recycleParcel(parcelledData);
             }
             mParcelledData = null;
@@ -298,6 +415,31 @@ public class BaseBundle {
         }
     }
 
+    /**
+     * Reads the keys of {@code count} entries into {@code map}.  Values whose
+     * length can be found without decoding them are left in {@code source} as
+     * {@link LazyValue}s; the others are read as usual.
+     *
+     * @return the number of values left in {@code source}
+     */
+    private int readArrayMapLazily(Parcel source, ArrayMap<String, Object> map, int count) {
+        int lazyValues = 0;
+        for (int i = 0; i < count; i++) {
+            final String key = source.readString();
+            final int start = source.dataPosition();
+            final Object value;
+            if (source.skipValue()) {
+                value = new LazyValue(source, start, source.dataPosition() - start);
+                lazyValues++;
+            } else {
+                value = source.readValue(mClassLoader);
+            }
+            map.append(key, value);
+        }
+        map.validate();
+        return lazyValues;
+    }
+
     /**
      * @hide
      */
@@ -327,7 +469,7 @@ public class BaseBundle {
 
     /** @hide */
     ArrayMap<String, Object> getMap() {
-        unparcel();
+        unparcel(/* itemwise= */ true);
         return mMap;
     }
 
@@ -376,7 +518,7 @@ public class BaseBundle {
         } else if (isParcelled()) {
             return mParcelledData.compareData(other.mParcelledData) == 0;
         } else {
-            return mMap.equals(other.mMap);
+            return getMap().equals(other.getMap());
         }
     }
 
@@ -411,7 +553,7 @@ public class BaseBundle {
                     final int N = fromMap.size();
                     mMap = new ArrayMap<>(N);
                     for (int i = 0; i < N; i++) {
-                        mMap.append(fromMap.keyAt(i), deepCopyValue(fromMap.valueAt(i)));
+                        mMap.append(fromMap.keyAt(i), deepCopyValue(from.getValueAt(i)));
                     }
                 }
             } else {
@@ -484,7 +626,7 @@ public class BaseBundle {
     @Nullable
     public Object get(String key) {
         unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -862,7 +1004,7 @@ public class BaseBundle {
      */
     public boolean getBoolean(String key, boolean defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -896,7 +1038,7 @@ public class BaseBundle {
      */
     Byte getByte(String key, byte defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -930,7 +1072,7 @@ public class BaseBundle {
      */
     char getChar(String key, char defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -964,7 +1106,7 @@ public class BaseBundle {
      */
     short getShort(String key, short defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -998,7 +1140,7 @@ public class BaseBundle {
      */
    public int getInt(String key, int defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1032,7 +1174,7 @@ public class BaseBundle {
      */
     public long getLong(String key, long defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1066,7 +1208,7 @@ public class BaseBundle {
      */
     float getFloat(String key, float defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1100,7 +1242,7 @@ public class BaseBundle {
      */
     public double getDouble(String key, double defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -1123,7 +1265,7 @@ public class BaseBundle {
     @Nullable
     public String getString(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1159,7 +1301,7 @@ public class BaseBundle {
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1195,7 +1337,7 @@ public class BaseBundle {
     @Nullable
     Serializable getSerializable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1218,7 +1360,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1241,7 +1383,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1264,7 +1406,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1287,7 +1429,7 @@ public class BaseBundle {
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1310,7 +1452,7 @@ public class BaseBundle {
     @Nullable
     byte[] getByteArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1333,7 +1475,7 @@ public class BaseBundle {
     @Nullable
     short[] getShortArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1356,7 +1498,7 @@ public class BaseBundle {
     @Nullable
     char[] getCharArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1379,7 +1521,7 @@ public class BaseBundle {
     @Nullable
     public int[] getIntArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1402,7 +1544,7 @@ public class BaseBundle {
     @Nullable
     public long[] getLongArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1425,7 +1567,7 @@ public class BaseBundle {
     @Nullable
     float[] getFloatArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1448,7 +1590,7 @@ public class BaseBundle {
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1471,7 +1613,7 @@ public class BaseBundle {
     @Nullable
     public String[] getStringArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1494,7 +1636,7 @@ public class BaseBundle {
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1514,7 +1656,7 @@ public class BaseBundle {
     void writeToParcelInner(Parcel parcel, int flags) {
         // If the parcel has a read-write helper, we can't just copy the blob, so unparcel it first.
         if (parcel.hasReadWriteHelper()) {
-            unparcel();
+            unparcel(/* itemwise= */ true);
         }
         // Keep implementation in sync with writeToParcel() in
         // frameworks/native/libs/binder/PersistableBundle.cpp.
@@ -245,6 +245,32 @@ public final class Parcel {
     private static final int VAL_SIZEF = 27;
     private static final int VAL_DOUBLEARRAY = 28;
 
+    // Exact classes of the most common values, mapped to the type writeValue() gives them.
+    // Lookups are by exact class, so an entry gives the same answer as the instanceof
+    // chain in getValueType() would for that class.
+    private static final ArrayMap<Class<?>, Integer> sValueTypes = new ArrayMap<>();
+    static {
+        sValueTypes.put(String.class, VAL_STRING);
+        sValueTypes.put(Integer.class, VAL_INTEGER);
+        sValueTypes.put(Bundle.class, VAL_BUNDLE);
+        sValueTypes.put(PersistableBundle.class, VAL_PERSISTABLEBUNDLE);
+        sValueTypes.put(Short.class, VAL_SHORT);
+        sValueTypes.put(Long.class, VAL_LONG);
+        sValueTypes.put(Float.class, VAL_FLOAT);
+        sValueTypes.put(Double.class, VAL_DOUBLE);
+        sValueTypes.put(Boolean.class, VAL_BOOLEAN);
+        sValueTypes.put(boolean[].class, VAL_BOOLEANARRAY);
+        sValueTypes.put(byte[].class, VAL_BYTEARRAY);
+        sValueTypes.put(String[].class, VAL_STRINGARRAY);
+        sValueTypes.put(int[].class, VAL_INTARRAY);
+        sValueTypes.put(long[].class, VAL_LONGARRAY);
+        sValueTypes.put(Byte.class, VAL_BYTE);
+        sValueTypes.put(Size.class, VAL_SIZE);
+        sValueTypes.put(SizeF.class, VAL_SIZEF);
+        sValueTypes.put(double[].class, VAL_DOUBLEARRAY);
+        sValueTypes.put(Object[].class, VAL_OBJECTARRAY);
+    }
+
     // The initial int32 in a Binder call's reply Parcel header:
     // Keep these in sync with libbinder's binder/Status.h.
     private static final int EX_SECURITY = -1;
@@ -835,7 +861,13 @@ public final class Parcel {
         for (int i=0; i<N; i++) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             writeString(val.keyAt(i));
-            writeValue(val.valueAt(i));
+            final Object value = val.valueAt(i);
+            if (value instanceof BaseBundle.LazyValue) {
+                // Still in the parcel it was read from, so copy it across as it is.
+                ((BaseBundle.LazyValue) value).writeToParcel(this);
+            } else {
+                writeValue(value);
+            }
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Write #" + i + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString(val.keyAt(i) != null ? val.keyAt(i).hashCode() : 0)
@@ -1671,103 +1703,178 @@ public final class Parcel {
      * should be used).</p>
      */
     public final void writeValue(Object v) {
+        final int type = getValueType(v);
+        writeInt(type);
+        switch (type) {
+            case VAL_NULL:
+                break;
+            case VAL_STRING:
+                writeString((String) v);
+                break;
+            case VAL_INTEGER:
+                writeInt((Integer) v);
+                break;
+            case VAL_MAP:
+                writeMap((Map) v);
+                break;
+            case VAL_BUNDLE:
+                writeBundle((Bundle) v);
+                break;
+            case VAL_PERSISTABLEBUNDLE:
+                writePersistableBundle((PersistableBundle) v);
+                break;
+            case VAL_PARCELABLE:
+                writeParcelable((Parcelable) v, 0);
+                break;
+            case VAL_SHORT:
+                writeInt(((Short) v).intValue());
+                break;
+            case VAL_LONG:
+                writeLong((Long) v);
+                break;
+            case VAL_FLOAT:
+                writeFloat((Float) v);
+                break;
+            case VAL_DOUBLE:
+                writeDouble((Double) v);
+                break;
+            case VAL_BOOLEAN:
+                writeInt((Boolean) v ? 1 : 0);
+                break;
+            case VAL_CHARSEQUENCE:
+                writeCharSequence((CharSequence) v);
+                break;
+            case VAL_LIST:
+                writeList((List) v);
+                break;
+            case VAL_SPARSEARRAY:
+                writeSparseArray((SparseArray) v);
+                break;
+            case VAL_BOOLEANARRAY:
+                writeBooleanArray((boolean[]) v);
+                break;
+            case VAL_BYTEARRAY:
+                writeByteArray((byte[]) v);
+                break;
+            case VAL_STRINGARRAY:
+                writeStringArray((String[]) v);
+                break;
+            case VAL_CHARSEQUENCEARRAY:
+                writeCharSequenceArray((CharSequence[]) v);
+                break;
+            case VAL_IBINDER:
+                writeStrongBinder((IBinder) v);
+                break;
+            case VAL_PARCELABLEARRAY:
+                writeParcelableArray((Parcelable[]) v, 0);
+                break;
+            case VAL_INTARRAY:
+                writeIntArray((int[]) v);
+                break;
+            case VAL_LONGARRAY:
+                writeLongArray((long[]) v);
+                break;
+            case VAL_BYTE:
+                writeInt((Byte) v);
+                break;
+            case VAL_SIZE:
+                writeSize((Size) v);
+                break;
+            case VAL_SIZEF:
+                writeSizeF((SizeF) v);
+                break;
+            case VAL_DOUBLEARRAY:
+                writeDoubleArray((double[]) v);
+                break;
+            case VAL_OBJECTARRAY:
+                writeArray((Object[]) v);
+                break;
+            case VAL_SERIALIZABLE:
+                writeSerializable((Serializable) v);
+                break;
+        }
+    }
+
+    /**
+     * Returns the VAL_* type that {@link #writeValue} writes {@code v} as.  The common final
+     * value classes are looked up directly; anything else walks the instanceof chain below,
+     * whose order decides the type of classes that match more than one case.
+     */
+    private static int getValueType(Object v) {
         if (v == null) {
-            writeInt(VAL_NULL);
-        } else if (v instanceof String) {
-            writeInt(VAL_STRING);
-            writeString((String) v);
+            return VAL_NULL;
+        }
+        final Integer type = sValueTypes.get(v.getClass());
+        if (type != null) {
+            return type;
+        }
+        if (v instanceof String) {
+            return VAL_STRING;
         } else if (v instanceof Integer) {
-            writeInt(VAL_INTEGER);
-            writeInt((Integer) v);
+            return VAL_INTEGER;
         } else if (v instanceof Map) {
-            writeInt(VAL_MAP);
-            writeMap((Map) v);
+            return VAL_MAP;
         } else if (v instanceof Bundle) {
             // Must be before Parcelable
-            writeInt(VAL_BUNDLE);
-            writeBundle((Bundle) v);
+            return VAL_BUNDLE;
         } else if (v instanceof PersistableBundle) {
-            writeInt(VAL_PERSISTABLEBUNDLE);
-            writePersistableBundle((PersistableBundle) v);
+            return VAL_PERSISTABLEBUNDLE;
         } else if (v instanceof Parcelable) {
             // IMPOTANT: cases for classes that implement Parcelable must
             // come before the Parcelable case, so that their specific VAL_*
             // types will be written.
-            writeInt(VAL_PARCELABLE);
-            writeParcelable((Parcelable) v, 0);
+            return VAL_PARCELABLE;
         } else if (v instanceof Short) {
-            writeInt(VAL_SHORT);
-            writeInt(((Short) v).intValue());
+            return VAL_SHORT;
         } else if (v instanceof Long) {
-            writeInt(VAL_LONG);
-            writeLong((Long) v);
+            return VAL_LONG;
         } else if (v instanceof Float) {
-            writeInt(VAL_FLOAT);
-            writeFloat((Float) v);
+            return VAL_FLOAT;
         } else if (v instanceof Double) {
-            writeInt(VAL_DOUBLE);
-            writeDouble((Double) v);
+            return VAL_DOUBLE;
         } else if (v instanceof Boolean) {
-            writeInt(VAL_BOOLEAN);
-            writeInt((Boolean) v ? 1 : 0);
+            return VAL_BOOLEAN;
         } else if (v instanceof CharSequence) {
             // Must be after String
-            writeInt(VAL_CHARSEQUENCE);
-            writeCharSequence((CharSequence) v);
+            return VAL_CHARSEQUENCE;
         } else if (v instanceof List) {
-            writeInt(VAL_LIST);
-            writeList((List) v);
+            return VAL_LIST;
         } else if (v instanceof SparseArray) {
-            writeInt(VAL_SPARSEARRAY);
-            writeSparseArray((SparseArray) v);
+            return VAL_SPARSEARRAY;
         } else if (v instanceof boolean[]) {
-            writeInt(VAL_BOOLEANARRAY);
-            writeBooleanArray((boolean[]) v);
+            return VAL_BOOLEANARRAY;
         } else if (v instanceof byte[]) {
-            writeInt(VAL_BYTEARRAY);
-            writeByteArray((byte[]) v);
+            return VAL_BYTEARRAY;
         } else if (v instanceof String[]) {
-            writeInt(VAL_STRINGARRAY);
-            writeStringArray((String[]) v);
+            return VAL_STRINGARRAY;
         } else if (v instanceof CharSequence[]) {
             // Must be after String[] and before Object[]
-            writeInt(VAL_CHARSEQUENCEARRAY);
-            writeCharSequenceArray((CharSequence[]) v);
+            return VAL_CHARSEQUENCEARRAY;
         } else if (v instanceof IBinder) {
-            writeInt(VAL_IBINDER);
-            writeStrongBinder((IBinder) v);
+            return VAL_IBINDER;
         } else if (v instanceof Parcelable[]) {
-            writeInt(VAL_PARCELABLEARRAY);
-            writeParcelableArray((Parcelable[]) v, 0);
+            return VAL_PARCELABLEARRAY;
         } else if (v instanceof int[]) {
-            writeInt(VAL_INTARRAY);
-            writeIntArray((int[]) v);
+            return VAL_INTARRAY;
         } else if (v instanceof long[]) {
-            writeInt(VAL_LONGARRAY);
-            writeLongArray((long[]) v);
+            return VAL_LONGARRAY;
         } else if (v instanceof Byte) {
-            writeInt(VAL_BYTE);
-            writeInt((Byte) v);
+            return VAL_BYTE;
         } else if (v instanceof Size) {
-            writeInt(VAL_SIZE);
-            writeSize((Size) v);
+            return VAL_SIZE;
         } else if (v instanceof SizeF) {
-            writeInt(VAL_SIZEF);
-            writeSizeF((SizeF) v);
+            return VAL_SIZEF;
         } else if (v instanceof double[]) {
-            writeInt(VAL_DOUBLEARRAY);
-            writeDoubleArray((double[]) v);
+            return VAL_DOUBLEARRAY;
         } else {
             Class<?> clazz = v.getClass();
             if (clazz.isArray() && clazz.getComponentType() == Object.class) {
                 // Only pure Object[] are written here, Other arrays of non-primitive types are
                 // handled by serialization as this does not record the component type.
-                writeInt(VAL_OBJECTARRAY);
-                writeArray((Object[]) v);
+                return VAL_OBJECTARRAY;
             } else if (v instanceof Serializable) {
                 // Must be last
-                writeInt(VAL_SERIALIZABLE);
-                writeSerializable((Serializable) v);
+                return VAL_SERIALIZABLE;
             } else {
                 throw new RuntimeException("Parcel: unable to marshal value " + v);
             }
@@ -2826,6 +2933,100 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Skips over a value written by {@link #writeValue} without decoding it, if it is of a
+     * variable length type whose size is written in front of its data: strings, primitive and
+     * string arrays, Serializables and Bundles.  Otherwise leaves the position where it was and
+     * returns false, and the value has to be read with {@link #readValue}.
+     */
+    /* package */ boolean skipValue() {
+        if (hasReadWriteHelper()) {
+            // Strings may not be stored inline.
+            return false;
+        }
+        final int start = dataPosition();
+        final int type = readInt();
+        switch (type) {
+            case VAL_STRING:
+                skipString();
+                return true;
+
+            case VAL_BYTEARRAY:
+                skipArray(1);
+                return true;
+
+            case VAL_BOOLEANARRAY:
+            case VAL_INTARRAY:
+                skipArray(4);
+                return true;
+
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY:
+            case VAL_SPARSEBOOLEANARRAY:
+                // Sparse boolean arrays are written as pairs of ints.
+                skipArray(8);
+                return true;
+
+            case VAL_STRINGARRAY: {
+                final int N = readInt();
+                for (int i = 0; i < N; i++) {
+                    skipString();
+                }
+                return true;
+            }
+
+            case VAL_SERIALIZABLE:
+                // A null Serializable is written as just a null class name.
+                if (skipString()) {
+                    skipArray(1);
+                }
+                return true;
+
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE: {
+                final int length = readInt();
+                if (length > 0) {
+                    // The magic number, then the bundle itself.
+                    skipBytes(4L + length);
+                }
+                return true;
+            }
+
+            default:
+                setDataPosition(start);
+                return false;
+        }
+    }
+
+    /**
+     * Skips a string written by {@link #writeString}, returning false if it was null.
+     */
+    private boolean skipString() {
+        final int length = readInt();
+        if (length < 0) {
+            return false;
+        }
+        // UTF-16 with a terminating null.
+        skipBytes((length + 1L) * 2);
+        return true;
+    }
+
+    private void skipArray(int elementSize) {
+        final int N = readInt();
+        if (N > 0) {
+            skipBytes((long) N * elementSize);
+        }
+    }
+
+    private void skipBytes(long length) {
+        final long end = dataPosition() + ((length + 3) & ~3L);
+        if (end > dataSize()) {
+            throw new BadParcelableException("Value of " + length + " bytes at "
+                    + dataPosition() + " runs past the end of " + dataSize() + " bytes");
+        }
+        setDataPosition((int) end);
+    }
+
     /**
      * Read and return a new Parcelable from the parcel.  The given class loader
      * will be used to load any enclosed Parcelables.  If it is null, the default
@@ -2869,7 +3070,11 @@ public final class Parcel {
         if (name == null) {
             return null;
         }
-        Parcelable.Creator<?> creator;
+        final HashMap<String, Parcelable.Creator<?>> cached = sCreatorCache.get(loader);
+        Parcelable.Creator<?> creator = cached != null ? cached.get(name) : null;
+        if (creator != null) {
+            return creator;
+        }
         synchronized (mCreators) {
             HashMap<String,Parcelable.Creator<?>> map = mCreators.get(loader);
             if (map == null) {
@@ -2928,6 +3133,13 @@ public final class Parcel {
                 }
 
                 map.put(name, creator);
+
+                // Publish a new snapshot for lock-free lookups; creators are only ever added,
+                // so this happens at most once per class and loader.
+                final HashMap<ClassLoader, HashMap<String, Parcelable.Creator<?>>> snapshot =
+                        new HashMap<>(sCreatorCache);
+                snapshot.put(loader, new HashMap<>(map));
+                sCreatorCache = snapshot;
             }
         }
 
@@ -3019,6 +3231,11 @@ public final class Parcel {
     private static final HashMap<ClassLoader,HashMap<String,Parcelable.Creator<?>>>
         mCreators = new HashMap<>();
 
+    // Read-only copy of mCreators that readParcelableCreator() checks before taking the
+    // mCreators lock.  Never modified once published; replaced as a whole under the lock.
+    private static volatile HashMap<ClassLoader, HashMap<String, Parcelable.Creator<?>>>
+            sCreatorCache = new HashMap<>();
+
     /** @hide for internal use only. */
     static protected final Parcel obtain(int obj) {
         throw new UnsupportedOperationException();
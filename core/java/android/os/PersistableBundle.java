@@ -199,7 +199,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -240,7 +240,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
 
     /** @hide */
     public void saveToXml(XmlSerializer out) throws IOException, XmlPullParserException {
-        unparcel();
+        unparcel(/* itemwise= */ true);
         XmlUtils.writeMapXml(mMap, out, this);
     }
 
@@ -307,6 +307,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                         mParcelledData.dataSize() + "]";
             }
         }
+        unparcel(/* itemwise= */ true);
         return "PersistableBundle[" + mMap.toString() + "]";
     }
 
@@ -319,6 +320,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                 return "mParcelledData.dataSize=" + mParcelledData.dataSize();
             }
         }
+        unparcel(/* itemwise= */ true);
         return mMap.toString();
     }
 }
@@ -264,6 +264,9 @@ public abstract class NotificationListenerService extends Service {
 
     @GuardedBy("mLock")
     private RankingMap mRankingMap;
+    // Set once a delta ranking update could not be applied, until a full one arrives
+    @GuardedBy("mLock")
+    private boolean mRankingSnapshotRequested;
 
     private INotificationManager mNoMan;
 
@@ -1299,9 +1302,35 @@ public abstract class NotificationListenerService extends Service {
      * @hide
      */
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
+        if (update.isDelta()) {
+            final NotificationRankingUpdate merged = mRankingMap != null
+                    ? mRankingMap.mRankingUpdate.applyDelta(update) : null;
+            if (merged == null) {
+                // Missed an update, so keep the current ranking until the system sends a
+                // full one
+                if (!mRankingSnapshotRequested) {
+                    mRankingSnapshotRequested = true;
+                    requestRankingSnapshot();
+                }
+                return;
+            }
+            update = merged;
+        } else {
+            mRankingSnapshotRequested = false;
+        }
         mRankingMap = new RankingMap(update);
     }
 
+    // Oneway, so this does not block while mLock is held
+    private void requestRankingSnapshot() {
+        if (!isBound()) return;
+        try {
+            getNotificationInterface().requestRankingSnapshotFromListener(mWrapper);
+        } catch (android.os.RemoteException ex) {
+            Log.v(TAG, "Unable to contact notification manager", ex);
+        }
+    }
+
     /** @hide */
     protected Context getContext() {
         if (mSystemContext != null) {
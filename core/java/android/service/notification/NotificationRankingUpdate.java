@@ -18,12 +18,27 @@ package android.service.notification;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 
 /**
+ * Ranking of the notifications visible to a listener.
+ *
+ * <p>Either a full snapshot, or a delta against the update with version
+ * {@link #getBaseVersion()} that the listener last received. A delta carries the complete
+ * ordered and intercepted keys, but the per-notification attributes only for the keys in
+ * {@link #getChangedKeys()}; any other key keeps the attributes from the base. Apply it with
+ * {@link #applyDelta}.</p>
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
-    // TODO: Support incremental updates.
+    // Version of this update, or 0 if it is a snapshot that deltas are never based on
+    private final int mVersion;
+    // Version this update is a delta against, or 0 if it is a full snapshot
+    private final int mBaseVersion;
+    // Keys whose attributes are included in a delta; null in a full snapshot
+    private final String[] mChangedKeys;
     private final String[] mKeys;
     private final String[] mInterceptedKeys;
     private final Bundle mVisibilityOverrides;
@@ -41,6 +56,26 @@ public class NotificationRankingUpdate implements Parcelable {
             int[] importance, Bundle explanation, Bundle overrideGroupKeys,
             Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
             Bundle showBadge) {
+        this(0, 0, null, keys, interceptedKeys, visibilityOverrides, suppressedVisualEffects,
+                importance, explanation, overrideGroupKeys, channels, overridePeople,
+                snoozeCriteria, showBadge);
+    }
+
+    /**
+     * @param version version of this update, which later deltas may be based on
+     * @param baseVersion version of the update this is a delta against, or 0 for a snapshot
+     * @param changedKeys for a delta, the keys whose attributes are included; {@code importance}
+     *     is then parallel to this rather than to {@code keys}
+     */
+    public NotificationRankingUpdate(int version, int baseVersion, String[] changedKeys,
+            String[] keys, String[] interceptedKeys,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects,
+            int[] importance, Bundle explanation, Bundle overrideGroupKeys,
+            Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
+            Bundle showBadge) {
+        mVersion = version;
+        mBaseVersion = baseVersion;
+        mChangedKeys = changedKeys;
         mKeys = keys;
         mInterceptedKeys = interceptedKeys;
         mVisibilityOverrides = visibilityOverrides;
@@ -55,12 +90,14 @@ public class NotificationRankingUpdate implements Parcelable {
     }
 
     public NotificationRankingUpdate(Parcel in) {
+        mVersion = in.readInt();
+        mBaseVersion = in.readInt();
+        mChangedKeys = mBaseVersion != 0 ? in.readStringArray() : null;
         mKeys = in.readStringArray();
         mInterceptedKeys = in.readStringArray();
         mVisibilityOverrides = in.readBundle();
         mSuppressedVisualEffects = in.readBundle();
-        mImportance = new int[mKeys.length];
-        in.readIntArray(mImportance);
+        mImportance = in.createIntArray();
         mImportanceExplanation = in.readBundle();
         mOverrideGroupKeys = in.readBundle();
         mChannels = in.readBundle();
@@ -76,6 +113,11 @@ public class NotificationRankingUpdate implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mVersion);
+        out.writeInt(mBaseVersion);
+        if (mBaseVersion != 0) {
+            out.writeStringArray(mChangedKeys);
+        }
         out.writeStringArray(mKeys);
         out.writeStringArray(mInterceptedKeys);
         out.writeBundle(mVisibilityOverrides);
@@ -100,6 +142,82 @@ public class NotificationRankingUpdate implements Parcelable {
         }
     };
 
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    public boolean isDelta() {
+        return mBaseVersion != 0;
+    }
+
+    public String[] getChangedKeys() {
+        return mChangedKeys;
+    }
+
+    /**
+     * Returns the full snapshot that results from applying {@code delta} to this snapshot,
+     * or null if {@code delta} is not based on it.  Attributes of notifications that did not
+     * change are shared with this snapshot rather than copied.
+     */
+    public NotificationRankingUpdate applyDelta(NotificationRankingUpdate delta) {
+        if (isDelta() || mVersion == 0 || delta.mBaseVersion != mVersion) {
+            return null;
+        }
+        final String[] keys = delta.mKeys;
+        final ArraySet<String> changed = new ArraySet<>(delta.mChangedKeys.length);
+        final ArrayMap<String, Integer> importanceByKey = new ArrayMap<>(keys.length);
+        for (int i = 0; i < mKeys.length; i++) {
+            importanceByKey.put(mKeys[i], mImportance[i]);
+        }
+        for (int i = 0; i < delta.mChangedKeys.length; i++) {
+            changed.add(delta.mChangedKeys[i]);
+            importanceByKey.put(delta.mChangedKeys[i], delta.mImportance[i]);
+        }
+        final ArraySet<String> kept = new ArraySet<>(keys.length);
+        final int[] importance = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            final Integer value = importanceByKey.get(keys[i]);
+            if (value == null) {
+                // A new key that the delta has no attributes for
+                return null;
+            }
+            importance[i] = value;
+            if (!changed.contains(keys[i])) {
+                kept.add(keys[i]);
+            }
+        }
+        return new NotificationRankingUpdate(delta.mVersion, 0, null, keys,
+                delta.mInterceptedKeys,
+                merge(mVisibilityOverrides, delta.mVisibilityOverrides, kept),
+                merge(mSuppressedVisualEffects, delta.mSuppressedVisualEffects, kept),
+                importance,
+                merge(mImportanceExplanation, delta.mImportanceExplanation, kept),
+                merge(mOverrideGroupKeys, delta.mOverrideGroupKeys, kept),
+                merge(mChannels, delta.mChannels, kept),
+                merge(mOverridePeople, delta.mOverridePeople, kept),
+                merge(mSnoozeCriteria, delta.mSnoozeCriteria, kept),
+                merge(mShowBadge, delta.mShowBadge, kept));
+    }
+
+    /**
+     * Returns the values of {@code base} for the keys in {@code kept}, plus all of the values
+     * in {@code changes}.
+     */
+    private static Bundle merge(Bundle base, Bundle changes, ArraySet<String> kept) {
+        final Bundle merged = new Bundle(base);
+        for (String key : base.keySet()) {
+            if (!kept.contains(key)) {
+                merged.remove(key);
+            }
+        }
+        merged.putAll(changes);
+        return merged;
+    }
+
     public String[] getOrderedKeys() {
         return mKeys;
     }
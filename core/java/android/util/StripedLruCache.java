@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache like {@link LruCache} for caches that are shared by many threads.
+ *
+ * <p>{@link LruCache} guards every {@link LruCache#get} and {@link LruCache#put} with one
+ * monitor, which threads contend on when they share a cache.  This cache splits its keys by
+ * hash over a number of shards, each with its own lock, access-ordered map and share of the
+ * maximum size.  Threads working on keys in different shards don't contend.  The price is
+ * that eviction is least-recently-used per shard rather than across the whole cache, and
+ * that a shard may evict while others still have room.
+ *
+ * <p>Sizing ({@link #sizeOf}), value creation ({@link #create}) and removal callbacks
+ * ({@link #entryRemoved}) work as they do in {@link LruCache}, except that {@link #sizeOf}
+ * is called only once per value, when it is added.  The cache can optionally hold its
+ * values through weak references, so that values nothing else uses can be collected before
+ * they are evicted.  A collected value is dropped the next time its key is looked up or
+ * evicted, without a call to {@link #entryRemoved}.
+ *
+ * <p>Hit, miss, put, create and eviction counts are kept per shard and updated under the
+ * shard lock that the operation holds anyway, so they add no contention of their own.
+ *
+ * <p>This class is thread-safe, but unlike {@link LruCache} multiple operations can't be
+ * made atomic by synchronizing on the cache.  It does not allow null keys or values.
+ *
+ * @hide
+ */
+public class StripedLruCache<K, V> {
+    private static final int DEFAULT_SHARD_COUNT = 16;
+
+    private final Shard<K, V>[] mShards;
+    private final int mShardMask;
+    private final boolean mWeakValues;
+    private volatile int mMaxSize;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public StripedLruCache(int maxSize) {
+        this(maxSize, DEFAULT_SHARD_COUNT, false);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param shardCount the number of independently locked shards.  It is rounded down to a
+     *     power of two, and to at most {@code maxSize} so that every shard can hold a value.
+     * @param weakValues whether values are held through weak references
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLruCache(int maxSize, int shardCount, boolean weakValues) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        shardCount = Integer.highestOneBit(Math.min(shardCount, maxSize));
+        mShards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Shard<>(shareOf(maxSize, i, shardCount));
+        }
+        mShardMask = shardCount - 1;
+        mWeakValues = weakValues;
+        mMaxSize = maxSize;
+    }
+
+    /** Splits {@code maxSize} evenly over the shards, handing out the remainder in order. */
+    private static int shareOf(int maxSize, int index, int shardCount) {
+        if (maxSize < 0) {
+            return maxSize;
+        }
+        return maxSize / shardCount + (index < maxSize % shardCount ? 1 : 0);
+    }
+
+    private Shard<K, V> shardFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return mShards[h & mShardMask];
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        mMaxSize = maxSize;
+        for (int i = 0; i < mShards.length; i++) {
+            final Shard<K, V> shard = mShards[i];
+            synchronized (shard) {
+                shard.maxSize = shareOf(maxSize, i, mShards.length);
+            }
+            trimShard(shard, shard.maxSize);
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of its shard's queue. This returns null if a value is not cached and
+     * cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Shard<K, V> shard = shardFor(key);
+        synchronized (shard) {
+            final Node<V> node = shard.map.get(key);
+            if (node != null) {
+                final V value = node.get();
+                if (value != null) {
+                    shard.hitCount++;
+                    return value;
+                }
+                // The value was collected
+                shard.map.remove(key);
+                shard.size -= node.size;
+            }
+            shard.missCount++;
+        }
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        final V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Node<V> createdNode = newNode(key, createdValue);
+        V mapValue = null;
+        synchronized (shard) {
+            shard.createCount++;
+            final Node<V> mapNode = shard.map.put(key, createdNode);
+            if (mapNode != null) {
+                mapValue = mapNode.get();
+            }
+
+            if (mapValue != null) {
+                // There was a conflict so undo that last put
+                shard.map.put(key, mapNode);
+            } else {
+                shard.size += createdNode.size;
+                if (mapNode != null) {
+                    shard.size -= mapNode.size;
+                }
+            }
+        }
+
+        if (mapValue != null) {
+            entryRemoved(false, key, createdValue, mapValue);
+            return mapValue;
+        } else {
+            trimShard(shard, shard.maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * its shard's queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Node<V> node = newNode(key, value);
+        final Shard<K, V> shard = shardFor(key);
+        Node<V> previousNode;
+        synchronized (shard) {
+            shard.putCount++;
+            shard.size += node.size;
+            previousNode = shard.map.put(key, node);
+            if (previousNode != null) {
+                shard.size -= previousNode.size;
+            }
+        }
+
+        final V previous = previousNode != null ? previousNode.get() : null;
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+
+        trimShard(shard, shard.maxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Shard<K, V> shard = shardFor(key);
+        Node<V> previousNode;
+        synchronized (shard) {
+            previousNode = shard.map.remove(key);
+            if (previousNode != null) {
+                shard.size -= previousNode.size;
+            }
+        }
+
+        final V previous = previousNode != null ? previousNode.get() : null;
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Remove the eldest entries of each shard until the total of remaining
+     * entries is at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        for (int i = 0; i < mShards.length; i++) {
+            trimShard(mShards[i], shareOf(maxSize, i, mShards.length));
+        }
+    }
+
+    private void trimShard(Shard<K, V> shard, int maxSize) {
+        while (true) {
+            K key;
+            V value;
+            synchronized (shard) {
+                if (shard.size < 0 || (shard.map.isEmpty() && shard.size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (shard.size <= maxSize) {
+                    break;
+                }
+
+                Map.Entry<K, Node<V>> toEvict = shard.map.eldest();
+                if (toEvict == null) {
+                    break;
+                }
+
+                key = toEvict.getKey();
+                final Node<V> node = toEvict.getValue();
+                shard.map.remove(key);
+                shard.size -= node.size;
+                shard.evictionCount++;
+                value = node.get();
+            }
+
+            if (value != null) {
+                entryRemoved(true, key, value, null);
+            }
+        }
+    }
+
+    private Node<V> newNode(K key, V value) {
+        final int size = sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return new Node<>(value, size, mWeakValues);
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>This is called once, without synchronization, when a value is added.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        int size = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                size += shard.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /** Returns the number of shards the cache is split into. */
+    public final int shardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        int count = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.hitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int count = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.missCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        int count = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.createCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        int count = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.putCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache.  Each shard's entries are ordered
+     * from least recently accessed to most recently accessed, one shard after another.
+     * Values that were collected are left out.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<>();
+        for (Shard<K, V> shard : mShards) {
+            synchronized (shard) {
+                for (Map.Entry<K, Node<V>> entry : shard.map.entrySet()) {
+                    final V value = entry.getValue().get();
+                    if (value != null) {
+                        snapshot.put(entry.getKey(), value);
+                    }
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount();
+        int accesses = hits + missCount();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("StripedLruCache[maxSize=%d,shards=%d,hits=%d,misses=%d,"
+                + "evictions=%d,hitRate=%d%%]", mMaxSize, mShards.length, hits,
+                accesses - hits, evictionCount(), hitPercent);
+    }
+
+    /** One independently locked part of the cache.  Fields are guarded by the shard. */
+    private static final class Shard<K, V> {
+        final LinkedHashMap<K, Node<V>> map = new LinkedHashMap<>(0, 0.75f, true);
+
+        /** Size of this shard in units. Not necessarily the number of elements. */
+        int size;
+        volatile int maxSize;
+
+        int putCount;
+        int createCount;
+        int evictionCount;
+        int hitCount;
+        int missCount;
+
+        Shard(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+
+    /** A cached value, held strongly or weakly, with the size it was added with. */
+    private static final class Node<V> {
+        private final V mValue;
+        private final WeakReference<V> mRef;
+        final int size;
+
+        Node(V value, int size, boolean weak) {
+            mValue = weak ? null : value;
+            mRef = weak ? new WeakReference<>(value) : null;
+            this.size = size;
+        }
+
+        V get() {
+            return mRef != null ? mRef.get() : mValue;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Parcel;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * On-disk copy of the battery history buffer, kept next to batterystats.bin so that the
+ * summary no longer has to carry the whole history on every write.
+ *
+ * <p>The history byte stream is split into fixed size chunk files; chunk {@code n} holds the
+ * bytes at [n * CHUNK_SIZE, (n + 1) * CHUNK_SIZE).  History is only ever appended to, apart
+ * from the last entry being rewritten when it is merged with a new one and the whole stream
+ * being cleared on reset, so a write only touches the chunks from the first changed byte
+ * onwards.  Reading streams the chunks one at a time into the destination Parcel.</p>
+ *
+ * <p>The store itself does not know which of its bytes are committed; the summary records the
+ * history size and a checksum of the last entry, and {@link BatteryStatsImpl} checks those
+ * against what it reads back.</p>
+ */
+public final class BatteryStatsHistoryStore {
+    private static final String TAG = "BatteryStatsHistoryStore";
+
+    @VisibleForTesting
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String CHUNK_PREFIX = "chunk_";
+
+    private final File mDir;
+    private int mChunkCount;
+    private int mSize;
+
+    public BatteryStatsHistoryStore(File dir) {
+        mDir = dir;
+        while (getChunkFile(mChunkCount).exists()) {
+            mChunkCount++;
+        }
+        if (mChunkCount > 0) {
+            mSize = (mChunkCount - 1) * CHUNK_SIZE + (int) getChunkFile(mChunkCount - 1).length();
+        }
+    }
+
+    private File getChunkFile(int index) {
+        return new File(mDir, CHUNK_PREFIX + index);
+    }
+
+    /** Number of history bytes currently on disk. */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Replaces the history from {@code offset} onwards with {@code data} and syncs the
+     * chunks that changed.  Bytes before {@code offset} are kept as they are.
+     */
+    public void write(int offset, byte[] data) throws IOException {
+        if (offset < 0 || offset > mSize) {
+            throw new IOException("Write at " + offset + " beyond end of history " + mSize);
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Failed to create " + mDir);
+        }
+        final int end = offset + data.length;
+        int pos = offset;
+        do {
+            final int chunk = pos / CHUNK_SIZE;
+            final int chunkOffset = pos - chunk * CHUNK_SIZE;
+            final int count = Math.min(end - pos, CHUNK_SIZE - chunkOffset);
+            if (count == 0 && chunkOffset == 0) {
+                // Nothing left for this chunk
+                break;
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(getChunkFile(chunk), "rw");
+                raf.seek(chunkOffset);
+                raf.write(data, pos - offset, count);
+                raf.setLength(chunkOffset + count);
+                raf.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+            if (chunk >= mChunkCount) {
+                mChunkCount = chunk + 1;
+            }
+            pos += count;
+        } while (pos < end);
+
+        // Drop chunks that are now entirely past the end
+        final int neededChunks = (end + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int i = mChunkCount - 1; i >= neededChunks; i--) {
+            getChunkFile(i).delete();
+        }
+        mChunkCount = neededChunks;
+        mSize = end;
+    }
+
+    /**
+     * Appends the first {@code size} bytes of history to {@code dest}, one chunk at a time.
+     *
+     * @return false if the store holds fewer than {@code size} bytes or could not be read, in
+     *         which case {@code dest} may have been partially appended to
+     */
+    public boolean readInto(Parcel dest, int size) {
+        if (size > mSize) {
+            Slog.w(TAG, "History store has " + mSize + " bytes, expected " + size);
+            return false;
+        }
+        final byte[] buffer = new byte[Math.min(size, CHUNK_SIZE)];
+        int remaining = size;
+        for (int chunk = 0; remaining > 0; chunk++) {
+            final int count = Math.min(remaining, CHUNK_SIZE);
+            FileInputStream is = null;
+            try {
+                is = new FileInputStream(getChunkFile(chunk));
+                int read = 0;
+                while (read < count) {
+                    final int n = is.read(buffer, read, count - read);
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + getChunkFile(chunk));
+                    }
+                    read += n;
+                }
+            } catch (IOException e) {
+                Slog.w(TAG, "Error reading history chunk " + chunk, e);
+                return false;
+            } finally {
+                IoUtils.closeQuietly(is);
+            }
+            final Parcel part = Parcel.obtain();
+            try {
+                part.unmarshall(buffer, 0, count);
+                dest.appendFrom(part, 0, count);
+            } finally {
+                part.recycle();
+            }
+            remaining -= count;
+        }
+        return true;
+    }
+
+    /** Removes all history from disk. */
+    public void clear() {
+        for (int i = mChunkCount - 1; i >= 0; i--) {
+            getChunkFile(i).delete();
+        }
+        mChunkCount = 0;
+        mSize = 0;
+    }
+}
@@ -42,6 +42,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.WorkSource;
 import android.telephony.DataConnectionRealTimeInfo;
@@ -98,6 +99,7 @@ import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * All information we are collecting about things that can happen that impact
@@ -157,9 +159,21 @@ public class BatteryStatsImpl extends BatteryStats {
     // Number of transmit power states the Bluetooth controller can be in.
     private static final int NUM_BT_TX_LEVELS = 1;
 
+    // Whether batterystats.bin leaves the history buffer to mHistoryStore instead of
+    // carrying all of it on every write.  Summaries in either form can always be read.
+    // This only changes how history is persisted: the live history stays in mHistoryBuffer,
+    // which dumps and checkins iterate, and the checkin file still carries it inline.
+    private static final boolean USE_HISTORY_STORE =
+            SystemProperties.getBoolean("persist.sys.battery_history_store", false);
+
+    // Marks a summary whose history buffer is in mHistoryStore rather than inline.
+    private static final int HISTORY_IN_STORE = -1;
+
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    @VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
+    protected BatteryStatsHistoryStore mHistoryStore;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -352,6 +366,8 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNextHistoryTagIdx = 0;
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
+    // Lowest position in mHistoryBuffer that changed since it was last handed to mHistoryStore.
+    int mHistoryBufferDirtyPos = 0;
     boolean mHistoryOverflow = false;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
@@ -698,6 +714,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mHistoryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -3298,6 +3315,9 @@ public class BatteryStatsImpl extends BatteryStats {
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
+            if (mHistoryBufferLastPos < mHistoryBufferDirtyPos) {
+                mHistoryBufferDirtyPos = mHistoryBufferLastPos;
+            }
             mHistoryBufferLastPos = -1;
             elapsedRealtimeMs = mHistoryLastWritten.time - mHistoryBaseTime;
             // If the last written history had a wakelock tag, we need to retain it.
@@ -3555,6 +3575,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
         mHistoryBuffer.setDataCapacity(MAX_HISTORY_BUFFER / 2);
+        mHistoryBufferDirtyPos = 0;
         mHistoryLastLastWritten.clear();
         mHistoryLastWritten.clear();
         mHistoryTagPool.clear();
@@ -8830,8 +8851,11 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mHistoryStore = new BatteryStatsHistoryStore(
+                    new File(systemDir, "batterystats-history"));
         } else {
             mFile = null;
+            mHistoryStore = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -8923,6 +8947,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mHistoryStore = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -11495,6 +11520,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     Parcel mPendingWrite = null;
+    // History bytes to hand to mHistoryStore along with mPendingWrite, from this offset on.
+    int mPendingHistoryOffset = -1;
+    byte[] mPendingHistory = null;
+    // Set when a history store write failed, so the next write has to start from scratch.
+    boolean mHistoryStoreNeedsRewrite = false;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
     public void writeAsyncLocked() {
@@ -11515,10 +11545,26 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
+        final boolean historyInStore = USE_HISTORY_STORE && mHistoryStore != null;
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryToParcel(out, true, historyInStore);
         mLastWriteTime = mClocks.elapsedRealtime();
 
+        if (historyInStore) {
+            // Only the history written since the last write needs to go to disk.
+            int historyOffset = mHistoryStoreNeedsRewrite ? 0 : mHistoryBufferDirtyPos;
+            if (mPendingHistoryOffset >= 0 && mPendingHistoryOffset < historyOffset) {
+                // The previous write has not been committed yet and is replaced by this one,
+                // so this one has to carry its history as well.
+                historyOffset = mPendingHistoryOffset;
+            }
+            final int historySize = mHistoryBuffer.dataSize();
+            mPendingHistoryOffset = historyOffset;
+            mPendingHistory = copyHistoryBufferLocked(historyOffset, historySize);
+            mHistoryBufferDirtyPos = historySize;
+            mHistoryStoreNeedsRewrite = false;
+        }
+
         if (mPendingWrite != null) {
             mPendingWrite.recycle();
         }
@@ -11537,9 +11583,15 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void commitPendingDataToDisk() {
         final Parcel next;
+        final int historyOffset;
+        final byte[] history;
         synchronized (this) {
             next = mPendingWrite;
+            historyOffset = mPendingHistoryOffset;
+            history = mPendingHistory;
             mPendingWrite = null;
+            mPendingHistoryOffset = -1;
+            mPendingHistory = null;
             if (next == null) {
                 return;
             }
@@ -11547,6 +11599,18 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mWriteLock.lock();
         try {
+            // The history goes first, so that a summary never refers to history that is not
+            // on disk yet.
+            if (history != null) {
+                try {
+                    mHistoryStore.write(historyOffset, history);
+                } catch (IOException e) {
+                    Slog.w("BatteryStats", "Error writing battery history", e);
+                    synchronized (this) {
+                        mHistoryStoreNeedsRewrite = true;
+                    }
+                }
+            }
             FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
             stream.write(next.marshall());
             stream.flush();
@@ -11618,6 +11682,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferDirtyPos = 0;
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
@@ -11643,7 +11708,9 @@ public class BatteryStatsImpl extends BatteryStats {
 
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
-        if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
+        if (bufSize == HISTORY_IN_STORE) {
+            readHistoryFromStore(in);
+        } else if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
             throw new ParcelFormatException("File corrupt: history data buffer too large " +
                     bufSize);
         } else if ((bufSize&~3) != bufSize) {
@@ -11688,6 +11755,51 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    private void readHistoryFromStore(Parcel in) throws ParcelFormatException {
+        final int size = in.readInt();
+        final int tailStart = in.readInt();
+        final int tailCrc = in.readInt();
+        if (size < 0 || size >= (MAX_MAX_HISTORY_BUFFER*3) || (size&~3) != size
+                || tailStart < 0 || tailStart > size) {
+            throw new ParcelFormatException("File corrupt: bad stored history size " + size
+                    + " tail " + tailStart);
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "***************** READING STORED HISTORY: " + size
+                + " bytes");
+        if (mHistoryStore != null && mHistoryStore.readInto(mHistoryBuffer, size)
+                && computeHistoryCrcLocked(tailStart, size) == tailCrc) {
+            mHistoryBufferDirtyPos = size;
+            return;
+        }
+        // The store is behind or ahead of the summary, e.g. after a crash between writing
+        // one and the other.  The history is not worth failing the whole read for.
+        Slog.w(TAG, "Stored battery history does not match summary, dropping history");
+        mHistoryBuffer.setDataSize(0);
+        mHistoryBuffer.setDataPosition(0);
+        mHistoryBufferDirtyPos = 0;
+    }
+
+    /**
+     * Returns a copy of the bytes of mHistoryBuffer in [start, end).
+     */
+    private byte[] copyHistoryBufferLocked(int start, int end) {
+        final Parcel part = Parcel.obtain();
+        try {
+            part.appendFrom(mHistoryBuffer, start, end - start);
+            return part.marshall();
+        } finally {
+            part.recycle();
+        }
+    }
+
+    private int computeHistoryCrcLocked(int start, int end) {
+        final CRC32 crc = new CRC32();
+        if (end > start) {
+            crc.update(copyHistoryBufferLocked(start, end));
+        }
+        return (int) crc.getValue();
+    }
+
     void readOldHistory(Parcel in) {
         if (!USE_OLD_HISTORY) {
             return;
@@ -11701,6 +11813,14 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+        writeHistory(out, inclData, andOldHistory, false);
+    }
+
+    /**
+     * @param inStore whether the history buffer itself is left to mHistoryStore, in which case
+     *                only its size and a checksum of its last entry are written
+     */
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory, boolean inStore) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -11722,10 +11842,21 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
-        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
-        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        if (inStore) {
+            final int size = mHistoryBuffer.dataSize();
+            // Only the last entry can be rewritten in place, so a checksum of it is enough
+            // to tell whether the store still matches this summary.
+            final int tailStart = Math.max(mHistoryBufferLastPos, 0);
+            out.writeInt(HISTORY_IN_STORE);
+            out.writeInt(size);
+            out.writeInt(tailStart);
+            out.writeInt(computeHistoryCrcLocked(tailStart, size));
+        } else {
+            out.writeInt(mHistoryBuffer.dataSize());
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+            out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        }
 
         if (andOldHistory) {
             writeOldHistory(out);
@@ -12167,6 +12298,15 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, false);
+    }
+
+    /**
+     * @param historyInStore whether the history buffer is left to mHistoryStore, see
+     *                       {@link #writeHistory(Parcel, boolean, boolean, boolean)}
+     */
+    @VisibleForTesting
+    void writeSummaryToParcel(Parcel out, boolean inclHistory, boolean historyInStore) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -12178,7 +12318,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, true, historyInStore);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -15,15 +15,12 @@
  */
 package com.android.internal.os;
 
-import android.text.TextUtils;
 import android.os.StrictMode;
 import android.system.OsConstants;
 import android.util.Slog;
 
 import libcore.io.Libcore;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -41,6 +38,7 @@ public class KernelCpuSpeedReader {
     private final String mProcFile;
     private final long[] mLastSpeedTimesMs;
     private final long[] mDeltaSpeedTimesMs;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(1024);
 
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
@@ -64,15 +62,13 @@ public class KernelCpuSpeedReader {
      */
     public long[] readDelta() {
         StrictMode.ThreadPolicy policy = StrictMode.allowThreadDiskReads();
-        try (BufferedReader reader = new BufferedReader(new FileReader(mProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
+        try {
+            mTokenizer.readFile(mProcFile);
             int speedIndex = 0;
-            while (speedIndex < mLastSpeedTimesMs.length && (line = reader.readLine()) != null) {
-                splitter.setString(line);
-                splitter.next();
+            while (speedIndex < mLastSpeedTimesMs.length && mTokenizer.hasMoreData()) {
+                mTokenizer.skipToken();
 
-                long time = Long.parseLong(splitter.next()) * mJiffyMillis;
+                long time = mTokenizer.nextLong() * mJiffyMillis;
                 if (time < mLastSpeedTimesMs[speedIndex]) {
                     // The stats reset when the cpu hotplugged. That means that the time
                     // we read is offset from 0, so the time is the delta.
@@ -82,6 +78,7 @@ public class KernelCpuSpeedReader {
                 }
                 mLastSpeedTimesMs[speedIndex] = time;
                 speedIndex++;
+                mTokenizer.nextLine();
             }
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read cpu-freq: " + e.getMessage());
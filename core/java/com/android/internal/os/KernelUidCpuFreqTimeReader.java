@@ -25,8 +25,8 @@ import android.util.TimeUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Reads /proc/uid_time_in_state which has the format:
@@ -48,6 +48,11 @@ public class KernelUidCpuFreqTimeReader {
 
     public interface Callback {
         void onCpuFreqs(long[] cpuFreqs);
+
+        /**
+         * @param cpuFreqTimeMs time spent at each frequency since the last read; the array is
+         *                      reused and only valid for the duration of the call
+         */
         void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs);
     }
 
@@ -56,6 +61,11 @@ public class KernelUidCpuFreqTimeReader {
     private long mLastTimeReadMs;
     private long mNowTimeMs;
 
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(64 * 1024);
+    // Scratch space for one line of the proc file, reused across uids and reads.
+    private long[] mCurUidTimeMs;
+    private long[] mDeltaUidTimeMs;
+
     private SparseArray<long[]> mLastUidCpuFreqTimeMs = new SparseArray<>();
 
     // We check the existence of proc file a few times (just in case it is not ready yet when we
@@ -68,15 +78,17 @@ public class KernelUidCpuFreqTimeReader {
         if (!mProcFileAvailable && mReadErrorCounter >= TOTAL_READ_ERROR_COUNT) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(UID_TIMES_PROC_FILE))) {
-            mNowTimeMs = SystemClock.elapsedRealtime();
-            readDelta(reader, callback);
-            mLastTimeReadMs = mNowTimeMs;
-            mProcFileAvailable = true;
+        try {
+            mTokenizer.readFile(UID_TIMES_PROC_FILE);
         } catch (IOException e) {
             mReadErrorCounter++;
             Slog.e(TAG, "Failed to read " + UID_TIMES_PROC_FILE + ": " + e);
+            return;
         }
+        mNowTimeMs = SystemClock.elapsedRealtime();
+        readDelta(mTokenizer, callback);
+        mLastTimeReadMs = mNowTimeMs;
+        mProcFileAvailable = true;
     }
 
     public void removeUid(int uid) {
@@ -96,37 +108,63 @@ public class KernelUidCpuFreqTimeReader {
 
     @VisibleForTesting
     public void readDelta(BufferedReader reader, @Nullable Callback callback) throws IOException {
-        String line = reader.readLine();
-        if (line == null) {
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append('\n');
+        }
+        final byte[] data = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        mTokenizer.setData(data, data.length);
+        readDelta(mTokenizer, callback);
+    }
+
+    /**
+     * Parses the contents of the proc file held by {@code tokenizer}.
+     */
+    @VisibleForTesting
+    public void readDelta(ProcFileTokenizer tokenizer, @Nullable Callback callback) {
+        if (!tokenizer.hasMoreData()) {
             return;
         }
-        readCpuFreqs(line, callback);
-        while ((line = reader.readLine()) != null) {
-            final int index = line.indexOf(' ');
-            final int uid = Integer.parseInt(line.substring(0, index - 1), 10);
-            readTimesForUid(uid, line.substring(index + 1, line.length()), callback);
+        try {
+            readCpuFreqs(tokenizer, callback);
+            for (tokenizer.nextLine(); tokenizer.hasMoreData(); tokenizer.nextLine()) {
+                if (!tokenizer.hasMoreTokens()) {
+                    continue;
+                }
+                final int uid = (int) tokenizer.nextLong();
+                readTimesForUid(uid, tokenizer, callback);
+            }
+        } catch (NumberFormatException e) {
+            Slog.e(TAG, "Failed to parse " + UID_TIMES_PROC_FILE + ": " + e.getMessage());
         }
     }
 
-    private void readTimesForUid(int uid, String line, Callback callback) {
+    private void readTimesForUid(int uid, ProcFileTokenizer tokenizer, Callback callback) {
         long[] uidTimeMs = mLastUidCpuFreqTimeMs.get(uid);
         if (uidTimeMs == null) {
             uidTimeMs = new long[mCpuFreqsCount];
             mLastUidCpuFreqTimeMs.put(uid, uidTimeMs);
         }
-        final String[] timesStr = line.split(" ");
-        final int size = timesStr.length;
+        final long[] curUidTimeMs = mCurUidTimeMs;
+        int size = 0;
+        while (tokenizer.hasMoreTokens()) {
+            final long time = tokenizer.nextLong();
+            if (size < curUidTimeMs.length) {
+                curUidTimeMs[size] = time;
+            }
+            size++;
+        }
         if (size != uidTimeMs.length) {
             Slog.e(TAG, "No. of readings don't match cpu freqs, readings: " + size
                     + " cpuFreqsCount: " + uidTimeMs.length);
             return;
         }
-        final long[] deltaUidTimeMs = new long[size];
-        final long[] curUidTimeMs = new long[size];
+        final long[] deltaUidTimeMs = mDeltaUidTimeMs;
         boolean notify = false;
         for (int i = 0; i < size; ++i) {
             // Times read will be in units of 10ms
-            final long totalTimeMs = Long.parseLong(timesStr[i], 10) * 10;
+            final long totalTimeMs = curUidTimeMs[i] * 10;
             deltaUidTimeMs[i] = totalTimeMs - uidTimeMs[i];
             // If there is malformed data for any uid, then we just log about it and ignore
             // the data for that uid.
@@ -156,15 +194,25 @@ public class KernelUidCpuFreqTimeReader {
         }
     }
 
-    private void readCpuFreqs(String line, Callback callback) {
+    private void readCpuFreqs(ProcFileTokenizer tokenizer, Callback callback) {
         if (mCpuFreqs == null) {
-            final String[] freqStr = line.split(" ");
             // First item would be "uid:" which needs to be ignored
-            mCpuFreqsCount = freqStr.length - 1;
-            mCpuFreqs = new long[mCpuFreqsCount];
-            for (int i = 0; i < mCpuFreqsCount; ++i) {
-                mCpuFreqs[i] = Long.parseLong(freqStr[i + 1], 10);
+            tokenizer.skipToken();
+            long[] freqs = new long[32];
+            int count = 0;
+            while (tokenizer.hasMoreTokens()) {
+                if (count == freqs.length) {
+                    final long[] newFreqs = new long[count * 2];
+                    System.arraycopy(freqs, 0, newFreqs, 0, count);
+                    freqs = newFreqs;
+                }
+                freqs[count++] = tokenizer.nextLong();
             }
+            mCpuFreqsCount = count;
+            mCpuFreqs = new long[count];
+            System.arraycopy(freqs, 0, mCpuFreqs, 0, count);
+            mCurUidTimeMs = new long[count];
+            mDeltaUidTimeMs = new long[count];
         }
         if (callback != null) {
             callback.onCpuFreqs(mCpuFreqs);
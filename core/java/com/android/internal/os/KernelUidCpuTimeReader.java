@@ -17,13 +17,12 @@ package com.android.internal.os;
 
 import android.annotation.Nullable;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.util.Slog;
 import android.util.SparseLongArray;
 import android.util.TimeUtils;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.FileWriter;
 import java.io.IOException;
 
@@ -57,6 +56,7 @@ public class KernelUidCpuTimeReader {
     private SparseLongArray mLastUserTimeUs = new SparseLongArray();
     private SparseLongArray mLastSystemTimeUs = new SparseLongArray();
     private long mLastTimeReadUs = 0;
+    private final ProcFileTokenizer mTokenizer = new ProcFileTokenizer(16 * 1024);
 
     /**
      * Reads the proc file, calling into the callback with a delta of time for each UID.
@@ -66,15 +66,30 @@ public class KernelUidCpuTimeReader {
      */
     public void readDelta(@Nullable Callback callback) {
         long nowUs = SystemClock.elapsedRealtime() * 1000;
-        try (BufferedReader reader = new BufferedReader(new FileReader(sProcFile))) {
-            TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter(' ');
-            String line;
-            while ((line = reader.readLine()) != null) {
-                splitter.setString(line);
-                final String uidStr = splitter.next();
-                final int uid = Integer.parseInt(uidStr.substring(0, uidStr.length() - 1), 10);
-                final long userTimeUs = Long.parseLong(splitter.next(), 10);
-                final long systemTimeUs = Long.parseLong(splitter.next(), 10);
+        try {
+            mTokenizer.readFile(sProcFile);
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
+            mLastTimeReadUs = nowUs;
+            return;
+        }
+        readDelta(mTokenizer, nowUs, callback);
+    }
+
+    /**
+     * Parses the contents of the proc file held by {@code tokenizer}, as if it had been read
+     * at {@code nowUs}.
+     */
+    @VisibleForTesting
+    public void readDelta(ProcFileTokenizer tokenizer, long nowUs, @Nullable Callback callback) {
+        try {
+            for (; tokenizer.hasMoreData(); tokenizer.nextLine()) {
+                if (!tokenizer.hasMoreTokens()) {
+                    continue;
+                }
+                final int uid = (int) tokenizer.nextLong();
+                final long userTimeUs = tokenizer.nextLong();
+                final long systemTimeUs = tokenizer.nextLong();
 
                 // Only report if there is a callback and if this is not the first read.
                 if (callback != null && mLastTimeReadUs != 0) {
@@ -119,8 +134,8 @@ public class KernelUidCpuTimeReader {
                 mLastUserTimeUs.put(uid, userTimeUs);
                 mLastSystemTimeUs.put(uid, systemTimeUs);
             }
-        } catch (IOException e) {
-            Slog.e(TAG, "Failed to read uid_cputime: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            Slog.e(TAG, "Failed to parse uid_cputime: " + e.getMessage());
         }
         mLastTimeReadUs = nowUs;
     }
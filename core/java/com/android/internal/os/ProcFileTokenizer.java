@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import libcore.io.IoUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads a whole proc or sysfs file into a reusable byte buffer and hands out the numbers in
+ * it line by line, without creating any Strings.
+ *
+ * <p>Lines are separated by '\n' and tokens by spaces or tabs.  A numeric token may carry a
+ * suffix such as the ':' after a uid, which is skipped.  The buffer only grows, so once it is
+ * large enough for the file, repeated reads do not allocate.  Not thread safe.</p>
+ */
+public final class ProcFileTokenizer {
+    private byte[] mBuffer;
+    private int mLength;
+    private int mPos;
+
+    public ProcFileTokenizer(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Replaces the contents of the buffer with the file at {@code path} and rewinds to its
+     * first line.
+     */
+    public void readFile(String path) throws IOException {
+        mLength = 0;
+        mPos = 0;
+        FileInputStream is = null;
+        try {
+            is = new FileInputStream(path);
+            while (true) {
+                if (mLength == mBuffer.length) {
+                    final byte[] buffer = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                    mBuffer = buffer;
+                }
+                final int read = is.read(mBuffer, mLength, mBuffer.length - mLength);
+                if (read < 0) {
+                    break;
+                }
+                mLength += read;
+            }
+        } finally {
+            IoUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Replaces the contents of the buffer with a copy of {@code data}, for example a
+     * previously captured file, and rewinds to its first line.
+     */
+    public void setData(byte[] data, int length) {
+        if (mBuffer.length < length) {
+            mBuffer = new byte[length];
+        }
+        System.arraycopy(data, 0, mBuffer, 0, length);
+        mLength = length;
+        mPos = 0;
+    }
+
+    /** Returns whether there is anything left to read. */
+    public boolean hasMoreData() {
+        return mPos < mLength;
+    }
+
+    /** Skips the rest of the current line, including its line break. */
+    public void nextLine() {
+        while (mPos < mLength && mBuffer[mPos++] != '\n') {
+        }
+    }
+
+    /** Returns whether the current line has another token. */
+    public boolean hasMoreTokens() {
+        skipSpaces();
+        return mPos < mLength && mBuffer[mPos] != '\n';
+    }
+
+    /** Skips the next token on the current line. */
+    public void skipToken() {
+        skipSpaces();
+        while (mPos < mLength && !isSeparator(mBuffer[mPos])) {
+            mPos++;
+        }
+    }
+
+    /**
+     * Parses the next token on the current line as a decimal number, ignoring any non-digit
+     * suffix.
+     *
+     * @throws NumberFormatException if the token does not start with a number
+     */
+    public long nextLong() {
+        skipSpaces();
+        boolean negative = false;
+        if (mPos < mLength && mBuffer[mPos] == '-') {
+            negative = true;
+            mPos++;
+        }
+        final int start = mPos;
+        long value = 0;
+        while (mPos < mLength) {
+            final int digit = mBuffer[mPos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            mPos++;
+        }
+        if (mPos == start) {
+            throw new NumberFormatException("Expected a number at offset " + start);
+        }
+        // Skip suffixes such as the ':' after a uid
+        while (mPos < mLength && !isSeparator(mBuffer[mPos])) {
+            mPos++;
+        }
+        return negative ? -value : value;
+    }
+
+    private void skipSpaces() {
+        while (mPos < mLength && (mBuffer[mPos] == ' ' || mBuffer[mPos] == '\t')) {
+            mPos++;
+        }
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == '\n';
+    }
+}
@@ -22,15 +22,16 @@ import android.os.FileUtils;
 import android.os.Process;
 import android.os.StrictMode;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -70,8 +71,36 @@ public class ProcessCpuTracker {
     static final int PROCESS_STAT_UTIME = 2;
     static final int PROCESS_STAT_STIME = 3;
 
+    /** Like PROCESS_STATS_FORMAT, but also picks up the start time to notice reused pids. */
+    private static final int[] PROCESS_SAMPLE_FORMAT = new int[] {
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_PARENS,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 10: minor faults
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 12: major faults
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 14: utime
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 15: stime
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 22: start time
+    };
+
+    static final int PROCESS_STAT_START_TIME = 4;
+
     /** Stores user time and system time in jiffies. */
-    private final long[] mProcessStatsData = new long[4];
+    private final long[] mProcessStatsData = new long[5];
 
     /** Stores user time and system time in jiffies.  Used for
      * public API to retrieve CPU use for a process.  Must lock while in use. */
@@ -99,7 +128,7 @@ public class ProcessCpuTracker {
         PROC_SPACE_TERM,
         PROC_SPACE_TERM,
         PROC_SPACE_TERM,
-        PROC_SPACE_TERM,
+        PROC_SPACE_TERM|PROC_OUT_LONG,                  // 22: start time
         PROC_SPACE_TERM|PROC_OUT_LONG,                  // 23: vsize
     };
 
@@ -107,10 +136,11 @@ public class ProcessCpuTracker {
     static final int PROCESS_FULL_STAT_MAJOR_FAULTS = 2;
     static final int PROCESS_FULL_STAT_UTIME = 3;
     static final int PROCESS_FULL_STAT_STIME = 4;
-    static final int PROCESS_FULL_STAT_VSIZE = 5;
+    static final int PROCESS_FULL_STAT_START_TIME = 5;
+    static final int PROCESS_FULL_STAT_VSIZE = 6;
 
-    private final String[] mProcessFullStatsStringData = new String[6];
-    private final long[] mProcessFullStatsData = new long[6];
+    private final String[] mProcessFullStatsStringData = new String[7];
+    private final long[] mProcessFullStatsData = new long[7];
 
     private static final int[] SYSTEM_CPU_FORMAT = new int[] {
         PROC_SPACE_TERM|PROC_COMBINE,
@@ -135,6 +165,21 @@ public class ProcessCpuTracker {
 
     private final boolean mIncludeThreads;
 
+    // Whether to sample incrementally: reused pids are told apart by their start time, and the
+    // threads of a process are only walked when it used at least THREAD_SAMPLE_THRESHOLD_MS of
+    // CPU since the previous sample.
+    private static final boolean SAMPLE_INCREMENTALLY =
+            SystemProperties.getBoolean("persist.sys.cpu_tracker_incremental", false);
+
+    private final boolean mSampleIncrementally;
+
+    // Where procfs is mounted; tests point this at fake files.
+    private final String mProcRoot;
+
+    // Processes that used less CPU than this keep their threads from the last time they were
+    // walked.  When they are walked again, each thread reports everything it used since then.
+    static final int THREAD_SAMPLE_THRESHOLD_MS = 20;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -234,6 +279,11 @@ public class ProcessCpuTracker {
          */
         public int rel_stime;
 
+        /**
+         * Start time in jiffies since boot, or 0 if not known.
+         */
+        public long base_starttime;
+
         public long base_minfaults;
         public long base_majfaults;
         public int rel_minfaults;
@@ -244,13 +294,13 @@ public class ProcessCpuTracker {
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        Stats(int _pid, int parentPid, boolean includeThreads, String procRoot) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
-                statFile = new File(procDir, "stat").toString();
-                cmdlineFile = new File(procDir, "cmdline").toString();
-                threadsDir = (new File(procDir, "task")).toString();
+                final String procDir = procRoot + "/" + pid;
+                statFile = procDir + "/stat";
+                cmdlineFile = procDir + "/cmdline";
+                threadsDir = procDir + "/task";
                 if (includeThreads) {
                     threadStats = new ArrayList<Stats>();
                     workingThreads = new ArrayList<Stats>();
@@ -259,17 +309,13 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
-                        parentPid));
-                final File taskDir = new File(
-                        new File(procDir, "task"), Integer.toString(pid));
-                statFile = new File(taskDir, "stat").toString();
+                statFile = procRoot + "/" + parentPid + "/task/" + pid + "/stat";
                 cmdlineFile = null;
                 threadsDir = null;
                 threadStats = null;
                 workingThreads = null;
             }
-            uid = FileUtils.getUid(statFile.toString());
+            uid = FileUtils.getUid(statFile);
         }
     }
 
@@ -293,7 +339,14 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, "/proc", SAMPLE_INCREMENTALLY);
+    }
+
+    @VisibleForTesting
+    ProcessCpuTracker(boolean includeThreads, String procRoot, boolean sampleIncrementally) {
         mIncludeThreads = includeThreads;
+        mProcRoot = procRoot;
+        mSampleIncrementally = sampleIncrementally;
         long jiffyHz = Libcore.os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -319,7 +372,7 @@ public class ProcessCpuTracker {
         final long nowWallTime = System.currentTimeMillis();
 
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
+        if (Process.readProcFile(mProcRoot + "/stat", SYSTEM_CPU_FORMAT,
                 null, sysCpu, null)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
@@ -384,13 +437,13 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats(mProcRoot, -1, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
+        if (Process.readProcFile(mProcRoot + "/loadavg", LOAD_AVERAGE_FORMAT,
                 null, null, loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
@@ -438,8 +491,27 @@ public class ProcessCpuTracker {
                     final long uptime = SystemClock.uptimeMillis();
 
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
-                            PROCESS_STATS_FORMAT, null, procStats, null)) {
+                    if (!Process.readProcFile(st.statFile,
+                            mSampleIncrementally ? PROCESS_SAMPLE_FORMAT : PROCESS_STATS_FORMAT,
+                            null, procStats, null)) {
+                        continue;
+                    }
+
+                    if (mSampleIncrementally && st.base_starttime != 0
+                            && procStats[PROCESS_STAT_START_TIME] != st.base_starttime) {
+                        // The pid has been reused since the last sample.  Report the old
+                        // one as gone and pick this one up as new on the next pass.
+                        if (DEBUG) Slog.v(TAG, "Reused pid " + pid + ": " + st);
+                        st.rel_utime = 0;
+                        st.rel_stime = 0;
+                        st.rel_minfaults = 0;
+                        st.rel_majfaults = 0;
+                        st.removed = true;
+                        st.working = true;
+                        curStatsIndex--;
+                        allProcs.remove(curStatsIndex);
+                        NS--;
+                        i--;
                         continue;
                     }
 
@@ -466,8 +538,13 @@ public class ProcessCpuTracker {
                     if (parentPid < 0) {
                         getName(st, st.cmdlineFile);
                         if (st.threadStats != null) {
-                            mCurThreadPids = collectStats(st.threadsDir, pid, false,
-                                    mCurThreadPids, st.threadStats);
+                            if (!mSampleIncrementally || (utime - st.base_utime)
+                                    + (stime - st.base_stime) >= THREAD_SAMPLE_THRESHOLD_MS) {
+                                mCurThreadPids = collectStats(st.threadsDir, pid, false,
+                                        mCurThreadPids, st.threadStats);
+                            } else {
+                                clearThreadStats(st);
+                            }
                         }
                     }
 
@@ -495,7 +572,7 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
+                st = new Stats(pid, parentPid, mIncludeThreads, mProcRoot);
                 allProcs.add(curStatsIndex, st);
                 curStatsIndex++;
                 NS++;
@@ -506,7 +583,7 @@ public class ProcessCpuTracker {
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
                 st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
+                String path = st.statFile;
                 //Slog.d(TAG, "Reading proc file: " + path);
                 if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
                         procStats, null)) {
@@ -522,6 +599,7 @@ public class ProcessCpuTracker {
                         st.base_majfaults = procStats[PROCESS_FULL_STAT_MAJOR_FAULTS];
                         st.base_utime = procStats[PROCESS_FULL_STAT_UTIME] * mJiffyMillis;
                         st.base_stime = procStats[PROCESS_FULL_STAT_STIME] * mJiffyMillis;
+                        st.base_starttime = procStats[PROCESS_FULL_STAT_START_TIME];
                     } else {
                         Slog.i(TAG, "Skipping kernel process pid " + pid
                                 + " name " + procStatsString[0]);
@@ -595,13 +673,31 @@ public class ProcessCpuTracker {
         return pids;
     }
 
+    /**
+     * Leaves the threads of {@code st} out of this sample without reading them.  Their base
+     * times stay where they are, so the next time they are read they account for all the time
+     * since.
+     */
+    private static void clearThreadStats(Stats st) {
+        final ArrayList<Stats> threads = st.threadStats;
+        for (int i = threads.size() - 1; i >= 0; i--) {
+            final Stats tst = threads.get(i);
+            tst.rel_utime = 0;
+            tst.rel_stime = 0;
+            tst.rel_minfaults = 0;
+            tst.rel_majfaults = 0;
+            tst.added = false;
+            tst.working = false;
+        }
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
      */
     public long getCpuTimeForPid(int pid) {
         synchronized (mSinglePidStatsData) {
-            final String statFile = "/proc/" + pid + "/stat";
+            final String statFile = mProcRoot + "/" + pid + "/stat";
             final long[] statsData = mSinglePidStatsData;
             if (Process.readProcFile(statFile, PROCESS_STATS_FORMAT,
                     null, statsData, null)) {
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.ENC_INTERNED;
+import static com.android.internal.util.BinaryXmlSerializer.ENC_RAW;
+import static com.android.internal.util.BinaryXmlSerializer.MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.NEW_INTERNED;
+
+import libcore.io.Streams;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * XmlPullParser over the binary token stream written by {@link BinaryXmlSerializer}.
+ *
+ * <p>Input is consumed from a {@link ByteBuffer}, which lets callers pass a memory-mapped file
+ * via {@link #setInput(ByteBuffer)} and read it without copying it to the heap first. Only
+ * the subset of the pull parser API that does not involve namespaces, entities or DTDs is
+ * supported.</p>
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private ByteBuffer mIn;
+    private final ArrayList<String> mInterned = new ArrayList<>();
+    private byte[] mScratch = new byte[256];
+
+    private int mEventType = START_DOCUMENT;
+    private int mDepth;
+    private boolean mPendingDepthDecrement;
+    private String[] mTagStack = new String[16];
+    private String mText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /**
+     * Starts parsing {@code buffer} from its current position, which must point at
+     * {@link BinaryXmlSerializer#MAGIC}.
+     */
+    public void setInput(ByteBuffer buffer) throws XmlPullParserException {
+        mIn = buffer;
+        mInterned.clear();
+        mDepth = 0;
+        mPendingDepthDecrement = false;
+        mAttributeCount = 0;
+        mText = null;
+        try {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (mIn.get() != MAGIC[i]) {
+                    throw new XmlPullParserException("Not a binary XML stream");
+                }
+            }
+            mEventType = readToken() & 0x0f;
+        } catch (BufferUnderflowException e) {
+            throw new XmlPullParserException("Truncated binary XML stream");
+        }
+        if (mEventType != START_DOCUMENT) {
+            throw new XmlPullParserException("Missing start of document");
+        }
+    }
+
+    @Override
+    public void setInput(InputStream inputStream, String inputEncoding)
+            throws XmlPullParserException {
+        try {
+            setInput(ByteBuffer.wrap(Streams.readFully(inputStream)));
+        } catch (IOException e) {
+            throw new XmlPullParserException(e.toString());
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException("Binary XML requires an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mPendingDepthDecrement) {
+            mTagStack[--mDepth] = null;
+            mPendingDepthDecrement = false;
+        }
+        if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mAttributeCount = 0;
+        mText = null;
+        try {
+            final int token = readToken();
+            mEventType = token & 0x0f;
+            switch (mEventType) {
+                case START_TAG:
+                    if (mDepth == mTagStack.length) {
+                        mTagStack = Arrays.copyOf(mTagStack, mDepth * 2);
+                    }
+                    mTagStack[mDepth++] = readInterned();
+                    readAttributes();
+                    break;
+                case END_TAG:
+                    if (mDepth == 0) {
+                        throw new XmlPullParserException("Unbalanced end tag");
+                    }
+                    mPendingDepthDecrement = true;
+                    break;
+                case TEXT:
+                    mText = readRaw();
+                    break;
+                case END_DOCUMENT:
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected token " + token);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new XmlPullParserException("Truncated binary XML stream");
+        }
+        return mEventType;
+    }
+
+    private void readAttributes() throws XmlPullParserException {
+        while (mIn.hasRemaining() && (mIn.get(mIn.position()) & 0x0f) == ATTRIBUTE) {
+            final int token = readToken();
+            if (mAttributeCount == mAttributeNames.length) {
+                mAttributeNames = Arrays.copyOf(mAttributeNames, mAttributeCount * 2);
+                mAttributeValues = Arrays.copyOf(mAttributeValues, mAttributeCount * 2);
+            }
+            mAttributeNames[mAttributeCount] = readInterned();
+            switch (token & 0xf0) {
+                case ENC_INTERNED:
+                    mAttributeValues[mAttributeCount] = readInterned();
+                    break;
+                case ENC_RAW:
+                    mAttributeValues[mAttributeCount] = readRaw();
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected attribute token " + token);
+            }
+            mAttributeCount++;
+        }
+    }
+
+    private int readToken() {
+        return mIn.get() & 0xff;
+    }
+
+    private String readInterned() throws XmlPullParserException {
+        final int index = mIn.getShort() & 0xffff;
+        if (index != NEW_INTERNED) {
+            if (index >= mInterned.size()) {
+                throw new XmlPullParserException("Invalid string reference " + index);
+            }
+            return mInterned.get(index);
+        }
+        final String s = readRaw();
+        if (mInterned.size() < NEW_INTERNED) {
+            mInterned.add(s);
+        }
+        return s;
+    }
+
+    private String readRaw() throws XmlPullParserException {
+        final int length = mIn.getInt();
+        if (length < 0 || length > mIn.remaining()) {
+            throw new XmlPullParserException("Invalid string length " + length);
+        }
+        if (mIn.hasArray()) {
+            final String s = new String(mIn.array(), mIn.arrayOffset() + mIn.position(), length,
+                    StandardCharsets.UTF_8);
+            mIn.position(mIn.position() + length);
+            return s;
+        }
+        if (mScratch.length < length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        mIn.get(mScratch, 0, length);
+        return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        if (mEventType == START_TAG || mEventType == END_TAG) {
+            return mTagStack[mDepth - 1];
+        }
+        return null;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not a text event");
+        }
+        for (int i = 0; i < mText.length(); i++) {
+            if (!Character.isWhitespace(mText.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not a start tag");
+        }
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException("Attribute index " + index);
+        }
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mEventType
+                || (namespace != null && !namespace.isEmpty())
+                || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("expected " + TYPES[type] + getPositionDescription());
+        }
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("precondition: START_TAG" + getPositionDescription());
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = getText();
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("END_TAG expected" + getPositionDescription());
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        }
+        throw new XmlPullParserException("TEXT expected" + getPositionDescription());
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("expected START_TAG or END_TAG"
+                    + getPositionDescription());
+        }
+        return eventType;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return " " + TYPES[mEventType] + " " + getName() + " @" + mIn.position();
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        if (state) {
+            throw new XmlPullParserException("Unsupported feature " + name);
+        }
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+}
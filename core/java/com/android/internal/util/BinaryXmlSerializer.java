@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.END_TAG;
+import static org.xmlpull.v1.XmlPullParser.START_DOCUMENT;
+import static org.xmlpull.v1.XmlPullParser.START_TAG;
+import static org.xmlpull.v1.XmlPullParser.TEXT;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * XmlSerializer that writes a compact binary token stream instead of text, to be read back
+ * with {@link BinaryXmlPullParser}.
+ *
+ * <p>Tag and attribute names, as well as short attribute values, go through a string table
+ * that is built up while writing: the first occurrence of a string is written inline and
+ * every later occurrence is a two byte reference. There is no escaping, no indentation and no
+ * number formatting beyond what callers already do, so writing is mostly a matter of copying
+ * bytes. Namespaces are not supported.</p>
+ *
+ * <p>Stream layout: {@link #MAGIC}, followed by one token per event. A token is a byte whose
+ * low nibble is the event type (see {@link org.xmlpull.v1.XmlPullParser}, or
+ * {@link #ATTRIBUTE}) and whose high nibble is the encoding of the payload that follows.</p>
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /** Leading bytes of every binary XML stream. */
+    public static final byte[] MAGIC = new byte[] { 'B', 'X', 'M', 1 };
+
+    static final int ATTRIBUTE = 15;
+
+    /** Payload is a string table reference, or a new table entry. */
+    static final int ENC_INTERNED = 1 << 4;
+    /** Payload is a length-prefixed UTF-8 string that is not added to the string table. */
+    static final int ENC_RAW = 2 << 4;
+    /** No payload. */
+    static final int ENC_NONE = 3 << 4;
+
+    /** String table reference announcing a new entry, which follows inline. */
+    static final int NEW_INTERNED = 0xffff;
+    /** Attribute values up to this length are added to the string table. */
+    static final int MAX_INTERNED_VALUE_LENGTH = 64;
+
+    private DataOutputStream mOut;
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+    private final String[] mTagStack = new String[64];
+    private int mDepth;
+
+    /**
+     * Returns whether {@code header} starts with {@link #MAGIC}.
+     */
+    public static boolean isBinaryXml(byte[] header) {
+        if (header.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Only UTF-8 is supported");
+        }
+        // Writes to memory need no buffer, which keeps setOutput cheap for callers that
+        // serialize many small documents.
+        mOut = new DataOutputStream(os instanceof ByteArrayOutputStream
+                ? os : new BufferedOutputStream(os, 32 * 1024));
+        mInterned.clear();
+        mDepth = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) throws IOException {
+        throw new UnsupportedOperationException("Binary XML requires an OutputStream");
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.write(MAGIC);
+        mOut.writeByte(START_DOCUMENT | ENC_NONE);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        while (mDepth > 0) {
+            endTag(null, mTagStack[mDepth - 1]);
+        }
+        mOut.writeByte(END_DOCUMENT | ENC_NONE);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new UnsupportedOperationException("Namespaces are not supported");
+        }
+        if (mDepth == mTagStack.length) {
+            throw new IOException("Nesting too deep");
+        }
+        mTagStack[mDepth++] = name;
+        mOut.writeByte(START_TAG | ENC_INTERNED);
+        writeInterned(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new UnsupportedOperationException("Namespaces are not supported");
+        }
+        if (value.length() <= MAX_INTERNED_VALUE_LENGTH) {
+            mOut.writeByte(ATTRIBUTE | ENC_INTERNED);
+            writeInterned(name);
+            writeInterned(value);
+        } else {
+            mOut.writeByte(ATTRIBUTE | ENC_RAW);
+            writeInterned(name);
+            writeRaw(value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        if (mDepth == 0 || !mTagStack[mDepth - 1].equals(name)) {
+            throw new IllegalArgumentException("Mismatched end tag " + name);
+        }
+        mTagStack[--mDepth] = null;
+        mOut.writeByte(END_TAG | ENC_NONE);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(TEXT | ENC_RAW);
+        writeRaw(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    private void writeInterned(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        final int size = mInterned.size();
+        if (size < NEW_INTERNED) {
+            mInterned.put(s, size);
+        }
+        // Entries beyond the table size are written inline every time
+        mOut.writeShort(NEW_INTERNED);
+        writeRaw(s);
+    }
+
+    private void writeRaw(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mDepth > 0 ? mTagStack[mDepth - 1] : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return null;
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Indentation and other output features are meaningless for binary output
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void comment(String text) {
+        // Comments are dropped
+    }
+
+    @Override
+    public void docdecl(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+        // Whitespace is dropped
+    }
+}
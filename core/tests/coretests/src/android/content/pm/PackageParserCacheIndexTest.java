@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content.pm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageParserCacheIndexTest {
+    private File mCacheDir;
+
+    @Before
+    public void setUp() {
+        mCacheDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "package_cache_index_test");
+        FileUtils.deleteContentsAndDir(mCacheDir);
+        mCacheDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mCacheDir);
+    }
+
+    @Test
+    public void testRebuildAndLoad() throws Exception {
+        writeCacheFile("a.apk-0", new byte[] { 1, 2, 3 });
+        writeCacheFile("b.apk-0", new byte[] { 4 });
+
+        assertEquals(2, PackageParserCacheIndex.load(mCacheDir).rebuild());
+        assertFalse(new File(mCacheDir, "a.apk-0").exists());
+        assertFalse(new File(mCacheDir, "b.apk-0").exists());
+
+        final PackageParserCacheIndex index = PackageParserCacheIndex.load(mCacheDir);
+        assertEquals(2, index.size());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, index.get("a.apk-0"));
+        assertArrayEquals(new byte[] { 4 }, index.get("b.apk-0"));
+        assertTrue(index.getCacheMtime("a.apk-0") > 0);
+        assertEquals(-1, index.getCacheMtime("c.apk-0"));
+        assertNull(index.get("c.apk-0"));
+    }
+
+    @Test
+    public void testRebuildDropsUnusedEntries() throws Exception {
+        writeCacheFile("a.apk-0", new byte[] { 1 });
+        writeCacheFile("b.apk-0", new byte[] { 2 });
+        PackageParserCacheIndex.load(mCacheDir).rebuild();
+
+        PackageParserCacheIndex index = PackageParserCacheIndex.load(mCacheDir);
+        index.get("a.apk-0");
+        index.markUsed("a.apk-0");
+        // Reading an entry that turns out to be stale doesn't keep it
+        index.get("b.apk-0");
+        // A re-parsed package replaces its index entry
+        writeCacheFile("c.apk-0", new byte[] { 3 });
+        assertEquals(2, index.rebuild());
+
+        index = PackageParserCacheIndex.load(mCacheDir);
+        assertArrayEquals(new byte[] { 1 }, index.get("a.apk-0"));
+        assertNull(index.get("b.apk-0"));
+        assertArrayEquals(new byte[] { 3 }, index.get("c.apk-0"));
+    }
+
+    @Test
+    public void testRebuildSkippedWhenUnchanged() throws Exception {
+        writeCacheFile("a.apk-0", new byte[] { 1 });
+        PackageParserCacheIndex.load(mCacheDir).rebuild();
+        final File indexFile = new File(mCacheDir, PackageParserCacheIndex.INDEX_FILE_NAME);
+        indexFile.setLastModified(0);
+
+        final PackageParserCacheIndex index = PackageParserCacheIndex.load(mCacheDir);
+        index.markUsed("a.apk-0");
+        assertEquals(1, index.rebuild());
+        assertEquals(0, indexFile.lastModified());
+    }
+
+    @Test
+    public void testCorruptIndexIsDiscarded() throws Exception {
+        writeCacheFile(PackageParserCacheIndex.INDEX_FILE_NAME, new byte[] { 0, 1, 2 });
+        final PackageParserCacheIndex index = PackageParserCacheIndex.load(mCacheDir);
+        assertEquals(0, index.size());
+        assertFalse(new File(mCacheDir, PackageParserCacheIndex.INDEX_FILE_NAME).exists());
+    }
+
+    private void writeCacheFile(String name, byte[] data) throws Exception {
+        try (FileOutputStream fos = new FileOutputStream(new File(mCacheDir, name))) {
+            fos.write(data);
+        }
+    }
+}
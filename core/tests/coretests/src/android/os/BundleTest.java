@@ -16,8 +16,10 @@
 
 package android.os;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import android.support.test.runner.AndroidJUnit4;
@@ -137,4 +139,80 @@ public class BundleTest {
         checkBundle(b, withFd);
         p.recycle();
     }
+
+    @Test
+    public void testLazyUnparcel() throws Exception {
+        final Bundle inner = new Bundle();
+        inner.putString("inner", "xyz");
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putString("null", null);
+        source.putInt("int", 1);
+        source.putByteArray("bytes", new byte[] { 1, 2, 3 });
+        source.putLongArray("longs", new long[] { 4L, 5L });
+        source.putStringArray("strings", new String[] { "d", null, "e" });
+        source.putSerializable("serializable", Integer.valueOf(6));
+        source.putBundle("bundle", inner);
+
+        BaseBundle.setLazyUnparcel(true);
+        try {
+            final Parcel p = Parcel.obtain();
+            source.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            final Bundle b = new Bundle(p);
+            p.recycle();
+
+            assertEquals("abc", b.getString("string"));
+            assertFalse(b.isParcelled());
+            assertTrue(b.containsKey("null"));
+            assertNull(b.getString("null"));
+            assertEquals(1, b.getInt("int"));
+            assertArrayEquals(new long[] { 4L, 5L }, b.getLongArray("longs"));
+
+            // Values not yet read are copied as they are when the Bundle is parcelled again
+            final Parcel p2 = Parcel.obtain();
+            b.writeToParcel(p2, 0);
+            p2.setDataPosition(0);
+            final Bundle b2 = new Bundle(p2);
+            p2.recycle();
+            assertEquals(8, b2.size());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, b2.getByteArray("bytes"));
+            assertArrayEquals(new String[] { "d", null, "e" }, b2.getStringArray("strings"));
+            assertEquals(6, b2.getSerializable("serializable"));
+            assertEquals("xyz", b2.getBundle("bundle").getString("inner"));
+            assertEquals("abc", b2.getString("string"));
+            assertFalse(b2.hasFileDescriptors());
+        } finally {
+            BaseBundle.setLazyUnparcel(false);
+        }
+    }
+
+    @Test
+    public void testLazyUnparcel_fileDescriptors() throws Exception {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final Bundle source = new Bundle();
+        source.putString("string", "abc");
+        source.putParcelable("fd", pipe[0]);
+
+        BaseBundle.setLazyUnparcel(true);
+        try {
+            final Parcel p = Parcel.obtain();
+            source.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            final Bundle b = new Bundle(p);
+            p.recycle();
+
+            // Read eagerly, so that the parcel holding the fds is recycled right away
+            assertTrue(b.hasFileDescriptors());
+            assertEquals("abc", b.getString("string"));
+            for (int i = 0; i < b.mMap.size(); i++) {
+                assertFalse(b.mMap.valueAt(i) instanceof BaseBundle.LazyValue);
+            }
+            ((ParcelFileDescriptor) b.getParcelable("fd")).close();
+        } finally {
+            BaseBundle.setLazyUnparcel(false);
+            pipe[0].close();
+            pipe[1].close();
+        }
+    }
 }
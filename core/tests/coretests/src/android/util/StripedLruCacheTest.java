@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+
+public final class StripedLruCacheTest extends TestCase {
+
+    public void testSingleShardEvictsLeastRecentlyUsed() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(3, 1, false);
+        assertEquals(1, cache.shardCount());
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("C", cache.get("c"));
+        assertEquals("D", cache.get("d"));
+        assertEquals(4, cache.putCount());
+        assertEquals(4, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.evictionCount());
+        assertEquals(3, cache.size());
+    }
+
+    public void testShardsShareMaxSize() {
+        StripedLruCache<Integer, String> cache = new StripedLruCache<Integer, String>(10, 4,
+                false);
+        assertEquals(4, cache.shardCount());
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, "v" + i);
+            assertTrue(cache.size() <= 10);
+        }
+        assertEquals(10, cache.size());
+        assertEquals(90, cache.evictionCount());
+
+        // Small caches use fewer shards so that every shard can hold something
+        assertEquals(2, new StripedLruCache<Integer, String>(3, 16, false).shardCount());
+    }
+
+    public void testSizeOfAndEntryRemoved() {
+        final List<String> log = new ArrayList<String>();
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(10, 1,
+                false) {
+            @Override protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+            @Override protected void entryRemoved(
+                    boolean evicted, String key, String oldValue, String newValue) {
+                log.add(key + "=" + oldValue + (evicted ? " evicted" : ""));
+            }
+        };
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("a", "aa");
+        assertEquals(6, cache.size());
+        cache.put("c", "cccccc");
+        assertEquals(8, cache.size());
+        assertEquals("[a=aaaa, b=bbbb evicted]", log.toString());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals("[a=aaaa, b=bbbb evicted, a=aa evicted, c=cccccc evicted]",
+                log.toString());
+    }
+
+    public void testCreate() {
+        StripedLruCache<String, String> cache = new StripedLruCache<String, String>(3) {
+            @Override protected String create(String key) {
+                return key.length() > 1 ? ("created-" + key) : null;
+            }
+        };
+        assertEquals("created-aa", cache.get("aa"));
+        assertEquals("created-aa", cache.get("aa"));
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.missCount());
+    }
+
+    public void testWeakValues() {
+        StripedLruCache<String, Object> cache = new StripedLruCache<String, Object>(10, 1, true);
+        Object strong = new Object();
+        cache.put("strong", strong);
+        cache.put("weak", new Object());
+        for (int i = 0; i < 10 && cache.snapshot().containsKey("weak"); i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+        }
+
+        assertSame(strong, cache.get("strong"));
+        assertNull(cache.get("weak"));
+        assertEquals(1, cache.size());
+        Map<String, Object> snapshot = cache.snapshot();
+        assertEquals(1, snapshot.size());
+        assertSame(strong, snapshot.get("strong"));
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final StripedLruCache<Integer, Integer> cache =
+                new StripedLruCache<Integer, Integer>(64, 8, false);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread() {
+                @Override public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        int key = (i * 31 + seed) % 256;
+                        Integer value = cache.get(key);
+                        if (value != null) {
+                            assertEquals(key, (int) value);
+                        } else {
+                            cache.put(key, key);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 64);
+        assertEquals(80000, cache.hitCount() + cache.missCount());
+        assertEquals(cache.missCount(), cache.putCount());
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.os.BatteryStats;
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Test class for {@link BatteryStatsHistoryStore}.
+ *
+ * Run: adb shell am instrument -e class com.android.internal.os.BatteryStatsHistoryStoreTest -w \
+ *     com.android.frameworks.coretests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsHistoryStoreTest {
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "battery-history");
+        FileUtils.deleteContents(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] read(BatteryStatsHistoryStore store, int size) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            assertTrue(store.readInto(parcel, size));
+            assertEquals(size, parcel.dataSize());
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testAppendAcrossChunks() throws Exception {
+        final int chunk = BatteryStatsHistoryStore.CHUNK_SIZE;
+        final byte[] history = bytes(chunk * 2 + 100, 1);
+        final BatteryStatsHistoryStore store = new BatteryStatsHistoryStore(mDir);
+        store.write(0, Arrays.copyOfRange(history, 0, chunk - 8));
+        store.write(chunk - 8, Arrays.copyOfRange(history, chunk - 8, history.length));
+        assertEquals(history.length, store.getSize());
+        assertArrayEquals(history, read(store, history.length));
+
+        // A fresh instance picks up what is on disk
+        final BatteryStatsHistoryStore reopened = new BatteryStatsHistoryStore(mDir);
+        assertEquals(history.length, reopened.getSize());
+        assertArrayEquals(history, read(reopened, history.length));
+        final Parcel parcel = Parcel.obtain();
+        assertFalse(reopened.readInto(parcel, history.length + 4));
+        parcel.recycle();
+    }
+
+    @Test
+    public void testRewriteTail() throws Exception {
+        final int chunk = BatteryStatsHistoryStore.CHUNK_SIZE;
+        final BatteryStatsHistoryStore store = new BatteryStatsHistoryStore(mDir);
+        store.write(0, bytes(chunk + 200, 1));
+
+        // Rewriting the tail with less data shrinks the history and drops the last chunk
+        final byte[] tail = bytes(40, 2);
+        store.write(chunk - 40, tail);
+        assertEquals(chunk, store.getSize());
+        final byte[] expected = bytes(chunk + 200, 1);
+        System.arraycopy(tail, 0, expected, chunk - 40, tail.length);
+        assertArrayEquals(Arrays.copyOf(expected, chunk), read(store, chunk));
+        assertEquals(chunk, new BatteryStatsHistoryStore(mDir).getSize());
+
+        // A reset rewrites everything
+        store.write(0, bytes(16, 3));
+        assertEquals(16, new BatteryStatsHistoryStore(mDir).getSize());
+        assertArrayEquals(bytes(16, 3), read(store, 16));
+
+        store.clear();
+        assertEquals(0, new BatteryStatsHistoryStore(mDir).getSize());
+    }
+
+    @Test
+    public void testSummaryRoundTrip() throws Exception {
+        final MockBatteryStatsImpl stats = createStatsWithHistory(20);
+        final Parcel summary = writeSummary(stats);
+        final byte[] history = stats.mHistoryBuffer.marshall();
+        // What commitPendingDataToDisk() writes ahead of the summary
+        stats.mHistoryStore.write(0, history);
+
+        final MockBatteryStatsImpl read = readSummary(summary);
+        assertArrayEquals(history, read.mHistoryBuffer.marshall());
+        assertEquals(stats.getStartCount(), read.getStartCount());
+        assertTrue(countHistoryItems(stats) >= 20);
+        assertEquals(countHistoryItems(stats), countHistoryItems(read));
+    }
+
+    @Test
+    public void testSummaryRoundTrip_storeMismatch() throws Exception {
+        final MockBatteryStatsImpl stats = createStatsWithHistory(20);
+        final Parcel summary = writeSummary(stats);
+        final byte[] history = stats.mHistoryBuffer.marshall();
+
+        // The store is behind the summary, as after a crash between writing the two.  The
+        // history is dropped, but the rest of the summary is still read.
+        stats.mHistoryStore.write(0, Arrays.copyOf(history, history.length - 4));
+        MockBatteryStatsImpl read = readSummary(summary);
+        assertEquals(0, read.mHistoryBuffer.dataSize());
+        assertEquals(stats.getStartCount(), read.getStartCount());
+
+        // The store has the right size, but the last entry differs
+        final byte[] changed = history.clone();
+        changed[changed.length - 1]++;
+        stats.mHistoryStore.write(0, changed);
+        summary.setDataPosition(0);
+        read = readSummary(summary);
+        assertEquals(0, read.mHistoryBuffer.dataSize());
+        assertEquals(stats.getStartCount(), read.getStartCount());
+    }
+
+    private MockBatteryStatsImpl createStatsWithHistory(int count) {
+        final MockBatteryStatsImpl stats = new MockBatteryStatsImpl();
+        stats.mHistoryStore = new BatteryStatsHistoryStore(mDir);
+        stats.mHaveBatteryLevel = true;
+        stats.mRecordingHistory = true;
+        for (int i = 0; i < count; i++) {
+            // A new level each time, so that no entry is merged into the one before it
+            stats.mHistoryCur.batteryLevel = (byte) (100 - i);
+            stats.addHistoryRecordLocked(i * 2000, i * 2000);
+        }
+        return stats;
+    }
+
+    private static Parcel writeSummary(BatteryStatsImpl stats) {
+        final Parcel summary = Parcel.obtain();
+        stats.writeSummaryToParcel(summary, true /* inclHistory */, true /* historyInStore */);
+        summary.setDataPosition(0);
+        return summary;
+    }
+
+    private MockBatteryStatsImpl readSummary(Parcel summary) {
+        final MockBatteryStatsImpl stats = new MockBatteryStatsImpl();
+        stats.mHistoryStore = new BatteryStatsHistoryStore(mDir);
+        stats.readSummaryFromParcel(summary);
+        return stats;
+    }
+
+    private static int countHistoryItems(BatteryStatsImpl stats) {
+        final BatteryStats.HistoryItem item = new BatteryStats.HistoryItem();
+        int count = 0;
+        assertTrue(stats.startIteratingHistoryLocked());
+        while (stats.getNextHistoryLocked(item)) {
+            count++;
+        }
+        stats.finishIteratingHistoryLocked();
+        return count;
+    }
+}
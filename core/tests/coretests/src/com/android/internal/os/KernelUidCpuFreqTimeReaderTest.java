@@ -56,6 +56,20 @@ public class KernelUidCpuFreqTimeReaderTest {
 
     private KernelUidCpuFreqTimeReader mKernelUidCpuFreqTimeReader;
 
+    // The reader reuses the arrays it reports, so hand copies to the mock for verification.
+    private final KernelUidCpuFreqTimeReader.Callback mCopyingCallback =
+            new KernelUidCpuFreqTimeReader.Callback() {
+                @Override
+                public void onCpuFreqs(long[] cpuFreqs) {
+                    mCallback.onCpuFreqs(cpuFreqs);
+                }
+
+                @Override
+                public void onUidCpuFreqTime(int uid, long[] cpuFreqTimeMs) {
+                    mCallback.onUidCpuFreqTime(uid, cpuFreqTimeMs.clone());
+                }
+            };
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
@@ -74,7 +88,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, times));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             verify(mCallback).onUidCpuFreqTime(uids[i], times[i]);
@@ -91,7 +105,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes1));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             verify(mCallback).onUidCpuFreqTime(uids[i], subtract(newTimes1[i], times[i]));
@@ -102,7 +116,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         Mockito.reset(mCallback, mBufferedReader);
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes1));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         verifyNoMoreInteractions(mCallback);
 
@@ -130,7 +144,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes3));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             verify(mCallback).onUidCpuFreqTime(uids[i], subtract(newTimes3[i], newTimes2[i]));
@@ -150,7 +164,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, times));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             verify(mCallback).onUidCpuFreqTime(uids[i], times[i]);
@@ -168,7 +182,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         newTimes1[uids.length - 1][freqs.length - 1] *= -1;
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes1));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             if (i == uids.length - 1) {
@@ -185,7 +199,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes1));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         verifyNoMoreInteractions(mCallback);
 
@@ -201,7 +215,7 @@ public class KernelUidCpuFreqTimeReaderTest {
                 newTimes1[uids.length - 1][freqs.length - 1] - 222;
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes2));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         for (int i = 0; i < uids.length; ++i) {
             if (i == uids.length - 1) {
@@ -218,7 +232,7 @@ public class KernelUidCpuFreqTimeReaderTest {
         }
         when(mBufferedReader.readLine())
                 .thenReturn(getFreqsLine(freqs), getUidTimesLines(uids, newTimes2));
-        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCallback);
+        mKernelUidCpuFreqTimeReader.readDelta(mBufferedReader, mCopyingCallback);
         verify(mCallback).onCpuFreqs(freqs);
         verifyNoMoreInteractions(mCallback);
     }
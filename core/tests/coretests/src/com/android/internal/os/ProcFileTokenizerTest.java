@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Test class for {@link ProcFileTokenizer}.
+ *
+ * Run: adb shell am instrument -e class com.android.internal.os.ProcFileTokenizerTest -w \
+ *     com.android.frameworks.coretests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProcFileTokenizerTest {
+    private static ProcFileTokenizer tokenizerFor(String data) {
+        final byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        // Start smaller than the data to exercise growing the buffer
+        final ProcFileTokenizer tokenizer = new ProcFileTokenizer(4);
+        tokenizer.setData(bytes, bytes.length);
+        return tokenizer;
+    }
+
+    @Test
+    public void testTokens() {
+        final ProcFileTokenizer tokenizer = tokenizerFor("uid: 10 20\n\n1000:  -5\t7");
+        assertTrue(tokenizer.hasMoreData());
+        tokenizer.skipToken();
+        assertEquals(10, tokenizer.nextLong());
+        assertEquals(20, tokenizer.nextLong());
+        assertFalse(tokenizer.hasMoreTokens());
+
+        tokenizer.nextLine();
+        assertTrue(tokenizer.hasMoreData());
+        assertFalse(tokenizer.hasMoreTokens());
+
+        tokenizer.nextLine();
+        assertEquals(1000, tokenizer.nextLong());
+        assertEquals(-5, tokenizer.nextLong());
+        assertEquals(7, tokenizer.nextLong());
+        assertFalse(tokenizer.hasMoreTokens());
+        tokenizer.nextLine();
+        assertFalse(tokenizer.hasMoreData());
+    }
+
+    @Test
+    public void testNotANumber() {
+        final ProcFileTokenizer tokenizer = tokenizerFor("abc 1\n");
+        try {
+            tokenizer.nextLong();
+            fail("Expected NumberFormatException");
+        } catch (NumberFormatException expected) {
+        }
+    }
+
+    @Test
+    public void testUidCpuTimeReader() {
+        final KernelUidCpuTimeReader reader = new KernelUidCpuTimeReader();
+        final KernelUidCpuTimeReader.Callback callback =
+                mock(KernelUidCpuTimeReader.Callback.class);
+        // The first read only establishes a baseline
+        reader.readDelta(tokenizerFor("1000: 100 200\n10001: 5 6\n"), 1000, callback);
+        reader.readDelta(tokenizerFor("1000: 150 200\n10001: 5 6\n10002: 1 2\n"), 2000,
+                callback);
+        verify(callback).onUidCpuTime(1000, 50, 0);
+        verify(callback).onUidCpuTime(10002, 1, 2);
+        verifyNoMoreInteractions(callback);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.system.Os;
+import android.system.OsConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test class for {@link ProcessCpuTracker}, run against fake proc files.
+ *
+ * To run the tests, use
+ *
+ * runtest -c com.android.internal.os.ProcessCpuTrackerTest frameworks-core
+ *
+ * or the following steps:
+ *
+ * Build: m FrameworksCoreTests
+ * Install: adb install -r \
+ *     ${ANDROID_PRODUCT_OUT}/data/app/FrameworksCoreTests/FrameworksCoreTests.apk
+ * Run: adb shell am instrument -e class com.android.internal.os.ProcessCpuTrackerTest -w \
+ *     com.android.frameworks.coretests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ProcessCpuTrackerTest {
+    private static final int PID = 100;
+    private static final int TID = 101;
+
+    private File mProcRoot;
+    private long mJiffyMillis;
+
+    @Before
+    public void setUp() throws Exception {
+        mProcRoot = new File(InstrumentationRegistry.getContext().getCacheDir(), "fake_proc");
+        FileUtils.deleteContentsAndDir(mProcRoot);
+        mProcRoot.mkdirs();
+        writeFile(new File(mProcRoot, "stat"), "cpu  100 0 100 1000 0 0 0 0 0 0\n");
+        writeFile(new File(mProcRoot, "loadavg"), "0.00 0.00 0.00 1/100 100\n");
+        mJiffyMillis = 1000 / Os.sysconf(OsConstants._SC_CLK_TCK);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mProcRoot);
+    }
+
+    @Test
+    public void testPidReuse() throws Exception {
+        final ProcessCpuTracker tracker = createTracker(false /* includeThreads */,
+                true /* sampleIncrementally */);
+        writeProcess(PID, 1000 /* startTime */, 50 /* utime */);
+        tracker.init();
+        final ProcessCpuTracker.Stats old = tracker.getStats(0);
+
+        // A new process got the same pid, with less CPU time than the old one had
+        writeProcess(PID, 2000 /* startTime */, 2 /* utime */);
+        tracker.update();
+
+        assertTrue(old.removed);
+        assertEquals(0, old.rel_utime);
+        assertEquals(1, tracker.countStats());
+        final ProcessCpuTracker.Stats st = tracker.getStats(0);
+        assertNotSame(old, st);
+        assertTrue(st.added);
+        assertEquals(2000, st.base_starttime);
+        assertEquals(2 * mJiffyMillis, st.base_utime);
+        assertEquals(0, st.rel_utime);
+    }
+
+    @Test
+    public void testPidReuse_notIncremental() throws Exception {
+        final ProcessCpuTracker tracker = createTracker(false /* includeThreads */,
+                false /* sampleIncrementally */);
+        writeProcess(PID, 1000 /* startTime */, 50 /* utime */);
+        tracker.init();
+        final ProcessCpuTracker.Stats old = tracker.getStats(0);
+
+        writeProcess(PID, 2000 /* startTime */, 60 /* utime */);
+        tracker.update();
+
+        // Without the start time the new process is taken for the old one
+        assertFalse(old.removed);
+        assertEquals(10 * mJiffyMillis, old.rel_utime);
+    }
+
+    @Test
+    public void testThreadsSampledIncrementally() throws Exception {
+        // Below the threshold, but still a change
+        final long quietJiffies = (ProcessCpuTracker.THREAD_SAMPLE_THRESHOLD_MS - 1) / mJiffyMillis;
+        assertTrue(quietJiffies > 0);
+        final long busyJiffies = ProcessCpuTracker.THREAD_SAMPLE_THRESHOLD_MS / mJiffyMillis + 1;
+
+        final ProcessCpuTracker tracker = createTracker(true /* includeThreads */,
+                true /* sampleIncrementally */);
+        long utime = 10;
+        writeProcess(PID, 1000 /* startTime */, utime);
+        writeThread(PID, TID, 0 /* utime */);
+        tracker.init();
+        final ProcessCpuTracker.Stats thread = tracker.getStats(0).threadStats.get(0);
+
+        // Busy: the threads are walked
+        utime += busyJiffies;
+        writeThread(PID, TID, 5 /* utime */);
+        writeProcess(PID, 1000 /* startTime */, utime);
+        tracker.update();
+        assertTrue(thread.working);
+        assertEquals(5 * mJiffyMillis, thread.rel_utime);
+
+        // Quiet: the threads are left out without reading them
+        utime += quietJiffies;
+        writeProcess(PID, 1000 /* startTime */, utime);
+        new File(mProcRoot, PID + "/task/" + TID + "/stat").delete();
+        tracker.update();
+        assertEquals(1, tracker.getStats(0).threadStats.size());
+        assertFalse(thread.removed);
+        assertFalse(thread.working);
+        assertEquals(0, thread.rel_utime);
+
+        // Busy again: the thread reports everything it used since it was last walked
+        utime += busyJiffies;
+        writeProcess(PID, 1000 /* startTime */, utime);
+        writeThread(PID, TID, 8 /* utime */);
+        tracker.update();
+        assertTrue(thread.working);
+        assertEquals(3 * mJiffyMillis, thread.rel_utime);
+    }
+
+    @Test
+    public void testThreadsAlwaysSampledWhenNotIncremental() throws Exception {
+        final ProcessCpuTracker tracker = createTracker(true /* includeThreads */,
+                false /* sampleIncrementally */);
+        writeProcess(PID, 1000 /* startTime */, 10 /* utime */);
+        writeThread(PID, TID, 0 /* utime */);
+        tracker.init();
+        final ProcessCpuTracker.Stats thread = tracker.getStats(0).threadStats.get(0);
+
+        writeProcess(PID, 1000 /* startTime */, 11 /* utime */);
+        new File(mProcRoot, PID + "/task/" + TID + "/stat").delete();
+        new File(mProcRoot, PID + "/task/" + TID).delete();
+        tracker.update();
+        assertTrue(thread.removed);
+        assertTrue(tracker.getStats(0).threadStats.isEmpty());
+    }
+
+    private ProcessCpuTracker createTracker(boolean includeThreads, boolean sampleIncrementally) {
+        return new ProcessCpuTracker(includeThreads, mProcRoot.getPath(), sampleIncrementally);
+    }
+
+    private void writeProcess(int pid, long startTime, long utime) throws IOException {
+        final File dir = new File(mProcRoot, Integer.toString(pid));
+        new File(dir, "task").mkdirs();
+        writeFile(new File(dir, "stat"), statLine(pid, "test", startTime, utime));
+        writeFile(new File(dir, "cmdline"), "com.android.test\0");
+    }
+
+    private void writeThread(int pid, int tid, long utime) throws IOException {
+        final File dir = new File(mProcRoot, pid + "/task/" + tid);
+        dir.mkdirs();
+        writeFile(new File(dir, "stat"), statLine(tid, "thread", 1000, utime));
+    }
+
+    /** Returns a stat line with the given values and zero faults and system time. */
+    private static String statLine(int pid, String name, long startTime, long utime) {
+        return pid + " (" + name + ") S 1 0 0 0 -1 0 0 0 0 0 " + utime + " 0 0 0 20 0 1 0 "
+                + startTime + " 1000000 0\n";
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        FileUtils.stringToFile(file, contents);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.internal.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class BinaryXmlTest extends TestCase {
+
+    private static byte[] writeSample() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BinaryXmlSerializer serializer = new BinaryXmlSerializer();
+        serializer.setOutput(out, "utf-8");
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", "com.example.app" + i);
+            serializer.attribute(null, "flags", "0");
+            serializer.endTag(null, "package");
+        }
+        final StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longValue.append("é").append(i);
+        }
+        serializer.startTag(null, "sigs");
+        serializer.attribute(null, "key", longValue.toString());
+        serializer.text("some text");
+        serializer.endTag(null, "sigs");
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        final byte[] data = writeSample();
+        assertTrue(BinaryXmlSerializer.isBinaryXml(data));
+
+        final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+        parser.setInput(ByteBuffer.wrap(data));
+        assertEquals(XmlPullParser.START_DOCUMENT, parser.getEventType());
+
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("packages", parser.getName());
+        assertEquals(1, parser.getDepth());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(XmlPullParser.START_TAG, parser.next());
+            assertEquals("package", parser.getName());
+            assertEquals(2, parser.getDepth());
+            assertEquals(2, parser.getAttributeCount());
+            assertEquals("com.example.app" + i, parser.getAttributeValue(null, "name"));
+            assertEquals("0", parser.getAttributeValue(null, "flags"));
+            assertNull(parser.getAttributeValue(null, "missing"));
+            assertEquals(XmlPullParser.END_TAG, parser.next());
+            assertEquals("package", parser.getName());
+            assertEquals(2, parser.getDepth());
+        }
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("sigs", parser.getName());
+        assertTrue(parser.getAttributeValue(null, "key").startsWith("é0é1"));
+        assertEquals("some text", parser.nextText());
+        assertEquals(XmlPullParser.END_TAG, parser.next());
+        assertEquals("packages", parser.getName());
+        assertEquals(1, parser.getDepth());
+        assertEquals(XmlPullParser.END_DOCUMENT, parser.next());
+        assertEquals(0, parser.getDepth());
+    }
+
+    @SmallTest
+    public void testSkipCurrentTag() throws Exception {
+        final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+        parser.setInput(new ByteArrayInputStream(writeSample()), null);
+        parser.next();
+        parser.next();
+        XmlUtils.skipCurrentTag(parser);
+        assertEquals(XmlPullParser.START_TAG, parser.next());
+        assertEquals("package", parser.getName());
+        assertEquals("com.example.app1", parser.getAttributeValue(null, "name"));
+    }
+
+    @SmallTest
+    public void testRejectsTruncatedInput() throws Exception {
+        final byte[] data = writeSample();
+        final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+        parser.setInput(ByteBuffer.wrap(data, 0, 12));
+        try {
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            }
+            fail("Expected XmlPullParserException");
+        } catch (XmlPullParserException expected) {
+        }
+    }
+}
@@ -34,33 +34,46 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.StatFs;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.text.format.Time;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 
 import libcore.io.IoUtils;
+import libcore.util.EmptyArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.IDropBoxManagerService;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.ObjectUtils;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -77,14 +90,28 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
 
+    // Segment files hold entries smaller than one block; a new one is started once the
+    // current one reaches this size.
+    private static final int SEGMENT_MAX_BYTES = 64 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // A segment is rewritten with just its live records once they take up less than this
+    // fraction of it, or whenever that frees a block while over quota.
+    private static final float SEGMENT_COMPACT_LIVE_FRACTION = 0.5f;
+
+    // A tag that added an entry within this window is considered to be in a storm (e.g. a
+    // crash loop) and gets fast rather than thorough compression.  Entries that keep going
+    // past LARGE_ENTRY_BYTES are switched to fast compression as well.
+    private static final long STORM_WINDOW_MILLIS = 10 * 1000;
+    private static final int LARGE_ENTRY_BYTES = 1024 * 1024;
+
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
     private static final boolean PROFILE_DUMP = false;
 
-    // TODO: This implementation currently uses one file per entry, which is
-    // inefficient for smallish entries -- consider using a single queue file
-    // per tag (or even globally) instead.
+    // By default every entry gets its own file.  With persist.sys.dropbox.segments set,
+    // entries smaller than one block are instead appended to shared segment files (see
+    // Segment), which saves an inode, a rename and a directory update per entry.
 
     // The cached context and derived objects
 
@@ -96,6 +123,12 @@ public final class DropBoxManagerService extends SystemService {
     private FileList mAllFiles = null;
     private ArrayMap<String, FileList> mFilesByTag = null;
 
+    private final boolean mUseSegments;
+    private Segment mActiveSegment = null;  // Segment new small entries are appended to
+    // Segments on disk. Their whole size counts against the quota until they are deleted,
+    // so mAllFiles.blocks only covers entries with their own file.
+    private ArraySet<Segment> mSegments = null;
+
     // Various bits of disk information
 
     private StatFs mStatFs = null;
@@ -162,7 +195,8 @@ public final class DropBoxManagerService extends SystemService {
      * @param context to use for receiving free space & gservices intents
      */
     public DropBoxManagerService(final Context context) {
-        this(context, new File("/data/system/dropbox"), FgThread.get().getLooper());
+        this(context, new File("/data/system/dropbox"), FgThread.get().getLooper(),
+                SystemProperties.getBoolean("persist.sys.dropbox.segments", false));
     }
 
     /**
@@ -174,8 +208,22 @@ public final class DropBoxManagerService extends SystemService {
      */
     @VisibleForTesting
     public DropBoxManagerService(final Context context, File path, Looper looper) {
+        this(context, path, looper, false);
+    }
+
+    /**
+     * Creates an instance of managed drop box storage.
+     *
+     * @param context to use for receiving free space & gservices intents
+     * @param path to store drop box entries in
+     * @param useSegments whether small entries share segment files
+     */
+    @VisibleForTesting
+    DropBoxManagerService(final Context context, File path, Looper looper,
+            boolean useSegments) {
         super(context);
         mDropBoxDir = path;
+        mUseSegments = useSegments;
         mContentResolver = getContext().getContentResolver();
         mHandler = new Handler(looper) {
             @Override
@@ -252,49 +300,71 @@ public final class DropBoxManagerService extends SystemService {
                 read += n;
             }
 
-            // If we have at least one block, compress it -- otherwise, just write
-            // the data in uncompressed form.
-
-            temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
-            int bufferSize = mBlockSize;
-            if (bufferSize > 4096) bufferSize = 4096;
-            if (bufferSize < 512) bufferSize = 512;
-            FileOutputStream foutput = new FileOutputStream(temp);
-            output = new BufferedOutputStream(foutput, bufferSize);
-            if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
-                output = new GZIPOutputStream(output);
-                flags = flags | DropBoxManager.IS_GZIPPED;
-            }
+            long time;
+            if (mUseSegments && read < buffer.length) {
+                // The whole entry fit in less than a block, so it goes in a shared segment.
+                // It is synced without holding the lock, so that other adds aren't held up.
+                final EntryFile entry = createSegmentEntry(tag, flags, buffer, read);
+                entry.segment.sync();
+                time = entry.timestampMillis;
+            } else {
+                // If we have at least one block, compress it -- otherwise, just write
+                // the data in uncompressed form.
+
+                temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
+                int bufferSize = mBlockSize;
+                if (bufferSize > 4096) bufferSize = 4096;
+                if (bufferSize < 512) bufferSize = 512;
+                FileOutputStream foutput = new FileOutputStream(temp);
+                output = new BufferedOutputStream(foutput, bufferSize);
+                LeveledGZIPOutputStream gzip = null;
+                if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
+                    if (mUseSegments) {
+                        gzip = new LeveledGZIPOutputStream(output, getCompressionLevel(tag));
+                        output = gzip;
+                    } else {
+                        output = new GZIPOutputStream(output);
+                    }
+                    flags = flags | DropBoxManager.IS_GZIPPED;
+                }
 
-            do {
-                output.write(buffer, 0, read);
+                long written = 0;
+                do {
+                    output.write(buffer, 0, read);
+                    written += read;
+                    if (gzip != null && written > LARGE_ENTRY_BYTES) {
+                        gzip.setLevel(Deflater.BEST_SPEED);
+                        gzip = null;
+                    }
 
-                long now = System.currentTimeMillis();
-                if (now - lastTrim > 30 * 1000) {
-                    max = trimToFit();  // In case data dribbles in slowly
-                    lastTrim = now;
-                }
+                    long now = System.currentTimeMillis();
+                    if (now - lastTrim > 30 * 1000) {
+                        max = trimToFit();  // In case data dribbles in slowly
+                        lastTrim = now;
+                    }
 
-                read = input.read(buffer);
-                if (read <= 0) {
-                    FileUtils.sync(foutput);
-                    output.close();  // Get a final size measurement
-                    output = null;
-                } else {
-                    output.flush();  // So the size measurement is pseudo-reasonable
-                }
+                    read = input.read(buffer);
+                    if (read <= 0) {
+                        FileUtils.sync(foutput);
+                        output.close();  // Get a final size measurement
+                        output = null;
+                    } else {
+                        output.flush();  // So the size measurement is pseudo-reasonable
+                    }
 
-                long len = temp.length();
-                if (len > max) {
-                    Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max + " bytes)");
-                    temp.delete();
-                    temp = null;  // Pass temp = null to createEntry() to leave a tombstone
-                    break;
-                }
-            } while (read > 0);
+                    long len = temp.length();
+                    if (len > max) {
+                        Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max
+                                + " bytes)");
+                        temp.delete();
+                        temp = null;  // Pass temp = null to createEntry() to leave a tombstone
+                        break;
+                    }
+                } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
-            temp = null;
+                time = createEntry(temp, tag, flags);
+                temp = null;
+            }
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
             dropboxIntent.putExtra(DropBoxManager.EXTRA_TAG, tag);
@@ -348,12 +418,10 @@ public final class DropBoxManagerService extends SystemService {
             if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
-            final File file = entry.getFile(mDropBoxDir);
             try {
-                return new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, file, entry.flags);
+                return openEntry(entry);
             } catch (IOException e) {
-                Slog.wtf(TAG, "Can't read: " + file, e);
+                Slog.wtf(TAG, "Can't read: " + entry.getPath(mDropBoxDir), e);
                 // Continue to next file
             }
         }
@@ -423,8 +491,8 @@ public final class DropBoxManagerService extends SystemService {
             if (doPrint) out.append("========================================\n");
             out.append(date).append(" ").append(entry.tag == null ? "(no tag)" : entry.tag);
 
-            final File file = entry.getFile(mDropBoxDir);
-            if (file == null) {
+            final String path = entry.getPath(mDropBoxDir);
+            if (path == null) {
                 out.append(" (no file)\n");
                 continue;
             } else if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
@@ -434,20 +502,19 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(file.length()).append(" bytes)\n");
+                out.append(", ").append(entry.getDataLength(mDropBoxDir)).append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
                 if (!doPrint) out.append("    ");
-                out.append(file.getPath()).append("\n");
+                out.append(path).append("\n");
             }
 
             if ((entry.flags & DropBoxManager.IS_TEXT) != 0 && (doPrint || !doFile)) {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, file, entry.flags);
+                    dbe = openEntry(entry);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -480,7 +547,7 @@ public final class DropBoxManagerService extends SystemService {
                     }
                 } catch (IOException e) {
                     out.append("*** ").append(e.toString()).append("\n");
-                    Slog.e(TAG, "Can't read: " + file, e);
+                    Slog.e(TAG, "Can't read: " + path, e);
                 } finally {
                     if (dbe != null) dbe.close();
                     if (isr != null) {
@@ -529,6 +596,9 @@ public final class DropBoxManagerService extends SystemService {
      * Note its instances do no have knowledge on what directory they're stored, just to save
      * 4/8 bytes per instance.  Instead, {@link #getFile} takes a directory so it can build a
      * fullpath.
+     *
+     * Entries kept in a {@link Segment} rather than in their own file know their segment and
+     * the position of their record in it.
      */
     @VisibleForTesting
     static final class EntryFile implements Comparable<EntryFile> {
@@ -537,6 +607,13 @@ public final class DropBoxManagerService extends SystemService {
         public final int flags;
         public final int blocks;
 
+        /** Segment holding this entry, or null if it has its own file. */
+        public final Segment segment;
+        /** Offset of this entry's record in {@link #segment}; moves when it is compacted. */
+        public int offset;
+        /** Length of this entry's data in {@link #segment}; 0 once a lost entry's is compacted. */
+        public int dataLength;
+
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
             int comp = Long.compare(timestampMillis, o.timestampMillis);
@@ -569,6 +646,9 @@ public final class DropBoxManagerService extends SystemService {
             this.tag = TextUtils.safeIntern(tag);
             this.timestampMillis = timestampMillis;
             this.flags = flags;
+            this.segment = null;
+            this.offset = 0;
+            this.dataLength = 0;
 
             final File file = this.getFile(dir);
             if (!temp.renameTo(file)) {
@@ -590,6 +670,9 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = timestampMillis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.dataLength = 0;
             new FileOutputStream(getFile(dir)).close();
         }
 
@@ -603,6 +686,9 @@ public final class DropBoxManagerService extends SystemService {
          * @param blockSize to use for space accounting
          */
         public EntryFile(File file, int blockSize) {
+            this.segment = null;
+            this.offset = 0;
+            this.dataLength = 0;
 
             boolean parseFailure = false;
 
@@ -666,6 +752,34 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = millis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.dataLength = 0;
+        }
+
+        /**
+         * Describes a record in a segment file.
+         *
+         * @param segment holding the record
+         * @param offset of the record in the segment
+         * @param tag of the log entry
+         * @param timestampMillis of the log entry
+         * @param flags for the entry data, {@link DropBoxManager#IS_EMPTY} if it was lost
+         * @param dataLength of the entry data
+         * @param blockSize to use for space accounting
+         */
+        public EntryFile(Segment segment, int offset, String tag, long timestampMillis,
+                int flags, int dataLength, int blockSize) {
+            this.tag = TextUtils.safeIntern(tag);
+            this.timestampMillis = timestampMillis;
+            this.flags = flags;
+            this.segment = segment;
+            this.offset = offset;
+            this.dataLength = dataLength;
+            // Only used to share the quota between tags; the overall quota is charged with
+            // the size of the whole segment, lost entries included.
+            this.blocks = (flags & DropBoxManager.IS_EMPTY) != 0
+                    ? 0 : Math.max(1, (dataLength + blockSize - 1) / blockSize);
         }
 
         /**
@@ -696,21 +810,301 @@ public final class DropBoxManagerService extends SystemService {
          * Get a full-path {@link File} representing this entry.
          * @param dir Parent directly.  The caller needs to pass it because {@link EntryFile}s don't
          *            know in which directory they're stored.
+         * @return null for tombstones and for entries kept in a segment
          */
         public File getFile(File dir) {
-            return hasFile() ? new File(dir, getFilename()) : null;
+            return hasFile() && segment == null ? new File(dir, getFilename()) : null;
+        }
+
+        /**
+         * @return where this entry's data is stored, for logging and dumpsys: the entry's file,
+         * or its segment and record offset.
+         */
+        public String getPath(File dir) {
+            if (segment != null) {
+                return segment.file.getPath() + "@" + offset;
+            }
+            final File file = getFile(dir);
+            return file != null ? file.getPath() : null;
+        }
+
+        /** @return the size of this entry's data as stored (i.e. after any compression). */
+        public long getDataLength(File dir) {
+            if (segment != null) {
+                return dataLength;
+            }
+            final File file = getFile(dir);
+            return file != null ? file.length() : 0;
         }
 
         /**
          * If an entry has a backing file, remove it.
          */
         public void deleteFile(File dir) {
-            if (hasFile()) {
+            if (hasFile() && segment == null) {
                 getFile(dir).delete();
             }
         }
     }
 
+    /**
+     * Shared file holding small entries back to back, so that they don't each need their own
+     * inode, rename and directory update.  Records are only ever appended, apart from their
+     * timestamp and flags being rewritten in place when an entry is moved back from the
+     * future or its contents are dropped.  Space taken by records of expired or dropped
+     * entries is reclaimed by compacting the segment.  Each record describes itself, so
+     * scanning a segment rebuilds its index.
+     *
+     * Record layout: magic, timestamp, flags, data length, tag length, tag (UTF-8), data.
+     */
+    @VisibleForTesting
+    static final class Segment {
+        private static final int RECORD_MAGIC = 0x44425345;  // "DBSE"
+        private static final int TIMESTAMP_OFFSET = 4;
+        private static final int FLAGS_OFFSET = 12;
+        private static final int HEADER_SIZE = 24;
+
+        public final File file;
+        /** Bytes of valid records; appends go here. */
+        public int length;
+        /** Number of enrolled entries whose record is in this segment. */
+        public int entries;
+
+        public Segment(File file) {
+            this.file = file;
+            this.length = (int) file.length();
+        }
+
+        /** @return the space taken by this segment on disk. */
+        public int getBlocks(int blockSize) {
+            return (length + blockSize - 1) / blockSize;
+        }
+
+        /** @return the size of a record, or of a lost record once compacted. */
+        public static int getRecordLength(EntryFile entry) {
+            final int dataLength = (entry.flags & DropBoxManager.IS_EMPTY) != 0
+                    ? 0 : entry.dataLength;
+            return HEADER_SIZE + entry.tag.getBytes(StandardCharsets.UTF_8).length + dataLength;
+        }
+
+        /**
+         * Appends a record.  It is not synced to disk; see {@link #sync}.
+         *
+         * @return offset of the new record
+         */
+        public int append(String tag, long timestampMillis, int flags, byte[] data,
+                int dataLength) throws IOException {
+            final byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+            final ByteArrayOutputStream bytes =
+                    new ByteArrayOutputStream(HEADER_SIZE + tagBytes.length + dataLength);
+            writeRecord(new DataOutputStream(bytes), tagBytes, timestampMillis, flags, data,
+                    dataLength);
+
+            FileOutputStream output = null;
+            try {
+                output = new FileOutputStream(file, true);
+                bytes.writeTo(output);
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
+            final int offset = length;
+            length += bytes.size();
+            return offset;
+        }
+
+        /**
+         * Syncs appended records to disk.  Does nothing if the segment has been deleted since;
+         * a compacted segment is synced before it replaces the old file.
+         */
+        public void sync() throws IOException {
+            FileInputStream input = null;
+            try {
+                input = new FileInputStream(file);
+                input.getFD().sync();
+            } catch (FileNotFoundException e) {
+                // Deleted, nothing to sync
+            } finally {
+                IoUtils.closeQuietly(input);
+            }
+        }
+
+        private static int writeRecord(DataOutputStream out, byte[] tagBytes,
+                long timestampMillis, int flags, byte[] data, int dataLength)
+                throws IOException {
+            out.writeInt(RECORD_MAGIC);
+            out.writeLong(timestampMillis);
+            out.writeInt(flags);
+            out.writeInt(dataLength);
+            out.writeInt(tagBytes.length);
+            out.write(tagBytes);
+            out.write(data, 0, dataLength);
+            out.flush();
+            return HEADER_SIZE + tagBytes.length + dataLength;
+        }
+
+        /** Rewrites the timestamp and flags of the record at {@code offset}. */
+        public void rewrite(int offset, long timestampMillis, int flags) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.seek(offset + TIMESTAMP_OFFSET);
+                raf.writeLong(timestampMillis);
+                raf.seek(offset + FLAGS_OFFSET);
+                raf.writeInt(flags);
+                raf.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+
+        /**
+         * Marks the record of {@code entry} lost and overwrites its data with zeros, so that
+         * dropped data can't be read back even before the segment is compacted.
+         */
+        public void markLost(EntryFile entry) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.seek(entry.offset + FLAGS_OFFSET);
+                raf.writeInt(DropBoxManager.IS_EMPTY);
+                raf.seek(getDataOffset(raf, entry));
+                raf.write(new byte[entry.dataLength]);
+                raf.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+
+        /** Reads the data of the entry whose record is at {@code entry.offset}. */
+        public byte[] readData(EntryFile entry) throws IOException {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                return readData(raf, entry);
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        }
+
+        private static byte[] readData(RandomAccessFile raf, EntryFile entry)
+                throws IOException {
+            raf.seek(getDataOffset(raf, entry));
+            final byte[] data = new byte[entry.dataLength];
+            raf.readFully(data);
+            return data;
+        }
+
+        private static long getDataOffset(RandomAccessFile raf, EntryFile entry)
+                throws IOException {
+            raf.seek(entry.offset);
+            if (raf.readInt() != RECORD_MAGIC) {
+                throw new IOException("Bad record at " + entry.offset);
+            }
+            raf.seek(entry.offset + HEADER_SIZE - 4);
+            return entry.offset + HEADER_SIZE + raf.readInt();
+        }
+
+        /**
+         * Rewrites this segment with only the records of {@code entries}, leaving out the data
+         * of lost ones, and moves the entries to their new records.  The new file is synced
+         * before it replaces the old one, so a crash leaves one or the other.
+         *
+         * @param entries all enrolled entries in this segment
+         */
+        public void compact(List<EntryFile> entries) throws IOException {
+            final File temp = new File(file.getPath() + ".tmp");
+            final int[] offsets = new int[entries.size()];
+            int newLength = 0;
+            RandomAccessFile raf = null;
+            FileOutputStream foutput = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                foutput = new FileOutputStream(temp);
+                final DataOutputStream out =
+                        new DataOutputStream(new BufferedOutputStream(foutput));
+                for (int i = 0; i < offsets.length; i++) {
+                    final EntryFile entry = entries.get(i);
+                    final byte[] data = (entry.flags & DropBoxManager.IS_EMPTY) != 0
+                            ? EmptyArray.BYTE : readData(raf, entry);
+                    offsets[i] = newLength;
+                    newLength += writeRecord(out, entry.tag.getBytes(StandardCharsets.UTF_8),
+                            entry.timestampMillis, entry.flags, data, data.length);
+                }
+                FileUtils.sync(foutput);
+            } catch (IOException e) {
+                temp.delete();
+                throw e;
+            } finally {
+                IoUtils.closeQuietly(raf);
+                IoUtils.closeQuietly(foutput);
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Can't rename " + temp + " to " + file);
+            }
+
+            for (int i = 0; i < offsets.length; i++) {
+                final EntryFile entry = entries.get(i);
+                entry.offset = offsets[i];
+                if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) entry.dataLength = 0;
+            }
+            length = newLength;
+        }
+
+        /**
+         * Scans the records in this segment.  A record cut short by a crash ends the scan;
+         * nothing is ever appended to a segment after a restart, so it stays harmless.
+         */
+        public ArrayList<EntryFile> readEntries(int blockSize) {
+            final ArrayList<EntryFile> entries = new ArrayList<>();
+            DataInputStream in = null;
+            int offset = 0;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                while (offset < length) {
+                    if (in.readInt() != RECORD_MAGIC) {
+                        throw new IOException("Bad record at " + offset);
+                    }
+                    final long timestampMillis = in.readLong();
+                    final int flags = in.readInt();
+                    final int dataLength = in.readInt();
+                    final int tagLength = in.readInt();
+                    if (dataLength < 0 || tagLength < 0
+                            || HEADER_SIZE + tagLength + dataLength > length - offset) {
+                        throw new IOException("Truncated record at " + offset);
+                    }
+                    final byte[] tagBytes = new byte[tagLength];
+                    in.readFully(tagBytes);
+                    if (in.skipBytes(dataLength) != dataLength) {
+                        throw new IOException("Truncated record at " + offset);
+                    }
+                    entries.add(new EntryFile(this, offset,
+                            new String(tagBytes, StandardCharsets.UTF_8), timestampMillis,
+                            flags, dataLength, blockSize));
+                    offset += HEADER_SIZE + tagLength + dataLength;
+                }
+            } catch (IOException e) {
+                Slog.w(TAG, "Stopped reading " + file + " at " + offset, e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            length = offset;
+            return entries;
+        }
+    }
+
+    /** {@link GZIPOutputStream} whose compression level can be changed while writing. */
+    private static final class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out);
+            def.setLevel(level);
+        }
+
+        void setLevel(int level) {
+            def.setLevel(level);
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     /** If never run before, scans disk contents to build in-memory tracking data. */
@@ -733,6 +1127,7 @@ public final class DropBoxManagerService extends SystemService {
 
             mAllFiles = new FileList();
             mFilesByTag = new ArrayMap<>();
+            mSegments = new ArraySet<>();
 
             // Scan pre-existing files.
             for (File file : files) {
@@ -741,6 +1136,17 @@ public final class DropBoxManagerService extends SystemService {
                     file.delete();
                     continue;
                 }
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    // Segments are read even when they are no longer written to, so that
+                    // turning them off doesn't lose what is already stored.
+                    final Segment segment = new Segment(file);
+                    mSegments.add(segment);
+                    for (EntryFile entry : segment.readEntries(mBlockSize)) {
+                        enrollEntry(entry);
+                    }
+                    if (segment.entries == 0) deleteSegment(segment);
+                    continue;
+                }
 
                 EntryFile entry = new EntryFile(file, mBlockSize);
 
@@ -756,7 +1162,8 @@ public final class DropBoxManagerService extends SystemService {
     /** Adds a disk log file to in-memory tracking for accounting and enumeration. */
     private synchronized void enrollEntry(EntryFile entry) {
         mAllFiles.contents.add(entry);
-        mAllFiles.blocks += entry.blocks;
+        mAllFiles.blocks += getFileBlocks(entry);
+        if (entry.segment != null) entry.segment.entries++;
 
         // mFilesByTag is used for trimming, so don't list empty files.
         // (Zero-length/lost files are trimmed by date from mAllFiles.)
@@ -772,8 +1179,148 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
+    /**
+     * Deletes the data of an entry that has been removed from tracking.  A segment is deleted
+     * once none of its entries are left, unless it is still being appended to.
+     */
+    private synchronized void releaseEntry(EntryFile entry) {
+        if (entry.segment == null) {
+            entry.deleteFile(mDropBoxDir);
+        } else if (--entry.segment.entries == 0 && entry.segment != mActiveSegment) {
+            deleteSegment(entry.segment);
+        }
+    }
+
+    private synchronized void deleteSegment(Segment segment) {
+        segment.file.delete();
+        mSegments.remove(segment);
+    }
+
+    /**
+     * Rewrites segments whose records are mostly of expired or dropped entries or, when
+     * {@code overQuota}, any segment that compacting would shrink by a block.  Segments left
+     * without entries are deleted, the active one included.
+     */
+    private synchronized void compactSegments(boolean overQuota) {
+        if (mSegments == null || mSegments.isEmpty()) return;
+        final ArrayMap<Segment, ArrayList<EntryFile>> bySegment = new ArrayMap<>();
+        for (EntryFile entry : mAllFiles.contents) {
+            if (entry.segment == null) continue;
+            ArrayList<EntryFile> entries = bySegment.get(entry.segment);
+            if (entries == null) {
+                entries = new ArrayList<>();
+                bySegment.put(entry.segment, entries);
+            }
+            entries.add(entry);
+        }
+
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            final Segment segment = mSegments.valueAt(i);
+            final ArrayList<EntryFile> entries = bySegment.get(segment);
+            if (entries == null) {
+                if (segment == mActiveSegment) mActiveSegment = null;
+                deleteSegment(segment);
+                continue;
+            }
+            int liveLength = 0;
+            for (int j = entries.size() - 1; j >= 0; j--) {
+                liveLength += Segment.getRecordLength(entries.get(j));
+            }
+            final boolean compact = overQuota
+                    ? (liveLength + mBlockSize - 1) / mBlockSize < segment.getBlocks(mBlockSize)
+                    : liveLength < segment.length * SEGMENT_COMPACT_LIVE_FRACTION;
+            if (!compact) continue;
+            try {
+                segment.compact(entries);
+            } catch (IOException e) {
+                // The old file is left as it was
+                Slog.w(TAG, "Can't compact " + segment.file, e);
+            }
+        }
+    }
+
+    /** @return the blocks an entry adds to mAllFiles, i.e. none for entries in a segment. */
+    private static int getFileBlocks(EntryFile entry) {
+        return entry.segment == null ? entry.blocks : 0;
+    }
+
+    /** @return the space used by all entries, counting segments at their full size. */
+    private synchronized int getUsedBlocks() {
+        int blocks = mAllFiles.blocks;
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            blocks += mSegments.valueAt(i).getBlocks(mBlockSize);
+        }
+        return blocks;
+    }
+
+    /** Opens the contents of an entry that is not a tombstone. */
+    private DropBoxManager.Entry openEntry(EntryFile entry) throws IOException {
+        if (entry.segment != null) {
+            return new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                    entry.segment.readData(entry), entry.flags);
+        }
+        return new DropBoxManager.Entry(
+                entry.tag, entry.timestampMillis, entry.getFile(mDropBoxDir), entry.flags);
+    }
+
+    /**
+     * Picks how hard to compress a new entry for {@code tag}: a tag that is adding entries in
+     * quick succession, as in a crash loop, gets fast compression so that the storm costs less
+     * CPU and I/O time.
+     */
+    private synchronized int getCompressionLevel(String tag) {
+        final FileList tagFiles = mFilesByTag.get(tag);
+        if (tagFiles != null && !tagFiles.contents.isEmpty()
+                && System.currentTimeMillis() - tagFiles.contents.last().timestampMillis
+                        < STORM_WINDOW_MILLIS) {
+            return Deflater.BEST_SPEED;
+        }
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * Appends an entry smaller than one block to the active segment and enrolls it.  The
+     * caller syncs the segment once it no longer holds the lock.
+     */
+    private synchronized EntryFile createSegmentEntry(String tag, int flags, byte[] data,
+            int length) throws IOException {
+        final long t = allocateTimestamp();
+        if (mActiveSegment == null || mActiveSegment.length >= SEGMENT_MAX_BYTES) {
+            final Segment previous = mActiveSegment;
+            mActiveSegment = new Segment(new File(mDropBoxDir, t + SEGMENT_SUFFIX));
+            mSegments.add(mActiveSegment);
+            if (previous != null && previous.entries == 0) deleteSegment(previous);
+        }
+
+        final Segment segment = mActiveSegment;
+        final int offset;
+        try {
+            offset = segment.append(tag, t, flags, data, length);
+        } catch (IOException e) {
+            // The segment may now end in a partial record, so don't append to it any more
+            mActiveSegment = null;
+            if (segment.entries == 0) deleteSegment(segment);
+            throw e;
+        }
+        final EntryFile entry =
+                new EntryFile(segment, offset, tag, t, flags, length, mBlockSize);
+        enrollEntry(entry);
+        return entry;
+    }
+
     /** Moves a temporary file to a final log filename and enrolls it. */
     private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+        long t = allocateTimestamp();
+        if (temp == null) {
+            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+        } else {
+            enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
+        }
+        return t;
+    }
+
+    /** Picks a unique timestamp for a new entry. */
+    private synchronized long allocateTimestamp() throws IOException {
         long t = System.currentTimeMillis();
 
         // Require each entry to have a unique timestamp; if there are entries
@@ -793,12 +1340,17 @@ public final class DropBoxManagerService extends SystemService {
 
         if (future != null) {
             for (EntryFile late : future) {
-                mAllFiles.blocks -= late.blocks;
+                mAllFiles.blocks -= getFileBlocks(late);
                 FileList tagFiles = mFilesByTag.get(late.tag);
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
                     tagFiles.blocks -= late.blocks;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if (late.segment != null) {
+                    late.segment.rewrite(late.offset, t, late.flags);
+                    enrollEntry(new EntryFile(late.segment, late.offset, late.tag, t++,
+                            late.flags, late.dataLength, mBlockSize));
+                    releaseEntry(late);
+                } else if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
                     enrollEntry(new EntryFile(late.getFile(mDropBoxDir), mDropBoxDir,
                             late.tag, t++, late.flags, mBlockSize));
                 } else {
@@ -806,12 +1358,6 @@ public final class DropBoxManagerService extends SystemService {
                 }
             }
         }
-
-        if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
-        } else {
-            enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
-        }
         return t;
     }
 
@@ -837,9 +1383,10 @@ public final class DropBoxManagerService extends SystemService {
 
             FileList tag = mFilesByTag.get(entry.tag);
             if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-            if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            entry.deleteFile(mDropBoxDir);
+            if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= getFileBlocks(entry);
+            releaseEntry(entry);
         }
+        compactSegments(false);
 
         // Compute overall quota (a fraction of available free space) in blocks.
         // The quota changes dynamically based on the amount of free space;
@@ -882,9 +1429,15 @@ public final class DropBoxManagerService extends SystemService {
         // Deleted files are replaced with zero-length tombstones to mark what
         // was lost.  Tombstones are expunged by age (see above).
 
-        if (mAllFiles.blocks > mCachedQuotaBlocks) {
+        if (getUsedBlocks() > mCachedQuotaBlocks) {
+            // Reclaim what the segments hold for expired and dropped entries first, so that
+            // it isn't charged to the tags below.
+            compactSegments(true);
+        }
+        final int usedBlocks = getUsedBlocks();
+        if (usedBlocks > mCachedQuotaBlocks) {
             // Find a fair share amount of space to limit each tag
-            int unsqueezed = mAllFiles.blocks, squeezed = 0;
+            int unsqueezed = usedBlocks, squeezed = 0;
             TreeSet<FileList> tags = new TreeSet<FileList>(mFilesByTag.values());
             for (FileList tag : tags) {
                 if (squeezed > 0 && tag.blocks <= (mCachedQuotaBlocks - unsqueezed) / squeezed) {
@@ -897,19 +1450,34 @@ public final class DropBoxManagerService extends SystemService {
 
             // Remove old items from each tag until it meets the per-tag quota.
             for (FileList tag : tags) {
-                if (mAllFiles.blocks < mCachedQuotaBlocks) break;
+                if (getUsedBlocks() < mCachedQuotaBlocks) break;
+                boolean droppedFromSegment = false;
                 while (tag.blocks > tagQuota && !tag.contents.isEmpty()) {
                     EntryFile entry = tag.contents.first();
                     if (tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-                    if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
+                    if (mAllFiles.contents.remove(entry)) {
+                        mAllFiles.blocks -= getFileBlocks(entry);
+                    }
 
                     try {
+                        if (entry.segment != null) {
+                            // Mark the record lost in place rather than creating a file; the
+                            // space is reclaimed when the segment is compacted below.
+                            entry.segment.markLost(entry);
+                            enrollEntry(new EntryFile(entry.segment, entry.offset, entry.tag,
+                                    entry.timestampMillis, DropBoxManager.IS_EMPTY,
+                                    entry.dataLength, mBlockSize));
+                            releaseEntry(entry);
+                            droppedFromSegment = true;
+                            continue;
+                        }
                         entry.deleteFile(mDropBoxDir);
                         enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
                     } catch (IOException e) {
                         Slog.e(TAG, "Can't write tombstone file", e);
                     }
                 }
+                if (droppedFromSegment) compactSegments(true);
             }
         }
 
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
@@ -34,6 +35,7 @@ import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
 import android.util.LogPrinter;
+import android.util.LruCache;
 import android.util.Printer;
 
 import android.content.Intent;
@@ -57,6 +59,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        invalidateMatchCache();
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +203,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        invalidateMatchCache();
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -308,6 +312,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 mTypedActionToFilter, packageName, printFilter, collapseDuplicates)) {
             curPrefix = sepPrefix;
         }
+        if (packageName == null && mMatchCache != null) {
+            synchronized (mMatchCache) {
+                out.print(curPrefix); out.print("Match cache: size=");
+                out.print(mMatchCache.size());
+                out.print(" max="); out.print(mMatchCache.maxSize());
+                out.print(" hits="); out.print(mMatchCache.hitCount());
+                out.print(" misses="); out.print(mMatchCache.missCount());
+                out.print(" generation="); out.println(mGeneration);
+            }
+            curPrefix = sepPrefix;
+        }
         return curPrefix == sepPrefix;
     }
 
@@ -369,6 +384,34 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return resultList;
     }
 
+    /**
+     * Enables caching of the filters that match an intent, for up to {@code maxEntries}
+     * distinct intents, or disables the cache if {@code maxEntries} is 0.
+     *
+     * <p>Only the outcome of {@link IntentFilter#match} is cached, keyed on the parts of the
+     * intent it depends on. Checks that depend on package state, such as
+     * {@link #isFilterStopped} and {@link #isPackageForFilter}, as well as
+     * {@link #newResult}, still run on every query. The cache is dropped whenever a filter is
+     * added or removed.</p>
+     */
+    public void setMatchCacheSize(int maxEntries) {
+        mMatchCache = maxEntries > 0 ? new LruCache<>(maxEntries) : null;
+    }
+
+    /**
+     * Drops all cached matches. Subclasses must call this if anything
+     * {@link IntentFilter#match} depends on changes for a filter that is already registered.
+     */
+    protected void invalidateMatchCache() {
+        mGeneration++;
+        final LruCache<MatchKey, MatchedFilters<F>> cache = mMatchCache;
+        if (cache != null) {
+            synchronized (cache) {
+                cache.evictAll();
+            }
+        }
+    }
+
     public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly,
             int userId) {
         String scheme = intent.getScheme();
@@ -378,6 +421,22 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         final boolean debug = localLOGV ||
                 ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0);
 
+        final LruCache<MatchKey, MatchedFilters<F>> cache = mMatchCache;
+        MatchKey cacheKey = null;
+        if (cache != null && !debug) {
+            cacheKey = new MatchKey(intent, resolvedType);
+            final MatchedFilters<F> matched;
+            synchronized (cache) {
+                matched = cache.get(cacheKey);
+            }
+            if (matched != null) {
+                buildResolveList(intent, defaultOnly, matched, finalList, userId);
+                filterResults(finalList);
+                sortResults(finalList);
+                return finalList;
+            }
+        }
+
         if (debug) Slog.v(
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
@@ -442,6 +501,24 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        if (cacheKey != null) {
+            final long generation = mGeneration;
+            final MatchedFilters<F> matched = new MatchedFilters<>();
+            matched.collect(intent, categories, resolvedType, scheme, firstTypeCut);
+            matched.collect(intent, categories, resolvedType, scheme, secondTypeCut);
+            matched.collect(intent, categories, resolvedType, scheme, thirdTypeCut);
+            matched.collect(intent, categories, resolvedType, scheme, schemeCut);
+            synchronized (cache) {
+                // Don't cache matches computed against filters that changed meanwhile
+                if (generation == mGeneration) {
+                    cache.put(cacheKey, matched);
+                }
+            }
+            buildResolveList(intent, defaultOnly, matched, finalList, userId);
+            filterResults(finalList);
+            sortResults(finalList);
+            return finalList;
+        }
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
                     scheme, firstTypeCut, finalList, userId);
@@ -796,6 +873,99 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Like the other buildResolveList(), but starting from filters already known to match.
+     */
+    private void buildResolveList(Intent intent, boolean defaultOnly, MatchedFilters<F> matched,
+            List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+        final int N = matched.size;
+        for (int i = 0; i < N; i++) {
+            final F filter = matched.filters.get(i);
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matched.matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * The parts of an intent that {@link IntentFilter#match} looks at.
+     */
+    private static final class MatchKey {
+        final String action;
+        final String resolvedType;
+        final Uri data;
+        final Set<String> categories;
+        final int hashCode;
+
+        MatchKey(Intent intent, String resolvedType) {
+            this.action = intent.getAction();
+            this.resolvedType = resolvedType;
+            this.data = intent.getData();
+            final Set<String> categories = intent.getCategories();
+            this.categories = categories != null ? new ArraySet<>(categories) : null;
+            this.hashCode = Objects.hash(action, resolvedType, data, this.categories);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) {
+                return false;
+            }
+            final MatchKey other = (MatchKey) o;
+            return hashCode == other.hashCode
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Filters that matched an intent along with their match results, in the order the lookup
+     * maps returned them. A filter that is in several lookup maps appears several times.
+     */
+    private static final class MatchedFilters<F extends IntentFilter> {
+        final ArrayList<F> filters = new ArrayList<>();
+        int[] matches = new int[4];
+        int size;
+
+        void collect(Intent intent, FastImmutableArraySet<String> categories,
+                String resolvedType, String scheme, F[] src) {
+            final int N = src != null ? src.length : 0;
+            F filter;
+            for (int i = 0; i < N && (filter = src[i]) != null; i++) {
+                final int match = filter.match(intent.getAction(), resolvedType, scheme,
+                        intent.getData(), categories, TAG);
+                if (match >= 0) {
+                    if (size == matches.length) {
+                        matches = Arrays.copyOf(matches, size * 2);
+                    }
+                    filters.add(filter);
+                    matches[size++] = match;
+                }
+            }
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -806,6 +976,17 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     };
 
+    /**
+     * Cache of the filters matching an intent, or {@code null} if disabled.
+     * See {@link #setMatchCacheSize(int)}.
+     */
+    private volatile LruCache<MatchKey, MatchedFilters<F>> mMatchCache;
+
+    /**
+     * Incremented whenever the registered filters change.
+     */
+    private volatile int mGeneration;
+
     /**
      * All filters that have been registered.
      */
@@ -1550,6 +1550,9 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            // With incremental updates, only connections without a running host need the
+            // full update below.
+            boolean needOomAdj = !mAm.mIncrementalOomAdj;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1570,11 +1573,20 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (mAm.mIncrementalOomAdj) {
+                        // Only the service host and what it depends on can have changed.
+                        mAm.updateOomAdjLocked(r.binding.service.app, true);
+                    } else {
+                        mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    }
+                } else {
+                    needOomAdj = true;
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (needOomAdj) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2273,7 +2285,7 @@ public final class ActiveServices {
         bumpServiceExecutingLocked(r, execInFg, "create");
         mAm.updateLruProcessLocked(app, false, null);
         updateServiceForegroundLocked(r.app, /* oomAdj= */ false);
-        mAm.updateOomAdjLocked();
+        mAm.updateOomAdjFromProcessLocked(app);
 
         boolean created = false;
         try {
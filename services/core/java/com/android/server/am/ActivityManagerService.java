@@ -283,6 +283,7 @@ import android.graphics.Rect;
 import android.location.LocationManager;
 import android.media.audiofx.AudioEffect;
 import android.metrics.LogMaker;
+import android.net.ConnectivityManager;
 import android.net.Proxy;
 import android.net.ProxyInfo;
 import android.net.Uri;
@@ -346,6 +347,7 @@ import android.util.DebugUtils;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.Log;
+import android.util.MathUtils;
 import android.util.Pair;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -640,15 +642,44 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Whether we should use SCHED_FIFO for UI and RenderThreads.
     private boolean mUseFifoUiScheduling = false;
 
+    static final int MAX_ORDERED_BROADCAST_LANES = 16;
+
+    /**
+     * Number of additional ordered broadcast queues ("lanes") per priority.  An ordered
+     * broadcast goes to the lane picked by the process of its first receiver, so a slow
+     * receiver only holds up the broadcasts behind it in its lane instead of every ordered
+     * broadcast.  {@link #mOrderedBroadcastGate} keeps lanes from delivering to the same
+     * process at the same time, and each process still gets its ordered broadcasts in the
+     * order they were sent.  Each broadcast is still delivered to its receivers one at a
+     * time.  Zero disables lanes.
+     */
+    static final int ORDERED_BROADCAST_LANES = MathUtils.constrain(
+            SystemProperties.getInt("persist.sys.am.broadcast_lanes", 0),
+            0, MAX_ORDERED_BROADCAST_LANES);
+
+    /**
+     * Turns of ordered broadcasts with each receiver process across all broadcast queues, or
+     * null if lanes are disabled.
+     */
+    final OrderedBroadcastGate mOrderedBroadcastGate =
+            ORDERED_BROADCAST_LANES > 0 ? new OrderedBroadcastGate() : null;
+
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2 + 2 * ORDERED_BROADCAST_LANES];
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
 
+    /**
+     * Broadcast actions whose queued parallel broadcasts may be folded into newer instances
+     * before delivery, mapped to an extra that must also match, or null.  Only populated when
+     * coalescing is enabled.
+     */
+    final ArrayMap<String, String> mCoalescedBroadcastActions = new ArrayMap<>();
+
     BroadcastQueue broadcastQueueForIntent(Intent intent) {
         final boolean isFg = (intent.getFlags() & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
         if (DEBUG_BROADCAST_BACKGROUND) Slog.i(TAG_BROADCAST,
@@ -657,6 +688,58 @@ public class ActivityManagerService extends IActivityManager.Stub
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Returns the queue an ordered broadcast of {@code intent} to {@code receivers} should be
+     * enqueued on: the lane of the process of its first receiver if lanes are enabled, or the
+     * regular queue for the intent otherwise.
+     */
+    BroadcastQueue orderedBroadcastQueueForReceivers(Intent intent, List receivers) {
+        final BroadcastQueue queue = broadcastQueueForIntent(intent);
+        if (ORDERED_BROADCAST_LANES <= 0 || receivers == null || receivers.isEmpty()) {
+            return queue;
+        }
+        final Object receiver = receivers.get(0);
+        final String processName;
+        final int uid;
+        if (receiver instanceof BroadcastFilter) {
+            final ProcessRecord app = ((BroadcastFilter) receiver).receiverList.app;
+            if (app == null) {
+                return queue;
+            }
+            processName = app.processName;
+            uid = app.uid;
+        } else {
+            final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+            processName = info.processName;
+            uid = info.applicationInfo.uid;
+        }
+        final int lane = ((processName.hashCode() * 31 + uid) & Integer.MAX_VALUE)
+                % ORDERED_BROADCAST_LANES;
+        // Lanes follow the two main queues, foreground lanes first.
+        return mBroadcastQueues[2 + lane + (queue.mForeground ? 0 : ORDERED_BROADCAST_LANES)];
+    }
+
+    /**
+     * Replaces a pending ordered broadcast that {@code r} supersedes, in whichever queue of
+     * the same priority it is waiting in.
+     *
+     * @return the replaced broadcast, or null if there was none
+     */
+    BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.mForeground != r.queue.mForeground) {
+                continue;
+            }
+            final BroadcastRecord oldRecord = queue.replaceOrderedBroadcastLocked(r);
+            if (oldRecord != null) {
+                // r took the place of the old record in its queue
+                r.queue = queue;
+                return oldRecord;
+            }
+        }
+        return null;
+    }
+
     /**
      * The last resumed activity. This is identical to the current resumed activity most
      * of the time but could be different when we're pausing one activity before we resume
@@ -1378,6 +1461,29 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * If set, updating the oom adj of a single process also re-evaluates the processes whose
+     * importance is derived from it through service and provider bindings, so that callers
+     * can avoid a full update.
+     */
+    @VisibleForTesting
+    boolean mIncrementalOomAdj =
+            SystemProperties.getBoolean("persist.sys.am.incremental_oom_adj", false);
+
+    /**
+     * If set, every incremental oom adj update is followed by a full update, and any process
+     * whose result differs is logged.
+     */
+    @VisibleForTesting
+    boolean mVerifyIncrementalOomAdj =
+            SystemProperties.getBoolean("debug.am.verify_incremental_oom_adj", false);
+
+    /** Statistics for incremental oom adj updates, for dumpsys. */
+    int mNumIncrementalOomAdj = 0;
+    int mNumIncrementalOomAdjProcs = 0;
+    int mNumIncrementalOomAdjFallbacks = 0;
+    int mNumIncrementalOomAdjMismatches = 0;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -2745,11 +2851,24 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         mFgBroadcastQueue = new BroadcastQueue(this, mHandler,
-                "foreground", BROADCAST_FG_TIMEOUT, false);
+                "foreground", BROADCAST_FG_TIMEOUT, false, true);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
-                "background", BROADCAST_BG_TIMEOUT, true);
+                "background", BROADCAST_BG_TIMEOUT, true, false);
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        if (SystemProperties.getBoolean("persist.sys.am.coalesce_broadcasts", false)) {
+            mCoalescedBroadcastActions.put(Intent.ACTION_BATTERY_CHANGED, null);
+            mCoalescedBroadcastActions.put(Intent.ACTION_TIME_TICK, null);
+            // Connectivity broadcasts describe one network type each
+            mCoalescedBroadcastActions.put(ConnectivityManager.CONNECTIVITY_ACTION,
+                    ConnectivityManager.EXTRA_NETWORK_TYPE);
+        }
+        for (int i = 0; i < ORDERED_BROADCAST_LANES; i++) {
+            mBroadcastQueues[2 + i] = new BroadcastQueue(this, mHandler,
+                    "foreground_lane" + i, BROADCAST_FG_TIMEOUT, false, true);
+            mBroadcastQueues[2 + ORDERED_BROADCAST_LANES + i] = new BroadcastQueue(this, mHandler,
+                    "background_lane" + i, BROADCAST_BG_TIMEOUT, true, false);
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -7973,6 +8092,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
     void importanceTokenDied(ImportanceToken token) {
         synchronized (ActivityManagerService.this) {
+            final ProcessRecord pr;
             synchronized (mPidsSelfLocked) {
                 ImportanceToken cur
                     = mImportantProcesses.get(token.pid);
@@ -7980,14 +8100,14 @@ public class ActivityManagerService extends IActivityManager.Stub
                     return;
                 }
                 mImportantProcesses.remove(token.pid);
-                ProcessRecord pr = mPidsSelfLocked.get(token.pid);
+                pr = mPidsSelfLocked.get(token.pid);
                 if (pr == null) {
                     return;
                 }
                 pr.forcingToImportant = null;
                 updateProcessForegroundLocked(pr, false, false);
             }
-            updateOomAdjLocked();
+            updateOomAdjFromProcessLocked(pr);
         }
     }
 
@@ -7997,9 +8117,10 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "setProcessImportant()");
         synchronized(this) {
             boolean changed = false;
+            ProcessRecord pr;
 
             synchronized (mPidsSelfLocked) {
-                ProcessRecord pr = mPidsSelfLocked.get(pid);
+                pr = mPidsSelfLocked.get(pid);
                 if (pr == null && isForeground) {
                     Slog.w(TAG, "setProcessForeground called on unknown pid: " + pid);
                     return;
@@ -8033,7 +8154,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
 
             if (changed) {
-                updateOomAdjLocked();
+                updateOomAdjFromProcessLocked(pr);
             }
         }
     }
@@ -11907,7 +12028,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    // Only the provider host, and what it depends on, can have become less
+                    // important.
+                    updateOomAdjFromProcessLocked(conn.provider.proc);
                 }
             }
         } finally {
@@ -11941,7 +12064,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             ContentProviderRecord localCpr = mProviderMap.getProviderByClass(comp, userId);
             if (localCpr.hasExternalProcessHandles()) {
                 if (localCpr.removeExternalProcessHandleLocked(token)) {
-                    updateOomAdjLocked();
+                    updateOomAdjFromProcessLocked(localCpr.proc);
                 } else {
                     Slog.e(TAG, "Attmpt to remove content provider " + localCpr
                             + " with no external reference for token: "
@@ -16077,6 +16200,13 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                if (mIncrementalOomAdj) {
+                    pw.println("  mNumIncrementalOomAdj=" + mNumIncrementalOomAdj
+                            + " mNumIncrementalOomAdjProcs=" + mNumIncrementalOomAdjProcs
+                            + " mNumIncrementalOomAdjFallbacks=" + mNumIncrementalOomAdjFallbacks
+                            + " mNumIncrementalOomAdjMismatches="
+                            + mNumIncrementalOomAdjMismatches);
+                }
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -16421,6 +16551,15 @@ public class ActivityManagerService extends IActivityManager.Stub
             printedAnything |= needSep;
         }
 
+        if (!onlyHistory && dumpPackage == null && mOrderedBroadcastGate != null) {
+            if (needSep) {
+                pw.println();
+            }
+            pw.println("  Ordered broadcast turns by process:");
+            mOrderedBroadcastGate.dumpLocked(pw, "    ");
+            printedAnything = true;
+        }
+
         needSep = true;
 
         if (!onlyHistory && mStickyBroadcasts != null && dumpPackage == null) {
@@ -18735,8 +18874,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -19656,6 +19799,12 @@ public class ActivityManagerService extends IActivityManager.Stub
                     && (queue.replaceParallelBroadcastLocked(r) != null);
             // Note: We assume resultTo is null for non-ordered broadcasts.
             if (!replaced) {
+                final int coalesceIndex = mCoalescedBroadcastActions.indexOfKey(
+                        intent.getAction());
+                if (coalesceIndex >= 0) {
+                    queue.coalesceParallelBroadcastsLocked(r,
+                            mCoalescedBroadcastActions.valueAt(coalesceIndex));
+                }
                 queue.enqueueParallelBroadcastLocked(r);
                 queue.scheduleBroadcastsLocked();
             }
@@ -19742,7 +19891,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = orderedBroadcastQueueForReceivers(intent, receivers);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, callerInstantApp, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -19754,7 +19903,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                     "Enqueueing broadcast " + r.intent.getAction());
 
             final BroadcastRecord oldRecord =
-                    replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
+                    replacePending ? replaceOrderedBroadcastLocked(r) : null;
             if (oldRecord != null) {
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
@@ -19972,9 +20121,19 @@ public class ActivityManagerService extends IActivityManager.Stub
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
-                r = queue.getMatchingOrderedReceiver(who);
+                final boolean foreground = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+                r = null;
+                for (BroadcastQueue queue : mBroadcastQueues) {
+                    if (queue.mForeground != foreground) {
+                        continue;
+                    }
+                    // With lanes, more than one queue can be waiting on the same receiver.
+                    // The receiver finishes broadcasts in the order they were delivered.
+                    final BroadcastRecord match = queue.getMatchingOrderedReceiver(who);
+                    if (match != null && (r == null || match.receiverSeq < r.receiverSeq)) {
+                        r = match;
+                    }
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -20972,8 +21131,13 @@ public class ActivityManagerService extends IActivityManager.Stub
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (mTmpBroadcastQueue.contains(mFgBroadcastQueue))
-                    ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
+            schedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
+            for (int i = mTmpBroadcastQueue.size() - 1; i >= 0; i--) {
+                if (mTmpBroadcastQueue.valueAt(i).mForeground) {
+                    schedGroup = ProcessList.SCHED_GROUP_DEFAULT;
+                    break;
+                }
+            }
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
             if (DEBUG_OOM_ADJ_REASON) Slog.d(TAG, "Making broadcast: " + app);
@@ -22507,7 +22671,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 }
             }
             if (oomAdj) {
-                updateOomAdjLocked();
+                updateOomAdjFromProcessLocked(proc);
             }
         }
     }
@@ -22548,6 +22712,9 @@ public class ActivityManagerService extends IActivityManager.Stub
      * @return whether updateOomAdjLocked(app) was successful.
      */
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        if (mIncrementalOomAdj) {
+            return updateOomAdjIncrementalLocked(app, oomAdjAll);
+        }
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final boolean wasCached = app.cached;
@@ -22571,6 +22738,135 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Update OomAdj after a change to {@code app} that can only affect it and the processes
+     * whose importance derives from it: incrementally if {@link #mIncrementalOomAdj} is set,
+     * otherwise, or if there is no running {@code app}, with a full update as before.
+     */
+    final void updateOomAdjFromProcessLocked(ProcessRecord app) {
+        if (mIncrementalOomAdj && app != null && app.thread != null) {
+            updateOomAdjIncrementalLocked(app, true);
+        } else {
+            updateOomAdjLocked();
+        }
+    }
+
+    /**
+     * Update OomAdj for {@code app} and for every process reachable from it through the
+     * services it is bound to and the content providers it uses, in that order, so that each
+     * process is evaluated after the clients that were just updated.  All of them share a single
+     * adj sequence, which keeps computeOomAdjLocked from re-evaluating clients it has already
+     * seen.  Processes that are not reachable keep their current values.
+     *
+     * <p>The assignment of cached slots depends on LRU order over all processes, so if any of
+     * the evaluated processes moves to or from the cached state this falls back to a full update
+     * when {@code oomAdjAll} is set.
+     *
+     * <p>Service binds and unbinds, service starts, provider releases, broadcast delivery and
+     * foreground or importance changes of a single process go through here.  The remaining
+     * callers of the full {@link #updateOomAdjLocked()} change state that every process is
+     * measured against, so they can't: process start, death and removal change LRU membership
+     * and the cached and empty process counts; activity, sleep and wake changes move the top
+     * app, which can change the adj of any of its dependencies and of the home and previous
+     * processes; temp whitelist changes apply to whole uids; and the update at the end of an
+     * ordered broadcast batch, like unbinding from a service without a running host, does not
+     * know which processes were affected.</p>
+     */
+    private boolean updateOomAdjIncrementalLocked(ProcessRecord app, boolean oomAdjAll) {
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+
+        final ArrayList<ProcessRecord> reachable = collectOomAdjDependentsLocked(app);
+        mNumIncrementalOomAdj++;
+        mNumIncrementalOomAdjProcs += reachable.size();
+        mAdjSeq++;
+
+        boolean success = true;
+        boolean needFullUpdate = false;
+        for (int i = 0; i < reachable.size(); i++) {
+            final ProcessRecord proc = reachable.get(i);
+            final boolean wasCached = proc.cached;
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            if (!updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now) && proc == app) {
+                success = false;
+            }
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                needFullUpdate = true;
+            }
+        }
+
+        if (oomAdjAll && needFullUpdate) {
+            mNumIncrementalOomAdjFallbacks++;
+            updateOomAdjLocked();
+        } else if (mVerifyIncrementalOomAdj) {
+            verifyIncrementalOomAdjLocked(app, reachable);
+        }
+        return success;
+    }
+
+    /**
+     * Returns {@code app} followed by the processes hosting services and providers it is bound
+     * to, transitively, in breadth-first order.
+     */
+    @VisibleForTesting
+    ArrayList<ProcessRecord> collectOomAdjDependentsLocked(ProcessRecord app) {
+        final ArrayList<ProcessRecord> reachable = new ArrayList<>();
+        final ArraySet<ProcessRecord> seen = new ArraySet<>();
+        reachable.add(app);
+        seen.add(app);
+        for (int i = 0; i < reachable.size(); i++) {
+            final ProcessRecord proc = reachable.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && host.thread != null && seen.add(host)) {
+                    reachable.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && host.thread != null && seen.add(host)) {
+                    reachable.add(host);
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Runs a full update after an incremental one and reports processes whose adj or process
+     * state the incremental update got wrong.  Cached processes are skipped, since their slots
+     * are only ever assigned by a full update.
+     */
+    private void verifyIncrementalOomAdjLocked(ProcessRecord app,
+            ArrayList<ProcessRecord> reachable) {
+        final int N = mLruProcesses.size();
+        final ArrayMap<ProcessRecord, Long> expected = new ArrayMap<>(N);
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord proc = mLruProcesses.get(i);
+            expected.put(proc, ((long) proc.curAdj << 32) | (proc.curProcState & 0xffffffffL));
+        }
+        updateOomAdjLocked();
+        for (int i = expected.size() - 1; i >= 0; i--) {
+            final ProcessRecord proc = expected.keyAt(i);
+            final long value = expected.valueAt(i);
+            final int incrementalAdj = (int) (value >> 32);
+            final int incrementalProcState = (int) value;
+            if (proc.curAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    && incrementalAdj >= ProcessList.CACHED_APP_MIN_ADJ) {
+                continue;
+            }
+            if (proc.curAdj != incrementalAdj || proc.curProcState != incrementalProcState) {
+                mNumIncrementalOomAdjMismatches++;
+                Slog.w(TAG_OOM_ADJ, "Incremental oom adj mismatch for " + proc
+                        + " after update of " + app + " (" + reachable.size()
+                        + " evaluated): adj " + incrementalAdj + " != " + proc.curAdj
+                        + ", procState " + incrementalProcState + " != " + proc.curProcState);
+            }
+        }
+    }
+
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
@@ -22831,6 +23127,11 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
         if (memFactor != mLastMemoryLevel) {
             EventLogTags.writeAmMemFactor(memFactor, mLastMemoryLevel);
+            final boolean lowMemory = memFactor >= ProcessStats.ADJ_MEM_FACTOR_LOW;
+            if (mWindowManager != null
+                    && lowMemory != (mLastMemoryLevel >= ProcessStats.ADJ_MEM_FACTOR_LOW)) {
+                mWindowManager.setLowMemory(lowMemory);
+            }
         }
         mLastMemoryLevel = memFactor;
         mLastNumProcesses = mLruProcesses.size();
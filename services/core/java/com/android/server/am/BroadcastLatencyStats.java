@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.ArrayMap;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms for the broadcasts handled by one {@link BroadcastQueue}.
+ *
+ * <p>For the queue as a whole this records how long broadcasts waited before dispatch started
+ * and how long they took from enqueueing until the last receiver finished.  The latter is also
+ * kept per action, for a bounded number of actions; everything beyond that is folded into a
+ * single overflow entry.</p>
+ */
+final class BroadcastLatencyStats {
+    /** Upper bounds, in milliseconds, of all but the last bucket. */
+    @VisibleForTesting
+    static final long[] BUCKET_LIMITS = { 10, 50, 100, 500, 1000, 5000, 10000 };
+
+    @VisibleForTesting
+    static final int MAX_ACTIONS = 64;
+
+    @VisibleForTesting
+    static final String OTHER_ACTIONS = "(other)";
+
+    @VisibleForTesting
+    static final class Histogram {
+        final int[] counts = new int[BUCKET_LIMITS.length + 1];
+        int count;
+        long total;
+        long max;
+
+        void add(long latency) {
+            if (latency < 0) {
+                // Wall clock changes can make intervals negative
+                latency = 0;
+            }
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && latency >= BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            total += latency;
+            if (latency > max) {
+                max = latency;
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            pw.print("n="); pw.print(count);
+            pw.print(" avg="); pw.print(count > 0 ? total / count : 0);
+            pw.print("ms max="); pw.print(max); pw.print("ms [");
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    pw.print(' ');
+                }
+                pw.print(i < BUCKET_LIMITS.length ? "<" + BUCKET_LIMITS[i] : ">="
+                        + BUCKET_LIMITS[BUCKET_LIMITS.length - 1]);
+                pw.print(':'); pw.print(counts[i]);
+            }
+            pw.println("]");
+        }
+    }
+
+    private final Histogram mDispatchLatency = new Histogram();
+    private final Histogram mFinishLatency = new Histogram();
+    private final ArrayMap<String, Histogram> mActionLatency = new ArrayMap<>();
+
+    /**
+     * Records a broadcast that has been delivered to all of its receivers.
+     *
+     * @param action the broadcast action, may be null
+     * @param enqueueTime when the broadcast was enqueued
+     * @param dispatchTime when delivery to the first receiver started
+     * @param finishTime when the last receiver finished, on the same clock
+     */
+    void noteBroadcastFinished(String action, long enqueueTime, long dispatchTime,
+            long finishTime) {
+        mDispatchLatency.add(dispatchTime - enqueueTime);
+        final long latency = finishTime - enqueueTime;
+        mFinishLatency.add(latency);
+        getActionHistogram(action).add(latency);
+    }
+
+    private Histogram getActionHistogram(String action) {
+        if (action == null) {
+            action = OTHER_ACTIONS;
+        }
+        Histogram histogram = mActionLatency.get(action);
+        if (histogram == null) {
+            if (mActionLatency.size() >= MAX_ACTIONS - 1 && !OTHER_ACTIONS.equals(action)) {
+                return getActionHistogram(OTHER_ACTIONS);
+            }
+            histogram = new Histogram();
+            mActionLatency.put(action, histogram);
+        }
+        return histogram;
+    }
+
+    @VisibleForTesting
+    Histogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+
+    @VisibleForTesting
+    Histogram getFinishLatency() {
+        return mFinishLatency;
+    }
+
+    @VisibleForTesting
+    Histogram getActionLatency(String action) {
+        return mActionLatency.get(action);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Dispatch latency: "); mDispatchLatency.dump(pw);
+        pw.print(prefix); pw.print("Finish latency: "); mFinishLatency.dump(pw);
+        for (int i = 0; i < mActionLatency.size(); i++) {
+            pw.print(prefix); pw.print("  "); pw.print(mActionLatency.keyAt(i)); pw.print(": ");
+            mActionLatency.valueAt(i).dump(pw);
+        }
+    }
+}
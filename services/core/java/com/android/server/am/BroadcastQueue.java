@@ -23,7 +23,9 @@ import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Objects;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -48,10 +50,14 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -87,6 +93,32 @@ public final class BroadcastQueue {
      */
     final boolean mDelayBehindServices;
 
+    /**
+     * Whether this queue carries foreground broadcasts.  There may be more than one such queue
+     * when ordered broadcast lanes are enabled.
+     */
+    final boolean mForeground;
+
+    /**
+     * Latency of the broadcasts that went through this queue, for dumpsys.
+     */
+    final BroadcastLatencyStats mLatencyStats = new BroadcastLatencyStats();
+
+    /**
+     * Number of queued parallel broadcasts that were dropped entirely because newer instances
+     * superseded them for all of their receivers, and number of individual deliveries dropped,
+     * per action.  See {@link #coalesceParallelBroadcastsLocked}.
+     */
+    int mCoalescedBroadcasts = 0;
+    int mCoalescedDeliveries = 0;
+    final ArrayMap<String, Integer> mCoalescedDeliveriesByAction = new ArrayMap<>();
+
+    /**
+     * Sequence number handed to each receiver as it is started, across all queues.  Used to
+     * tell which of several broadcasts waiting on the same receiver was delivered first.
+     */
+    private static long sNextReceiverSeq = 0;
+
     /**
      * Lists of all active broadcasts that are to be executed immediately
      * (without waiting for another broadcast to finish).  Currently this only
@@ -195,12 +227,14 @@ public final class BroadcastQueue {
     }
 
     BroadcastQueue(ActivityManagerService service, Handler handler,
-            String name, long timeoutPeriod, boolean allowDelayBehindServices) {
+            String name, long timeoutPeriod, boolean allowDelayBehindServices,
+            boolean foreground) {
         mService = service;
         mHandler = new BroadcastHandler(handler.getLooper());
         mQueueName = name;
         mTimeoutPeriod = timeoutPeriod;
         mDelayBehindServices = allowDelayBehindServices;
+        mForeground = foreground;
     }
 
     @Override
@@ -219,6 +253,9 @@ public final class BroadcastQueue {
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
         mOrderedBroadcasts.add(r);
+        if (mService.mOrderedBroadcastGate != null) {
+            mService.mOrderedBroadcastGate.enqueueLocked(r);
+        }
         enqueueBroadcastHelper(r);
     }
 
@@ -249,7 +286,95 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        final BroadcastRecord old = replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        if (old != null && mService.mOrderedBroadcastGate != null) {
+            mService.mOrderedBroadcastGate.replaceLocked(old, r);
+        }
+        return old;
+    }
+
+    /**
+     * Folds queued parallel broadcasts that {@code r} supersedes into it: every receiver of
+     * {@code r} that is still waiting for an earlier broadcast of the same intent, from the same
+     * sender to the same user with the same restrictions, will only get {@code r}.  See
+     * {@link #isSupersededBy}.  Earlier broadcasts left without
+     * receivers are removed from the queue.  Must be called before {@code r} is enqueued.
+     *
+     * @param matchExtra if not null, only broadcasts with an equal value for this extra are
+     *                   considered the same
+     * @return the number of deliveries that were dropped
+     */
+    public int coalesceParallelBroadcastsLocked(BroadcastRecord r, String matchExtra) {
+        if (r.receivers == null || r.receivers.isEmpty() || mParallelBroadcasts.isEmpty()) {
+            return 0;
+        }
+        final ArraySet<Object> receivers = new ArraySet<>(r.receivers.size());
+        receivers.addAll(r.receivers);
+        int dropped = 0;
+        for (int i = mParallelBroadcasts.size() - 1; i >= 0; i--) {
+            final BroadcastRecord old = mParallelBroadcasts.get(i);
+            if (!isSupersededBy(old, r, matchExtra)) {
+                continue;
+            }
+            boolean remaining = false;
+            for (int j = old.receivers.size() - 1; j >= 0; j--) {
+                if (old.delivery[j] != BroadcastRecord.DELIVERY_PENDING) {
+                    continue;
+                }
+                if (receivers.contains(old.receivers.get(j))) {
+                    old.delivery[j] = BroadcastRecord.DELIVERY_SKIPPED;
+                    dropped++;
+                } else {
+                    remaining = true;
+                }
+            }
+            if (!remaining) {
+                if (DEBUG_BROADCAST) {
+                    Slog.v(TAG_BROADCAST, "***** COALESCED PARALLEL [" + mQueueName + "]: "
+                            + old.intent);
+                }
+                mParallelBroadcasts.remove(i);
+                mCoalescedBroadcasts++;
+                if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
+                    Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
+                            createBroadcastTraceTitle(old, BroadcastRecord.DELIVERY_PENDING),
+                            System.identityHashCode(old));
+                }
+            }
+        }
+        if (dropped > 0) {
+            mCoalescedDeliveries += dropped;
+            final String action = r.intent.getAction();
+            final Integer count = mCoalescedDeliveriesByAction.get(action);
+            mCoalescedDeliveriesByAction.put(action, (count != null ? count : 0) + dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns whether {@code r} may be delivered in place of {@code old}: both must be the same
+     * intent sent by the same caller to the same user, and restricted to receivers holding the
+     * same permissions and app op.  Broadcasts with options are never superseded, since their
+     * effects on the receivers can't be compared.
+     */
+    @VisibleForTesting
+    static boolean isSupersededBy(BroadcastRecord old, BroadcastRecord r, String matchExtra) {
+        if (old.userId != r.userId || old.callingUid != r.callingUid
+                || old.callerInstantApp != r.callerInstantApp
+                || !Objects.equals(old.callerPackage, r.callerPackage)
+                || !r.intent.filterEquals(old.intent)
+                || !Objects.equals(old.resolvedType, r.resolvedType)) {
+            return false;
+        }
+        if (old.appOp != r.appOp
+                || !Arrays.equals(old.requiredPermissions, r.requiredPermissions)) {
+            return false;
+        }
+        if (old.options != null || r.options != null) {
+            return false;
+        }
+        return matchExtra == null || Objects.equals(r.intent.getExtra(matchExtra),
+                old.intent.getExtra(matchExtra));
     }
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
@@ -286,7 +411,7 @@ public final class BroadcastQueue {
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
-        mService.updateOomAdjLocked();
+        mService.updateOomAdjFromProcessLocked(app);
 
         // Tell the application to launch this receiver.
         r.intent.setComponent(r.curComponent);
@@ -851,6 +976,10 @@ public final class BroadcastQueue {
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Processing parallel broadcast ["
                         + mQueueName + "] " + r);
                 for (int i=0; i<N; i++) {
+                    if (r.delivery[i] == BroadcastRecord.DELIVERY_SKIPPED) {
+                        // Superseded by a later broadcast, see coalesceParallelBroadcastsLocked
+                        continue;
+                    }
                     Object target = r.receivers.get(i);
                     if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
                             "Delivering non-ordered on [" + mQueueName + "] to registered "
@@ -918,8 +1047,11 @@ public final class BroadcastQueue {
                 int numReceivers = (r.receivers != null) ? r.receivers.size() : 0;
                 if (mService.mProcessesReady && r.dispatchTime > 0) {
                     long now = SystemClock.uptimeMillis();
-                    if ((numReceivers > 0) &&
-                            (now > r.dispatchTime + (2*mTimeoutPeriod*numReceivers))) {
+                    // Time spent waiting for a process busy on another lane doesn't count.
+                    final long heldBackTime = r.heldBackTime
+                            + (r.heldBackSince != 0 ? now - r.heldBackSince : 0);
+                    if ((numReceivers > 0) && (now > r.dispatchTime + heldBackTime
+                            + (2*mTimeoutPeriod*numReceivers))) {
                         Slog.w(TAG, "Hung broadcast ["
                                 + mQueueName + "] discarded after timeout failure:"
                                 + " now=" + now
@@ -981,6 +1113,9 @@ public final class BroadcastQueue {
                         mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
                                 r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
                     }
+                    if (mService.mOrderedBroadcastGate != null) {
+                        mService.mOrderedBroadcastGate.removeLocked(r);
+                    }
                     mOrderedBroadcasts.remove(0);
                     r = null;
                     looped = true;
@@ -988,12 +1123,34 @@ public final class BroadcastQueue {
                 }
             } while (r == null);
 
+            final OrderedBroadcastGate gate = mService.mOrderedBroadcastGate;
+            if (gate != null) {
+                gate.releaseLocked(r);
+                if (!gate.mayDeliverLocked(r, r.receivers.get(r.nextReceiver))) {
+                    // An earlier broadcast on another lane still has receivers in the same
+                    // process.  Wait for it with our clock stopped, so that only one timeout
+                    // runs against the process; the gate schedules us again when it's done.
+                    if (r.heldBackSince == 0) {
+                        r.heldBackSince = SystemClock.uptimeMillis();
+                        if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Holding back ["
+                                + mQueueName + "] " + r + " for receiver " + r.nextReceiver);
+                    }
+                    cancelBroadcastTimeoutLocked();
+                    return;
+                }
+                if (r.heldBackSince != 0) {
+                    r.heldBackTime += SystemClock.uptimeMillis() - r.heldBackSince;
+                    r.heldBackSince = 0;
+                }
+            }
+
             // Get the next receiver...
             int recIdx = r.nextReceiver++;
 
             // Keep track of when this receiver started, and make sure there
             // is a timeout message pending to kill it if need be.
             r.receiverTime = SystemClock.uptimeMillis();
+            r.receiverSeq = ++sNextReceiverSeq;
             if (recIdx == 0) {
                 r.dispatchTime = r.receiverTime;
                 r.dispatchClockTime = System.currentTimeMillis();
@@ -1411,6 +1568,11 @@ public final class BroadcastQueue {
                 return;
             }
 
+            if (r.heldBackSince != 0) {
+                // Not waiting on a receiver; the timeout is set again once it's delivered.
+                return;
+            }
+
             long timeoutTime = r.receiverTime + mTimeoutPeriod;
             if (timeoutTime > now) {
                 // We can observe premature timeouts because we do not cancel and reset the
@@ -1521,6 +1683,9 @@ public final class BroadcastQueue {
         mSummaryHistoryEnqueueTime[mSummaryHistoryNext] = historyRecord.enqueueClockTime;
         mSummaryHistoryDispatchTime[mSummaryHistoryNext] = historyRecord.dispatchClockTime;
         mSummaryHistoryFinishTime[mSummaryHistoryNext] = System.currentTimeMillis();
+        mLatencyStats.noteBroadcastFinished(historyRecord.intent.getAction(),
+                historyRecord.enqueueClockTime, historyRecord.dispatchClockTime,
+                mSummaryHistoryFinishTime[mSummaryHistoryNext]);
         mSummaryHistoryNext = ringAdvance(mSummaryHistoryNext, 1, MAX_BROADCAST_SUMMARY_HISTORY);
     }
 
@@ -1743,6 +1908,24 @@ public final class BroadcastQueue {
                     pw.print("    extras: "); pw.println(bundle.toString());
                 }
             } while (ringIndex != lastIndex);
+
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Broadcast latency [" + mQueueName + "]:");
+            mLatencyStats.dump(pw, "    ");
+
+            if (mCoalescedDeliveries > 0) {
+                pw.println();
+                pw.println("  Coalesced broadcasts [" + mQueueName + "]: "
+                        + mCoalescedBroadcasts + " broadcasts, "
+                        + mCoalescedDeliveries + " deliveries");
+                for (int j = 0; j < mCoalescedDeliveriesByAction.size(); j++) {
+                    pw.println("    " + mCoalescedDeliveriesByAction.keyAt(j) + ": "
+                            + mCoalescedDeliveriesByAction.valueAt(j));
+                }
+            }
         }
 
         return needSep;
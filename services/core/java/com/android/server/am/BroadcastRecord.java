@@ -64,6 +64,10 @@ final class BroadcastRecord extends Binder {
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
+    long receiverSeq;       // delivery order of the current receiver across queues.
+    long orderedSeq;        // send order among ordered broadcasts, with lanes enabled.
+    long heldBackSince;     // when it started waiting for a process busy on another lane.
+    long heldBackTime;      // total time spent waiting for processes busy on other lanes.
     long finishTime;        // when we finished the broadcast.
     int resultCode;         // current result code value.
     String resultData;      // current result data value.
@@ -144,6 +148,14 @@ final class BroadcastRecord extends Binder {
         if (anrCount != 0) {
             pw.print(prefix); pw.print("anrCount="); pw.println(anrCount);
         }
+        if (heldBackSince != 0 || heldBackTime != 0) {
+            pw.print(prefix); pw.print("heldBackTime=");
+            TimeUtils.formatDuration(heldBackTime, pw);
+            if (heldBackSince != 0) {
+                pw.print(" heldBackSince="); TimeUtils.formatDuration(heldBackSince, now, pw);
+            }
+            pw.println();
+        }
         if (resultTo != null || resultCode != -1 || resultData != null) {
             pw.print(prefix); pw.print("resultTo="); pw.print(resultTo);
                     pw.print(" resultCode="); pw.print(resultCode);
@@ -276,6 +288,10 @@ final class BroadcastRecord extends Binder {
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
         receiverTime = from.receiverTime;
+        receiverSeq = from.receiverSeq;
+        orderedSeq = from.orderedSeq;
+        heldBackSince = from.heldBackSince;
+        heldBackTime = from.heldBackTime;
         finishTime = from.finishTime;
         resultCode = from.resultCode;
         resultData = from.resultData;
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
+
+import com.android.internal.app.ProcessMap;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps ordered broadcast lanes from delivering to the same process at the same time.
+ *
+ * <p>With lanes, ordered broadcasts for one process can wait in several queues.  Each ordered
+ * broadcast takes a turn with every process it has receivers in, in the order the broadcasts
+ * were sent, and a queue only delivers a broadcast to a receiver once it is that broadcast's
+ * turn with the receiver's process.  A process so has at most one ordered broadcast in flight,
+ * and only one broadcast timeout running against it, and it gets its ordered broadcasts in the
+ * order they were sent whatever lanes they went through.  A broadcast only ever waits for
+ * broadcasts sent before it, so the lanes cannot deadlock.</p>
+ *
+ * <p>Registered receivers of callers without a process record are not gated.</p>
+ */
+final class OrderedBroadcastGate {
+    /** The ordered broadcasts that have receivers left in one process, in the order sent. */
+    private static final class Turns {
+        final String processName;
+        final int uid;
+        final ArrayList<BroadcastRecord> records = new ArrayList<>();
+
+        Turns(String processName, int uid) {
+            this.processName = processName;
+            this.uid = uid;
+        }
+    }
+
+    private final ProcessMap<Turns> mTurns = new ProcessMap<>();
+
+    /** Turns each broadcast currently holds a place in. */
+    private final ArrayMap<BroadcastRecord, ArrayList<Turns>> mHeldTurns = new ArrayMap<>();
+
+    private final ArraySet<Turns> mTmpNeededTurns = new ArraySet<>();
+
+    private long mNextSeq = 0;
+
+    /**
+     * Queues {@code r} for a turn with each process it has receivers in, behind the broadcasts
+     * sent before it.
+     */
+    void enqueueLocked(BroadcastRecord r) {
+        if (r.orderedSeq == 0) {
+            r.orderedSeq = ++mNextSeq;
+        }
+        final List receivers = r.receivers;
+        if (receivers == null) {
+            return;
+        }
+        ArrayList<Turns> held = null;
+        for (int i = r.nextReceiver; i < receivers.size(); i++) {
+            final Object receiver = receivers.get(i);
+            final String processName = getProcessName(receiver);
+            if (processName == null) {
+                continue;
+            }
+            final int uid = getUid(receiver);
+            Turns turns = mTurns.get(processName, uid);
+            if (turns == null) {
+                turns = mTurns.put(processName, uid, new Turns(processName, uid));
+            }
+            if (held == null) {
+                held = new ArrayList<>();
+            } else if (held.contains(turns)) {
+                continue;
+            }
+            held.add(turns);
+            // Keep the turns in the order the broadcasts were sent; a replacement inherits the
+            // place of the broadcast it replaces.
+            int pos = turns.records.size();
+            while (pos > 0 && turns.records.get(pos - 1).orderedSeq > r.orderedSeq) {
+                pos--;
+            }
+            turns.records.add(pos, r);
+        }
+        if (held != null) {
+            mHeldTurns.put(r, held);
+        }
+    }
+
+    /**
+     * Gives {@code r} the turns of {@code old}, which it replaces in its queue.
+     */
+    void replaceLocked(BroadcastRecord old, BroadcastRecord r) {
+        r.orderedSeq = old.orderedSeq;
+        removeLocked(old);
+        enqueueLocked(r);
+    }
+
+    /**
+     * Returns whether {@code r} may be delivered to {@code receiver} now, which is when no
+     * broadcast sent before it still has receivers in the same process.
+     */
+    boolean mayDeliverLocked(BroadcastRecord r, Object receiver) {
+        final String processName = getProcessName(receiver);
+        if (processName == null) {
+            return true;
+        }
+        final Turns turns = mTurns.get(processName, getUid(receiver));
+        if (turns == null || !turns.records.contains(r)) {
+            return true;
+        }
+        return turns.records.get(0) == r;
+    }
+
+    /**
+     * Ends the turns of {@code r} with the processes none of its remaining receivers, from
+     * {@link BroadcastRecord#nextReceiver} on, live in.
+     */
+    void releaseLocked(BroadcastRecord r) {
+        final ArrayList<Turns> held = mHeldTurns.get(r);
+        if (held == null) {
+            return;
+        }
+        final List receivers = r.receivers;
+        final ArraySet<Turns> needed = mTmpNeededTurns;
+        for (int i = r.nextReceiver; i < receivers.size(); i++) {
+            final Object receiver = receivers.get(i);
+            final String processName = getProcessName(receiver);
+            if (processName != null) {
+                final Turns turns = mTurns.get(processName, getUid(receiver));
+                if (turns != null) {
+                    needed.add(turns);
+                }
+            }
+        }
+        for (int i = held.size() - 1; i >= 0; i--) {
+            final Turns turns = held.get(i);
+            if (!needed.contains(turns)) {
+                held.remove(i);
+                removeTurnLocked(turns, r);
+            }
+        }
+        needed.clear();
+        if (held.isEmpty()) {
+            mHeldTurns.remove(r);
+        }
+    }
+
+    /**
+     * Ends all turns of {@code r}, which is done or no longer queued.
+     */
+    void removeLocked(BroadcastRecord r) {
+        final ArrayList<Turns> held = mHeldTurns.remove(r);
+        if (held == null) {
+            return;
+        }
+        for (int i = held.size() - 1; i >= 0; i--) {
+            removeTurnLocked(held.get(i), r);
+        }
+    }
+
+    private void removeTurnLocked(Turns turns, BroadcastRecord r) {
+        final int index = turns.records.indexOf(r);
+        if (index < 0) {
+            return;
+        }
+        turns.records.remove(index);
+        if (turns.records.isEmpty()) {
+            mTurns.remove(turns.processName, turns.uid);
+        } else if (index == 0) {
+            // The next broadcast may be waiting for its turn with this process.
+            turns.records.get(0).queue.scheduleBroadcastsLocked();
+        }
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix) {
+        final ArrayMap<String, SparseArray<Turns>> map = mTurns.getMap();
+        for (int i = 0; i < map.size(); i++) {
+            final SparseArray<Turns> uids = map.valueAt(i);
+            for (int j = 0; j < uids.size(); j++) {
+                final Turns turns = uids.valueAt(j);
+                pw.print(prefix); pw.print(turns.processName); pw.print("/");
+                pw.print(turns.uid); pw.print(": ");
+                for (int k = 0; k < turns.records.size(); k++) {
+                    if (k > 0) {
+                        pw.print(", ");
+                    }
+                    final BroadcastRecord r = turns.records.get(k);
+                    pw.print(r.intent.getAction()); pw.print(" ["); pw.print(r.queue);
+                    pw.print("]");
+                }
+                pw.println();
+            }
+        }
+    }
+
+    private static String getProcessName(Object receiver) {
+        if (receiver instanceof BroadcastFilter) {
+            final ProcessRecord app = ((BroadcastFilter) receiver).receiverList.app;
+            return app != null ? app.processName : null;
+        }
+        return ((ResolveInfo) receiver).activityInfo.processName;
+    }
+
+    private static int getUid(Object receiver) {
+        if (receiver instanceof BroadcastFilter) {
+            return ((BroadcastFilter) receiver).receiverList.app.uid;
+        }
+        final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+        return info.applicationInfo.uid;
+    }
+}
@@ -24,11 +24,15 @@ import android.os.Environment;
 import android.os.FileUtils;
 import android.os.Process;
 import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.LruCache;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -49,10 +53,13 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import static android.app.ActivityManager.StackId.HOME_STACK_ID;
 import static android.app.ActivityManager.StackId.INVALID_STACK_ID;
@@ -86,6 +93,9 @@ public class TaskPersister {
 
     private static final String TAG_TASK = "task";
 
+    /** The number of written images whose signatures are remembered for skipping rewrites. */
+    private static final int MAX_IMAGE_SIGNATURES = 64;
+
     private final ActivityManagerService mService;
     private final ActivityStackSupervisor mStackSupervisor;
     private final RecentTasks mRecentTasks;
@@ -127,6 +137,19 @@ public class TaskPersister {
 
     ArrayList<WriteQueueItem> mWriteQueue = new ArrayList<WriteQueueItem>();
 
+    // The following are only accessed by the writer thread.
+
+    /** Signature of the xml last written for each task, so that unchanged tasks aren't rewritten */
+    private final SparseLongArray mWrittenTaskSignatures = new SparseLongArray();
+
+    /** Signature of the image last written to each file path. */
+    private final LruCache<String, Long> mWrittenImageSignatures =
+            new LruCache<>(MAX_IMAGE_SIGNATURES);
+
+    /** A file path that an image was last written to, by signature of the image. */
+    private final LruCache<Long, String> mImagePathsBySignature =
+            new LruCache<>(MAX_IMAGE_SIGNATURES);
+
     TaskPersister(File systemDir, ActivityStackSupervisor stackSupervisor,
             ActivityManagerService service, RecentTasks recentTasks) {
 
@@ -538,6 +561,120 @@ public class TaskPersister {
         return tasks;
     }
 
+    /**
+     * Writes the xml of a task unless the file already holds exactly this xml.
+     */
+    private void writeTaskFile(TaskRecord task, String xml) {
+        final byte[] data = (xml + '\n').getBytes(StandardCharsets.UTF_8);
+        final long signature = computeSignature(data);
+        final File taskFile = new File(getUserTasksDir(task.userId),
+                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX);
+        if (mWrittenTaskSignatures.get(task.taskId) == signature && taskFile.exists()) {
+            if (DEBUG) Slog.d(TAG, "Skipping unchanged task=" + task);
+            return;
+        }
+
+        FileOutputStream file = null;
+        final AtomicFile atomicFile = new AtomicFile(taskFile);
+        try {
+            file = atomicFile.startWrite();
+            file.write(data);
+            atomicFile.finishWrite(file);
+            mWrittenTaskSignatures.put(task.taskId, signature);
+        } catch (IOException e) {
+            if (file != null) {
+                atomicFile.failWrite(file);
+            }
+            mWrittenTaskSignatures.delete(task.taskId);
+            Slog.e(TAG, "Unable to open " + atomicFile + " for persisting. " + e);
+        }
+    }
+
+    /**
+     * Writes an image as PNG. If the file already holds the same pixels nothing is written, and
+     * if another file in the same directory does, the image is linked to that file instead of
+     * being encoded again.
+     */
+    @VisibleForTesting
+    void writeImage(String filePath, Bitmap bitmap) {
+        final File imageFile = new File(filePath);
+        final long signature = computeSignature(bitmap);
+        if (signature != 0) {
+            final Long writtenSignature = mWrittenImageSignatures.get(filePath);
+            if (writtenSignature != null && writtenSignature == signature && imageFile.exists()) {
+                if (DEBUG) Slog.d(TAG, "Skipping unchanged image=" + filePath);
+                return;
+            }
+            final String identicalPath = mImagePathsBySignature.get(signature);
+            if (identicalPath != null && linkImage(identicalPath, signature, imageFile)) {
+                mWrittenImageSignatures.put(filePath, signature);
+                return;
+            }
+        }
+
+        // Never write through an existing file, it may be linked to other images.
+        imageFile.delete();
+        if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(imageFile);
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            if (signature != 0) {
+                mWrittenImageSignatures.put(filePath, signature);
+                mImagePathsBySignature.put(signature, filePath);
+            }
+        } catch (Exception e) {
+            mWrittenImageSignatures.remove(filePath);
+            Slog.e(TAG, "saveImage: unable to save " + filePath, e);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    private boolean linkImage(String identicalPath, long signature, File imageFile) {
+        final File identicalFile = new File(identicalPath);
+        // Only link within a directory, images of different users live on different storage.
+        if (identicalFile.equals(imageFile)
+                || !identicalFile.getParentFile().equals(imageFile.getParentFile())) {
+            return false;
+        }
+        final Long identicalSignature = mWrittenImageSignatures.get(identicalPath);
+        if (identicalSignature == null || identicalSignature != signature) {
+            return false;
+        }
+        imageFile.delete();
+        try {
+            Os.link(identicalPath, imageFile.getPath());
+            if (DEBUG) Slog.d(TAG, "Linked image=" + imageFile + " to " + identicalPath);
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static long computeSignature(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return ((long) data.length << 32) | crc.getValue();
+    }
+
+    /**
+     * Returns a signature of the pixels of {@param bitmap}, or 0 if the pixels can't be read.
+     */
+    private static long computeSignature(Bitmap bitmap) {
+        if (bitmap.isRecycled() || bitmap.getConfig() == Bitmap.Config.HARDWARE) {
+            return 0;
+        }
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        final CRC32 crc = new CRC32();
+        crc.update(pixels.array());
+        crc.update(bitmap.getWidth());
+        crc.update(bitmap.getHeight());
+        crc.update(bitmap.getConfig().ordinal());
+        return ((long) bitmap.getByteCount() << 32) | crc.getValue();
+    }
+
     private static void removeObsoleteFiles(ArraySet<Integer> persistentTaskIds, File[] files) {
         if (DEBUG) Slog.d(TAG, "removeObsoleteFiles: persistentTaskIds=" + persistentTaskIds +
                 " files=" + files);
@@ -676,6 +813,11 @@ public class TaskPersister {
                                 mRecentTasks.usersWithRecentsLoadedLocked());
                     }
                     removeObsoleteFiles(persistentTaskIds);
+                    for (int i = mWrittenTaskSignatures.size() - 1; i >= 0; i--) {
+                        if (!persistentTaskIds.contains(mWrittenTaskSignatures.keyAt(i))) {
+                            mWrittenTaskSignatures.removeAt(i);
+                        }
+                    }
                 }
                 writeTaskIdsFiles();
 
@@ -691,6 +833,7 @@ public class TaskPersister {
 
             // If mNextWriteTime, then don't delay between each call to saveToXml().
             final WriteQueueItem item;
+            ArrayList<TaskRecord> tasks = null;
             synchronized (TaskPersister.this) {
                 if (mNextWriteTime != FLUSH_QUEUE) {
                     // The next write we don't have to wait so long.
@@ -713,6 +856,20 @@ public class TaskPersister {
                     // from now.
                 }
                 item = mWriteQueue.remove(0);
+                if (item instanceof TaskWriteQueueItem) {
+                    // Write all queued tasks together, taking the service lock only once.
+                    tasks = new ArrayList<>();
+                    tasks.add(((TaskWriteQueueItem) item).mTask);
+                    for (int queueNdx = 0; queueNdx < mWriteQueue.size(); ) {
+                        final WriteQueueItem queued = mWriteQueue.get(queueNdx);
+                        if (queued instanceof TaskWriteQueueItem) {
+                            tasks.add(((TaskWriteQueueItem) queued).mTask);
+                            mWriteQueue.remove(queueNdx);
+                        } else {
+                            queueNdx++;
+                        }
+                    }
+                }
 
                 long now = SystemClock.uptimeMillis();
                 if (DEBUG) Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" +
@@ -737,51 +894,29 @@ public class TaskPersister {
                     Slog.e(TAG, "Error while creating images directory for file: " + filePath);
                     return;
                 }
-                final Bitmap bitmap = imageWriteQueueItem.mImage;
-                if (DEBUG) Slog.d(TAG, "writing bitmap: filename=" + filePath);
-                FileOutputStream imageFile = null;
-                try {
-                    imageFile = new FileOutputStream(new File(filePath));
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, imageFile);
-                } catch (Exception e) {
-                    Slog.e(TAG, "saveImage: unable to save " + filePath, e);
-                } finally {
-                    IoUtils.closeQuietly(imageFile);
-                }
-            } else if (item instanceof TaskWriteQueueItem) {
-                // Write out one task.
-                StringWriter stringWriter = null;
-                TaskRecord task = ((TaskWriteQueueItem) item).mTask;
-                if (DEBUG) Slog.d(TAG, "Writing task=" + task);
+                writeImage(filePath, imageWriteQueueItem.mImage);
+            } else if (tasks != null) {
+                // Write out the queued tasks.
+                final String[] xml = new String[tasks.size()];
                 synchronized (mService) {
-                    if (task.inRecents) {
-                        // Still there.
-                        try {
-                            if (DEBUG) Slog.d(TAG, "Saving task=" + task);
-                            stringWriter = saveToXml(task);
-                        } catch (IOException e) {
-                        } catch (XmlPullParserException e) {
+                    for (int taskNdx = 0; taskNdx < xml.length; taskNdx++) {
+                        final TaskRecord task = tasks.get(taskNdx);
+                        if (DEBUG) Slog.d(TAG, "Writing task=" + task);
+                        if (task.inRecents) {
+                            // Still there.
+                            try {
+                                if (DEBUG) Slog.d(TAG, "Saving task=" + task);
+                                xml[taskNdx] = saveToXml(task).toString();
+                            } catch (IOException e) {
+                            } catch (XmlPullParserException e) {
+                            }
                         }
                     }
                 }
-                if (stringWriter != null) {
-                    // Write out xml file while not holding mService lock.
-                    FileOutputStream file = null;
-                    AtomicFile atomicFile = null;
-                    try {
-                        atomicFile = new AtomicFile(new File(
-                                getUserTasksDir(task.userId),
-                                String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
-                        file = atomicFile.startWrite();
-                        file.write(stringWriter.toString().getBytes());
-                        file.write('\n');
-                        atomicFile.finishWrite(file);
-                    } catch (IOException e) {
-                        if (file != null) {
-                            atomicFile.failWrite(file);
-                        }
-                        Slog.e(TAG,
-                                "Unable to open " + atomicFile + " for persisting. " + e);
+                // Write out xml files while not holding mService lock.
+                for (int taskNdx = 0; taskNdx < xml.length; taskNdx++) {
+                    if (xml[taskNdx] != null) {
+                        writeTaskFile(tasks.get(taskNdx), xml[taskNdx]);
                     }
                 }
             }
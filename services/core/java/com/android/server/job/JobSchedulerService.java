@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 
 import android.app.Activity;
@@ -68,6 +67,7 @@ import android.provider.Settings;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
 
@@ -141,10 +141,10 @@ public final class JobSchedulerService extends com.android.server.SystemService
     /** Need direct access to this for testing. */
     StorageController mStorageController;
     /**
-     * Queue of pending jobs. The JobServiceContext class will receive jobs from this list
+     * Queue of pending jobs. The JobServiceContext class will receive jobs from this queue
      * when ready to execute them.
      */
-    final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    final PendingJobQueue mPendingJobs = new PendingJobQueue();
 
     int[] mStartedUsers = EmptyArray.INT;
 
@@ -198,6 +198,11 @@ public final class JobSchedulerService extends com.android.server.SystemService
      * The uid whose jobs we would like to assign to a context.
      */
     int[] mTmpAssignPreferredUidForContext = new int[MAX_JOB_CONTEXTS_COUNT];
+    /**
+     * The uids whose pending jobs could still be assigned to a context, once no context is
+     * left that would take a job of any uid.
+     */
+    final SparseBooleanArray mTmpAssignUids = new SparseBooleanArray();
 
     /**
      * All times are in milliseconds. These constants are kept synchronized with the system
@@ -475,21 +480,6 @@ public final class JobSchedulerService extends com.android.server.SystemService
 
     final Constants mConstants;
 
-    static final Comparator<JobStatus> mEnqueueTimeComparator = (o1, o2) -> {
-        if (o1.enqueueTime < o2.enqueueTime) {
-            return -1;
-        }
-        return o1.enqueueTime > o2.enqueueTime ? 1 : 0;
-    };
-
-    static <T> void addOrderedItem(ArrayList<T> array, T newItem, Comparator<T> comparator) {
-        int where = Collections.binarySearch(array, newItem, comparator);
-        if (where < 0) {
-            where = ~where;
-        }
-        array.add(where, newItem);
-    }
-
     /**
      * Cleans up outstanding jobs when a package is removed. Even if it's being replaced later we
      * still clean up. On reinstall the package will have a new uid.
@@ -711,7 +701,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 // This is a new job, we can just immediately put it on the pending
                 // list and try to run it.
                 mJobPackageTracker.notePending(jobStatus);
-                addOrderedItem(mPendingJobs, jobStatus, mEnqueueTimeComparator);
+                mPendingJobs.add(jobStatus);
                 maybeRunPendingJobsLocked();
             }
         }
@@ -1117,13 +1107,6 @@ public final class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
-    void noteJobsNonpending(List<JobStatus> jobs) {
-        for (int i = jobs.size() - 1; i >= 0; i--) {
-            JobStatus job = jobs.get(i);
-            mJobPackageTracker.noteNonpending(job);
-        }
-    }
-
     /**
      * Reschedules the given job based on the job's backoff policy. It doesn't make sense to
      * specify an override deadline on a failed job (the failed job will run even though it's not
@@ -1314,7 +1297,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         // state is such that all ready jobs should be run immediately.
                         if (runNow != null && isReadyToBeExecutedLocked(runNow)) {
                             mJobPackageTracker.notePending(runNow);
-                            addOrderedItem(mPendingJobs, runNow, mEnqueueTimeComparator);
+                            mPendingJobs.add(runNow);
                         } else {
                             queueReadyJobsForExecutionLocked();
                         }
@@ -1363,7 +1346,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, "queuing all ready jobs for execution:");
         }
-        noteJobsNonpending(mPendingJobs);
+        mPendingJobs.forEach(mJobPackageTracker::noteNonpending);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mReadyQueueFunctor);
@@ -1399,9 +1382,6 @@ public final class JobSchedulerService extends com.android.server.SystemService
             if (newReadyJobs != null) {
                 noteJobsPending(newReadyJobs);
                 mPendingJobs.addAll(newReadyJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
             }
             newReadyJobs = null;
         }
@@ -1488,9 +1468,6 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 }
                 noteJobsPending(runnableJobs);
                 mPendingJobs.addAll(runnableJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Not running anything.");
@@ -1517,7 +1494,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
     private void maybeQueueReadyJobsForExecutionLocked() {
         if (DEBUG) Slog.d(TAG, "Maybe queuing ready jobs...");
 
-        noteJobsNonpending(mPendingJobs);
+        mPendingJobs.forEach(mJobPackageTracker::noteNonpending);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
         mJobs.forEachJob(mMaybeQueueFunctor);
@@ -1685,9 +1662,14 @@ public final class JobSchedulerService extends com.android.server.SystemService
         if (DEBUG) {
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs initial"));
         }
-        for (int i=0; i<mPendingJobs.size(); i++) {
-            JobStatus nextPending = mPendingJobs.get(i);
-
+        // Walk the pending jobs in enqueue order.  Once every context is either taken or
+        // reserved for a uid, only jobs of the uids that are running or have a context
+        // reserved can still be placed, so the walk skips all other uids.
+        mPendingJobs.startWalk();
+        SparseBooleanArray assignableUids = getAssignableUidsLocked(contextIdToJobMap,
+                preferredUidForContext, numActive, numForeground);
+        JobStatus nextPending;
+        while ((nextPending = mPendingJobs.nextInWalk(assignableUids)) != null) {
             // If job is already running, go to next job.
             int jobRunningContext = findJobContextIdFromMap(nextPending, contextIdToJobMap);
             if (jobRunningContext != -1) {
@@ -1739,6 +1721,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 if (priority >= JobInfo.PRIORITY_TOP_APP) {
                     numForeground++;
                 }
+                assignableUids = getAssignableUidsLocked(contextIdToJobMap,
+                        preferredUidForContext, numActive, numForeground);
             }
         }
         if (DEBUG) {
@@ -1779,6 +1763,32 @@ public final class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
+    /**
+     * Returns the uids whose pending jobs could still be assigned to a context, or null if a
+     * free context without a preferred uid could still take a job of any uid.  The set only
+     * shrinks as contexts fill up during one assignment pass.
+     */
+    private SparseBooleanArray getAssignableUidsLocked(JobStatus[] contextIdToJobMap,
+            int[] preferredUidForContext, int numActive, int numForeground) {
+        final boolean haveCapacity = numActive < mMaxActiveJobs
+                || numForeground < mConstants.FG_JOB_COUNT;
+        final SparseBooleanArray uids = mTmpAssignUids;
+        uids.clear();
+        for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
+            final JobStatus job = contextIdToJobMap[i];
+            if (job != null) {
+                // A pending job may preempt a lower priority job of its own uid.
+                uids.put(job.getUid(), true);
+            } else if (haveCapacity) {
+                if (preferredUidForContext[i] == JobServiceContext.NO_PREFERRED_UID) {
+                    return null;
+                }
+                uids.put(preferredUidForContext[i], true);
+            }
+        }
+        return uids;
+    }
+
     int findJobContextIdFromMap(JobStatus jobStatus, JobStatus[] map) {
         for (int i=0; i<map.length; i++) {
             if (map[i] != null && map[i].matches(jobStatus.getUid(), jobStatus.getJobId())) {
@@ -2264,9 +2274,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
 
     private String printPendingQueue() {
         StringBuilder s = new StringBuilder("Pending queue: ");
-        Iterator<JobStatus> it = mPendingJobs.iterator();
-        while (it.hasNext()) {
-            JobStatus js = it.next();
+        for (JobStatus js : mPendingJobs.toSortedList()) {
             s.append("(")
                     .append(js.getJob().getId())
                     .append(", ")
@@ -2414,8 +2422,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 pw.println();
             }
             pw.println("Pending queue:");
-            for (int i=0; i<mPendingJobs.size(); i++) {
-                JobStatus job = mPendingJobs.get(i);
+            final ArrayList<JobStatus> pendingJobs = mPendingJobs.toSortedList();
+            for (int i=0; i<pendingJobs.size(); i++) {
+                JobStatus job = pendingJobs.get(i);
                 pw.print("  Pending #"); pw.print(i); pw.print(": ");
                 pw.println(job.toShortString());
                 job.dump(pw, "    ", false, nowElapsed);
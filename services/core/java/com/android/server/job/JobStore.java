@@ -26,17 +26,22 @@ import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.AtomicFile;
 import android.util.ArraySet;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
@@ -48,6 +53,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -75,6 +81,12 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /**
+     * The journal is compacted into a new jobs.xml once it holds at least this many records,
+     * and more than twice as many as there were jobs in the last snapshot.
+     */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 256;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
     final Context mContext;
@@ -87,6 +99,45 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+
+    /**
+     * If true, changes to persisted jobs are appended to {@link #mJournal} and jobs.xml is
+     * only rewritten when the journal is compacted.  A journal left behind by an earlier boot is
+     * replayed either way.
+     */
+    private final boolean mUseJournal;
+    private final JobStoreJournal mJournal;
+
+    /** Generation of the jobs.xml snapshot, which the journal must match to be replayed. */
+    @GuardedBy("mLock")
+    private long mSnapshotGeneration;
+    /** Whether the journal on disk belongs to the current snapshot and can be appended to. */
+    @GuardedBy("mLock")
+    private boolean mJournalValid;
+    /** Number of jobs in the last snapshot, to decide when to compact the journal. */
+    @GuardedBy("mLock")
+    private int mSnapshotJobCount;
+    /** Changes to persisted jobs that have not been appended to the journal yet. */
+    @GuardedBy("mLock")
+    private final ArrayList<JournalChange> mPendingJournalChanges = new ArrayList<>();
+    /** Set when the next write must be a full snapshot. */
+    @GuardedBy("mLock")
+    private boolean mSnapshotRequested;
+
+    private static final class JournalChange {
+        final int type;
+        final int uid;
+        final int jobId;
+        /** Copy of the job for {@link JobStoreJournal#RECORD_ADD}, null otherwise. */
+        final JobStatus job;
+
+        JournalChange(int type, int uid, int jobId, JobStatus job) {
+            this.type = type;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+    }
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -98,7 +149,8 @@ public final class JobStore {
         synchronized (sSingletonLock) {
             if (sSingleton == null) {
                 sSingleton = new JobStore(jobManagerService.getContext(),
-                        jobManagerService.getLock(), Environment.getDataDirectory());
+                        jobManagerService.getLock(), Environment.getDataDirectory(),
+                        SystemProperties.getBoolean("persist.sys.job.journal", false));
             }
             return sSingleton;
         }
@@ -109,7 +161,17 @@ public final class JobStore {
      */
     @VisibleForTesting
     public static JobStore initAndGetForTesting(Context context, File dataDir) {
-        JobStore jobStoreUnderTest = new JobStore(context, new Object(), dataDir);
+        return initAndGetForTesting(context, dataDir, false);
+    }
+
+    /**
+     * @return A freshly initialized job store object, with no loaded jobs, that persists
+     * changes through the journal if {@code useJournal} is set.
+     */
+    @VisibleForTesting
+    public static JobStore initAndGetForTesting(Context context, File dataDir,
+            boolean useJournal) {
+        JobStore jobStoreUnderTest = new JobStore(context, new Object(), dataDir, useJournal);
         jobStoreUnderTest.clear();
         return jobStoreUnderTest;
     }
@@ -117,7 +179,7 @@ public final class JobStore {
     /**
      * Construct the instance of the job store. This results in a blocking read from disk.
      */
-    private JobStore(Context context, Object lock, File dataDir) {
+    private JobStore(Context context, Object lock, File dataDir, boolean useJournal) {
         mLock = lock;
         mContext = context;
         mDirtyOperations = 0;
@@ -126,6 +188,8 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mUseJournal = useJournal;
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.log"));
 
         mJobSet = new JobSet();
 
@@ -140,7 +204,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(),
+                mJournal.getFile().lastModified());
         mRtcGood = (System.currentTimeMillis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -184,9 +249,15 @@ public final class JobStore {
      * @return Whether or not an equivalent JobStatus was replaced by this operation.
      */
     public boolean add(JobStatus jobStatus) {
+        final JobStatus previous = mJobSet.get(jobStatus.getUid(), jobStatus.getJobId());
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            noteJournalChangeLocked(JobStoreJournal.RECORD_ADD, jobStatus);
+            maybeWriteStatusToDiskAsync();
+        } else if (mUseJournal && previous != null && previous.isPersisted()) {
+            // A transient job replaced a persisted one, which must not come back on reboot.
+            noteJournalChangeLocked(JobStoreJournal.RECORD_REMOVE, previous);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -225,6 +296,7 @@ public final class JobStore {
             return false;
         }
         if (writeBack && jobStatus.isPersisted()) {
+            noteJournalChangeLocked(JobStoreJournal.RECORD_REMOVE, jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         return removed;
@@ -241,6 +313,7 @@ public final class JobStore {
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mSnapshotRequested = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -297,8 +370,21 @@ public final class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Records a change to a persisted job for the journal.  Must be followed by
+     * {@link #maybeWriteStatusToDiskAsync}.
+     */
+    private void noteJournalChangeLocked(int type, JobStatus jobStatus) {
+        if (!mUseJournal) {
+            return;
+        }
+        mPendingJournalChanges.add(new JournalChange(type, jobStatus.getUid(),
+                jobStatus.getJobId(),
+                type == JobStoreJournal.RECORD_ADD ? new JobStatus(jobStatus) : null));
+    }
+
+    /**
+     * Every time the state changes we write all the jobs in one swath, or, when the journal is
+     * in use, append the changes to it.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -316,37 +402,110 @@ public final class JobStore {
         new ReadJobMapFromDiskRunnable(jobSet, rtcGood).run();
     }
 
+    private final WriteJobsMapToDiskRunnable mWriteRunnable = new WriteJobsMapToDiskRunnable();
+
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes {@link #mJobSet} out to xml, or appends pending changes to the
+     * journal.
      * NOTE: This Runnable locks on mLock
      */
-    private final Runnable mWriteRunnable = new Runnable() {
+    private final class WriteJobsMapToDiskRunnable implements Runnable {
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalChange> changes;
+            final long generation;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
+                generation = mSnapshotGeneration;
+                if (!mUseJournal || mSnapshotRequested || !mJournalValid
+                        || journalNeedsCompactionLocked()) {
+                    mSnapshotRequested = false;
+                    mPendingJournalChanges.clear();
+                    changes = null;
+                    // Clone the jobs so we can release the lock before writing.
+                    mJobSet.forEachJob(new JobStatusFunctor() {
+                        @Override
+                        public void process(JobStatus job) {
+                            if (job.isPersisted()) {
+                                storeCopy.add(new JobStatus(job));
+                            }
                         }
-                    }
-                });
+                    });
+                } else {
+                    changes = new ArrayList<>(mPendingJournalChanges);
+                    mPendingJournalChanges.clear();
+                }
+            }
+            if (changes == null) {
+                writeJobsMapImpl(storeCopy, generation + 1);
+            } else {
+                appendJournalImpl(changes);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private boolean journalNeedsCompactionLocked() {
+            final int records = mJournal.getRecordCount() + mPendingJournalChanges.size();
+            return records >= MIN_JOURNAL_RECORDS_BEFORE_COMPACTION
+                    && records > 2 * mSnapshotJobCount;
+        }
+
+        private void appendJournalImpl(List<JournalChange> changes) {
+            final ArrayList<JobStoreJournal.Record> records = new ArrayList<>(changes.size());
+            try {
+                for (int i = 0; i < changes.size(); i++) {
+                    final JournalChange change = changes.get(i);
+                    byte[] payload = null;
+                    if (change.type == JobStoreJournal.RECORD_ADD) {
+                        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                        final XmlSerializer out = new BinaryXmlSerializer();
+                        out.setOutput(baos, StandardCharsets.UTF_8.name());
+                        out.startDocument(null, true);
+                        writeJobToXml(out, change.job);
+                        out.endDocument();
+                        payload = baos.toByteArray();
+                    }
+                    records.add(new JobStoreJournal.Record(change.type, change.uid,
+                            change.jobId, payload));
+                }
+                mJournal.append(records);
+                mDirtyOperations = 0;
+            } catch (IOException | XmlPullParserException e) {
+                if (e instanceof JobStoreJournal.RecordTooLargeException) {
+                    // Jobs with very large extras only fit in a full snapshot.
+                    Slog.i(TAG, e.getMessage() + ", writing full snapshot");
+                } else {
+                    Slog.w(TAG, "Error appending to job journal, writing full snapshot", e);
+                }
+                synchronized (mLock) {
+                    mJournalValid = false;
+                }
+                mIoHandler.post(this);
+            }
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
+        }
+
+        private void writeJobsMapImpl(List<JobStatus> jobList, long generation) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
+            synchronized (mLock) {
+                // Until the new journal exists, any failure must lead to another full write.
+                mJournalValid = false;
+            }
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 XmlSerializer out = new FastXmlSerializer();
@@ -356,17 +515,13 @@ public final class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -384,6 +539,21 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+
+                // The new snapshot has everything, so start a new journal on top of it.  If we
+                // die before that, the old journal no longer matches and is ignored.
+                boolean journalValid = false;
+                if (mUseJournal) {
+                    mJournal.reset(generation);
+                    journalValid = true;
+                } else {
+                    mJournal.delete();
+                }
+                synchronized (mLock) {
+                    mSnapshotGeneration = generation;
+                    mSnapshotJobCount = jobList.size();
+                    mJournalValid = journalValid;
+                }
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -527,7 +697,7 @@ public final class JobStore {
                 out.endTag(null, XML_TAG_ONEOFF);
             }
         }
-    };
+    }
 
     /**
      * Translate the supplied RTC times to the elapsed timebase, with clamping appropriate
@@ -576,10 +746,24 @@ public final class JobStore {
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                List<JobStatus> jobs = null;
+                try {
+                    FileInputStream fis = mJobsFile.openRead();
+                    synchronized (mLock) {
+                        jobs = readJobMapImpl(fis, rtcGood);
+                    }
+                    fis.close();
+                } catch (FileNotFoundException e) {
+                    if (DEBUG) {
+                        Slog.d(TAG, "Could not find jobs file, probably there was nothing"
+                                + " to load.");
+                    }
+                    synchronized (mLock) {
+                        mSnapshotGeneration = 0;
+                    }
+                }
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    jobs = replayJournalLocked(jobs, rtcGood);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -599,11 +783,6 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
-                }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
             } finally {
@@ -648,6 +827,13 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                try {
+                    final String generation = parser.getAttributeValue(null, "generation");
+                    mSnapshotGeneration = generation != null ? Long.parseLong(generation) : 0;
+                } catch (NumberFormatException e) {
+                    Slog.e(TAG, "Invalid generation, ignoring journal.");
+                    mSnapshotGeneration = -1;
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -673,6 +859,62 @@ public final class JobStore {
             return null;
         }
 
+        /**
+         * Applies the journal belonging to the snapshot that was just read on top of
+         * {@code snapshotJobs}.
+         *
+         * @return the resulting jobs, or {@code snapshotJobs} if there was no usable journal
+         */
+        private List<JobStatus> replayJournalLocked(List<JobStatus> snapshotJobs,
+                final boolean rtcIsGood) {
+            final LongSparseArray<JobStatus> jobs = new LongSparseArray<>();
+            if (snapshotJobs != null) {
+                for (int i = 0; i < snapshotJobs.size(); i++) {
+                    final JobStatus job = snapshotJobs.get(i);
+                    jobs.put(journalKey(job.getUid(), job.getJobId()), job);
+                }
+            }
+            final int replayed = mJournal.replay(mSnapshotGeneration, record -> {
+                final long key = journalKey(record.uid, record.jobId);
+                if (record.type == JobStoreJournal.RECORD_REMOVE) {
+                    jobs.remove(key);
+                    return;
+                }
+                JobStatus job = null;
+                try {
+                    final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+                    parser.setInput(ByteBuffer.wrap(record.payload));
+                    if (parser.next() == XmlPullParser.START_TAG
+                            && "job".equals(parser.getName())) {
+                        job = restoreJobFromXml(rtcIsGood, parser);
+                    }
+                } catch (XmlPullParserException | IOException | RuntimeException e) {
+                    Slog.w(TAG, "Error reading journaled job " + record.jobId, e);
+                }
+                if (job != null) {
+                    jobs.put(key, job);
+                } else {
+                    // Better to lose the job than to resurrect an older version of it
+                    jobs.remove(key);
+                }
+            });
+            mJournalValid = replayed >= 0;
+            mSnapshotJobCount = snapshotJobs != null ? snapshotJobs.size() : 0;
+            if (replayed <= 0) {
+                return snapshotJobs;
+            }
+            Slog.i(TAG, "Replayed " + replayed + " journal records");
+            final List<JobStatus> result = new ArrayList<>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                result.add(jobs.valueAt(i));
+            }
+            return result;
+        }
+
+        private long journalKey(int uid, int jobId) {
+            return ((long) uid << 32) | (jobId & 0xffffffffL);
+        }
+
         /**
          * @param parser Xml parser at the beginning of a "<job/>" tag. The next "parser.next()" call
          *               will take the parser into the body of the job tag.
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of persisted job changes, applied on top of the last full snapshot of
+ * jobs.xml.
+ *
+ * <p>The file starts with a header holding the generation of the snapshot it belongs to. A
+ * journal whose generation does not match the snapshot is stale and is ignored. Each record is
+ * its length, a type, the uid and job id, an optional payload and a CRC32 over everything but
+ * the length. Reading stops at the first record that is truncated or fails its checksum, which
+ * is what an interrupted append leaves behind, and the file is cut back to the last good
+ * record.</p>
+ */
+final class JobStoreJournal {
+    private static final String TAG = "JobStoreJournal";
+
+    private static final int MAGIC = 0x4a424a4c; // 'JBJL'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+
+    /** A job was scheduled or replaced; the payload is the job in binary XML. */
+    static final int RECORD_ADD = 1;
+    /** A job was removed. */
+    static final int RECORD_REMOVE = 2;
+
+    /**
+     * Upper bound on a single record, to reject garbage lengths early.  {@link #append} refuses
+     * larger records, so replay never stops at a record that was written intact.
+     */
+    @VisibleForTesting
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    static final class Record {
+        final int type;
+        final int uid;
+        final int jobId;
+        final byte[] payload;
+
+        Record(int type, int uid, int jobId, byte[] payload) {
+            this.type = type;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.payload = payload;
+        }
+    }
+
+    /** Thrown by {@link #append} for a record that replay would reject. */
+    static final class RecordTooLargeException extends IOException {
+        RecordTooLargeException(Record record, int size) {
+            super("Journal record for job " + record.uid + "/" + record.jobId + " is " + size
+                    + " bytes, over the limit of " + MAX_RECORD_SIZE);
+        }
+    }
+
+    interface RecordHandler {
+        void onRecord(Record record);
+    }
+
+    private final File mFile;
+    private int mRecordCount;
+
+    JobStoreJournal(File file) {
+        mFile = file;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /** Number of records in the journal, as of the last replay, reset or append. */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    long getSize() {
+        return mFile.length();
+    }
+
+    /**
+     * Replaces the journal with an empty one for snapshot {@code generation}.
+     */
+    void reset(long generation) throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + mFile);
+        }
+        mRecordCount = 0;
+    }
+
+    /**
+     * Appends {@code records} and syncs them to disk.  The journal must have been reset or
+     * successfully replayed first.
+     *
+     * @throws RecordTooLargeException if a record exceeds {@link #MAX_RECORD_SIZE}, in which
+     *         case nothing is appended and the changes need a full snapshot instead
+     */
+    void append(List<Record> records) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.get(i);
+            final byte[] body = encodeBody(record);
+            if (body.length > MAX_RECORD_SIZE) {
+                throw new RecordTooLargeException(record, body.length);
+            }
+            crc.reset();
+            crc.update(body);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            fos.write(bytes.toByteArray());
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        mRecordCount += records.size();
+    }
+
+    private static byte[] encodeBody(Record record) throws IOException {
+        final int payloadLength = record.payload != null ? record.payload.length : 0;
+        final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(1 + 2 * Integer.BYTES + payloadLength);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(record.type);
+        out.writeInt(record.uid);
+        out.writeInt(record.jobId);
+        if (payloadLength > 0) {
+            out.write(record.payload);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Passes every intact record to {@code handler}, in order.
+     *
+     * @return the number of records replayed, or -1 if there is no journal for snapshot
+     *         {@code generation}, in which case nothing was replayed
+     */
+    int replay(long generation, RecordHandler handler) {
+        mRecordCount = 0;
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        long goodLength = -1;
+        boolean truncated = false;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Unknown journal format, ignoring " + mFile);
+                return -1;
+            }
+            final long journalGeneration = in.readLong();
+            if (journalGeneration != generation) {
+                Slog.i(TAG, "Ignoring stale journal, generation " + journalGeneration
+                        + " != " + generation);
+                return -1;
+            }
+            goodLength = HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                final int length;
+                try {
+                    length = (first << 24) | (in.readUnsignedByte() << 16)
+                            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                } catch (EOFException e) {
+                    Slog.w(TAG, "Truncated journal record length");
+                    truncated = true;
+                    break;
+                }
+                if (length < 1 + 2 * Integer.BYTES || length > MAX_RECORD_SIZE) {
+                    Slog.w(TAG, "Bad journal record length " + length);
+                    truncated = true;
+                    break;
+                }
+                final byte[] body = new byte[length];
+                final int expectedCrc;
+                try {
+                    in.readFully(body);
+                    expectedCrc = in.readInt();
+                } catch (EOFException e) {
+                    Slog.w(TAG, "Truncated journal record");
+                    truncated = true;
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != expectedCrc) {
+                    Slog.w(TAG, "Journal record failed checksum");
+                    truncated = true;
+                    break;
+                }
+                handler.onRecord(decodeBody(body));
+                mRecordCount++;
+                goodLength += Integer.BYTES + length + Integer.BYTES;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading journal " + mFile, e);
+            if (goodLength < 0) {
+                // Not even a complete header
+                return -1;
+            }
+            truncated = true;
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+        if (truncated) {
+            truncateTo(goodLength);
+        }
+        return mRecordCount;
+    }
+
+    private static Record decodeBody(byte[] body) {
+        final int type = body[0];
+        final int uid = readInt(body, 1);
+        final int jobId = readInt(body, 1 + Integer.BYTES);
+        final int payloadOffset = 1 + 2 * Integer.BYTES;
+        byte[] payload = null;
+        if (body.length > payloadOffset) {
+            payload = new byte[body.length - payloadOffset];
+            System.arraycopy(body, payloadOffset, payload, 0, payload.length);
+        }
+        return new Record(type, uid, jobId, payload);
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+                | ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+    }
+
+    private void truncateTo(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to truncate journal " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    void delete() {
+        mFile.delete();
+        mRecordCount = 0;
+    }
+}
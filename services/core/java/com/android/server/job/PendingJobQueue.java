@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Jobs that are ready to run and waiting for an execution context, ordered by enqueue time.
+ *
+ * <p>Jobs are kept in one binary min-heap per uid.  Each job records its position in its heap
+ * ({@link JobStatus#pendingQueueIndex}), so adding, removing and looking up a job are
+ * O(log n), O(log n) and O(1) without searching the queue.  A job can be in at most one
+ * queue at a time.</p>
+ *
+ * <p>Walking the queue in enqueue order does not disturb the heaps: the walk keeps its own
+ * small heap of frontier positions, seeded with the head of every uid, so visiting the first
+ * k jobs costs O(k log(k + uids)) however many jobs are pending.  A walk can also be narrowed
+ * to a set of uids part way through, after which the jobs of every other uid are skipped
+ * without being visited.</p>
+ */
+final class PendingJobQueue {
+    private static final class UidJobs {
+        final int uid;
+        JobStatus[] heap = new JobStatus[4];
+        int size;
+
+        UidJobs(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    private final SparseArray<UidJobs> mUidJobs = new SparseArray<>();
+    private int mSize;
+
+    // Frontier of the current walk, as parallel arrays of (uid heap, position in that heap).
+    private UidJobs[] mWalkHeaps = new UidJobs[16];
+    private int[] mWalkIndices = new int[16];
+    private int mWalkSize;
+
+    int size() {
+        return mSize;
+    }
+
+    boolean contains(JobStatus job) {
+        final int index = job.pendingQueueIndex;
+        if (index < 0) {
+            return false;
+        }
+        final UidJobs uidJobs = mUidJobs.get(job.getUid());
+        return uidJobs != null && index < uidJobs.size && uidJobs.heap[index] == job;
+    }
+
+    void add(JobStatus job) {
+        if (contains(job)) {
+            return;
+        }
+        final int uid = job.getUid();
+        UidJobs uidJobs = mUidJobs.get(uid);
+        if (uidJobs == null) {
+            uidJobs = new UidJobs(uid);
+            mUidJobs.put(uid, uidJobs);
+        }
+        if (uidJobs.size == uidJobs.heap.length) {
+            final JobStatus[] heap = new JobStatus[uidJobs.size * 2];
+            System.arraycopy(uidJobs.heap, 0, heap, 0, uidJobs.size);
+            uidJobs.heap = heap;
+        }
+        final int index = uidJobs.size++;
+        uidJobs.heap[index] = job;
+        job.pendingQueueIndex = index;
+        siftUp(uidJobs, index);
+        mSize++;
+    }
+
+    void addAll(List<JobStatus> jobs) {
+        for (int i = 0; i < jobs.size(); i++) {
+            add(jobs.get(i));
+        }
+    }
+
+    /**
+     * @return whether the job was pending
+     */
+    boolean remove(JobStatus job) {
+        if (!contains(job)) {
+            return false;
+        }
+        final UidJobs uidJobs = mUidJobs.get(job.getUid());
+        final int index = job.pendingQueueIndex;
+        final int last = --uidJobs.size;
+        final JobStatus moved = uidJobs.heap[last];
+        uidJobs.heap[last] = null;
+        if (index != last) {
+            uidJobs.heap[index] = moved;
+            moved.pendingQueueIndex = index;
+            siftDown(uidJobs, index);
+            siftUp(uidJobs, moved.pendingQueueIndex);
+        }
+        job.pendingQueueIndex = -1;
+        if (uidJobs.size == 0) {
+            mUidJobs.remove(uidJobs.uid);
+        }
+        mSize--;
+        return true;
+    }
+
+    void clear() {
+        for (int u = mUidJobs.size() - 1; u >= 0; u--) {
+            final UidJobs uidJobs = mUidJobs.valueAt(u);
+            for (int i = 0; i < uidJobs.size; i++) {
+                uidJobs.heap[i].pendingQueueIndex = -1;
+            }
+        }
+        mUidJobs.clear();
+        mSize = 0;
+        mWalkSize = 0;
+    }
+
+    /**
+     * Calls {@code consumer} for every pending job, in no particular order.
+     */
+    void forEach(Consumer<JobStatus> consumer) {
+        for (int u = mUidJobs.size() - 1; u >= 0; u--) {
+            final UidJobs uidJobs = mUidJobs.valueAt(u);
+            for (int i = 0; i < uidJobs.size; i++) {
+                consumer.accept(uidJobs.heap[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns all pending jobs in enqueue order.  This is a full walk; use it for dumps and
+     * debugging only.
+     */
+    ArrayList<JobStatus> toSortedList() {
+        final ArrayList<JobStatus> jobs = new ArrayList<>(mSize);
+        startWalk();
+        JobStatus job;
+        while ((job = nextInWalk(null)) != null) {
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    /**
+     * Starts walking the queue in enqueue order.  The queue must not be modified until the
+     * walk is done.
+     */
+    void startWalk() {
+        mWalkSize = 0;
+        for (int u = 0; u < mUidJobs.size(); u++) {
+            pushWalk(mUidJobs.valueAt(u), 0);
+        }
+    }
+
+    /**
+     * Returns the next job of the walk whose uid is in {@code uids}, or null if there is none.
+     * A null {@code uids} accepts every uid.  Jobs of uids that are rejected are dropped from
+     * the rest of the walk, so the set may only shrink between calls.
+     */
+    JobStatus nextInWalk(SparseBooleanArray uids) {
+        while (mWalkSize > 0) {
+            final UidJobs uidJobs = mWalkHeaps[0];
+            final int index = mWalkIndices[0];
+            popWalk();
+            if (uids != null && !uids.get(uidJobs.uid)) {
+                continue;
+            }
+            final int child = 2 * index + 1;
+            if (child < uidJobs.size) {
+                pushWalk(uidJobs, child);
+                if (child + 1 < uidJobs.size) {
+                    pushWalk(uidJobs, child + 1);
+                }
+            }
+            return uidJobs.heap[index];
+        }
+        return null;
+    }
+
+    private static long walkKey(UidJobs uidJobs, int index) {
+        return uidJobs.heap[index].enqueueTime;
+    }
+
+    private void pushWalk(UidJobs uidJobs, int index) {
+        if (mWalkSize == mWalkHeaps.length) {
+            final int capacity = mWalkSize * 2;
+            final UidJobs[] heaps = new UidJobs[capacity];
+            final int[] indices = new int[capacity];
+            System.arraycopy(mWalkHeaps, 0, heaps, 0, mWalkSize);
+            System.arraycopy(mWalkIndices, 0, indices, 0, mWalkSize);
+            mWalkHeaps = heaps;
+            mWalkIndices = indices;
+        }
+        final long key = walkKey(uidJobs, index);
+        int pos = mWalkSize++;
+        while (pos > 0) {
+            final int parent = (pos - 1) >>> 1;
+            if (walkKey(mWalkHeaps[parent], mWalkIndices[parent]) <= key) {
+                break;
+            }
+            mWalkHeaps[pos] = mWalkHeaps[parent];
+            mWalkIndices[pos] = mWalkIndices[parent];
+            pos = parent;
+        }
+        mWalkHeaps[pos] = uidJobs;
+        mWalkIndices[pos] = index;
+    }
+
+    private void popWalk() {
+        final int last = --mWalkSize;
+        final UidJobs uidJobs = mWalkHeaps[last];
+        final int index = mWalkIndices[last];
+        mWalkHeaps[last] = null;
+        if (last == 0) {
+            return;
+        }
+        final long key = walkKey(uidJobs, index);
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && walkKey(mWalkHeaps[child + 1], mWalkIndices[child + 1])
+                    < walkKey(mWalkHeaps[child], mWalkIndices[child])) {
+                child++;
+            }
+            if (key <= walkKey(mWalkHeaps[child], mWalkIndices[child])) {
+                break;
+            }
+            mWalkHeaps[pos] = mWalkHeaps[child];
+            mWalkIndices[pos] = mWalkIndices[child];
+            pos = child;
+        }
+        mWalkHeaps[pos] = uidJobs;
+        mWalkIndices[pos] = index;
+    }
+
+    private static void siftUp(UidJobs uidJobs, int index) {
+        final JobStatus[] heap = uidJobs.heap;
+        final JobStatus job = heap[index];
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (heap[parent].enqueueTime <= job.enqueueTime) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].pendingQueueIndex = index;
+            index = parent;
+        }
+        heap[index] = job;
+        job.pendingQueueIndex = index;
+    }
+
+    private static void siftDown(UidJobs uidJobs, int index) {
+        final JobStatus[] heap = uidJobs.heap;
+        final int size = uidJobs.size;
+        final JobStatus job = heap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].enqueueTime < heap[child].enqueueTime) {
+                child++;
+            }
+            if (job.enqueueTime <= heap[child].enqueueTime) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].pendingQueueIndex = index;
+            index = child;
+        }
+        heap[index] = job;
+        job.pendingQueueIndex = index;
+    }
+}
@@ -169,6 +169,9 @@ public final class JobStatus {
 
     public int lastEvaluatedPriority;
 
+    // Position in the pending queue, or -1 when the job is not pending.
+    public int pendingQueueIndex = -1;
+
     // If non-null, this is work that has been enqueued for the job.
     public ArrayList<JobWorkItem> pendingWork;
 
@@ -21,8 +21,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
 import android.telecom.TelecomManager;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.NotificationMessagingUtil;
 
 import java.util.Comparator;
@@ -37,12 +43,26 @@ public class NotificationComparator
     private final Context mContext;
     private final NotificationMessagingUtil mMessagingUtil;
     private String mDefaultPhoneApp;
+    // Only changed on the main thread
+    private volatile int mInputsVersion;
 
     public NotificationComparator(Context context) {
         mContext = context;
         mContext.registerReceiver(mPhoneAppBroadcastReceiver,
                 new IntentFilter(TelecomManager.ACTION_DEFAULT_DIALER_CHANGED));
         mMessagingUtil = new NotificationMessagingUtil(mContext);
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.SMS_DEFAULT_APPLICATION), false,
+                mSmsAppObserver);
+    }
+
+    /**
+     * Returns a number that changes whenever something other than the records themselves
+     * changes how they compare, such as the default dialer or SMS app.  Orders from before a
+     * change may no longer be consistent with this comparator.
+     */
+    public int getInputsVersion() {
+        return mInputsVersion;
     }
 
     @Override
@@ -176,8 +196,22 @@ public class NotificationComparator
     private final BroadcastReceiver mPhoneAppBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mDefaultPhoneApp =
-                    intent.getStringExtra(TelecomManager.EXTRA_CHANGE_DEFAULT_DIALER_PACKAGE_NAME);
+            setDefaultPhoneApp(
+                    intent.getStringExtra(TelecomManager.EXTRA_CHANGE_DEFAULT_DIALER_PACKAGE_NAME));
+        }
+    };
+
+    @VisibleForTesting
+    void setDefaultPhoneApp(String pkg) {
+        mDefaultPhoneApp = pkg;
+        mInputsVersion++;
+    }
+
+    private final ContentObserver mSmsAppObserver = new ContentObserver(
+            new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri, int userId) {
+            mInputsVersion++;
         }
     };
 }
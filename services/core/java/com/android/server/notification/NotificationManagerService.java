@@ -214,6 +214,9 @@ public class NotificationManagerService extends SystemService {
     static final boolean DBG = Log.isLoggable(TAG, Log.DEBUG);
     public static final boolean ENABLE_CHILD_NOTIFICATIONS
             = SystemProperties.getBoolean("debug.child_notifs", true);
+    // Re-rank only the notifications that changed, and batch ranking updates to listeners
+    static final boolean INCREMENTAL_RANKING =
+            SystemProperties.getBoolean("persist.sys.notification_incremental_ranking", false);
 
     static final int MAX_PACKAGE_NOTIFICATIONS = 50;
     static final float DEFAULT_MAX_NOTIFICATION_ENQUEUE_RATE = 5f;
@@ -229,6 +232,13 @@ public class NotificationManagerService extends SystemService {
     private static final int MESSAGE_RECONSIDER_RANKING = 1000;
     private static final int MESSAGE_RANKING_SORT = 1001;
 
+    // Send listeners only the ranking attributes that changed since their last update
+    static final boolean DELTA_RANKING_UPDATES =
+            SystemProperties.getBoolean("persist.sys.notification_delta_ranking", false);
+
+    // Ranking updates to listeners are sent at most once per frame in incremental mode
+    static final long RANKING_UPDATE_BATCH_DELAY_MS = 16;
+
     static final int LONG_DELAY = PhoneWindowManager.TOAST_WINDOW_TIMEOUT;
     static final int SHORT_DELAY = 2000; // 2 seconds
 
@@ -325,6 +335,13 @@ public class NotificationManagerService extends SystemService {
     final ArrayList<NotificationRecord> mEnqueuedNotifications = new ArrayList<>();
     @GuardedBy("mNotificationLock")
     final ArrayMap<Integer, ArrayMap<String, String>> mAutobundledSummaries = new ArrayMap<>();
+    // Last ranking sent to each listener, for delta ranking updates
+    @GuardedBy("mNotificationLock")
+    @VisibleForTesting
+    final ArrayMap<ManagedServiceInfo, ListenerRankingState> mListenerRankingStates =
+            new ArrayMap<>();
+    @VisibleForTesting
+    boolean mDeltaRankingUpdates = DELTA_RANKING_UPDATES;
     final ArrayList<ToastRecord> mToastQueue = new ArrayList<>();
     final ArrayMap<String, NotificationRecord> mSummaryByGroupKey = new ArrayMap<>();
 
@@ -2447,6 +2464,20 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        @Override
+        public void requestRankingSnapshotFromListener(INotificationListener token)
+                throws RemoteException {
+            final long identity = Binder.clearCallingIdentity();
+            try {
+                synchronized (mNotificationLock) {
+                    final ManagedServiceInfo info = mListeners.checkServiceTokenLocked(token);
+                    mListeners.sendRankingSnapshotLocked(info);
+                }
+            } finally {
+                Binder.restoreCallingIdentity(identity);
+            }
+        }
+
         @Override
         public int getInterruptionFilterFromListener(INotificationListener token)
                 throws RemoteException {
@@ -2946,7 +2977,7 @@ public class NotificationManagerService extends SystemService {
                     NotificationRecord n = mNotificationsByKey.get(adjustment.getKey());
                     applyAdjustment(n, adjustment);
                 }
-                mRankingHandler.requestSort();
+                mRankingHandler.requestSort(adjustment.getKey());
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -2965,7 +2996,9 @@ public class NotificationManagerService extends SystemService {
                         applyAdjustment(n, adjustment);
                     }
                 }
-                mRankingHandler.requestSort();
+                for (Adjustment adjustment : adjustments) {
+                    mRankingHandler.requestSort(adjustment.getKey());
+                }
             } finally {
                 Binder.restoreCallingIdentity(identity);
             }
@@ -3058,7 +3091,7 @@ public class NotificationManagerService extends SystemService {
         if (r.sbn.getOverrideGroupKey() == null) {
             addAutoGroupAdjustment(r, GroupHelper.AUTOGROUP_KEY);
             EventLogTags.writeNotificationAutogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSort(key);
         }
     }
 
@@ -3071,7 +3104,7 @@ public class NotificationManagerService extends SystemService {
         if (r.sbn.getOverrideGroupKey() != null) {
             addAutoGroupAdjustment(r, null);
             EventLogTags.writeNotificationUnautogrouped(key);
-            mRankingHandler.requestSort();
+            mRankingHandler.requestSort(key);
         }
     }
 
@@ -3894,7 +3927,11 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    if (INCREMENTAL_RANKING) {
+                        mRankingHelper.sortIncrementally(mNotificationList, singleton(r));
+                    } else {
+                        mRankingHelper.sort(mNotificationList);
+                    }
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -4383,7 +4420,11 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            if (INCREMENTAL_RANKING) {
+                mRankingHelper.sortIncrementally(mNotificationList, singleton(record));
+            } else {
+                mRankingHelper.sort(mNotificationList);
+            }
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             float contactAffinityAfter = record.getContactAffinity();
@@ -4401,20 +4442,46 @@ public class NotificationManagerService extends SystemService {
     }
 
     void handleRankingSort() {
+        handleRankingSort(null);
+    }
+
+    /**
+     * Re-extracts signals and re-sorts, for every notification if {@code changedKeys} is null,
+     * or otherwise just for the notifications with those keys.
+     */
+    void handleRankingSort(ArraySet<String> changedKeys) {
         if (mRankingHelper == null) return;
         synchronized (mNotificationLock) {
+            final ArraySet<NotificationRecord> changed;
+            if (changedKeys != null) {
+                changed = new ArraySet<>(changedKeys.size());
+                for (int i = changedKeys.size() - 1; i >= 0; i--) {
+                    final NotificationRecord r = mNotificationsByKey.get(changedKeys.valueAt(i));
+                    if (r != null) {
+                        changed.add(r);
+                    }
+                }
+                if (changed.isEmpty()) {
+                    return;
+                }
+            } else {
+                changed = null;
+            }
             final int N = mNotificationList.size();
+            final int M = changed != null ? changed.size() : N;
             // Any field that can change via one of the extractors needs to be added here.
-            ArrayList<String> orderBefore = new ArrayList<>(N);
-            int[] visibilities = new int[N];
-            boolean[] showBadges = new boolean[N];
-            ArrayList<NotificationChannel> channelBefore = new ArrayList<>(N);
-            ArrayList<String> groupKeyBefore = new ArrayList<>(N);
-            ArrayList<ArrayList<String>> overridePeopleBefore = new ArrayList<>(N);
-            ArrayList<ArrayList<SnoozeCriterion>> snoozeCriteriaBefore = new ArrayList<>(N);
-            for (int i = 0; i < N; i++) {
-                final NotificationRecord r = mNotificationList.get(i);
-                orderBefore.add(r.getKey());
+            ArrayList<NotificationRecord> orderBefore = new ArrayList<>(mNotificationList);
+            ArrayList<NotificationRecord> extracted = new ArrayList<>(M);
+            int[] visibilities = new int[M];
+            boolean[] showBadges = new boolean[M];
+            ArrayList<NotificationChannel> channelBefore = new ArrayList<>(M);
+            ArrayList<String> groupKeyBefore = new ArrayList<>(M);
+            ArrayList<ArrayList<String>> overridePeopleBefore = new ArrayList<>(M);
+            ArrayList<ArrayList<SnoozeCriterion>> snoozeCriteriaBefore = new ArrayList<>(M);
+            for (int i = 0; i < M; i++) {
+                final NotificationRecord r =
+                        changed != null ? changed.valueAt(i) : mNotificationList.get(i);
+                extracted.add(r);
                 visibilities[i] = r.getPackageVisibilityOverride();
                 showBadges[i] = r.canShowBadge();
                 channelBefore.add(r.getChannel());
@@ -4423,11 +4490,20 @@ public class NotificationManagerService extends SystemService {
                 snoozeCriteriaBefore.add(r.getSnoozeCriteria());
                 mRankingHelper.extractSignals(r);
             }
-            mRankingHelper.sort(mNotificationList);
+            if (changed != null) {
+                mRankingHelper.sortIncrementally(mNotificationList, changed);
+            } else {
+                mRankingHelper.sort(mNotificationList);
+            }
             for (int i = 0; i < N; i++) {
-                final NotificationRecord r = mNotificationList.get(i);
-                if (!orderBefore.get(i).equals(r.getKey())
-                        || visibilities[i] != r.getPackageVisibilityOverride()
+                if (orderBefore.get(i) != mNotificationList.get(i)) {
+                    mHandler.scheduleSendRankingUpdate();
+                    return;
+                }
+            }
+            for (int i = 0; i < M; i++) {
+                final NotificationRecord r = extracted.get(i);
+                if (visibilities[i] != r.getPackageVisibilityOverride()
                         || showBadges[i] != r.canShowBadge()
                         || !Objects.equals(channelBefore.get(i), r.getChannel())
                         || !Objects.equals(groupKeyBefore.get(i), r.getGroupKey())
@@ -4440,6 +4516,12 @@ public class NotificationManagerService extends SystemService {
         }
     }
 
+    private static ArraySet<NotificationRecord> singleton(NotificationRecord r) {
+        final ArraySet<NotificationRecord> set = new ArraySet<>(1);
+        set.add(r);
+        return set;
+    }
+
     @GuardedBy("mNotificationLock")
     private void recordCallerLocked(NotificationRecord record) {
         if (mZenModeHelper.isCall(record)) {
@@ -4530,7 +4612,12 @@ public class NotificationManagerService extends SystemService {
         protected void scheduleSendRankingUpdate() {
             if (!hasMessages(MESSAGE_SEND_RANKING_UPDATE)) {
                 Message m = Message.obtain(this, MESSAGE_SEND_RANKING_UPDATE);
-                sendMessage(m);
+                if (INCREMENTAL_RANKING) {
+                    // Coalesce the updates from a burst of posts into one per frame
+                    sendMessageDelayed(m, RANKING_UPDATE_BATCH_DELAY_MS);
+                } else {
+                    sendMessage(m);
+                }
             }
         }
 
@@ -4538,6 +4625,13 @@ public class NotificationManagerService extends SystemService {
 
     private final class RankingHandlerWorker extends Handler implements RankingHandler
     {
+        // Keys of the notifications to re-rank at the next MESSAGE_RANKING_SORT, unless
+        // mFullSortPending says all of them need it.
+        @GuardedBy("this")
+        private final ArraySet<String> mPendingSortKeys = new ArraySet<>();
+        @GuardedBy("this")
+        private boolean mFullSortPending;
+
         public RankingHandlerWorker(Looper looper) {
             super(looper);
         }
@@ -4549,12 +4643,39 @@ public class NotificationManagerService extends SystemService {
                     handleRankingReconsideration(msg);
                     break;
                 case MESSAGE_RANKING_SORT:
-                    handleRankingSort();
+                    final ArraySet<String> changedKeys;
+                    synchronized (this) {
+                        changedKeys = mFullSortPending ? null : new ArraySet<>(mPendingSortKeys);
+                        mPendingSortKeys.clear();
+                        mFullSortPending = false;
+                    }
+                    handleRankingSort(changedKeys);
                     break;
             }
         }
 
         public void requestSort() {
+            synchronized (this) {
+                mFullSortPending = true;
+                mPendingSortKeys.clear();
+            }
+            postSort();
+        }
+
+        public void requestSort(String key) {
+            if (!INCREMENTAL_RANKING) {
+                requestSort();
+                return;
+            }
+            synchronized (this) {
+                if (!mFullSortPending) {
+                    mPendingSortKeys.add(key);
+                }
+            }
+            postSort();
+        }
+
+        private void postSort() {
             removeMessages(MESSAGE_RANKING_SORT);
             Message msg = Message.obtain();
             msg.what = MESSAGE_RANKING_SORT;
@@ -5226,10 +5347,59 @@ public class NotificationManagerService extends SystemService {
      */
     @GuardedBy("mNotificationLock")
     private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
+        return makeRankingUpdateLocked(info, true /* allowDelta */);
+    }
+
+    /**
+     * Generates a NotificationRankingUpdate for the given listener.  With delta updates on,
+     * this is a delta against the last update generated for the listener when allowed and
+     * worthwhile, and must then be delivered to the listener in order after that update.
+     */
+    @GuardedBy("mNotificationLock")
+    @VisibleForTesting
+    NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info,
+            boolean allowDelta) {
         final int N = mNotificationList.size();
-        ArrayList<String> keys = new ArrayList<String>(N);
-        ArrayList<String> interceptedKeys = new ArrayList<String>(N);
-        ArrayList<Integer> importance = new ArrayList<>(N);
+        final ArrayList<NotificationRecord> visible = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            NotificationRecord record = mNotificationList.get(i);
+            if (isVisibleToListener(record.sbn, info)) {
+                visible.add(record);
+            }
+        }
+        final int M = visible.size();
+
+        ListenerRankingState state = null;
+        final ArrayMap<String, SentRanking> sent = mDeltaRankingUpdates
+                ? new ArrayMap<>(M) : null;
+        boolean[] changed = null;
+        if (mDeltaRankingUpdates) {
+            state = mListenerRankingStates.get(info);
+            if (state == null) {
+                state = new ListenerRankingState();
+                mListenerRankingStates.put(info, state);
+            }
+            changed = new boolean[M];
+            int changedCount = 0;
+            for (int i = 0; i < M; i++) {
+                final NotificationRecord record = visible.get(i);
+                final SentRanking ranking = new SentRanking(record);
+                sent.put(record.getKey(), ranking);
+                if (!ranking.equals(state.sent.get(record.getKey()))) {
+                    changed[i] = true;
+                    changedCount++;
+                }
+            }
+            // A delta that changes most notifications is no cheaper than a snapshot
+            if (!allowDelta || state.version == 0 || changedCount * 2 > M) {
+                changed = null;
+            }
+        }
+
+        ArrayList<String> keys = new ArrayList<String>(M);
+        ArrayList<String> changedKeys = changed != null ? new ArrayList<>() : null;
+        ArrayList<String> interceptedKeys = new ArrayList<String>(M);
+        ArrayList<Integer> importance = new ArrayList<>(M);
         Bundle overrideGroupKeys = new Bundle();
         Bundle visibilityOverrides = new Bundle();
         Bundle suppressedVisualEffects = new Bundle();
@@ -5238,21 +5408,24 @@ public class NotificationManagerService extends SystemService {
         Bundle overridePeople = new Bundle();
         Bundle snoozeCriteria = new Bundle();
         Bundle showBadge = new Bundle();
-        for (int i = 0; i < N; i++) {
-            NotificationRecord record = mNotificationList.get(i);
-            if (!isVisibleToListener(record.sbn, info)) {
-                continue;
-            }
+        for (int i = 0; i < M; i++) {
+            NotificationRecord record = visible.get(i);
             final String key = record.sbn.getKey();
             keys.add(key);
-            importance.add(record.getImportance());
-            if (record.getImportanceExplanation() != null) {
-                explanation.putCharSequence(key, record.getImportanceExplanation());
-            }
             if (record.isIntercepted()) {
                 interceptedKeys.add(key);
 
             }
+            if (changed != null) {
+                if (!changed[i]) {
+                    continue;
+                }
+                changedKeys.add(key);
+            }
+            importance.add(record.getImportance());
+            if (record.getImportanceExplanation() != null) {
+                explanation.putCharSequence(key, record.getImportanceExplanation());
+            }
             suppressedVisualEffects.putInt(key, record.getSuppressedVisualEffects());
             if (record.getPackageVisibilityOverride()
                     != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
@@ -5264,18 +5437,90 @@ public class NotificationManagerService extends SystemService {
             snoozeCriteria.putParcelableArrayList(key, record.getSnoozeCriteria());
             showBadge.putBoolean(key, record.canShowBadge());
         }
-        final int M = keys.size();
         String[] keysAr = keys.toArray(new String[M]);
         String[] interceptedKeysAr = interceptedKeys.toArray(new String[interceptedKeys.size()]);
-        int[] importanceAr = new int[M];
-        for (int i = 0; i < M; i++) {
+        final int I = importance.size();
+        int[] importanceAr = new int[I];
+        for (int i = 0; i < I; i++) {
             importanceAr[i] = importance.get(i);
         }
-        return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
+        if (state == null) {
+            return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
+                    suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
+                    channels, overridePeople, snoozeCriteria, showBadge);
+        }
+
+        final int baseVersion = changed != null ? state.version : 0;
+        // Version 0 means unversioned, so skip it when wrapping around
+        state.version = state.version == Integer.MAX_VALUE ? 1 : state.version + 1;
+        state.sent = sent;
+        return new NotificationRankingUpdate(state.version, baseVersion,
+                changedKeys != null ? changedKeys.toArray(new String[changedKeys.size()]) : null,
+                keysAr, interceptedKeysAr, visibilityOverrides,
                 suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
                 channels, overridePeople, snoozeCriteria, showBadge);
     }
 
+    /** What was last sent to one listener, so that the next update can be a delta. */
+    @VisibleForTesting
+    static final class ListenerRankingState {
+        int version;
+        ArrayMap<String, SentRanking> sent = new ArrayMap<>();
+    }
+
+    /** The per-notification attributes of a ranking update, as sent to a listener. */
+    private static final class SentRanking {
+        private final int mImportance;
+        private final CharSequence mExplanation;
+        private final int mSuppressedVisualEffects;
+        private final int mVisibilityOverride;
+        private final String mOverrideGroupKey;
+        private final NotificationChannel mChannel;
+        // Channels are sometimes modified in place, which the hash catches
+        private final int mChannelHash;
+        private final ArrayList<String> mOverridePeople;
+        private final ArrayList<SnoozeCriterion> mSnoozeCriteria;
+        private final boolean mShowBadge;
+
+        SentRanking(NotificationRecord record) {
+            mImportance = record.getImportance();
+            mExplanation = record.getImportanceExplanation();
+            mSuppressedVisualEffects = record.getSuppressedVisualEffects();
+            mVisibilityOverride = record.getPackageVisibilityOverride();
+            mOverrideGroupKey = record.sbn.getOverrideGroupKey();
+            mChannel = record.getChannel();
+            mChannelHash = Objects.hashCode(mChannel);
+            mOverridePeople = record.getPeopleOverride() != null
+                    ? new ArrayList<>(record.getPeopleOverride()) : null;
+            mSnoozeCriteria = record.getSnoozeCriteria() != null
+                    ? new ArrayList<>(record.getSnoozeCriteria()) : null;
+            mShowBadge = record.canShowBadge();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SentRanking)) {
+                return false;
+            }
+            final SentRanking other = (SentRanking) o;
+            return mImportance == other.mImportance
+                    && TextUtils.equals(mExplanation, other.mExplanation)
+                    && mSuppressedVisualEffects == other.mSuppressedVisualEffects
+                    && mVisibilityOverride == other.mVisibilityOverride
+                    && Objects.equals(mOverrideGroupKey, other.mOverrideGroupKey)
+                    && mChannelHash == other.mChannelHash
+                    && Objects.equals(mChannel, other.mChannel)
+                    && Objects.equals(mOverridePeople, other.mOverridePeople)
+                    && Objects.equals(mSnoozeCriteria, other.mSnoozeCriteria)
+                    && mShowBadge == other.mShowBadge;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mImportance, mOverrideGroupKey, mChannelHash);
+        }
+    }
+
     boolean hasCompanionDevice(ManagedServiceInfo info) {
         if (mCompanionManager == null) {
             mCompanionManager = getCompanionManager();
@@ -5499,7 +5744,7 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
-                update = makeRankingUpdateLocked(info);
+                update = makeRankingUpdateLocked(info, false /* allowDelta */);
             }
             try {
                 listener.onListenerConnected(update);
@@ -5516,6 +5761,22 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mListenerRankingStates.remove(removed);
+        }
+
+        /**
+         * Sends the listener a full ranking update, for when it could not apply a delta.
+         */
+        @GuardedBy("mNotificationLock")
+        public void sendRankingSnapshotLocked(final ManagedServiceInfo info) {
+            final NotificationRankingUpdate update =
+                    makeRankingUpdateLocked(info, false /* allowDelta */);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyRankingUpdate(info, update);
+                }
+            });
         }
 
         @GuardedBy("mNotificationLock")
@@ -17,5 +17,7 @@ package com.android.server.notification;
 
 public interface RankingHandler {
     public void requestSort();
+    /** Requests a sort after the signals of only the notification with {@code key} changed. */
+    public void requestSort(String key);
     public void requestReconsideration(RankingReconsideration recon);
 }
\ No newline at end of file
@@ -38,6 +38,7 @@ import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService.Ranking;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import android.util.SparseBooleanArray;
 
@@ -84,12 +85,24 @@ public class RankingHelper implements RankingConfig {
     private static final int DEFAULT_IMPORTANCE = NotificationManager.IMPORTANCE_UNSPECIFIED;
     private static final boolean DEFAULT_SHOW_BADGE = true;
 
+    /**
+     * Incremental sorts between full sorts, which bounds how long anything else the comparator
+     * depends on can go unnoticed.
+     */
+    @VisibleForTesting
+    static final int MAX_INCREMENTAL_SORTS = 100;
+
     private final NotificationSignalExtractor[] mSignalExtractors;
-    private final NotificationComparator mPreliminaryComparator;
+    @VisibleForTesting
+    final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    private final StringBuilder mSortKeyBuilderTmp = new StringBuilder();
+    // Comparator inputs version of the last full sort, and the incremental sorts since
+    private int mSortedInputsVersion;
+    private int mIncrementalSortsSinceFullSort;
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -419,6 +432,8 @@ public class RankingHelper implements RankingConfig {
     }
 
     public void sort(ArrayList<NotificationRecord> notificationList) {
+        mSortedInputsVersion = mPreliminaryComparator.getInputsVersion();
+        mIncrementalSortsSinceFullSort = 0;
         final int N = notificationList.size();
         // clear global sort keys
         for (int i = N - 1; i >= 0; i--) {
@@ -428,10 +443,93 @@ public class RankingHelper implements RankingConfig {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
+        assignGlobalSortKeys(notificationList);
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Like {@link #sort}, for when only the records in {@code changed} were added to
+     * {@code notificationList} or had their ranking signals changed since it was last sorted.
+     *
+     * <p>The relative order of the other records in the first ranking pass is still described
+     * by their authoritative ranks, so only the changed records have to be compared, each one
+     * being binary searched into place. The list is then still almost in its final order, which
+     * makes the second pass close to linear. Falls back to a full {@link #sort} if the ranks
+     * turn out not to be from a previous sort of these records, or the comparator's inputs
+     * changed since, and every {@link #MAX_INCREMENTAL_SORTS} sorts in any case.</p>
+     */
+    public void sortIncrementally(ArrayList<NotificationRecord> notificationList,
+            ArraySet<NotificationRecord> changed) {
+        if (mPreliminaryComparator.getInputsVersion() != mSortedInputsVersion
+                || ++mIncrementalSortsSinceFullSort >= MAX_INCREMENTAL_SORTS) {
+            sort(notificationList);
+            return;
+        }
+        final int N = notificationList.size();
+        int maxRank = -1;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (!changed.contains(record)) {
+                maxRank = Math.max(maxRank, record.getAuthoritativeRank());
+            }
+        }
+        // Ranks are left with gaps by removals since the last sort, but are never far
+        // beyond the size of the list.
+        if (maxRank >= 2 * N + 16) {
+            sort(notificationList);
+            return;
+        }
+
+        final NotificationRecord[] byRank = new NotificationRecord[maxRank + 1];
+        final ArrayList<NotificationRecord> changedInList = new ArrayList<>(changed.size());
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = notificationList.get(i);
+            if (changed.contains(record)) {
+                changedInList.add(record);
+                continue;
+            }
+            final int rank = record.getAuthoritativeRank();
+            if (rank < 0 || byRank[rank] != null) {
+                // Not ranked by a previous sort
+                sort(notificationList);
+                return;
+            }
+            byRank[rank] = record;
+        }
+
+        final ArrayList<NotificationRecord> preliminary = new ArrayList<>(N);
+        for (NotificationRecord record : byRank) {
+            if (record != null) {
+                preliminary.add(record);
+            }
+        }
+        for (int i = changedInList.size() - 1; i >= 0; i--) {
+            final NotificationRecord record = changedInList.get(i);
+            int index = Collections.binarySearch(preliminary, record, mPreliminaryComparator);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            preliminary.add(index, record);
+        }
+
+        assignGlobalSortKeys(preliminary);
+
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Records the authoritative rank of each record from its position in {@code preliminary},
+     * which is in the order of the first ranking pass, and gives each one the global sort key
+     * that the second pass orders by.
+     */
+    private void assignGlobalSortKeys(List<NotificationRecord> preliminary) {
+        final int N = preliminary.size();
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = preliminary.get(i);
                 record.setAuthoritativeRank(i);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
@@ -441,8 +539,9 @@ public class RankingHelper implements RankingConfig {
             }
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+            final StringBuilder sb = mSortKeyBuilderTmp;
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = preliminary.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
                 String groupSortKey = record.getNotification().getSortKey();
 
@@ -461,21 +560,33 @@ public class RankingHelper implements RankingConfig {
                 }
 
                 boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                // Same as String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x", ...),
+                // without the cost of parsing the format for every record.
+                sb.setLength(0);
+                sb.append("intrsv=").append(record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1');
+                sb.append(":grnk=0x");
+                appendHex4(sb, groupProxy.getAuthoritativeRank());
+                sb.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+                sb.append(':').append(groupSortKeyPortion);
+                sb.append(":rnk=0x");
+                appendHex4(sb, record.getAuthoritativeRank());
+                final String oldKey = record.getGlobalSortKey();
+                if (oldKey == null || !oldKey.contentEquals(sb)) {
+                    record.setGlobalSortKey(sb.toString());
+                }
             }
             mProxyByGroupTmp.clear();
         }
+    }
 
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
+    private static void appendHex4(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
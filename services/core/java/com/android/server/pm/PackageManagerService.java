@@ -165,6 +165,7 @@ import android.content.pm.PackageParser;
 import android.content.pm.PackageParser.ActivityIntentInfo;
 import android.content.pm.PackageParser.PackageLite;
 import android.content.pm.PackageParser.PackageParserException;
+import android.content.pm.PackageParserCacheIndex;
 import android.content.pm.PackageStats;
 import android.content.pm.PackageUserState;
 import android.content.pm.ParceledListSlice;
@@ -420,6 +421,27 @@ public class PackageManagerService extends IPackageManager.Stub
     private static final boolean ENABLE_FREE_CACHE_V2 =
             SystemProperties.getBoolean("fw.free_cache_v2", true);
 
+    /**
+     * Number of distinct intents whose matching filters each intent resolver caches, or 0 to
+     * match every query against the filters. See {@link IntentResolver#setMatchCacheSize}.
+     */
+    private static final int INTENT_MATCH_CACHE_SIZE =
+            SystemProperties.getInt("pm.intent_match_cache_size", 0);
+
+    /**
+     * Whether the package parser cache is packed into a single memory-mapped index after the
+     * boot scan. See {@link PackageParserCacheIndex}.
+     */
+    private static final boolean ENABLE_PACKAGE_CACHE_INDEX =
+            SystemProperties.getBoolean("pm.boot.package_cache_index", false);
+
+    /**
+     * Whether the boot scan sizes the parsing pool from the hardware and collects certificates
+     * on the parsing threads. See {@link ParallelPackageParser#computeThreadCount()}.
+     */
+    private static final boolean ENABLE_ADAPTIVE_PARALLEL_PARSING =
+            SystemProperties.getBoolean("pm.parallel_parse.adaptive", false);
+
     private static final int RADIO_UID = Process.PHONE_UID;
     private static final int LOG_UID = Process.LOG_UID;
     private static final int NFC_UID = Process.NFC_UID;
@@ -452,6 +474,8 @@ public class PackageManagerService extends IPackageManager.Stub
     static final int SCAN_AS_INSTANT_APP = 1<<17;
     static final int SCAN_AS_FULL_APP = 1<<18;
     static final int SCAN_AS_VIRTUAL_PRELOAD = 1<<19;
+    /** Certificates were already collected by {@link ParallelPackageParser} */
+    static final int SCAN_CERTIFICATES_COLLECTED = 1<<20;
     /** Should not be with the scan flags */
     static final int FLAGS_REMOVE_CHATTY = 1<<31;
 
@@ -1015,6 +1039,9 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private File mCacheDir;
 
+    /** Index over {@link #mCacheDir}, or {@code null} if the index is disabled. */
+    private PackageParserCacheIndex mCacheIndex;
+
     private ArraySet<String> mPrivappPermissionsViolations;
 
     private Future<?> mPrepareAppDataFuture;
@@ -1759,7 +1786,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
+                            mSettings.writePackageRestrictionsAsyncLPr(userId);
                         }
                         mDirtyUsers.clear();
                     }
@@ -2303,6 +2330,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
             if (!sUserManager.exists(nextUserId)) return;
+            mSettings.notePackageRestrictionsWriteRequestedLPr();
             mDirtyUsers.add(nextUserId);
             if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
@@ -2479,6 +2507,13 @@ public class PackageManagerService extends IPackageManager.Stub
 
         getDefaultDisplayMetrics(context, mMetrics);
 
+        if (INTENT_MATCH_CACHE_SIZE > 0) {
+            mActivities.setMatchCacheSize(INTENT_MATCH_CACHE_SIZE);
+            mReceivers.setMatchCacheSize(INTENT_MATCH_CACHE_SIZE);
+            mServices.setMatchCacheSize(INTENT_MATCH_CACHE_SIZE);
+            mProviders.setMatchCacheSize(INTENT_MATCH_CACHE_SIZE);
+        }
+
         Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "get system config");
         SystemConfig systemConfig = SystemConfig.getInstance();
         mGlobalGids = systemConfig.getGlobalGids();
@@ -2612,6 +2647,9 @@ public class PackageManagerService extends IPackageManager.Stub
             }
 
             mCacheDir = preparePackageParserCache(mIsUpgrade);
+            if (mCacheDir != null && ENABLE_PACKAGE_CACHE_INDEX) {
+                mCacheIndex = PackageParserCacheIndex.load(mCacheDir);
+            }
 
             // Set flag to monitor and not change apk file paths when
             // scanning install directories.
@@ -2930,6 +2968,13 @@ public class PackageManagerService extends IPackageManager.Stub
             Slog.i(TAG, "Time to scan packages: "
                     + ((SystemClock.uptimeMillis()-startTime)/1000f)
                     + " seconds");
+            if (mCacheIndex != null) {
+                Slog.i(TAG, "Package cache: indexHits=" + PackageParser.sCacheIndexHitCount.get()
+                        + " fileHits=" + PackageParser.sCacheFileHitCount.get()
+                        + " misses=" + PackageParser.sCacheMissCount.get()
+                        + " indexed=" + mCacheIndex.rebuild());
+                mCacheIndex = null;
+            }
 
             // If the platform SDK has changed since the last time we booted,
             // we need to re-grant app permission to catch any new ones that
@@ -9098,9 +9143,19 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + dir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
-        ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
-                mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback);
+        final ParallelPackageParser parallelPackageParser;
+        if (ENABLE_ADAPTIVE_PARALLEL_PARSING) {
+            parallelPackageParser = new ParallelPackageParser(
+                    mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
+                    mParallelPackageParserCallback, ParallelPackageParser.computeThreadCount());
+            parallelPackageParser.setCertificateCollectionFilter(
+                    createCertificateCollectionFilterLPr());
+        } else {
+            parallelPackageParser = new ParallelPackageParser(
+                    mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
+                    mParallelPackageParserCallback);
+        }
+        parallelPackageParser.setCacheIndex(mCacheIndex);
 
         // Submit files for parsing in parallel
         int fileCount = 0;
@@ -9128,8 +9183,10 @@ public class PackageManagerService extends IPackageManager.Stub
                 }
                 try {
                     if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
-                        scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags, scanFlags,
-                                currentTime, null);
+                        final int pkgScanFlags = parseResult.certificatesCollected
+                                ? scanFlags | SCAN_CERTIFICATES_COLLECTED : scanFlags;
+                        scanPackageLI(parseResult.pkg, parseResult.scanFile, parseFlags,
+                                pkgScanFlags, currentTime, null);
                     }
                 } catch (PackageManagerException e) {
                     errorCode = e.error;
@@ -9153,9 +9210,38 @@ public class PackageManagerService extends IPackageManager.Stub
                 removeCodePathLI(parseResult.scanFile);
             }
         }
+        if (ENABLE_ADAPTIVE_PARALLEL_PARSING) {
+            parallelPackageParser.logTimings("Scanned " + dir);
+        }
         parallelPackageParser.close();
     }
 
+    /**
+     * Returns a filter that lets {@link ParallelPackageParser} collect certificates only for
+     * packages whose certificates {@link #collectCertificatesLI} could not reuse from the last
+     * scan. The known code paths are snapshotted here so that the parsing threads never touch
+     * {@link #mSettings}.
+     */
+    private ParallelPackageParser.CertificateCollectionFilter
+            createCertificateCollectionFilterLPr() {
+        final ArrayMap<String, Long> knownTimeStamps = new ArrayMap<>();
+        for (PackageSetting ps : mSettings.mPackages.values()) {
+            if (ps.signatures.mSignatures != null && ps.signatures.mSignatures.length != 0) {
+                knownTimeStamps.put(ps.codePathString, ps.timeStamp);
+            }
+        }
+        final boolean isPreNMR1Upgrade = mIsPreNMR1Upgrade;
+        return (pkg, scanFile) -> {
+            final Long knownTimeStamp = knownTimeStamps.get(scanFile.getPath());
+            if (knownTimeStamp == null) {
+                return true;
+            }
+            final long lastModifiedTime = isPreNMR1Upgrade
+                    ? new File(pkg.codePath).lastModified() : getLastModifiedTime(pkg, scanFile);
+            return knownTimeStamp != lastModifiedTime;
+        };
+    }
+
     private static File getSettingsProblemFile() {
         File dataDir = Environment.getDataDirectory();
         File systemDir = new File(dataDir, "system");
@@ -9186,7 +9272,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
     }
 
-    private long getLastModifiedTime(PackageParser.Package pkg, File srcFile) {
+    private static long getLastModifiedTime(PackageParser.Package pkg, File srcFile) {
         if (srcFile.isDirectory()) {
             final File baseFile = new File(pkg.baseCodePath);
             long maxModifiedTime = baseFile.lastModified();
@@ -9202,7 +9288,7 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg, File srcFile,
-            final int policyFlags) throws PackageManagerException {
+            final int policyFlags, final int scanFlags) throws PackageManagerException {
         // When upgrading from pre-N MR1, verify the package time stamp using the package
         // directory and not the APK file.
         final long lastModifiedTime = mIsPreNMR1Upgrade
@@ -9236,7 +9322,9 @@ public class PackageManagerService extends IPackageManager.Stub
 
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
-            PackageParser.collectCertificates(pkg, policyFlags);
+            if ((scanFlags & SCAN_CERTIFICATES_COLLECTED) == 0 || pkg.mSignatures == null) {
+                PackageParser.collectCertificates(pkg, policyFlags);
+            }
             if (compareSignatures(pkg.mSignatures,
                   mVendorPlatformSignatures) == PackageManager.SIGNATURE_MATCH) {
                 // Overwrite package signature with our platform signature
@@ -9536,7 +9624,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         // Verify certificates against what was last scanned
-        collectCertificatesLI(ps, pkg, scanFile, policyFlags);
+        collectCertificatesLI(ps, pkg, scanFile, policyFlags, scanFlags);
 
         /*
          * A new system app appeared, but we already had a non-system one of the
@@ -23155,6 +23243,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             if (!checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
+                mSettings.dumpPackageRestrictionsWriterLPr(pw);
 
                 pw.println();
                 pw.println("Package warning messages:");
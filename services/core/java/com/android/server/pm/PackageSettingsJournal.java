@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changed package settings, applied on top of packages.xml.
+ *
+ * <p>The file starts with a header holding the generation of the packages.xml it belongs to.
+ * A journal whose generation does not match is stale and is ignored. Each record is its length,
+ * one &lt;package&gt; element as a binary XML document, and a CRC32 of that document. Reading
+ * stops at the first record that is truncated or fails its checksum, which is what an
+ * interrupted append leaves behind, and the file is cut back to the last good record.</p>
+ */
+final class PackageSettingsJournal {
+    private static final String TAG = "PackageSettingsJournal";
+
+    private static final int MAGIC = 0x504b534a; // 'PKSJ'
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+
+    /** Upper bound on a single record, to reject garbage lengths early. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    interface RecordHandler {
+        void onRecord(byte[] record) throws IOException;
+    }
+
+    private final File mFile;
+    private int mRecordCount;
+
+    PackageSettingsJournal(File file) {
+        mFile = file;
+    }
+
+    /** Number of records in the journal, as of the last replay, reset or append. */
+    int getRecordCount() {
+        return mRecordCount;
+    }
+
+    long getSize() {
+        return mFile.length();
+    }
+
+    /**
+     * Replaces the journal with an empty one for packages.xml {@code generation}.
+     */
+    void reset(long generation) throws IOException {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            final DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + mFile);
+        }
+        mRecordCount = 0;
+    }
+
+    /**
+     * Appends {@code records} and syncs them to disk.  Nothing is appended if a record is over
+     * the size limit, in which case the caller needs to write packages.xml in full instead.
+     */
+    void append(List<byte[]> records) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final CRC32 crc = new CRC32();
+        for (int i = 0; i < records.size(); i++) {
+            final byte[] record = records.get(i);
+            if (record.length > MAX_RECORD_SIZE) {
+                throw new IOException("Record of " + record.length + " bytes is too large");
+            }
+            crc.reset();
+            crc.update(record);
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeInt((int) crc.getValue());
+        }
+        out.flush();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            fos.write(bytes.toByteArray());
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+        mRecordCount += records.size();
+    }
+
+    /**
+     * Passes every intact record to {@code handler}, in order.
+     *
+     * @return the number of records replayed, or -1 if there is no journal for packages.xml
+     *         {@code generation}, in which case nothing was replayed
+     */
+    int replay(long generation, RecordHandler handler) {
+        mRecordCount = 0;
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(mFile);
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        long goodLength = -1;
+        boolean truncated = false;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(fis));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Unknown journal format, ignoring " + mFile);
+                return -1;
+            }
+            final long journalGeneration = in.readLong();
+            if (journalGeneration != generation) {
+                Slog.i(TAG, "Ignoring stale journal, generation " + journalGeneration
+                        + " != " + generation);
+                return -1;
+            }
+            goodLength = HEADER_SIZE;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+                final int length;
+                try {
+                    length = (first << 24) | (in.readUnsignedByte() << 16)
+                            | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+                } catch (EOFException e) {
+                    Slog.w(TAG, "Truncated journal record length");
+                    truncated = true;
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    Slog.w(TAG, "Bad journal record length " + length);
+                    truncated = true;
+                    break;
+                }
+                final byte[] record = new byte[length];
+                final int expectedCrc;
+                try {
+                    in.readFully(record);
+                    expectedCrc = in.readInt();
+                } catch (EOFException e) {
+                    Slog.w(TAG, "Truncated journal record");
+                    truncated = true;
+                    break;
+                }
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != expectedCrc) {
+                    Slog.w(TAG, "Journal record failed checksum");
+                    truncated = true;
+                    break;
+                }
+                handler.onRecord(record);
+                mRecordCount++;
+                goodLength += Integer.BYTES + length + Integer.BYTES;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Error reading journal " + mFile, e);
+            if (goodLength < 0) {
+                // Not even a complete header
+                return -1;
+            }
+            truncated = true;
+        } finally {
+            IoUtils.closeQuietly(fis);
+        }
+        if (truncated) {
+            truncateTo(goodLength);
+        }
+        return mRecordCount;
+    }
+
+    private void truncateTo(long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to truncate journal " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    void delete() {
+        mFile.delete();
+        mRecordCount = 0;
+    }
+}
@@ -16,10 +16,14 @@
 
 package com.android.server.pm;
 
+import android.app.ActivityManager;
 import android.content.pm.PackageParser;
+import android.content.pm.PackageParserCacheIndex;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.Slog;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
@@ -29,6 +33,8 @@ import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
@@ -36,31 +42,133 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>In adaptive mode (see {@link #computeThreadCount()}) the pool is sized from the number of
+ * available cores and the current memory pressure, and the result queue grows with it.
+ * Certificates can optionally be collected on the parsing threads as well, see
+ * {@link #setCertificateCollectionFilter(CertificateCollectionFilter)}.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
+    private static final String TAG = "ParallelPackageParser";
+
     private static final int QUEUE_CAPACITY = 10;
     private static final int MAX_THREADS = 4;
 
+    /** Lower bound for the pool size in adaptive mode. */
+    @VisibleForTesting
+    static final int MIN_ADAPTIVE_THREADS = 2;
+    /** Upper bound for the pool size in adaptive mode, regardless of the core count. */
+    @VisibleForTesting
+    static final int MAX_ADAPTIVE_THREADS = 8;
+    /** Number of parsed results kept in RAM per parsing thread in adaptive mode. */
+    private static final int QUEUE_CAPACITY_PER_THREAD = 3;
+    /** Below this percentage of free memory the adaptive pool is halved. */
+    private static final int LOW_FREE_MEMORY_PERCENT = 10;
+
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final int mThreadCount;
     private volatile String mInterruptedInThread;
+    private volatile CertificateCollectionFilter mCertificateCollectionFilter;
+    private volatile PackageParserCacheIndex mCacheIndex;
+
+    private final BlockingQueue<ParseResult> mQueue;
 
-    private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ExecutorService mService;
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    // Per-stage timings, accumulated over all parsing threads
+    private final AtomicInteger mParsedCount = new AtomicInteger();
+    private final AtomicInteger mCertificatesCollectedCount = new AtomicInteger();
+    private final AtomicLong mParseTimeNanos = new AtomicLong();
+    private final AtomicLong mCertificatesTimeNanos = new AtomicLong();
+    // Time the caller of take() spent blocked on the parsing threads
+    private long mWaitTimeNanos;
+    private final long mStartTimeNanos = SystemClock.elapsedRealtimeNanos();
+
+    /**
+     * Decides whether the certificates of a freshly parsed package should be collected on the
+     * parsing thread, ahead of the package scan.
+     */
+    interface CertificateCollectionFilter {
+        /**
+         * @return {@code true} if certificates of {@code pkg} have to be collected, i.e. they
+         * cannot be reused from the last scan
+         */
+        boolean shouldCollectCertificates(PackageParser.Package pkg, File scanFile);
+    }
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, MAX_THREADS,
+                QUEUE_CAPACITY);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            int threadCount) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, threadCount,
+                threadCount * QUEUE_CAPACITY_PER_THREAD);
+    }
+
+    private ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            int threadCount, int queueCapacity) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mThreadCount = threadCount;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mService = ConcurrentUtils.newFixedThreadPool(threadCount,
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Computes the size of the parsing pool from the number of available cores and the current
+     * memory pressure. Low RAM devices, as well as devices that are short on free memory, get
+     * a smaller pool to bound the number of packages held in RAM at the same time.
+     */
+    static int computeThreadCount() {
+        return computeThreadCount(Runtime.getRuntime().availableProcessors(),
+                ActivityManager.isLowRamDeviceStatic(), Process.getFreeMemory(),
+                Process.getTotalMemory());
+    }
+
+    @VisibleForTesting
+    static int computeThreadCount(int cores, boolean lowRamDevice, long freeMemory,
+            long totalMemory) {
+        int threads = Math.min(cores, MAX_ADAPTIVE_THREADS);
+        if (lowRamDevice) {
+            threads = Math.min(threads, MAX_THREADS);
+        }
+        if (totalMemory > 0 && freeMemory * 100 / totalMemory < LOW_FREE_MEMORY_PERCENT) {
+            threads /= 2;
+        }
+        return Math.max(threads, MIN_ADAPTIVE_THREADS);
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Enables certificate collection on the parsing threads for packages accepted by
+     * {@code filter}. Must be called before any file is submitted.
+     */
+    void setCertificateCollectionFilter(CertificateCollectionFilter filter) {
+        mCertificateCollectionFilter = filter;
+    }
+
+    /**
+     * Sets the cache index consulted by the parsing threads. Must be called before any file is
+     * submitted.
+     */
+    void setCacheIndex(PackageParserCacheIndex cacheIndex) {
+        mCacheIndex = cacheIndex;
     }
 
     static class ParseResult {
@@ -68,6 +176,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if certificates were collected while parsing
 
         @Override
         public String toString() {
@@ -75,6 +184,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
@@ -89,7 +199,10 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final ParseResult result = mQueue.take();
+            mWaitTimeNanos += SystemClock.elapsedRealtimeNanos() - start;
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -106,20 +219,45 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long parseStart = SystemClock.elapsedRealtimeNanos();
             try {
                 PackageParser pp = new PackageParser();
                 pp.setSeparateProcesses(mSeparateProcesses);
                 pp.setOnlyCoreApps(mOnlyCore);
                 pp.setDisplayMetrics(mMetrics);
                 pp.setCacheDir(mCacheDir);
+                pp.setCacheIndex(mCacheIndex);
                 pp.setCallback(mPackageParserCallback);
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                mParseTimeNanos.addAndGet(SystemClock.elapsedRealtimeNanos() - parseStart);
+                mParsedCount.incrementAndGet();
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
+            final CertificateCollectionFilter filter = mCertificateCollectionFilter;
+            if (pr.pkg != null && filter != null
+                    && filter.shouldCollectCertificates(pr.pkg, scanFile)) {
+                Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER,
+                        "parallel collectCertificates [" + scanFile + "]");
+                final long certStart = SystemClock.elapsedRealtimeNanos();
+                try {
+                    collectCertificates(pr.pkg, parseFlags);
+                    pr.certificatesCollected = true;
+                    mCertificatesCollectedCount.incrementAndGet();
+                } catch (Throwable e) {
+                    // Leave it to the scan to collect the certificates again and to report
+                    // the failure through the regular error path.
+                    pr.pkg.mSignatures = null;
+                    pr.pkg.mSigningKeys = null;
+                } finally {
+                    mCertificatesTimeNanos.addAndGet(
+                            SystemClock.elapsedRealtimeNanos() - certStart);
+                    Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                }
+            }
             try {
                 mQueue.put(pr);
             } catch (InterruptedException e) {
@@ -138,6 +276,27 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    @VisibleForTesting
+    protected void collectCertificates(PackageParser.Package pkg, int parseFlags)
+            throws PackageParser.PackageParserException {
+        PackageParser.collectCertificates(pkg, parseFlags);
+    }
+
+    /**
+     * Logs the time spent in each stage so far. Parse and certificate times are summed over all
+     * parsing threads, wait time is the time the caller of {@link #take()} was blocked.
+     */
+    void logTimings(String label) {
+        final long totalMs = (SystemClock.elapsedRealtimeNanos() - mStartTimeNanos) / 1000000;
+        Slog.i(TAG, label + ": threads=" + mThreadCount
+                + " parsed=" + mParsedCount.get()
+                + " parseMs=" + mParseTimeNanos.get() / 1000000
+                + " certs=" + mCertificatesCollectedCount.get()
+                + " certMs=" + mCertificatesTimeNanos.get() / 1000000
+                + " waitMs=" + mWaitTimeNanos / 1000000
+                + " totalMs=" + totalMs);
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
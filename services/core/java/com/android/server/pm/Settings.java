@@ -61,6 +61,7 @@ import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -81,8 +82,11 @@ import android.util.Xml;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
@@ -101,6 +105,7 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -109,6 +114,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
@@ -123,6 +130,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * Holds information about dynamic settings.
@@ -171,6 +179,20 @@ final class Settings {
     private static final boolean DEBUG_KERNEL = false;
     private static final boolean DEBUG_PARSER = false;
 
+    /**
+     * Whether packages.xml is written as binary XML, see {@link BinaryXmlSerializer}. Reading
+     * detects the format, so text XML written by older builds is still imported, and turning
+     * this off exports text XML again on the next write.
+     */
+    private static final boolean WRITE_BINARY_SETTINGS =
+            SystemProperties.getBoolean("pm.settings.binary_xml", false);
+
+    /**
+     * Packages.xml is written in full once its journal holds this many records, or is over half
+     * its size, whichever comes first.
+     */
+    private static final int MAX_JOURNAL_RECORDS = 512;
+
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
 
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
@@ -234,6 +256,7 @@ final class Settings {
     private static final String ATTR_SDK_VERSION = "sdkVersion";
     private static final String ATTR_DATABASE_VERSION = "databaseVersion";
     private static final String ATTR_DONE = "done";
+    private static final String ATTR_GENERATION = "generation";
 
     // Bookkeeping for restored permission grants
     private static final String TAG_RESTORED_RUNTIME_PERMISSIONS = "restored-perms";
@@ -255,8 +278,12 @@ final class Settings {
 
     private final RuntimePermissionPersistence mRuntimePermissionsPersistence;
 
+    private final PackageRestrictionsWriter mPackageRestrictionsWriter =
+            new PackageRestrictionsWriter();
+
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final PackageSettingsJournal mJournal;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -272,6 +299,29 @@ final class Settings {
     /** Map from package name to appId and excluded userids */
     private final ArrayMap<String, KernelPackageState> mKernelMapping = new ArrayMap<>();
 
+    /**
+     * Whether writes only journal the packages that changed, see {@link PackageSettingsJournal},
+     * as long as nothing else in packages.xml did. Reading always applies a journal that belongs
+     * to packages.xml, so this can be turned off at any time.
+     */
+    @VisibleForTesting
+    boolean mUseSettingsJournal = SystemProperties.getBoolean("pm.settings.journal", false);
+
+    /** Generation of the packages.xml last read or written, which the journal belongs to. */
+    private long mSettingsGeneration;
+
+    /**
+     * CRC32 of each package as in packages.xml and its journal, or null if there is no complete
+     * record of them, in which case the next write is a full one.
+     */
+    private ArrayMap<String, Long> mWrittenPackageCrcs;
+
+    /** CRC32 of everything else in packages.xml, see {@link #writeSettingsLPr}. */
+    private long mWrittenSettingsCrc;
+
+    private final RecordBuffer mRecordBuffer = new RecordBuffer();
+    private final BinaryXmlSerializer mRecordSerializer = new BinaryXmlSerializer();
+
     // List of replaced system applications
     private final ArrayMap<String, PackageSetting> mDisabledSysPackages =
         new ArrayMap<String, PackageSetting>();
@@ -438,6 +488,7 @@ final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mJournal = new PackageSettingsJournal(new File(mSystemDir, "packages.journal"));
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -2062,6 +2113,147 @@ final class Settings {
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
+        final byte[] data;
+        try {
+            data = renderPackageRestrictionsLPr(userId);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            return;
+        }
+        mPackageRestrictionsWriter.writeSync(userId, data);
+    }
+
+    /**
+     * Like {@link #writePackageRestrictionsLPr(int)}, but only renders the restrictions while
+     * the caller holds the package lock. The file is written and synced on a background
+     * thread, and a render that is superseded before it reaches the disk is never written.
+     */
+    void writePackageRestrictionsAsyncLPr(int userId) {
+        final byte[] data;
+        try {
+            data = renderPackageRestrictionsLPr(userId);
+        } catch (IOException e) {
+            Slog.wtf(PackageManagerService.TAG,
+                    "Unable to write package manager user packages state, "
+                    + " current changes will be lost at reboot", e);
+            return;
+        }
+        mPackageRestrictionsWriter.writeAsync(userId, data);
+    }
+
+    /**
+     * Counts a request to persist the restrictions of a user. Requests that end up sharing a
+     * write with others are reported as saved writes in the dump.
+     */
+    void notePackageRestrictionsWriteRequestedLPr() {
+        mPackageRestrictionsWriter.noteRequested();
+    }
+
+    /**
+     * Serializes the package restrictions of {@code userId} into memory.
+     */
+    private byte[] renderPackageRestrictionsLPr(int userId) throws IOException {
+        final ByteArrayOutputStream str = new ByteArrayOutputStream();
+
+        final XmlSerializer serializer = new FastXmlSerializer();
+        serializer.setOutput(str, StandardCharsets.UTF_8.name());
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+
+        serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+
+        for (final PackageSetting pkg : mPackages.values()) {
+            final PackageUserState ustate = pkg.readUserState(userId);
+            if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+            serializer.startTag(null, TAG_PACKAGE);
+            serializer.attribute(null, ATTR_NAME, pkg.name);
+            if (ustate.ceDataInode != 0) {
+                XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+            }
+            if (!ustate.installed) {
+                serializer.attribute(null, ATTR_INSTALLED, "false");
+            }
+            if (ustate.stopped) {
+                serializer.attribute(null, ATTR_STOPPED, "true");
+            }
+            if (ustate.notLaunched) {
+                serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+            }
+            if (ustate.hidden) {
+                serializer.attribute(null, ATTR_HIDDEN, "true");
+            }
+            if (ustate.suspended) {
+                serializer.attribute(null, ATTR_SUSPENDED, "true");
+            }
+            if (ustate.instantApp) {
+                serializer.attribute(null, ATTR_INSTANT_APP, "true");
+            }
+            if (ustate.virtualPreload) {
+                serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+            }
+            if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+                serializer.attribute(null, ATTR_ENABLED,
+                        Integer.toString(ustate.enabled));
+                if (ustate.lastDisableAppCaller != null) {
+                    serializer.attribute(null, ATTR_ENABLED_CALLER,
+                            ustate.lastDisableAppCaller);
+                }
+            }
+            if (ustate.domainVerificationStatus !=
+                    PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+                XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                        ustate.domainVerificationStatus);
+            }
+            if (ustate.appLinkGeneration != 0) {
+                XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                        ustate.appLinkGeneration);
+            }
+            if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+                serializer.attribute(null, ATTR_INSTALL_REASON,
+                        Integer.toString(ustate.installReason));
+            }
+            if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+                serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+                for (final String name : ustate.enabledComponents) {
+                    serializer.startTag(null, TAG_ITEM);
+                    serializer.attribute(null, ATTR_NAME, name);
+                    serializer.endTag(null, TAG_ITEM);
+                }
+                serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+            }
+            if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+                serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+                for (final String name : ustate.disabledComponents) {
+                    serializer.startTag(null, TAG_ITEM);
+                    serializer.attribute(null, ATTR_NAME, name);
+                    serializer.endTag(null, TAG_ITEM);
+                }
+                serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+            }
+
+            serializer.endTag(null, TAG_PACKAGE);
+        }
+
+        writePreferredActivitiesLPr(serializer, userId, true);
+        writePersistentPreferredActivitiesLPr(serializer, userId);
+        writeCrossProfileIntentFiltersLPr(serializer, userId);
+        writeDefaultAppsLPr(serializer, userId);
+        writeBlockUninstallPackagesLPr(serializer, userId);
+
+        serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
+
+        serializer.endDocument();
+        return str.toByteArray();
+    }
+
+    /**
+     * Writes rendered package restrictions to disk. Must not be called with the package lock
+     * held, except for synchronous writes.
+     */
+    private void commitPackageRestrictions(int userId, byte[] data) {
         // Keep the old stopped packages around until we know the new ones have
         // been successfully written.
         File userPackagesStateFile = getUserPackagesStateFile(userId);
@@ -2087,101 +2279,9 @@ final class Settings {
 
         try {
             final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
-            final BufferedOutputStream str = new BufferedOutputStream(fstr);
-
-            final XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
-            serializer.startDocument(null, true);
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-
-            serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
-
-            for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
-            }
-
-            writePreferredActivitiesLPr(serializer, userId, true);
-            writePersistentPreferredActivitiesLPr(serializer, userId);
-            writeCrossProfileIntentFiltersLPr(serializer, userId);
-            writeDefaultAppsLPr(serializer, userId);
-            writeBlockUninstallPackagesLPr(serializer, userId);
-
-            serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
-
-            serializer.endDocument();
-
-            str.flush();
+            fstr.write(data);
             FileUtils.sync(fstr);
-            str.close();
+            fstr.close();
 
             // New settings successfully written, old ones are no longer
             // needed.
@@ -2450,6 +2550,18 @@ final class Settings {
     }
 
     void writeLPr() {
+        if (!mUseSettingsJournal || !writeJournalLPr()) {
+            if (!writeSettingsFileLPr()) {
+                return;
+            }
+        }
+        writeKernelMappingLPr();
+        writePackageListLPr();
+        writeAllUsersPackageRestrictionsLPr();
+        writeAllRuntimePermissionsLPr();
+    }
+
+    private boolean writeSettingsFileLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         // Keep the old settings around until we know the new ones have
@@ -2464,7 +2576,7 @@ final class Settings {
                     Slog.wtf(PackageManagerService.TAG,
                             "Unable to backup package manager settings, "
                             + " current changes will be lost at reboot");
-                    return;
+                    return false;
                 }
             } else {
                 mSettingsFilename.delete();
@@ -2479,107 +2591,16 @@ final class Settings {
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
             //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
+            XmlSerializer serializer = WRITE_BINARY_SETTINGS
+                    ? new BinaryXmlSerializer() : new FastXmlSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
+            final long generation = mSettingsGeneration + 1;
             serializer.startTag(null, "packages");
-
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
-
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
-
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
-
-            serializer.startTag(null, "permission-trees");
-            for (BasePermission bp : mPermissionTrees.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permission-trees");
-
-            serializer.startTag(null, "permissions");
-            for (BasePermission bp : mPermissions.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permissions");
-
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
-            }
-
-            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
-                writeDisabledSysPackageLPr(serializer, pkg);
-            }
-
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
-            }
-
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
-            }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
-            }
-
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+            serializer.attribute(null, ATTR_GENERATION, Long.toString(generation));
+            writeSettingsLPr(serializer, false);
 
             serializer.endTag(null, "packages");
 
@@ -2597,11 +2618,9 @@ final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
-            return;
+            mSettingsGeneration = generation;
+            startJournalLPr();
+            return true;
 
         } catch(XmlPullParserException e) {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
@@ -2618,6 +2637,272 @@ final class Settings {
             }
         }
         //Debug.stopMethodTracing();
+        return false;
+    }
+
+    /**
+     * Writes the children of &lt;packages&gt;. With {@code identitiesOnly}, each package is
+     * reduced to what can only change with a full write: its name, its uid, and the key sets it
+     * holds references to.
+     */
+    private void writeSettingsLPr(XmlSerializer serializer, boolean identitiesOnly)
+            throws XmlPullParserException, IOException {
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
+
+        for (final PackageSetting pkg : mPackages.values()) {
+            if (identitiesOnly) {
+                writePackageIdentityLPr(serializer, pkg);
+            } else {
+                writePackageLPr(serializer, pkg);
+            }
+        }
+
+        for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+        }
+
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            serializer.startTag(null, "shared-user");
+            serializer.attribute(null, ATTR_NAME, usr.name);
+            serializer.attribute(null, "userId",
+                    Integer.toString(usr.userId));
+            usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+            writePermissionsLPr(serializer, usr.getPermissionsState()
+                    .getInstallPermissionStates());
+            serializer.endTag(null, "shared-user");
+        }
+
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
+            }
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+    }
+
+    private void writePackageIdentityLPr(XmlSerializer serializer, PackageSetting pkg)
+            throws IOException {
+        serializer.startTag(null, "package");
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        serializer.attribute(null, pkg.sharedUser == null ? "userId" : "sharedUserId",
+                Integer.toString(pkg.appId));
+        writeSigningKeySetLPr(serializer, pkg.keySetData);
+        writeUpgradeKeySetsLPr(serializer, pkg.keySetData);
+        writeKeySetAliasesLPr(serializer, pkg.keySetData);
+        serializer.endTag(null, "package");
+    }
+
+    /**
+     * Starts an empty journal after packages.xml was written in full, or removes it if
+     * journaling is off.
+     */
+    private void startJournalLPr() {
+        mWrittenPackageCrcs = null;
+        if (!mUseSettingsJournal) {
+            mJournal.delete();
+            return;
+        }
+        try {
+            mJournal.reset(mSettingsGeneration);
+            mWrittenSettingsCrc = computeSettingsCrcLPr();
+            final ArrayMap<String, Long> crcs = new ArrayMap<>(mPackages.size());
+            for (int i = 0; i < mPackages.size(); i++) {
+                crcs.put(mPackages.keyAt(i), computePackageCrcLPr(mPackages.valueAt(i)));
+            }
+            mWrittenPackageCrcs = crcs;
+        } catch (XmlPullParserException | IOException e) {
+            // packages.xml is complete, so the next write is simply a full one again.
+            Slog.w(PackageManagerService.TAG, "Unable to start package settings journal", e);
+        }
+    }
+
+    /**
+     * Appends the packages that changed since the last write to the journal, instead of writing
+     * packages.xml in full.
+     *
+     * @return false if the change cannot be journaled, or the journal is due to be folded into
+     *         packages.xml, and packages.xml needs to be written in full
+     */
+    private boolean writeJournalLPr() {
+        if (mWrittenPackageCrcs == null
+                || mJournal.getRecordCount() >= MAX_JOURNAL_RECORDS
+                || mJournal.getSize() > mSettingsFilename.length() / 2) {
+            return false;
+        }
+        try {
+            if (computeSettingsCrcLPr() != mWrittenSettingsCrc) {
+                return false;
+            }
+            final ArrayMap<String, Long> crcs = new ArrayMap<>(mPackages.size());
+            final ArrayList<byte[]> records = new ArrayList<>();
+            for (int i = 0; i < mPackages.size(); i++) {
+                final String name = mPackages.keyAt(i);
+                final long crc = computePackageCrcLPr(mPackages.valueAt(i));
+                crcs.put(name, crc);
+                final Long writtenCrc = mWrittenPackageCrcs.get(name);
+                if (writtenCrc == null) {
+                    // Can't happen, the package identities matched
+                    return false;
+                }
+                if (writtenCrc != crc) {
+                    records.add(mRecordBuffer.toByteArray());
+                }
+            }
+            if (!records.isEmpty()) {
+                mJournal.append(records);
+            }
+            mWrittenPackageCrcs = crcs;
+            return true;
+        } catch (XmlPullParserException | IOException e) {
+            Slog.w(PackageManagerService.TAG,
+                    "Unable to journal package settings, writing them in full", e);
+            return false;
+        }
+    }
+
+    /** Returns the CRC32 of the package identities and everything in packages.xml but them. */
+    private long computeSettingsCrcLPr() throws XmlPullParserException, IOException {
+        mRecordBuffer.reset();
+        mPastSignatures.clear();
+        mRecordSerializer.setOutput(mRecordBuffer, null);
+        mRecordSerializer.startDocument(null, true);
+        mRecordSerializer.startTag(null, "packages");
+        writeSettingsLPr(mRecordSerializer, true);
+        mRecordSerializer.endTag(null, "packages");
+        mRecordSerializer.endDocument();
+        return mRecordBuffer.getCrc();
+    }
+
+    /**
+     * Serializes {@code pkg} on its own into {@link #mRecordBuffer}, as a journal record, and
+     * returns the CRC32 of the record.
+     */
+    private long computePackageCrcLPr(PackageSetting pkg) throws IOException {
+        mRecordBuffer.reset();
+        // Every record carries its own signatures rather than referring to earlier ones.
+        mPastSignatures.clear();
+        mRecordSerializer.setOutput(mRecordBuffer, null);
+        mRecordSerializer.startDocument(null, true);
+        writePackageLPr(mRecordSerializer, pkg);
+        mRecordSerializer.endDocument();
+        return mRecordBuffer.getCrc();
+    }
+
+    /**
+     * Applies the journal of packages.xml generation {@code generation} to the packages read
+     * from it.
+     */
+    private void replayJournalLPw(long generation) {
+        final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+        final int count = mJournal.replay(generation, record -> {
+            try {
+                parser.setInput(ByteBuffer.wrap(record));
+                int type;
+                while ((type = parser.next()) != XmlPullParser.START_TAG
+                        && type != XmlPullParser.END_DOCUMENT) {
+                    ;
+                }
+                if (type != XmlPullParser.START_TAG) {
+                    throw new IOException("Empty journal record");
+                }
+                final String name = parser.getAttributeValue(null, ATTR_NAME);
+                final PackageSetting old = mPackages.remove(name);
+                if (old != null) {
+                    replaceUserIdLPw(old.appId, null);
+                } else {
+                    for (int i = mPendingPackages.size() - 1; i >= 0; i--) {
+                        if (mPendingPackages.get(i).name.equals(name)) {
+                            mPendingPackages.remove(i);
+                        }
+                    }
+                }
+                mPastSignatures.clear();
+                readPackageLPw(parser);
+            } catch (XmlPullParserException e) {
+                throw new IOException(e);
+            }
+        });
+        if (count > 0) {
+            mReadMessages.append("Applied " + count + " journaled package settings\n");
+        }
+    }
+
+    /** Collects a serialized record in memory, where its checksum can be taken without a copy. */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        private final CRC32 mCrc = new CRC32();
+
+        long getCrc() {
+            mCrc.reset();
+            mCrc.update(buf, 0, count);
+            return mCrc.getValue();
+        }
     }
 
     private void writeKernelRemoveUserLPr(int userId) {
@@ -3017,6 +3302,26 @@ final class Settings {
         }
     }
 
+    /**
+     * Returns a parser for the settings file open in {@code str}. Binary XML is read through a
+     * memory map of the file, text XML through the regular pull parser.
+     */
+    private static XmlPullParser newSettingsParser(FileInputStream str)
+            throws IOException, XmlPullParserException {
+        final FileChannel channel = str.getChannel();
+        final byte[] header = new byte[BinaryXmlSerializer.MAGIC.length];
+        final int read = str.read(header);
+        channel.position(0);
+        if (read == header.length && BinaryXmlSerializer.isBinaryXml(header)) {
+            final BinaryXmlPullParser parser = new BinaryXmlPullParser();
+            parser.setInput(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            return parser;
+        }
+        final XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(str, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
     boolean readLPw(@NonNull List<UserInfo> users) {
         FileInputStream str = null;
         if (mBackupSettingsFilename.exists()) {
@@ -3057,8 +3362,7 @@ final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = newSettingsParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -3074,6 +3378,7 @@ final class Settings {
                         "No start tag found in package manager settings");
                 return false;
             }
+            mSettingsGeneration = XmlUtils.readLongAttribute(parser, ATTR_GENERATION, 0);
 
             int outerDepth = parser.getDepth();
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -3184,6 +3489,8 @@ final class Settings {
                 }
             }
 
+            replayJournalLPw(mSettingsGeneration);
+
             str.close();
 
         } catch (XmlPullParserException e) {
@@ -4216,6 +4523,7 @@ final class Settings {
 
     void createNewUserLI(@NonNull PackageManagerService service, @NonNull Installer installer,
             int userHandle, String[] disallowedPackages) {
+        mPackageRestrictionsWriter.onUserCreated(userHandle);
         String[] volumeUuids;
         String[] names;
         int[] appIds;
@@ -4271,6 +4579,8 @@ final class Settings {
     }
 
     void removeUserLPw(int userId) {
+        // Make sure no pending or in-flight write recreates the files deleted below
+        mPackageRestrictionsWriter.onUserRemoved(userId);
         Set<Entry<String, PackageSetting>> entries = mPackages.entrySet();
         for (Entry<String, PackageSetting> entry : entries) {
             entry.getValue().removeUser(userId);
@@ -5100,6 +5410,24 @@ final class Settings {
         pw.print(mReadMessages.toString());
     }
 
+    void dumpPackageRestrictionsWriterLPr(PrintWriter pw) {
+        mPackageRestrictionsWriter.dump(pw);
+    }
+
+    /**
+     * Waits until all package restrictions writes requested so far have been handled.
+     * Must not be called with the package lock held.
+     */
+    @VisibleForTesting
+    void waitForPackageRestrictionsWrites() {
+        mPackageRestrictionsWriter.waitForPendingWrites();
+    }
+
+    @VisibleForTesting
+    int getPackageRestrictionsWriteCount() {
+        return mPackageRestrictionsWriter.getWriteCount();
+    }
+
     void dumpRestoredPermissionGrantsLPr(PrintWriter pw, DumpState dumpState) {
         if (mRestoredUserGrants.size() > 0) {
             pw.println();
@@ -5684,4 +6012,159 @@ final class Settings {
             }
         }
     }
+
+    /**
+     * Writes package restrictions rendered under the package lock to disk. Asynchronous writes
+     * run on the background thread; a write that is still pending when a newer rendering of
+     * the same user arrives is dropped, so a burst of changes costs one fsync per user.
+     * Synchronous writes go through the same path so that a stale asynchronous write can
+     * never overwrite them.
+     */
+    private final class PackageRestrictionsWriter {
+        private final Handler mHandler = new Handler(BackgroundThread.getHandler().getLooper());
+
+        private final Object mWriteLock = new Object();
+        private final Object mFileLock = new Object();
+
+        @GuardedBy("mWriteLock")
+        // The mapping keys are user ids.
+        private final SparseArray<byte[]> mPendingData = new SparseArray<>();
+
+        @GuardedBy("mWriteLock")
+        // Generation of the data in mPendingData, keyed by user id.
+        private final SparseLongArray mPendingGenerations = new SparseLongArray();
+
+        @GuardedBy("mWriteLock")
+        // Generation of the data last written to disk, keyed by user id.
+        private final SparseLongArray mWrittenGenerations = new SparseLongArray();
+
+        @GuardedBy("mWriteLock")
+        // User ids that were removed; their restrictions must not be written again.
+        private final SparseBooleanArray mRemovedUsers = new SparseBooleanArray();
+
+        @GuardedBy("mWriteLock")
+        private long mNextGeneration = 1;
+
+        @GuardedBy("mWriteLock")
+        private int mRequestCount;
+        @GuardedBy("mWriteLock")
+        private int mWriteCount;
+        @GuardedBy("mWriteLock")
+        private int mDroppedCount;
+
+        void noteRequested() {
+            synchronized (mWriteLock) {
+                mRequestCount++;
+            }
+        }
+
+        /** Called with the package lock held, right after rendering {@code data}. */
+        void writeAsync(int userId, byte[] data) {
+            synchronized (mWriteLock) {
+                if (mPendingData.get(userId) != null) {
+                    mDroppedCount++;
+                } else {
+                    mHandler.post(() -> writePending(userId));
+                }
+                mPendingData.put(userId, data);
+                mPendingGenerations.put(userId, mNextGeneration++);
+            }
+        }
+
+        /** Called with the package lock held, right after rendering {@code data}. */
+        void writeSync(int userId, byte[] data) {
+            final long generation;
+            synchronized (mWriteLock) {
+                if (mPendingData.get(userId) != null) {
+                    mPendingData.remove(userId);
+                    mDroppedCount++;
+                }
+                generation = mNextGeneration++;
+            }
+            commitIfNewest(userId, data, generation);
+        }
+
+        /**
+         * Drops the pending write of a removed user and waits for an in-flight one to finish,
+         * so that the caller can safely delete the user's files.
+         */
+        void onUserRemoved(int userId) {
+            synchronized (mWriteLock) {
+                if (mPendingData.get(userId) != null) {
+                    mPendingData.remove(userId);
+                    mDroppedCount++;
+                }
+                mPendingGenerations.delete(userId);
+                mWrittenGenerations.delete(userId);
+                mRemovedUsers.put(userId, true);
+            }
+            synchronized (mFileLock) {
+                // Nothing to do, a write that got past the removed check has completed
+            }
+        }
+
+        void onUserCreated(int userId) {
+            synchronized (mWriteLock) {
+                mRemovedUsers.delete(userId);
+            }
+        }
+
+        void waitForPendingWrites() {
+            mHandler.runWithScissors(() -> { }, 0);
+        }
+
+        int getWriteCount() {
+            synchronized (mWriteLock) {
+                return mWriteCount;
+            }
+        }
+
+        private void writePending(int userId) {
+            final byte[] data;
+            final long generation;
+            synchronized (mWriteLock) {
+                data = mPendingData.get(userId);
+                if (data == null) {
+                    // Superseded by a synchronous write
+                    return;
+                }
+                mPendingData.remove(userId);
+                generation = mPendingGenerations.get(userId);
+            }
+            commitIfNewest(userId, data, generation);
+        }
+
+        private void commitIfNewest(int userId, byte[] data, long generation) {
+            // File writes are serialized, but do not block renders and new requests
+            synchronized (mFileLock) {
+                synchronized (mWriteLock) {
+                    if (mRemovedUsers.get(userId)) {
+                        // The user no longer exists, don't recreate its files
+                        mDroppedCount++;
+                        return;
+                    }
+                    if (generation < mWrittenGenerations.get(userId)) {
+                        mDroppedCount++;
+                        return;
+                    }
+                    mWrittenGenerations.put(userId, generation);
+                    mWriteCount++;
+                }
+                commitPackageRestrictions(userId, data);
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mWriteLock) {
+                pw.print("Package restrictions writes: requested=");
+                pw.print(mRequestCount);
+                pw.print(" written=");
+                pw.print(mWriteCount);
+                pw.print(" dropped=");
+                pw.print(mDroppedCount);
+                pw.print(" saved=");
+                pw.println(Math.max(mRequestCount - mWriteCount, 0));
+            }
+        }
+    }
 }
@@ -116,6 +116,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.MutableBoolean;
 import android.util.Slog;
@@ -177,6 +178,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    private boolean mTmpIncrementalLayout;
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -271,6 +273,15 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+    /**
+     * Whether the next layout has to visit every window, as opposed to only the windows of the
+     * app tokens in {@link #mLayoutDirtyTokens}. Only used with incremental layout, see
+     * {@link WindowSurfacePlacer#isIncrementalLayoutEnabled}.
+     */
+    private boolean mFullLayoutNeeded;
+    /** App tokens whose windows asked for layout since the last layout. */
+    private final ArraySet<AppWindowToken> mLayoutDirtyTokens = new ArraySet<>();
+    private final ArraySet<AppWindowToken> mTmpLayoutDirtyTokens = new ArraySet<>();
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -495,6 +506,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             w -> w.mWinAnimator.prepareSurfaceLocked(true);
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        if (!w.mLayoutAttached && skipIncrementalLayout(w)) {
+            return;
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w))
@@ -538,6 +553,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
+                mService.mWindowPlacerLocked.onWindowLaidOut();
                 w.mLayoutSeq = mService.mLayoutSeq;
 
                 // If this is the first layout, we need to initialize the last inset values as
@@ -561,6 +577,9 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     private final Consumer<WindowState> mPerformLayoutAttached = w -> {
         if (w.mLayoutAttached) {
+            if (skipIncrementalLayout(w)) {
+                return;
+            }
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
                     + " mRelayoutCalled=" + w.mRelayoutCalled);
@@ -579,6 +598,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.mLayoutNeeded = false;
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
+                mService.mWindowPlacerLocked.onWindowLaidOut();
                 w.mLayoutSeq = mService.mLayoutSeq;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
@@ -591,6 +611,20 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         }
     };
 
+    /**
+     * Returns true if an incremental layout can keep the frame of the window. Only windows of
+     * apps are skipped: the frames of system windows such as the status bar and the IME feed into
+     * the layout of everything below them.
+     */
+    private boolean skipIncrementalLayout(WindowState w) {
+        if (!mTmpIncrementalLayout || w.mAppToken == null || !w.mHaveFrame || w.mLayoutNeeded
+                || mTmpLayoutDirtyTokens.contains(w.mAppToken)) {
+            return false;
+        }
+        mService.mWindowPlacerLocked.onWindowLayoutSkipped();
+        return true;
+    }
+
     private final Predicate<WindowState> mComputeImeTargetPredicate = w -> {
         if (DEBUG_INPUT_METHOD && mUpdateImeTarget) Slog.i(TAG_WM, "Checking window @" + w
                 + " fl=0x" + Integer.toHexString(w.mAttrs.flags));
@@ -2145,7 +2179,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.print("-"); pw.print(mDisplayInfo.largestNominalAppWidth);
             pw.print("x"); pw.println(mDisplayInfo.largestNominalAppHeight);
             pw.print(subPrefix + "deferred=" + mDeferredRemoval
-                    + " mLayoutNeeded=" + mLayoutNeeded);
+                    + " mLayoutNeeded=" + mLayoutNeeded
+                    + " mFullLayoutNeeded=" + mFullLayoutNeeded);
             pw.println(" mTouchExcludeRegion=" + mTouchExcludeRegion);
 
         pw.println();
@@ -2491,11 +2526,29 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     void setLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = true;
+        mFullLayoutNeeded = true;
+    }
+
+    /**
+     * Like {@link #setLayoutNeeded()}, but only {@param win} changed. With incremental layout the
+     * next layout may then skip the windows of other apps.
+     */
+    void setLayoutNeeded(WindowState win) {
+        if (win.mAppToken == null) {
+            setLayoutNeeded();
+            return;
+        }
+        if (DEBUG_LAYOUT) Slog.w(TAG_WM, "setLayoutNeeded: win=" + win
+                + " callers=" + Debug.getCallers(3));
+        mLayoutNeeded = true;
+        mLayoutDirtyTokens.add(win.mAppToken);
     }
 
     private void clearLayoutNeeded() {
         if (DEBUG_LAYOUT) Slog.w(TAG_WM, "clearLayoutNeeded: callers=" + Debug.getCallers(3));
         mLayoutNeeded = false;
+        mFullLayoutNeeded = false;
+        mLayoutDirtyTokens.clear();
     }
 
     boolean isLayoutNeeded() {
@@ -2816,6 +2869,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         if (!isLayoutNeeded()) {
             return;
         }
+        final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
+        mTmpIncrementalLayout = surfacePlacer.isIncrementalLayoutEnabled() && !mFullLayoutNeeded;
+        if (mTmpIncrementalLayout) {
+            mTmpLayoutDirtyTokens.addAll(mLayoutDirtyTokens);
+        }
+        surfacePlacer.onDisplayLayout(mTmpIncrementalLayout);
         clearLayoutNeeded();
 
         final int dw = mDisplayInfo.logicalWidth;
@@ -2857,6 +2916,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // window they are attached to. XXX does not deal with windows that are attached to windows
         // that are themselves attached.
         forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        mTmpIncrementalLayout = false;
+        mTmpLayoutDirtyTokens.clear();
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
@@ -18,9 +18,14 @@ package com.android.server.wm;
 
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.Bitmap;
+import android.graphics.GraphicBuffer;
+import android.os.SystemProperties;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -29,27 +34,71 @@ import java.util.Map.Entry;
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
  * Access to this class should be guarded by the global window manager lock.
+ * <p>
+ * By default the snapshots of all running tasks are kept and snapshots restored from disk are
+ * not cached at all.  With a byte budget set through persist.sys.task_snapshot.cache_kb,
+ * snapshots restored from disk are kept as well, and once all cached snapshots exceed the
+ * budget the least recently used ones give way: snapshots restored from disk are dropped first,
+ * then snapshots of running tasks are replaced by reduced resolution copies, so that starting
+ * windows still find them in memory, and only then are those dropped.  While memory is low the
+ * budget is halved.  While memory is low or the cache is close to its budget, snapshots are
+ * restored at reduced resolution even if full resolution was asked for.
  */
 class TaskSnapshotCache {
 
+    /** Fraction of the budget above which restores fall back to reduced resolution. */
+    private static final float NEAR_BUDGET_FRACTION = 0.75f;
+
+    /** Fraction of the budget the cache is trimmed to while memory is low. */
+    private static final float LOW_MEMORY_BUDGET_FRACTION = 0.5f;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    /** Snapshots restored from disk, only kept when there is a budget. */
+    private final ArrayMap<Integer, CacheEntry> mRestoredCache = new ArrayMap<>();
+
+    /** Byte budget for all cached snapshots, or 0 if there is no limit. */
+    private final long mMaxBytes;
+    private long mBytes;
+    private long mAccessCount;
+    private boolean mLowMemory;
+
+    private int mHitCount;
+    private int mRestoredHitCount;
+    private int mMissCount;
+    private int mDiskLoadCount;
+    private int mEvictionCount;
+    private int mDowngradeCount;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+        this(service, loader,
+                SystemProperties.getInt("persist.sys.task_snapshot.cache_kb", 0) * 1024L);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader, long maxBytes) {
         mService = service;
         mLoader = loader;
+        mMaxBytes = maxBytes;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
         final CacheEntry entry = mRunningCache.get(task.mTaskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
+            mBytes -= entry.bytes;
         }
+        removeRestoredEntry(task.mTaskId);
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
-        mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        final CacheEntry newEntry = new CacheEntry(snapshot, task.getTopChild());
+        newEntry.lastUsed = ++mAccessCount;
+        mRunningCache.put(task.mTaskId, newEntry);
+        mBytes += newEntry.bytes;
+        trimToBudget();
     }
 
     /**
@@ -62,8 +111,23 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                entry.lastUsed = ++mAccessCount;
+                mHitCount++;
                 return entry.snapshot;
             }
+
+            // Snapshots restored earlier stand in for loading them again
+            final CacheEntry restored = restoreFromDisk ? mRestoredCache.get(taskId) : null;
+            if (restored != null
+                    && (reducedResolution || !restored.snapshot.isReducedResolution())) {
+                restored.lastUsed = ++mAccessCount;
+                mRestoredHitCount++;
+                return restored.snapshot;
+            }
+            mMissCount++;
+            if (!reducedResolution && (mLowMemory || isNearBudget())) {
+                reducedResolution = true;
+            }
         }
 
         // Try to restore from disk if asked.
@@ -81,9 +145,130 @@ class TaskSnapshotCache {
         if (snapshot == null) {
             return null;
         }
+        synchronized (mService.mWindowMap) {
+            mDiskLoadCount++;
+            // Don't replace a snapshot that was taken while this one was loading
+            if (mMaxBytes > 0 && !mRunningCache.containsKey(taskId)) {
+                removeRestoredEntry(taskId);
+                final CacheEntry entry = new CacheEntry(snapshot, null /* topApp */);
+                entry.lastUsed = ++mAccessCount;
+                mRestoredCache.put(taskId, entry);
+                mBytes += entry.bytes;
+                trimToBudget();
+            }
+        }
         return snapshot;
     }
 
+    /**
+     * Called when the device goes into or out of low memory.  While memory is low the budget is
+     * halved and snapshots are only restored at reduced resolution.
+     */
+    void setLowMemory(boolean lowMemory) {
+        if (mLowMemory == lowMemory) {
+            return;
+        }
+        mLowMemory = lowMemory;
+        trimToBudget();
+    }
+
+    private long getBudget() {
+        return mLowMemory ? (long) (mMaxBytes * LOW_MEMORY_BUDGET_FRACTION) : mMaxBytes;
+    }
+
+    private boolean isNearBudget() {
+        return mMaxBytes > 0 && mBytes > getBudget() * NEAR_BUDGET_FRACTION;
+    }
+
+    /**
+     * Makes the cache fit its budget.  The least recently used snapshots restored from disk are
+     * dropped first.  Then the least recently used snapshots of running tasks are replaced by
+     * reduced resolution copies, and only when all of them are reduced are those dropped.
+     */
+    private void trimToBudget() {
+        if (mMaxBytes <= 0) {
+            return;
+        }
+        final long budget = getBudget();
+        while (mBytes > budget && !mRestoredCache.isEmpty()) {
+            mEvictionCount++;
+            removeRestoredEntry(mRestoredCache.keyAt(findLeastRecentlyUsed(mRestoredCache,
+                    false /* fullResolutionOnly */)));
+        }
+        while (mBytes > budget) {
+            final int index = findLeastRecentlyUsed(mRunningCache, true /* fullResolutionOnly */);
+            if (index < 0) {
+                break;
+            }
+            final CacheEntry entry = mRunningCache.valueAt(index);
+            final TaskSnapshot reduced = createReducedSnapshot(entry.snapshot);
+            if (reduced == null) {
+                mEvictionCount++;
+                removeRunningEntry(mRunningCache.keyAt(index));
+                continue;
+            }
+            mDowngradeCount++;
+            mBytes -= entry.bytes;
+            entry.setSnapshot(reduced);
+            mBytes += entry.bytes;
+        }
+        while (mBytes > budget && !mRunningCache.isEmpty()) {
+            mEvictionCount++;
+            removeRunningEntry(mRunningCache.keyAt(findLeastRecentlyUsed(mRunningCache,
+                    false /* fullResolutionOnly */)));
+        }
+    }
+
+    /**
+     * @return the index of the least recently used entry of {@code cache}, only looking at the
+     *         ones at full resolution if {@code fullResolutionOnly}, or -1 if there is none
+     */
+    private static int findLeastRecentlyUsed(ArrayMap<Integer, CacheEntry> cache,
+            boolean fullResolutionOnly) {
+        int oldestIndex = -1;
+        long oldestUsed = Long.MAX_VALUE;
+        for (int i = cache.size() - 1; i >= 0; i--) {
+            final CacheEntry entry = cache.valueAt(i);
+            if (fullResolutionOnly && entry.snapshot.isReducedResolution()) {
+                continue;
+            }
+            if (entry.lastUsed < oldestUsed) {
+                oldestUsed = entry.lastUsed;
+                oldestIndex = i;
+            }
+        }
+        return oldestIndex;
+    }
+
+    /**
+     * @return a copy of {@code snapshot} scaled down like the reduced resolution snapshots on
+     *         disk, or null if it can't be scaled
+     */
+    private static TaskSnapshot createReducedSnapshot(TaskSnapshot snapshot) {
+        final GraphicBuffer buffer = snapshot.getSnapshot();
+        if (buffer == null) {
+            return null;
+        }
+        final Bitmap bitmap = Bitmap.createHardwareBitmap(buffer);
+        if (bitmap == null) {
+            return null;
+        }
+        final float scale = TaskSnapshotPersister.REDUCED_SCALE;
+        final Bitmap reduced = TaskSnapshotPersister.createScaledHardwareBitmap(bitmap,
+                (int) (buffer.getWidth() * scale), (int) (buffer.getHeight() * scale));
+        if (reduced == null) {
+            return null;
+        }
+        return new TaskSnapshot(reduced.createGraphicBufferHandle(), snapshot.getOrientation(),
+                snapshot.getContentInsets(), true /* reducedResolution */,
+                snapshot.getScale() * scale);
+    }
+
+    @VisibleForTesting
+    long getBytes() {
+        return mBytes;
+    }
+
     /**
      * Called when an app token has been removed
      */
@@ -106,6 +291,7 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removeRestoredEntry(taskId);
     }
 
     private void removeRunningEntry(int taskId) {
@@ -113,6 +299,14 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
             mRunningCache.remove(taskId);
+            mBytes -= entry.bytes;
+        }
+    }
+
+    private void removeRestoredEntry(int taskId) {
+        final CacheEntry entry = mRestoredCache.remove(taskId);
+        if (entry != null) {
+            mBytes -= entry.bytes;
         }
     }
 
@@ -120,25 +314,54 @@ class TaskSnapshotCache {
         final String doublePrefix = prefix + "  ";
         final String triplePrefix = doublePrefix + "  ";
         pw.println(prefix + "SnapshotCache");
+        final int lookups = mHitCount + mRestoredHitCount + mMissCount;
+        pw.println(doublePrefix + "maxBytes=" + mMaxBytes + " bytes=" + mBytes
+                + " lowMemory=" + mLowMemory
+                + " hits=" + mHitCount + " restoredHits=" + mRestoredHitCount
+                + " misses=" + mMissCount + " diskLoads=" + mDiskLoadCount
+                + " evictions=" + mEvictionCount + " downgrades=" + mDowngradeCount
+                + " hitRate="
+                + (lookups != 0 ? 100 * (mHitCount + mRestoredHitCount) / lookups : 0) + "%");
         for (int i = mRunningCache.size() - 1; i >= 0; i--) {
             final CacheEntry entry = mRunningCache.valueAt(i);
             pw.println(doublePrefix + "Entry taskId=" + mRunningCache.keyAt(i));
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        for (int i = mRestoredCache.size() - 1; i >= 0; i--) {
+            final CacheEntry entry = mRestoredCache.valueAt(i);
+            pw.println(doublePrefix + "Restored entry taskId=" + mRestoredCache.keyAt(i));
+            pw.println(triplePrefix + "snapshot=" + entry.snapshot);
+        }
     }
 
     private static final class CacheEntry {
 
-        /** The snapshot. */
-        final TaskSnapshot snapshot;
+        /** The snapshot, replaced by a reduced resolution copy when over budget. */
+        TaskSnapshot snapshot;
 
-        /** The app token that was on top of the task when the snapshot was taken */
+        /**
+         * The app token that was on top of the task when the snapshot was taken, or null for
+         * snapshots restored from disk
+         */
         final AppWindowToken topApp;
 
+        /** Approximate memory used by the snapshot's buffer */
+        long bytes;
+
+        /** Value of the access counter when the entry was last used, for LRU eviction */
+        long lastUsed;
+
         CacheEntry(TaskSnapshot snapshot, AppWindowToken topApp) {
-            this.snapshot = snapshot;
             this.topApp = topApp;
+            setSnapshot(snapshot);
+        }
+
+        void setSnapshot(TaskSnapshot snapshot) {
+            this.snapshot = snapshot;
+            final GraphicBuffer buffer = snapshot.getSnapshot();
+            // Snapshots are RGBA_8888
+            this.bytes = buffer != null ? (long) buffer.getWidth() * buffer.getHeight() * 4 : 0;
         }
     }
 }
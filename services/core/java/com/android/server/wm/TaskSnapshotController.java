@@ -318,6 +318,13 @@ class TaskSnapshotController {
         mCache.onAppDied(wtoken);
     }
 
+    /**
+     * Called when the device goes into or out of low memory.
+     */
+    void setLowMemory(boolean lowMemory) {
+        mCache.setLowMemory(lowMemory);
+    }
+
     void notifyTaskRemovedFromRecents(int taskId, int userId) {
         mCache.onTaskRemoved(taskId);
         mPersister.onTaskRemovedFromRecents(taskId, userId);
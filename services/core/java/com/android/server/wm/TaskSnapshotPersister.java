@@ -27,10 +27,17 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.GraphicBuffer;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseLongArray;
+import android.view.DisplayListCanvas;
+import android.view.RenderNode;
+import android.view.ThreadedRenderer;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -40,8 +47,11 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.zip.CRC32;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -57,10 +67,20 @@ class TaskSnapshotPersister {
     static final boolean DISABLE_FULL_SIZED_BITMAPS = ActivityManager.isLowRamDeviceStatic();
     private static final long DELAY_MS = 100;
     private static final int QUALITY = 95;
+
+    /** Number of ints of dimensions and metadata hashed after the pixels of a snapshot. */
+    private static final int SIGNATURE_METADATA_INTS = 10;
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
 
+    /**
+     * Whether to skip writing snapshots whose content matches what was last written for the
+     * task, and to scale the reduced resolution copy on the GPU.
+     */
+    private static final boolean SKIP_UNCHANGED_WRITES =
+            SystemProperties.getBoolean("persist.sys.task_snapshot.skip_unchanged", false);
+
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
@@ -72,6 +92,13 @@ class TaskSnapshotPersister {
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
+    private final boolean mSkipUnchangedWrites;
+
+    /**
+     * Signatures of the snapshots last written, by task id.  Only accessed on the persister
+     * thread.
+     */
+    private final SparseLongArray mWrittenSignatures = new SparseLongArray();
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -81,7 +108,13 @@ class TaskSnapshotPersister {
     private final ArraySet<Integer> mPersistedTaskIdsSinceLastRemoveObsolete = new ArraySet<>();
 
     TaskSnapshotPersister(DirectoryResolver resolver) {
+        this(resolver, SKIP_UNCHANGED_WRITES);
+    }
+
+    @VisibleForTesting
+    TaskSnapshotPersister(DirectoryResolver resolver, boolean skipUnchangedWrites) {
         mDirectoryResolver = resolver;
+        mSkipUnchangedWrites = skipUnchangedWrites;
     }
 
     /**
@@ -104,6 +137,7 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
+            removeQueuedStoresLocked(taskId);
             sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
         }
     }
@@ -117,6 +151,7 @@ class TaskSnapshotPersister {
     void onTaskRemovedFromRecents(int taskId, int userId) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.remove(taskId);
+            removeQueuedStoresLocked(taskId);
             sendToQueueLocked(new DeleteWriteQueueItem(taskId, userId));
         }
     }
@@ -167,6 +202,21 @@ class TaskSnapshotPersister {
         }
     }
 
+    /**
+     * Drops snapshots of {@code taskId} that are still waiting to be written, as whatever is
+     * queued next for the task replaces them anyway.
+     */
+    @GuardedBy("mLock")
+    private void removeQueuedStoresLocked(int taskId) {
+        for (Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator(); it.hasNext(); ) {
+            final StoreWriteQueueItem item = it.next();
+            if (item.mTaskId == taskId) {
+                it.remove();
+                mWriteQueue.remove(item);
+            }
+        }
+    }
+
     @GuardedBy("mLock")
     private void ensureStoreQueueDepthLocked() {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
@@ -203,6 +253,7 @@ class TaskSnapshotPersister {
     }
 
     private void deleteSnapshot(int taskId, int userId) {
+        mWrittenSignatures.delete(taskId);
         final File protoFile = getProtoFile(taskId, userId);
         final File bitmapReducedFile = getReducedResolutionBitmapFile(taskId, userId);
         protoFile.delete();
@@ -297,6 +348,10 @@ class TaskSnapshotPersister {
                 Slog.e(TAG, "Unable to create snapshot directory for user dir="
                         + getDirectory(mUserId));
             }
+            if (mSkipUnchangedWrites) {
+                writeIfChanged();
+                return;
+            }
             boolean failed = false;
             if (!writeProto()) {
                 failed = true;
@@ -346,12 +401,7 @@ class TaskSnapshotPersister {
                     : Bitmap.createScaledBitmap(swBitmap,
                             (int) (bitmap.getWidth() * REDUCED_SCALE),
                             (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
-            try {
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
+            if (!writeBitmap(reduced, reducedFile)) {
                 return false;
             }
 
@@ -360,10 +410,13 @@ class TaskSnapshotPersister {
                 return true;
             }
 
-            final File file = getBitmapFile(mTaskId, mUserId);
+            return writeBitmap(swBitmap, getBitmapFile(mTaskId, mUserId));
+        }
+
+        private boolean writeBitmap(Bitmap bitmap, File file) {
             try {
                 FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
+                bitmap.compress(JPEG, QUALITY, fos);
                 fos.close();
             } catch (IOException e) {
                 Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
@@ -371,6 +424,112 @@ class TaskSnapshotPersister {
             }
             return true;
         }
+
+        /**
+         * Like {@link #writeProto} and {@link #writeBuffer} together, but the reduced copy is
+         * scaled on the GPU and read back first, and nothing is written if its pixels and the
+         * metadata match what was last written for the task.  Only a snapshot that did change
+         * is copied back at full size.
+         */
+        private void writeIfChanged() {
+            final Bitmap bitmap = Bitmap.createHardwareBitmap(mSnapshot.getSnapshot());
+            if (bitmap == null) {
+                Slog.e(TAG, "Invalid task snapshot hw bitmap");
+                deleteSnapshot(mTaskId, mUserId);
+                return;
+            }
+            final Bitmap reduced = createReducedBitmap(bitmap);
+            final long signature = computeSignature(reduced);
+            final int index = mWrittenSignatures.indexOfKey(mTaskId);
+            if (index >= 0 && mWrittenSignatures.valueAt(index) == signature && filesExist()) {
+                return;
+            }
+
+            mWrittenSignatures.delete(mTaskId);
+            boolean failed = !writeProto();
+            if (!failed) {
+                failed = !writeBitmap(reduced, getReducedResolutionBitmapFile(mTaskId, mUserId));
+            }
+            if (!failed && !mSnapshot.isReducedResolution()) {
+                final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
+                failed = !writeBitmap(swBitmap, getBitmapFile(mTaskId, mUserId));
+            }
+            if (failed) {
+                deleteSnapshot(mTaskId, mUserId);
+            } else {
+                mWrittenSignatures.put(mTaskId, signature);
+            }
+        }
+
+        /**
+         * @return a software copy of {@code bitmap} at reduced resolution, scaled on the GPU
+         *         unless the snapshot already is at reduced resolution.
+         */
+        private Bitmap createReducedBitmap(Bitmap bitmap) {
+            if (mSnapshot.isReducedResolution()) {
+                return bitmap.copy(Config.ARGB_8888, false /* isMutable */);
+            }
+            final int width = (int) (bitmap.getWidth() * REDUCED_SCALE);
+            final int height = (int) (bitmap.getHeight() * REDUCED_SCALE);
+            final Bitmap hwReduced = createScaledHardwareBitmap(bitmap, width, height);
+            if (hwReduced == null) {
+                return Bitmap.createScaledBitmap(
+                        bitmap.copy(Config.ARGB_8888, false /* isMutable */), width, height,
+                        true /* filter */);
+            }
+            return hwReduced.copy(Config.ARGB_8888, false /* isMutable */);
+        }
+
+        /**
+         * Returns a CRC32 of the pixels of the reduced copy, its dimensions, the full size and
+         * everything that goes into the proto, with the pixel byte count in the upper bits.
+         * Every pixel of the full sized snapshot contributes to the filtered reduced copy, so a
+         * change that leaves the reduced copy identical is too small to matter.
+         */
+        private long computeSignature(Bitmap reduced) {
+            final GraphicBuffer buffer = mSnapshot.getSnapshot();
+            final Rect insets = mSnapshot.getContentInsets();
+            final ByteBuffer data = ByteBuffer.allocate(
+                    reduced.getByteCount() + SIGNATURE_METADATA_INTS * Integer.BYTES);
+            reduced.copyPixelsToBuffer(data);
+            data.putInt(reduced.getWidth());
+            data.putInt(reduced.getHeight());
+            data.putInt(buffer.getWidth());
+            data.putInt(buffer.getHeight());
+            data.putInt(mSnapshot.getOrientation());
+            data.putInt(insets.left);
+            data.putInt(insets.top);
+            data.putInt(insets.right);
+            data.putInt(insets.bottom);
+            data.putInt(mSnapshot.isReducedResolution() ? 1 : 0);
+            final CRC32 crc = new CRC32();
+            crc.update(data.array());
+            return ((long) reduced.getByteCount() << 32) | crc.getValue();
+        }
+
+        private boolean filesExist() {
+            if (!getProtoFile(mTaskId, mUserId).exists()
+                    || !getReducedResolutionBitmapFile(mTaskId, mUserId).exists()) {
+                return false;
+            }
+            return mSnapshot.isReducedResolution() || getBitmapFile(mTaskId, mUserId).exists();
+        }
+    }
+
+    /**
+     * Scales {@code bitmap} to {@code width}x{@code height} on the GPU.
+     *
+     * @return the scaled hardware bitmap, or null if it couldn't be drawn
+     */
+    static Bitmap createScaledHardwareBitmap(Bitmap bitmap, int width, int height) {
+        final RenderNode node = RenderNode.create("TaskSnapshotPersister", null);
+        node.setLeftTopRightBottom(0, 0, width, height);
+        node.setClipToBounds(false);
+        final DisplayListCanvas c = node.start(width, height);
+        c.drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        node.end(c);
+        return ThreadedRenderer.createHardwareBitmap(node, width, height);
     }
 
     private class DeleteWriteQueueItem extends WriteQueueItem {
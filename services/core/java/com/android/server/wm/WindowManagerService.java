@@ -3796,6 +3796,14 @@ public class WindowManagerService extends IWindowManager.Stub
         return true;
     }
 
+    /**
+     * Called by the activity manager when the device goes into or out of low memory, so that
+     * cached task snapshots can be trimmed.
+     */
+    public void setLowMemory(boolean lowMemory) {
+        mH.obtainMessage(H.SET_LOW_MEMORY, lowMemory ? 1 : 0, 0).sendToTarget();
+    }
+
     public TaskSnapshot getTaskSnapshot(int taskId, int userId, boolean reducedResolution) {
         return mTaskSnapshotController.getSnapshot(taskId, userId, true /* restoreFromDisk */,
                 reducedResolution);
@@ -4919,6 +4927,7 @@ public class WindowManagerService extends IWindowManager.Stub
         public static final int NOTIFY_KEYGUARD_FLAGS_CHANGED = 56;
         public static final int NOTIFY_KEYGUARD_TRUSTED_CHANGED = 57;
         public static final int SET_HAS_OVERLAY_UI = 58;
+        public static final int SET_LOW_MEMORY = 59;
 
         /**
          * Used to denote that an integer field in a message will not be used.
@@ -5385,6 +5394,12 @@ public class WindowManagerService extends IWindowManager.Stub
                     mAmInternal.setHasOverlayUi(msg.arg1, msg.arg2 == 1);
                 }
                 break;
+                case SET_LOW_MEMORY: {
+                    synchronized (mWindowMap) {
+                        mTaskSnapshotController.setLowMemory(msg.arg1 == 1);
+                    }
+                }
+                break;
             }
             if (DEBUG_WINDOW_TRACE) {
                 Slog.v(TAG_WM, "handleMessage: exit");
@@ -2216,7 +2216,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
     void setDisplayLayoutNeeded() {
         final DisplayContent dc = getDisplayContent();
         if (dc != null) {
-            dc.setLayoutNeeded();
+            dc.setLayoutNeeded(this);
         }
     }
 
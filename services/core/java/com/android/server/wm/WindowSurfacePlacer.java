@@ -44,6 +44,7 @@ import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.os.Binder;
 import android.os.Debug;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.ArraySet;
 import android.util.Slog;
@@ -55,6 +56,7 @@ import android.view.SurfaceControl;
 import android.view.WindowManager.LayoutParams;
 import android.view.animation.Animation;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.wm.WindowManagerService.H;
 
 import java.io.PrintWriter;
@@ -100,8 +102,24 @@ class WindowSurfacePlacer {
 
     private final Runnable mPerformSurfacePlacement;
 
+    /**
+     * Whether a layout requested only by app windows re-lays out just the windows of those apps.
+     * See {@link DisplayContent#setLayoutNeeded(WindowState)}.
+     */
+    private boolean mIncrementalLayoutEnabled;
+
+    // Work done by the last placement pass, and since boot.
+    private int mPassFullLayouts;
+    private int mPassIncrementalLayouts;
+    private int mPassWindowsLaidOut;
+    private int mPassWindowsSkipped;
+    private long mTotalWindowsLaidOut;
+    private long mTotalWindowsSkipped;
+
     public WindowSurfacePlacer(WindowManagerService service) {
         mService = service;
+        mIncrementalLayoutEnabled =
+                SystemProperties.getBoolean("persist.sys.wm.incremental_layout", false);
         mWallpaperControllerLocked = mService.mRoot.mWallpaperController;
         mPerformSurfacePlacement = () -> {
             synchronized (mService.mWindowMap) {
@@ -173,6 +191,10 @@ class WindowSurfacePlacer {
 
         Trace.traceBegin(Trace.TRACE_TAG_WINDOW_MANAGER, "wmLayout");
         mInLayout = true;
+        mPassFullLayouts = 0;
+        mPassIncrementalLayouts = 0;
+        mPassWindowsLaidOut = 0;
+        mPassWindowsSkipped = 0;
 
         boolean recoveringMemory = false;
         if (!mService.mForceRemoves.isEmpty()) {
@@ -756,6 +778,39 @@ class WindowSurfacePlacer {
         }
     }
 
+    boolean isIncrementalLayoutEnabled() {
+        return mIncrementalLayoutEnabled;
+    }
+
+    @VisibleForTesting
+    void setIncrementalLayoutEnabled(boolean enabled) {
+        mIncrementalLayoutEnabled = enabled;
+    }
+
+    /** Called when a display starts a layout, see {@link DisplayContent#performLayout}. */
+    void onDisplayLayout(boolean incremental) {
+        if (incremental) {
+            mPassIncrementalLayouts++;
+        } else {
+            mPassFullLayouts++;
+        }
+    }
+
+    void onWindowLaidOut() {
+        mPassWindowsLaidOut++;
+        mTotalWindowsLaidOut++;
+    }
+
+    void onWindowLayoutSkipped() {
+        mPassWindowsSkipped++;
+        mTotalWindowsSkipped++;
+    }
+
+    @VisibleForTesting
+    int getPassWindowsSkipped() {
+        return mPassWindowsSkipped;
+    }
+
     void requestTraversal() {
         if (!mTraversalScheduled) {
             mTraversalScheduled = true;
@@ -786,5 +841,12 @@ class WindowSurfacePlacer {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        pw.println(prefix + "mIncrementalLayoutEnabled=" + mIncrementalLayoutEnabled);
+        pw.println(prefix + "Last pass: fullLayouts=" + mPassFullLayouts
+                + " incrementalLayouts=" + mPassIncrementalLayouts
+                + " windowsLaidOut=" + mPassWindowsLaidOut
+                + " windowsSkipped=" + mPassWindowsSkipped);
+        pw.println(prefix + "Total: windowsLaidOut=" + mTotalWindowsLaidOut
+                + " windowsSkipped=" + mTotalWindowsSkipped);
     }
 }
@@ -355,6 +355,11 @@ public final class SystemServer {
             // to avoid throwing BadParcelableException.
             BaseBundle.setShouldDefuse(true);
 
+            // Most incoming Bundles are only partially read by the system, so leave values in
+            // the parcel until they are asked for.
+            BaseBundle.setLazyUnparcel(
+                    SystemProperties.getBoolean("persist.sys.bundle_lazy_unparcel", false));
+
             // Ensure binder calls into the system always run at foreground priority.
             BinderInternal.disableBackgroundScheduling(true);
 
@@ -16,7 +16,11 @@
 
 package com.android.server.notification;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import android.app.NotificationChannel;
 import android.content.Intent;
@@ -25,6 +29,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.NotificationListenerService.Ranking;
+import android.service.notification.NotificationListenerService.RankingMap;
 import android.service.notification.NotificationRankingUpdate;
 import android.service.notification.SnoozeCriterion;
 import android.support.test.runner.AndroidJUnit4;
@@ -63,7 +68,71 @@ public class NotificationListenerServiceTest extends NotificationTestCase {
         }
     }
 
+    @Test
+    public void testDeltaRanking() throws Exception {
+        TestListenerService service = new TestListenerService();
+        service.applyUpdateLocked(generateUpdate(1));
+
+        // Drop "key3", move "key1" to the front and change its attributes
+        final String changedKey = "key1";
+        final Bundle visibilityOverrides = new Bundle();
+        visibilityOverrides.putInt(changedKey, 5);
+        final Bundle suppressedVisualEffects = new Bundle();
+        suppressedVisualEffects.putInt(changedKey, 0);
+        final Bundle explanation = new Bundle();
+        explanation.putString(changedKey, "changed");
+        final Bundle overrideGroupKeys = new Bundle();
+        overrideGroupKeys.putString(changedKey, "group");
+        final Bundle channels = new Bundle();
+        channels.putParcelable(changedKey, getChannel(changedKey, 4));
+        final Bundle overridePeople = new Bundle();
+        overridePeople.putStringArrayList(changedKey, getPeople(changedKey, 0));
+        final Bundle snoozeCriteria = new Bundle();
+        snoozeCriteria.putParcelableArrayList(changedKey, getSnoozeCriteria(changedKey, 0));
+        final Bundle showBadge = new Bundle();
+        showBadge.putBoolean(changedKey, true);
+        service.applyUpdateLocked(new NotificationRankingUpdate(2, 1,
+                new String[] { changedKey }, new String[] { "key1", "key", "key2" },
+                new String[] { "key" }, visibilityOverrides, suppressedVisualEffects,
+                new int[] { 4 }, explanation, overrideGroupKeys, channels, overridePeople,
+                snoozeCriteria, showBadge));
+
+        final RankingMap rankingMap = service.getCurrentRanking();
+        assertArrayEquals(new String[] { "key1", "key", "key2" }, rankingMap.getOrderedKeys());
+        Ranking ranking = new Ranking();
+        assertTrue(rankingMap.getRanking(changedKey, ranking));
+        assertEquals(0, ranking.getRank());
+        assertEquals(4, ranking.getImportance());
+        assertEquals(5, ranking.getVisibilityOverride());
+        assertEquals("changed", ranking.getImportanceExplanation());
+        assertEquals(getChannel(changedKey, 4), ranking.getChannel());
+        assertTrue(ranking.canShowBadge());
+
+        // Unchanged attributes come from the previous update
+        ranking = new Ranking();
+        assertTrue(rankingMap.getRanking("key2", ranking));
+        assertEquals(2, ranking.getRank());
+        assertEquals(getImportance(2), ranking.getImportance());
+        assertEquals(getExplanation("key2"), ranking.getImportanceExplanation());
+        assertEquals(getChannel("key2", 2), ranking.getChannel());
+        assertEquals(getPeople("key2", 2), ranking.getAdditionalPeople());
+        // ...apart from the intercepted keys, which are always sent in full
+        assertTrue(ranking.matchesInterruptionFilter());
+        assertFalse(rankingMap.getRanking("key3", new Ranking()));
+
+        // A delta against a version the listener does not have is not applied
+        service.applyUpdateLocked(new NotificationRankingUpdate(4, 3, new String[0],
+                new String[] { "key" }, new String[0], new Bundle(), new Bundle(), new int[0],
+                new Bundle(), new Bundle(), new Bundle(), new Bundle(), new Bundle(),
+                new Bundle()));
+        assertSame(rankingMap, service.getCurrentRanking());
+    }
+
     private NotificationRankingUpdate generateUpdate() {
+        return generateUpdate(0);
+    }
+
+    private NotificationRankingUpdate generateUpdate(int version) {
         List<String> interceptedKeys = new ArrayList<>();
         Bundle visibilityOverrides = new Bundle();
         Bundle overrideGroupKeys = new Bundle();
@@ -90,7 +159,7 @@ public class NotificationListenerServiceTest extends NotificationTestCase {
             snoozeCriteria.putParcelableArrayList(key, getSnoozeCriteria(key, i));
             showBadge.putBoolean(key, getShowBadge(i));
         }
-        NotificationRankingUpdate update = new NotificationRankingUpdate(mKeys,
+        NotificationRankingUpdate update = new NotificationRankingUpdate(version, 0, null, mKeys,
                 interceptedKeys.toArray(new String[0]), visibilityOverrides,
                 suppressedVisualEffects, importance, explanation, overrideGroupKeys,
                 channels, overridePeople, snoozeCriteria, showBadge);
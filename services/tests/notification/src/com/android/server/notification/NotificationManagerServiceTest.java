@@ -66,6 +66,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService;
+import android.service.notification.NotificationRankingUpdate;
 import android.service.notification.StatusBarNotification;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.testing.AndroidTestingRunner;
@@ -1599,7 +1600,7 @@ public class NotificationManagerServiceTest extends NotificationTestCase {
         mNotificationManagerService.addNotification(r);
         mNotificationManagerService.addAutogroupKeyLocked(r.getKey());
 
-        verify(rh, times(1)).requestSort();
+        verify(rh, times(1)).requestSort(r.getKey());
     }
 
     @Test
@@ -1612,7 +1613,7 @@ public class NotificationManagerServiceTest extends NotificationTestCase {
         mNotificationManagerService.addNotification(r);
         mNotificationManagerService.removeAutogroupKeyLocked(r.getKey());
 
-        verify(rh, times(1)).requestSort();
+        verify(rh, times(1)).requestSort(r.getKey());
     }
 
     @Test
@@ -1626,6 +1627,7 @@ public class NotificationManagerServiceTest extends NotificationTestCase {
         mNotificationManagerService.addAutogroupKeyLocked(r.getKey());
 
         verify(rh, never()).requestSort();
+        verify(rh, never()).requestSort(anyString());
     }
 
     @Test
@@ -1764,4 +1766,118 @@ public class NotificationManagerServiceTest extends NotificationTestCase {
                 preOPkg, NotificationChannel.DEFAULT_CHANNEL_ID);
         assertEquals(IMPORTANCE_UNSPECIFIED, defaultChannel.getImportance());
     }
+
+    private NotificationRecord[] addRankedNotifications(int count) {
+        mNotificationManagerService.mDeltaRankingUpdates = true;
+        final NotificationRecord[] records = new NotificationRecord[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = generateNotificationRecord(mTestNotificationChannel, i, null, false);
+            mNotificationManagerService.addNotification(records[i]);
+        }
+        return records;
+    }
+
+    @Test
+    public void testRankingUpdate_deltaCarriesOnlyChangedNotifications() throws Exception {
+        final NotificationRecord[] records = addRankedNotifications(4);
+        final NotificationRankingUpdate first =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertFalse(first.isDelta());
+        assertEquals(4, first.getOrderedKeys().length);
+
+        records[2].setOverrideGroupKey("bananas");
+        final NotificationRankingUpdate delta =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertTrue(delta.isDelta());
+        assertEquals(first.getVersion(), delta.getBaseVersion());
+        assertEquals(first.getVersion() + 1, delta.getVersion());
+        assertEquals(4, delta.getOrderedKeys().length);
+        assertTrue(Arrays.equals(new String[] { records[2].getKey() }, delta.getChangedKeys()));
+        assertEquals(1, delta.getImportance().length);
+        assertEquals(1, delta.getOverrideGroupKeys().size());
+
+        final NotificationRankingUpdate merged = first.applyDelta(delta);
+        assertNotNull(merged);
+        assertFalse(merged.isDelta());
+        assertEquals("bananas", merged.getOverrideGroupKeys().getString(records[2].getKey()));
+        assertEquals(4, merged.getImportance().length);
+
+        // Nothing changed, so nothing but the order is sent
+        final NotificationRankingUpdate empty =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertTrue(empty.isDelta());
+        assertEquals(0, empty.getChangedKeys().length);
+    }
+
+    @Test
+    public void testRankingUpdate_snapshotWhenMostNotificationsChanged() throws Exception {
+        final NotificationRecord[] records = addRankedNotifications(4);
+        final NotificationRankingUpdate first =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+
+        // Half of them changing is still sent as a delta
+        records[0].setOverrideGroupKey("bananas");
+        records[1].setOverrideGroupKey("bananas");
+        assertTrue(mNotificationManagerService.makeRankingUpdateLocked(mListener, true)
+                .isDelta());
+
+        records[0].setShowBadge(!records[0].canShowBadge());
+        records[1].setShowBadge(!records[1].canShowBadge());
+        records[2].setShowBadge(!records[2].canShowBadge());
+        final NotificationRankingUpdate snapshot =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertFalse(snapshot.isDelta());
+        assertNull(snapshot.getChangedKeys());
+        assertEquals(first.getVersion() + 2, snapshot.getVersion());
+        assertEquals(4, snapshot.getImportance().length);
+
+        // A snapshot is also sent when deltas are not allowed
+        assertFalse(mNotificationManagerService.makeRankingUpdateLocked(mListener, false)
+                .isDelta());
+    }
+
+    @Test
+    public void testRankingUpdate_deltaAgainstOtherVersionIsRejected() throws Exception {
+        final NotificationRecord[] records = addRankedNotifications(4);
+        final NotificationRankingUpdate first =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        records[0].setOverrideGroupKey("bananas");
+        final NotificationRankingUpdate delta1 =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        records[1].setOverrideGroupKey("bananas");
+        final NotificationRankingUpdate delta2 =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+
+        // A listener that missed delta1 can't apply delta2, and asks for a snapshot instead
+        assertNull(first.applyDelta(delta2));
+        // Deltas only apply to full updates
+        assertNull(delta1.applyDelta(delta2));
+
+        final NotificationRankingUpdate merged = first.applyDelta(delta1).applyDelta(delta2);
+        assertNotNull(merged);
+        assertEquals(delta2.getVersion(), merged.getVersion());
+        assertEquals("bananas", merged.getOverrideGroupKeys().getString(records[0].getKey()));
+        assertEquals("bananas", merged.getOverrideGroupKeys().getString(records[1].getKey()));
+    }
+
+    @Test
+    public void testRankingUpdate_versionWrapsAroundSkippingZero() throws Exception {
+        final NotificationRecord[] records = addRankedNotifications(4);
+        mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        mNotificationManagerService.mListenerRankingStates.get(mListener).version =
+                Integer.MAX_VALUE;
+
+        records[0].setOverrideGroupKey("bananas");
+        final NotificationRankingUpdate delta =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertTrue(delta.isDelta());
+        assertEquals(Integer.MAX_VALUE, delta.getBaseVersion());
+        assertEquals(1, delta.getVersion());
+
+        records[1].setOverrideGroupKey("bananas");
+        final NotificationRankingUpdate next =
+                mNotificationManagerService.makeRankingUpdateLocked(mListener, true);
+        assertEquals(1, next.getBaseVersion());
+        assertEquals(2, next.getVersion());
+    }
 }
@@ -48,6 +48,7 @@ import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.testing.TestableContentResolver;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Xml;
 
 import com.android.internal.util.FastXmlSerializer;
@@ -322,6 +323,87 @@ public class RankingHelperTest extends NotificationTestCase {
         mHelper.sort(notificationList);
     }
 
+    @Test
+    public void testSortIncrementallyMatchesFullSort() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        // All of different 'when', so that neither sort has ties to break
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+
+        // Post two more, one of them into an existing group
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroup2);
+        ArraySet<NotificationRecord> changed = new ArraySet<>();
+        changed.add(mRecordGroupGSortA);
+        changed.add(mRecordNoGroup2);
+        mHelper.sortIncrementally(notificationList, changed);
+        ArrayList<NotificationRecord> incremental = new ArrayList<>(notificationList);
+        ArrayList<String> incrementalKeys = new ArrayList<>();
+        for (NotificationRecord record : incremental) {
+            incrementalKeys.add(record.getGlobalSortKey());
+        }
+
+        mHelper.sort(notificationList);
+        assertEquals(notificationList, incremental);
+        for (int i = 0; i < notificationList.size(); i++) {
+            assertEquals(notificationList.get(i).getGlobalSortKey(), incrementalKeys.get(i));
+        }
+    }
+
+    @Test
+    public void testSortIncrementallyFallsBackWithoutRanks() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        // Never sorted, so every record has the same rank
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroup2);
+        notificationList.add(mRecordGroupGSortA);
+        ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+        ArraySet<NotificationRecord> changed = new ArraySet<>();
+        changed.add(mRecordGroupGSortA);
+        mHelper.sortIncrementally(notificationList, changed);
+        // Same order as a full sort of the list as it was before
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
+
+    @Test
+    public void testSortIncrementallyAfterDefaultDialerChange() throws Exception {
+        mHelper.mPreliminaryComparator.setDefaultPhoneApp("some.other.dialer");
+        // Older than the other records, and only ahead of them when from the default dialer
+        Notification call = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle("call")
+                .setCategory(Notification.CATEGORY_CALL)
+                .setWhen(1000)
+                .build();
+        call.flags |= Notification.FLAG_FOREGROUND_SERVICE;
+        NotificationRecord callRecord = new NotificationRecord(mContext, new StatusBarNotification(
+                PKG, PKG, 2, null, 0, 0, call, UserHandle.ALL,
+                null, System.currentTimeMillis()), getDefaultChannel());
+
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        notificationList.add(callRecord);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+        notificationList.add(mRecordNoGroup2);
+        ArraySet<NotificationRecord> changed = new ArraySet<>();
+        changed.add(mRecordNoGroup2);
+        mHelper.sortIncrementally(notificationList, changed);
+        assertEquals(callRecord, notificationList.get(notificationList.size() - 1));
+
+        // Nothing asks for a sort when the dialer changes
+        mHelper.mPreliminaryComparator.setDefaultPhoneApp(PKG);
+        notificationList.add(mRecordGroupGSortA);
+        changed.clear();
+        changed.add(mRecordGroupGSortA);
+        mHelper.sortIncrementally(notificationList, changed);
+        assertEquals(callRecord, notificationList.get(0));
+
+        ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
@@ -40,6 +40,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
@@ -558,6 +560,143 @@ public class DropBoxTest extends AndroidTestCase {
         f2.close();
     }
 
+    public void testSegments() throws Exception {
+        File dir = getEmptyDir("testSegments");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper(), true);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 1000; i++) big.append("big text ").append(i).append('\n');
+
+        dropbox.addText("DropBoxTest", "TEST0");
+        dropbox.addText("DropBoxTest", big.toString());
+        dropbox.addText("DropBoxTest", "TEST1");
+        dropbox.addData("DropBoxTest", new byte[] { 1, 2, 3 }, 0);
+
+        // The small entries share one segment, the big one gets its own compressed file
+        File[] files = dir.listFiles();
+        assertEquals(2, files.length);
+        int segments = 0;
+        for (File f : files) {
+            if (f.getName().endsWith(".seg")) segments++;
+            else assertTrue(f.getName().endsWith(".txt.gz"));
+        }
+        assertEquals(1, segments);
+
+        // Entries read back the same from the running service and after a restart
+        for (int i = 0; i < 2; i++) {
+            DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", 0);
+            DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+            DropBoxManager.Entry e2 = dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis());
+            DropBoxManager.Entry e3 = dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis());
+            assertTrue(null == dropbox.getNextEntry("DropBoxTest", e3.getTimeMillis()));
+
+            assertEquals("TEST0", e0.getText(80));
+            assertEquals(big.toString(), e1.getText(big.length() + 1));
+            assertEquals("TEST1", e2.getText(80));
+            assertEquals(0, e3.getFlags());
+            assertEquals(3, getEntrySize(e3));
+
+            e0.close();
+            e1.close();
+            e2.close();
+            e3.close();
+
+            service = new DropBoxManagerService(getContext(), dir, Looper.getMainLooper(),
+                    true);
+            dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        }
+
+        // Dropping every entry in a segment deletes it
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "1");
+        dropbox.addText("DropBoxTest", big.toString());
+        DropBoxManager.Entry e0 = dropbox.getNextEntry(null, 0);
+        assertTrue(null == dropbox.getNextEntry(null, e0.getTimeMillis()));
+        assertEquals(big.toString(), e0.getText(big.length() + 1));
+        e0.close();
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    public void testSegmentCompaction() throws Exception {
+        File dir = getEmptyDir("testSegmentCompaction");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper(), true);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        for (int i = 0; i < 4; i++) dropbox.addText("DropBoxTest", "TEST" + i);
+        File segment = getSegmentFile(dir);
+        long fullLength = segment.length();
+
+        // Expiring all but one entry leaves the segment mostly dead, so it is rewritten
+        // with just the live records before the next one is appended
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "2");
+        dropbox.addText("DropBoxTest", "TEST4");
+        assertEquals(fullLength / 4 * 2, segment.length());
+        assertFalse(new String(readFile(segment)).contains("TEST0"));
+
+        for (int i = 0; i < 2; i++) {
+            DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", 0);
+            DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+            assertTrue(null == dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis()));
+            assertEquals("TEST3", e0.getText(80));
+            assertEquals("TEST4", e1.getText(80));
+            e0.close();
+            e1.close();
+
+            service = new DropBoxManagerService(getContext(), dir, Looper.getMainLooper(),
+                    true);
+            dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        }
+    }
+
+    public void testSegmentSizeLimits() throws Exception {
+        File dir = getEmptyDir("testSegmentSizeLimits");
+        int blockSize = new StatFs(dir.getPath()).getBlockSize();
+
+        // Limit storage to 2 blocks
+        int kb = blockSize * 2 / 1024;
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_QUOTA_KB, Integer.toString(kb));
+
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir,
+                Looper.getMainLooper(), true);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // A dozen quarter-block entries, each filled with its own letter
+        final int size = blockSize / 4;
+        final int count = 12;
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) ('a' + i));
+            dropbox.addData("DropBoxTest", data, 0);
+        }
+
+        // The oldest entries were dropped, their data zeroed and then compacted away
+        DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", 0);
+        assertEquals(DropBoxManager.IS_EMPTY, e0.getFlags());
+        e0.close();
+
+        File segment = getSegmentFile(dir);
+        assertTrue(segment.length() < count * size);
+        byte[] dropped = new byte[size];
+        Arrays.fill(dropped, (byte) 'a');
+        assertFalse(new String(readFile(segment)).contains(new String(dropped)));
+
+        // The newest entry is still there
+        DropBoxManager.Entry last = null;
+        for (DropBoxManager.Entry e = dropbox.getNextEntry("DropBoxTest", 0); e != null;
+                e = dropbox.getNextEntry("DropBoxTest", e.getTimeMillis())) {
+            if (last != null) last.close();
+            last = e;
+        }
+        assertEquals(0, last.getFlags());
+        assertEquals(size, getEntrySize(last));
+        last.close();
+    }
+
     public void testCreateDropBoxManagerWithInvalidDirectory() throws Exception {
         // If created with an invalid directory, the DropBoxManager should suffer quietly
         // and fail all operations (this is how it survives a full disk).
@@ -1006,6 +1145,22 @@ public class DropBoxTest extends AndroidTestCase {
         dropbox.addFile(tag, f, 0);
     }
 
+    private File getSegmentFile(File dir) {
+        File segment = null;
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(".seg")) {
+                assertNull(segment);
+                segment = f;
+            }
+        }
+        assertNotNull(segment);
+        return segment;
+    }
+
+    private byte[] readFile(File f) throws Exception {
+        return Files.readAllBytes(f.toPath());
+    }
+
     private int getEntrySize(DropBoxManager.Entry e) throws Exception {
         InputStream is = e.getInputStream();
         if (is == null) return -1;
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.IntentResolverTest.TestResolver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Replays an intent resolution trace against {@link IntentResolver} with and without the
+ * match cache.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverPerfTest {
+    private static final int APPS = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private void replayTrace(TestResolver resolver) throws Exception {
+        IntentResolverTest.addFilters(resolver, APPS);
+        final List<Intent> trace = IntentResolverTest.buildTrace(APPS);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < trace.size(); i++) {
+                final Intent intent = trace.get(i);
+                resolver.queryIntent(intent, intent.getType(), true, 0);
+            }
+        }
+    }
+
+    @Test
+    public void timeQueryIntentUncached() throws Exception {
+        replayTrace(new TestResolver());
+    }
+
+    @Test
+    public void timeQueryIntentCached() throws Exception {
+        final TestResolver resolver = new TestResolver();
+        resolver.setMatchCacheSize(64);
+        replayTrace(resolver);
+    }
+}
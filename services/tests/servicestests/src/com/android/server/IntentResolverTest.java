@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+
+    static class TestResolver extends IntentResolver<IntentFilter, IntentFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, IntentFilter filter) {
+            return false;
+        }
+
+        @Override
+        protected IntentFilter[] newArray(int size) {
+            return new IntentFilter[size];
+        }
+    }
+
+    /**
+     * Registers a mix of action-only, typed and scheme filters, similar to what a device with
+     * a few dozen apps declares.
+     */
+    static void addFilters(IntentResolver<IntentFilter, IntentFilter> resolver, int apps)
+            throws Exception {
+        for (int i = 0; i < apps; i++) {
+            final IntentFilter main = new IntentFilter(Intent.ACTION_MAIN);
+            main.addCategory(Intent.CATEGORY_LAUNCHER);
+            main.addCategory(Intent.CATEGORY_DEFAULT);
+            resolver.addFilter(main);
+
+            final IntentFilter send = new IntentFilter(Intent.ACTION_SEND, "text/plain");
+            send.addCategory(Intent.CATEGORY_DEFAULT);
+            send.setPriority(i % 3);
+            resolver.addFilter(send);
+
+            final IntentFilter view = new IntentFilter(Intent.ACTION_VIEW);
+            view.addCategory(Intent.CATEGORY_DEFAULT);
+            view.addCategory(Intent.CATEGORY_BROWSABLE);
+            view.addDataScheme("https");
+            view.addDataAuthority("app" + i + ".example.com", null);
+            resolver.addFilter(view);
+
+            final IntentFilter custom = new IntentFilter("com.example.ACTION_" + (i % 5));
+            resolver.addFilter(custom);
+        }
+    }
+
+    /**
+     * Intents as they show up in a resolution trace: launcher queries, shares, links and
+     * broadcasts, with the most common ones repeating.
+     */
+    static List<Intent> buildTrace(int apps) {
+        final ArrayList<Intent> trace = new ArrayList<>();
+        for (int i = 0; i < apps; i++) {
+            final Intent main = new Intent(Intent.ACTION_MAIN);
+            main.addCategory(Intent.CATEGORY_LAUNCHER);
+            trace.add(main);
+            trace.add(new Intent(Intent.ACTION_SEND).setType("text/plain"));
+            trace.add(new Intent(Intent.ACTION_VIEW,
+                    Uri.parse("https://app" + (i % 7) + ".example.com/path")));
+            trace.add(new Intent("com.example.ACTION_" + (i % 5)));
+        }
+        return trace;
+    }
+
+    private static List<IntentFilter> query(TestResolver resolver, Intent intent,
+            boolean defaultOnly) {
+        return resolver.queryIntent(intent, intent.getType(), defaultOnly, 0);
+    }
+
+    @Test
+    public void testCachedResultsMatchUncached() throws Exception {
+        final TestResolver uncached = new TestResolver();
+        final TestResolver cached = new TestResolver();
+        cached.setMatchCacheSize(16);
+        addFilters(uncached, 20);
+        addFilters(cached, 20);
+
+        // Run the trace twice so that the second pass is served from the cache
+        for (int pass = 0; pass < 2; pass++) {
+            for (Intent intent : buildTrace(20)) {
+                assertEquals(intent.toString(), query(uncached, intent, false),
+                        query(cached, intent, false));
+                assertEquals(intent.toString(), query(uncached, intent, true),
+                        query(cached, intent, true));
+            }
+        }
+    }
+
+    @Test
+    public void testAddAndRemoveFilterInvalidatesCache() throws Exception {
+        final TestResolver resolver = new TestResolver();
+        resolver.setMatchCacheSize(16);
+        addFilters(resolver, 2);
+        final Intent intent = new Intent("com.example.ACTION_1");
+        assertEquals(1, query(resolver, intent, false).size());
+
+        final IntentFilter added = new IntentFilter("com.example.ACTION_1");
+        resolver.addFilter(added);
+        assertEquals(2, query(resolver, intent, false).size());
+
+        resolver.removeFilter(added);
+        assertEquals(1, query(resolver, intent, false).size());
+    }
+}
@@ -51,9 +51,12 @@ import android.app.ActivityManager;
 import android.app.AppOpsManager;
 import android.app.IApplicationThread;
 import android.app.IUidObserver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -79,6 +82,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -740,6 +744,63 @@ public class ActivityManagerServiceTest {
                 true); // expectWait
     }
 
+    @Test
+    public void testCollectOomAdjDependents_bind() {
+        final ProcessRecord client = createProcessRecord("client");
+        final ProcessRecord service = createProcessRecord("service");
+        final ProcessRecord provider = createProcessRecord("provider");
+        final ProcessRecord unrelated = createProcessRecord("unrelated");
+        bindService(client, service);
+        bindService(unrelated, createProcessRecord("other"));
+        final ContentProviderRecord cpr = new ContentProviderRecord(mAms, new ProviderInfo(),
+                new ApplicationInfo(), new ComponentName("provider", "Provider"), false);
+        cpr.proc = provider;
+        service.conProviders.add(new ContentProviderConnection(cpr, service));
+
+        // A binding re-adjusts the service host, and what the host itself depends on
+        assertEquals(Arrays.asList(client, service, provider),
+                mAms.collectOomAdjDependentsLocked(client));
+        assertEquals(Arrays.asList(service, provider),
+                mAms.collectOomAdjDependentsLocked(service));
+    }
+
+    @Test
+    public void testCollectOomAdjDependents_unbind() {
+        final ProcessRecord client = createProcessRecord("client");
+        final ProcessRecord service = createProcessRecord("service");
+        final ProcessRecord dependency = createProcessRecord("dependency");
+        final ConnectionRecord connection = bindService(client, service);
+        bindService(service, dependency);
+
+        client.connections.remove(connection);
+
+        // Unbinding re-adjusts the former host, which no longer reaches back to the client
+        assertEquals(Arrays.asList(service, dependency),
+                mAms.collectOomAdjDependentsLocked(service));
+        assertEquals(Arrays.asList(client), mAms.collectOomAdjDependentsLocked(client));
+    }
+
+    private ProcessRecord createProcessRecord(String processName) {
+        final ProcessRecord app = new ProcessRecord(mBatteryStatsImpl, new ApplicationInfo(),
+                processName, TEST_UID);
+        app.thread = Mockito.mock(IApplicationThread.class);
+        return app;
+    }
+
+    private ConnectionRecord bindService(ProcessRecord client, ProcessRecord host) {
+        final ServiceInfo serviceInfo = new ServiceInfo();
+        serviceInfo.applicationInfo = new ApplicationInfo();
+        serviceInfo.processName = host.processName;
+        final ServiceRecord service = new ServiceRecord(mAms, null,
+                new ComponentName(host.processName, "Service"), null, serviceInfo,
+                false /* callerIsFg */, null /* restarter */);
+        service.app = host;
+        final ConnectionRecord connection = new ConnectionRecord(
+                new AppBindRecord(service, null, client), null, null, 0, 0, null);
+        client.connections.add(connection);
+        return connection;
+    }
+
     private void verifyWaitingForNetworkStateUpdate(long curProcStateSeq,
             long lastDispatchedProcStateSeq, long lastNetworkUpdatedProcStateSeq,
             final long procStateSeqToWait, boolean expectWait) throws Exception {
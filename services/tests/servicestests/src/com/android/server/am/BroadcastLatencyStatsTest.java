@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for {@link BroadcastLatencyStats}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.BroadcastLatencyStatsTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastLatencyStatsTest {
+
+    @Test
+    public void testBuckets() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        stats.noteBroadcastFinished("a", 1000, 1005, 1020);
+        stats.noteBroadcastFinished("a", 1000, 1000, 21000);
+        stats.noteBroadcastFinished("b", 1000, 900, 1000);
+
+        final BroadcastLatencyStats.Histogram dispatch = stats.getDispatchLatency();
+        assertEquals(3, dispatch.count);
+        // The negative interval is clamped to zero
+        assertEquals(3, dispatch.counts[0]);
+        assertEquals(5, dispatch.max);
+
+        final BroadcastLatencyStats.Histogram finish = stats.getFinishLatency();
+        assertEquals(3, finish.count);
+        assertEquals(1, finish.counts[0]);
+        assertEquals(1, finish.counts[1]);
+        assertEquals(1, finish.counts[BroadcastLatencyStats.BUCKET_LIMITS.length]);
+        assertEquals(20000, finish.max);
+
+        assertEquals(2, stats.getActionLatency("a").count);
+        assertEquals(1, stats.getActionLatency("b").count);
+    }
+
+    @Test
+    public void testActionsAreBounded() {
+        final BroadcastLatencyStats stats = new BroadcastLatencyStats();
+        for (int i = 0; i < BroadcastLatencyStats.MAX_ACTIONS * 2; i++) {
+            stats.noteBroadcastFinished("action" + i, 0, 0, 1);
+        }
+        stats.noteBroadcastFinished(null, 0, 0, 1);
+
+        assertNotNull(stats.getActionLatency("action0"));
+        assertNull(stats.getActionLatency("action" + (BroadcastLatencyStats.MAX_ACTIONS * 2 - 1)));
+        assertEquals(BroadcastLatencyStats.MAX_ACTIONS + 2,
+                stats.getActionLatency(BroadcastLatencyStats.OTHER_ACTIONS).count);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AppOpsManager;
+import android.app.BroadcastOptions;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the coalescing of parallel broadcasts in {@link BroadcastQueue}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.BroadcastQueueTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final int USER_ID = 0;
+    private static final int CALLING_UID = 10001;
+    private static final String CALLER_PACKAGE = "com.android.test";
+
+    private final Object mReceiver1 = new Object();
+    private final Object mReceiver2 = new Object();
+
+    private BroadcastQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mQueue = new BroadcastQueue(null, new Handler(Looper.getMainLooper()), "test",
+                0 /* timeoutPeriod */, false /* allowDelayBehindServices */,
+                false /* foreground */);
+    }
+
+    @Test
+    public void testCoalesce_dropsSupersededDeliveries() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_BATTERY_CHANGED),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1, mReceiver2);
+        mQueue.mParallelBroadcasts.add(old);
+
+        final BroadcastRecord r = createRecord(new Intent(Intent.ACTION_BATTERY_CHANGED),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1);
+        assertEquals(1, mQueue.coalesceParallelBroadcastsLocked(r, null));
+
+        // mReceiver2 still waits for the old broadcast
+        assertEquals(BroadcastRecord.DELIVERY_SKIPPED, old.delivery[0]);
+        assertEquals(BroadcastRecord.DELIVERY_PENDING, old.delivery[1]);
+        assertEquals(1, mQueue.mParallelBroadcasts.size());
+
+        final BroadcastRecord r2 = createRecord(new Intent(Intent.ACTION_BATTERY_CHANGED),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1, mReceiver2);
+        assertEquals(1, mQueue.coalesceParallelBroadcastsLocked(r2, null));
+        assertTrue(mQueue.mParallelBroadcasts.isEmpty());
+    }
+
+    @Test
+    public void testIsSupersededBy_sameBroadcast() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, new String[] { "permission.A" }, AppOpsManager.OP_COARSE_LOCATION,
+                mReceiver1);
+        final BroadcastRecord r = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, new String[] { "permission.A" }, AppOpsManager.OP_COARSE_LOCATION,
+                mReceiver1);
+        assertTrue(BroadcastQueue.isSupersededBy(old, r, null));
+    }
+
+    @Test
+    public void testIsSupersededBy_differentCaller() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1);
+        assertFalse(BroadcastQueue.isSupersededBy(old,
+                createRecord(new Intent(Intent.ACTION_TIME_TICK), CALLING_UID + 1, null,
+                        AppOpsManager.OP_NONE, mReceiver1), null));
+        assertFalse(BroadcastQueue.isSupersededBy(old,
+                new BroadcastRecord(mQueue, new Intent(Intent.ACTION_TIME_TICK), null,
+                        "com.android.other", 0, CALLING_UID, false, null, null,
+                        AppOpsManager.OP_NONE, null, receivers(mReceiver1), null, 0, null, null,
+                        false, false, false, USER_ID), null));
+    }
+
+    @Test
+    public void testIsSupersededBy_differentPermissions() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, new String[] { "permission.A" }, AppOpsManager.OP_NONE, mReceiver1);
+        assertFalse(BroadcastQueue.isSupersededBy(old,
+                createRecord(new Intent(Intent.ACTION_TIME_TICK), CALLING_UID, null,
+                        AppOpsManager.OP_NONE, mReceiver1), null));
+        assertFalse(BroadcastQueue.isSupersededBy(old,
+                createRecord(new Intent(Intent.ACTION_TIME_TICK), CALLING_UID,
+                        new String[] { "permission.B" }, AppOpsManager.OP_NONE, mReceiver1),
+                null));
+    }
+
+    @Test
+    public void testIsSupersededBy_differentAppOp() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1);
+        assertFalse(BroadcastQueue.isSupersededBy(old,
+                createRecord(new Intent(Intent.ACTION_TIME_TICK), CALLING_UID, null,
+                        AppOpsManager.OP_COARSE_LOCATION, mReceiver1), null));
+    }
+
+    @Test
+    public void testIsSupersededBy_options() {
+        final BroadcastRecord old = createRecord(new Intent(Intent.ACTION_TIME_TICK),
+                CALLING_UID, null, AppOpsManager.OP_NONE, mReceiver1);
+        final BroadcastRecord r = new BroadcastRecord(mQueue, new Intent(Intent.ACTION_TIME_TICK),
+                null, CALLER_PACKAGE, 0, CALLING_UID, false, null, null, AppOpsManager.OP_NONE,
+                BroadcastOptions.makeBasic(), receivers(mReceiver1), null, 0, null, null, false,
+                false, false, USER_ID);
+        assertFalse(BroadcastQueue.isSupersededBy(old, r, null));
+    }
+
+    @Test
+    public void testIsSupersededBy_matchExtra() {
+        final Intent mobile = new Intent(ConnectivityManager.CONNECTIVITY_ACTION)
+                .putExtra(ConnectivityManager.EXTRA_NETWORK_TYPE, ConnectivityManager.TYPE_MOBILE);
+        final Intent wifi = new Intent(ConnectivityManager.CONNECTIVITY_ACTION)
+                .putExtra(ConnectivityManager.EXTRA_NETWORK_TYPE, ConnectivityManager.TYPE_WIFI);
+        final BroadcastRecord old = createRecord(mobile, CALLING_UID, null,
+                AppOpsManager.OP_NONE, mReceiver1);
+        final BroadcastRecord r = createRecord(wifi, CALLING_UID, null,
+                AppOpsManager.OP_NONE, mReceiver1);
+        assertTrue(BroadcastQueue.isSupersededBy(old, r, null));
+        assertFalse(BroadcastQueue.isSupersededBy(old, r,
+                ConnectivityManager.EXTRA_NETWORK_TYPE));
+    }
+
+    private BroadcastRecord createRecord(Intent intent, int callingUid,
+            String[] requiredPermissions, int appOp, Object... receivers) {
+        return new BroadcastRecord(mQueue, intent, null, CALLER_PACKAGE, 0, callingUid, false,
+                null, requiredPermissions, appOp, null, receivers(receivers), null, 0, null, null,
+                false, false, false, USER_ID);
+    }
+
+    private static List<Object> receivers(Object... receivers) {
+        return new ArrayList<>(Arrays.asList(receivers));
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.app.IApplicationThread;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Checks that incremental oom adj updates leave every process with the adj and process state a
+ * full update gives it, using the verify mode, which follows each incremental update with a
+ * full one and counts the processes that differ.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.IncrementalOomAdjTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IncrementalOomAdjTest extends ActivityTestsBase {
+    private static final int FIRST_UID = 10100;
+    // Well above any pid in use, so that nothing real is ever signalled.
+    private static final int FIRST_PID = 900000;
+
+    private ActivityManagerService mService;
+    private int mNextUid = FIRST_UID;
+
+    private ProcessRecord mClient;
+    private ProcessRecord mHost;
+    private ProcessRecord mDependency;
+    private ProcessRecord mUnrelated;
+    private ServiceRecord mHostService;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mService = createActivityManagerService();
+        mService.mIncrementalOomAdj = true;
+        mService.mVerifyIncrementalOomAdj = true;
+
+        synchronized (mService) {
+            // A persistent client, a host it can bind to, which is itself bound to a dependency,
+            // and a process that has nothing to do with any of them.
+            mClient = createProcess("client");
+            mClient.persistent = true;
+            mClient.maxAdj = ProcessList.PERSISTENT_PROC_ADJ;
+            mHost = createProcess("host");
+            mDependency = createProcess("dependency");
+            mUnrelated = createProcess("unrelated");
+            mHostService = createService(mHost);
+            bindService(mHost, createService(mDependency));
+        }
+    }
+
+    @Test
+    public void testBind_matchesFullUpdate() {
+        synchronized (mService) {
+            mHost.foregroundServices = true;
+            mService.updateOomAdjLocked();
+            final int hostAdj = mHost.curAdj;
+
+            // What ActiveServices.bindServiceLocked does once the connection is added
+            bindService(mClient, mHostService);
+            mService.updateOomAdjLocked(mHost, true);
+
+            assertTrue(mHost.curAdj < hostAdj);
+            assertIncremental(1);
+        }
+    }
+
+    @Test
+    public void testUnbind_matchesFullUpdate() {
+        synchronized (mService) {
+            mHost.foregroundServices = true;
+            final ConnectionRecord connection = bindService(mClient, mHostService);
+            mService.updateOomAdjLocked();
+            final int hostAdj = mHost.curAdj;
+
+            unbindService(connection);
+            mService.updateOomAdjLocked(mHost, true);
+
+            assertTrue(mHost.curAdj > hostAdj);
+            assertIncremental(1);
+        }
+    }
+
+    @Test
+    public void testProcessForeground_matchesFullUpdate() {
+        synchronized (mService) {
+            mHost.forcingToImportant = new Object();
+            mService.updateOomAdjLocked();
+            final int dependencyProcState = mDependency.curProcState;
+
+            mService.updateProcessForegroundLocked(mHost, true, true);
+
+            assertTrue(mDependency.curProcState < dependencyProcState);
+            assertIncremental(1);
+        }
+    }
+
+    @Test
+    public void testMoveOutOfCached_fallsBackToFullUpdate() {
+        synchronized (mService) {
+            mService.updateOomAdjLocked();
+            assertTrue(mHost.cached);
+
+            bindService(mClient, mHostService);
+            mService.updateOomAdjLocked(mHost, true);
+
+            assertFalse(mHost.cached);
+            assertFallback();
+        }
+    }
+
+    @Test
+    public void testMoveIntoCached_fallsBackToFullUpdate() {
+        synchronized (mService) {
+            final ConnectionRecord connection = bindService(mClient, mHostService);
+            mService.updateOomAdjLocked();
+            assertFalse(mHost.cached);
+
+            unbindService(connection);
+            mService.updateOomAdjLocked(mHost, true);
+
+            assertTrue(mHost.cached);
+            assertFallback();
+        }
+    }
+
+    /**
+     * Asserts that {@code count} incremental updates ran without falling back, and that the full
+     * update of the verify mode agreed with each of them.
+     */
+    private void assertIncremental(int count) {
+        assertEquals(count, mService.mNumIncrementalOomAdj);
+        assertEquals(0, mService.mNumIncrementalOomAdjFallbacks);
+        assertEquals(0, mService.mNumIncrementalOomAdjMismatches);
+    }
+
+    /**
+     * Asserts that the last update fell back to a full one, so that even cached processes, which
+     * the verify mode skips, have what another full update gives them.
+     */
+    private void assertFallback() {
+        assertEquals(1, mService.mNumIncrementalOomAdjFallbacks);
+        final ArrayMap<ProcessRecord, int[]> incremental = new ArrayMap<>();
+        for (ProcessRecord app : mService.mLruProcesses) {
+            incremental.put(app, new int[] { app.curAdj, app.curProcState });
+        }
+        mService.updateOomAdjLocked();
+        for (int i = 0; i < incremental.size(); i++) {
+            final ProcessRecord app = incremental.keyAt(i);
+            assertEquals(app.toString(), app.curAdj, incremental.valueAt(i)[0]);
+            assertEquals(app.toString(), app.curProcState, incremental.valueAt(i)[1]);
+        }
+    }
+
+    private ProcessRecord createProcess(String processName) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = processName;
+        info.processName = processName;
+        info.uid = mNextUid++;
+        final ProcessRecord app = new ProcessRecord(
+                mService.mBatteryStatsService.getActiveStatistics(), info, processName,
+                info.uid);
+        app.thread = mock(IApplicationThread.class);
+        app.pid = FIRST_PID + info.uid - FIRST_UID;
+        mService.updateLruProcessLocked(app, false, null);
+        return app;
+    }
+
+    private ServiceRecord createService(ProcessRecord host) {
+        final ServiceInfo serviceInfo = new ServiceInfo();
+        serviceInfo.applicationInfo = host.info;
+        serviceInfo.processName = host.processName;
+        final ServiceRecord service = new ServiceRecord(mService, null,
+                new ComponentName(host.processName, "Service"), null, serviceInfo,
+                false /* callerIsFg */, null /* restarter */);
+        service.app = host;
+        host.services.add(service);
+        return service;
+    }
+
+    private ConnectionRecord bindService(ProcessRecord client, ServiceRecord service) {
+        final ConnectionRecord connection = new ConnectionRecord(
+                new AppBindRecord(service, null, client), null, null,
+                Context.BIND_AUTO_CREATE, 0, null);
+        final ArrayList<ConnectionRecord> connections = new ArrayList<>();
+        connections.add(connection);
+        service.connections.put(new Binder(), connections);
+        client.connections.add(connection);
+        return connection;
+    }
+
+    private void unbindService(ConnectionRecord connection) {
+        final ServiceRecord service = connection.binding.service;
+        for (int i = service.connections.size() - 1; i >= 0; i--) {
+            if (service.connections.valueAt(i).remove(connection)
+                    && service.connections.valueAt(i).isEmpty()) {
+                service.connections.removeAt(i);
+            }
+        }
+        connection.binding.client.connections.remove(connection);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AppOpsManager;
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link OrderedBroadcastGate}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.am.OrderedBroadcastGateTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class OrderedBroadcastGateTest {
+    private static final int USER_ID = 0;
+
+    private final ResolveInfo mProcess1 = createReceiver("com.android.test1", 10001);
+    private final ResolveInfo mProcess2 = createReceiver("com.android.test2", 10002);
+    private final ResolveInfo mProcess3 = createReceiver("com.android.test3", 10003);
+
+    private BroadcastQueue mLane1;
+    private BroadcastQueue mLane2;
+    private OrderedBroadcastGate mGate;
+
+    @Before
+    public void setUp() {
+        // The queues are only scheduled, never run.
+        final HandlerThread thread = new HandlerThread("OrderedBroadcastGateTest");
+        thread.start();
+        final Looper looper = thread.getLooper();
+        thread.quit();
+        mLane1 = new BroadcastQueue(null, new Handler(looper), "lane1", 0 /* timeoutPeriod */,
+                false /* allowDelayBehindServices */, true /* foreground */);
+        mLane2 = new BroadcastQueue(null, new Handler(looper), "lane2", 0 /* timeoutPeriod */,
+                false /* allowDelayBehindServices */, true /* foreground */);
+        mGate = new OrderedBroadcastGate();
+    }
+
+    @Test
+    public void testWaitsForEarlierBroadcastToSameProcess() {
+        final BroadcastRecord first = createRecord(mLane1, mProcess1);
+        final BroadcastRecord second = createRecord(mLane2, mProcess1);
+        mGate.enqueueLocked(first);
+        mGate.enqueueLocked(second);
+
+        assertTrue(mGate.mayDeliverLocked(first, mProcess1));
+        assertFalse(mGate.mayDeliverLocked(second, mProcess1));
+
+        // The first broadcast is done with the process
+        first.nextReceiver = 1;
+        mGate.releaseLocked(first);
+        assertTrue(mGate.mayDeliverLocked(second, mProcess1));
+        assertTrue(mLane2.mBroadcastsScheduled);
+    }
+
+    @Test
+    public void testKeepsTurnUntilLastReceiverInProcess() {
+        final BroadcastRecord first = createRecord(mLane1, mProcess1, mProcess2, mProcess1);
+        final BroadcastRecord second = createRecord(mLane2, mProcess1);
+        mGate.enqueueLocked(first);
+        mGate.enqueueLocked(second);
+
+        first.nextReceiver = 1;
+        mGate.releaseLocked(first);
+        assertFalse(mGate.mayDeliverLocked(second, mProcess1));
+
+        first.nextReceiver = 3;
+        mGate.releaseLocked(first);
+        assertTrue(mGate.mayDeliverLocked(second, mProcess1));
+    }
+
+    @Test
+    public void testOtherProcessesAreNotHeldBack() {
+        final BroadcastRecord first = createRecord(mLane1, mProcess1, mProcess2);
+        final BroadcastRecord second = createRecord(mLane2, mProcess3);
+        final BroadcastRecord third = createRecord(mLane2, mProcess2);
+        mGate.enqueueLocked(first);
+        mGate.enqueueLocked(second);
+        mGate.enqueueLocked(third);
+
+        assertTrue(mGate.mayDeliverLocked(second, mProcess3));
+        // Still waiting for the first broadcast to reach its second receiver
+        assertFalse(mGate.mayDeliverLocked(third, mProcess2));
+        assertTrue(mGate.mayDeliverLocked(first, mProcess2));
+    }
+
+    @Test
+    public void testReplacementKeepsPlace() {
+        final BroadcastRecord first = createRecord(mLane1, mProcess1);
+        final BroadcastRecord second = createRecord(mLane2, mProcess1);
+        final BroadcastRecord replacement = createRecord(mLane1, mProcess1);
+        mGate.enqueueLocked(first);
+        mGate.enqueueLocked(second);
+        mGate.replaceLocked(first, replacement);
+
+        assertTrue(mGate.mayDeliverLocked(replacement, mProcess1));
+        assertFalse(mGate.mayDeliverLocked(second, mProcess1));
+    }
+
+    @Test
+    public void testRemoveEndsAllTurns() {
+        final BroadcastRecord first = createRecord(mLane1, mProcess1, mProcess2);
+        final BroadcastRecord second = createRecord(mLane2, mProcess2, mProcess1);
+        mGate.enqueueLocked(first);
+        mGate.enqueueLocked(second);
+        assertFalse(mGate.mayDeliverLocked(second, mProcess2));
+
+        mGate.removeLocked(first);
+        assertTrue(mGate.mayDeliverLocked(second, mProcess2));
+        assertTrue(mGate.mayDeliverLocked(second, mProcess1));
+    }
+
+    private static BroadcastRecord createRecord(BroadcastQueue queue, Object... receivers) {
+        return new BroadcastRecord(queue, new Intent(Intent.ACTION_TIME_TICK), null,
+                "com.android.test", 0, 1000, false, null, null, AppOpsManager.OP_NONE, null,
+                new ArrayList<>(Arrays.asList(receivers)), null, 0, null, null, true, false,
+                false, USER_ID);
+    }
+
+    private static ResolveInfo createReceiver(String processName, int uid) {
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = new ActivityInfo();
+        info.activityInfo.processName = processName;
+        info.activityInfo.applicationInfo = new ApplicationInfo();
+        info.activityInfo.applicationInfo.uid = uid;
+        return info;
+    }
+}
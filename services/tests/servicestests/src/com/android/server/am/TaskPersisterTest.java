@@ -17,9 +17,13 @@
 package com.android.server.am;
 
 import android.content.pm.UserInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.os.Environment;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.system.Os;
 import android.test.AndroidTestCase;
 import android.util.Log;
 import android.util.SparseBooleanArray;
@@ -69,6 +73,38 @@ public class TaskPersisterTest extends AndroidTestCase {
                 taskIdsOnFile.equals(newTaskIdsOnFile));
     }
 
+    public void testImageWritesDeduplicated() throws Exception {
+        final File dir = new File(getContext().getFilesDir(), "images");
+        dir.mkdirs();
+        final File first = new File(dir, "1_activity_icon_1.png");
+        final File second = new File(dir, "1_activity_icon_2.png");
+        final Bitmap red = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        red.eraseColor(Color.RED);
+        final Bitmap blue = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        blue.eraseColor(Color.BLUE);
+        try {
+            mTaskPersister.writeImage(first.getPath(), red);
+            assertTrue(first.exists());
+
+            // Writing the same image again leaves the file alone.
+            first.setLastModified(0);
+            mTaskPersister.writeImage(first.getPath(), red.copy(Bitmap.Config.ARGB_8888, false));
+            assertEquals(0, first.lastModified());
+
+            // An identical image at another path shares the file.
+            mTaskPersister.writeImage(second.getPath(), red);
+            assertEquals(Os.stat(first.getPath()).st_ino, Os.stat(second.getPath()).st_ino);
+
+            // Changing one of them doesn't change the other.
+            mTaskPersister.writeImage(first.getPath(), blue);
+            assertTrue(blue.sameAs(BitmapFactory.decodeFile(first.getPath())));
+            assertTrue(red.sameAs(BitmapFactory.decodeFile(second.getPath())));
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
     private int createUser(String name, int flags) {
         UserInfo user = mUserManager.createUser(name, flags);
         if (user == null) {
@@ -15,6 +15,9 @@ import android.util.Pair;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -267,6 +270,101 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    public void testJournalReplay() throws Exception {
+        final JobStore journalStore =
+                JobStore.initAndGetForTesting(mTestContext, mTestContext.getFilesDir(), true);
+        Thread.sleep(IO_WAIT);
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.log");
+        final long snapshotTime = new File(mTestContext.getFilesDir(), "system/job/jobs.xml")
+                .lastModified();
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString("hi", "there");
+        final JobInfo task1 = new Builder(1, mComponent)
+                .setOverrideDeadline(10000)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(2, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus js1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        journalStore.add(js1);
+        journalStore.add(js2);
+        journalStore.remove(js2, true);
+        Thread.sleep(IO_WAIT);
+
+        assertTrue("Journal not written.", journal.length() > 0);
+        assertEquals("Snapshot rewritten.", snapshotTime,
+                new File(mTestContext.getFilesDir(), "system/job/jobs.xml").lastModified());
+
+        // A torn append at the end must not affect the intact records.
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+        }
+
+        final JobSet jobStatusSet = new JobSet();
+        journalStore.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().get(0);
+        assertTasksEqual(task1, loaded.getJob());
+        assertEquals("Different uids.", SOME_UID, loaded.getUid());
+
+        journalStore.clear();
+        Thread.sleep(IO_WAIT);
+    }
+
+    public void testJournalOversizedRecord() throws Exception {
+        final JobStore journalStore =
+                JobStore.initAndGetForTesting(mTestContext, mTestContext.getFilesDir(), true);
+        Thread.sleep(IO_WAIT);
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.log");
+        final File snapshot = new File(mTestContext.getFilesDir(), "system/job/jobs.xml");
+
+        // Extras too big for one journal record
+        final char[] chars = new char[JobStoreJournal.MAX_RECORD_SIZE + 1];
+        Arrays.fill(chars, 'x');
+        final String big = new String(chars);
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString("big", big);
+        final JobInfo task1 = new Builder(1, mComponent)
+                .setOverrideDeadline(10000)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(2, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        journalStore.add(JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null));
+        Thread.sleep(IO_WAIT);
+        journalStore.add(JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null));
+        Thread.sleep(IO_WAIT);
+
+        // The big job went into a full snapshot instead, and later changes still journal
+        assertTrue("Snapshot not rewritten.", snapshot.length() > big.length());
+        assertTrue("Journal over the record limit.",
+                journal.length() < JobStoreJournal.MAX_RECORD_SIZE);
+
+        final JobSet jobStatusSet = new JobSet();
+        journalStore.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 2, jobStatusSet.size());
+        for (JobStatus loaded : jobStatusSet.getAllJobs()) {
+            if (loaded.getJobId() == 1) {
+                assertTasksEqual(task1, loaded.getJob());
+                assertEquals("Extras not restored.", big,
+                        loaded.getJob().getExtras().getString("big"));
+            } else {
+                assertTasksEqual(task2, loaded.getJob());
+            }
+        }
+
+        journalStore.clear();
+        Thread.sleep(IO_WAIT);
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
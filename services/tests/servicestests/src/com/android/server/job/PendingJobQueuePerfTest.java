@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Mass requeue of pending jobs, as happens when connectivity returns: every ready job is put
+ * back on the pending queue, a few are started and some of the rest are cancelled.  Compares
+ * {@link PendingJobQueue} against the sorted list it replaced.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PendingJobQueuePerfTest {
+    private static final int JOBS = 5000;
+    private static final int UIDS = 200;
+    private static final int STARTED = 16;
+    private static final int CANCELLED = JOBS / 10;
+
+    private static final Comparator<JobStatus> sEnqueueTimeComparator =
+            (o1, o2) -> Long.compare(o1.enqueueTime, o2.enqueueTime);
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<JobStatus> mJobs = PendingJobQueueTest.createJobs(JOBS, UIDS, 1);
+
+    @Test
+    public void timeRequeueSortedList() {
+        final ArrayList<JobStatus> pending = new ArrayList<>();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            pending.clear();
+            pending.addAll(mJobs);
+            pending.sort(sEnqueueTimeComparator);
+            for (int i = 0; i < STARTED; i++) {
+                pending.remove(pending.get(0));
+            }
+            for (int i = 0; i < CANCELLED; i++) {
+                pending.remove(mJobs.get(i * 10 + 1));
+            }
+        }
+    }
+
+    @Test
+    public void timeRequeuePendingJobQueue() {
+        final PendingJobQueue pending = new PendingJobQueue();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            pending.clear();
+            pending.addAll(mJobs);
+            pending.startWalk();
+            final ArrayList<JobStatus> started = new ArrayList<>(STARTED);
+            for (int i = 0; i < STARTED; i++) {
+                started.add(pending.nextInWalk(null));
+            }
+            for (int i = 0; i < STARTED; i++) {
+                pending.remove(started.get(i));
+            }
+            for (int i = 0; i < CANCELLED; i++) {
+                pending.remove(mJobs.get(i * 10 + 1));
+            }
+        }
+    }
+}
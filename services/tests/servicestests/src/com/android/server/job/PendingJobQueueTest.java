@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.SparseBooleanArray;
+
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests for {@link PendingJobQueue}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.job.PendingJobQueueTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PendingJobQueueTest {
+    private static final ComponentName COMPONENT = new ComponentName("com.android.test",
+            "com.android.test.TestJobService");
+
+    static JobStatus createJob(int uid, int jobId, long enqueueTime) {
+        final JobInfo job = new JobInfo.Builder(jobId, COMPONENT).build();
+        final JobStatus js = JobStatus.createFromJobInfo(job, uid, null, -1, null);
+        js.enqueueTime = enqueueTime;
+        return js;
+    }
+
+    static ArrayList<JobStatus> createJobs(int count, int uids, long seed) {
+        final Random random = new Random(seed);
+        final ArrayList<JobStatus> jobs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            jobs.add(createJob(10000 + random.nextInt(uids), i, random.nextInt(count * 4)));
+        }
+        return jobs;
+    }
+
+    private static void assertSorted(ArrayList<JobStatus> jobs) {
+        for (int i = 1; i < jobs.size(); i++) {
+            assertTrue(jobs.get(i - 1).enqueueTime <= jobs.get(i).enqueueTime);
+        }
+    }
+
+    @Test
+    public void testAddRemove() {
+        final PendingJobQueue queue = new PendingJobQueue();
+        final ArrayList<JobStatus> jobs = createJobs(500, 7, 42);
+        queue.addAll(jobs);
+        queue.add(jobs.get(0));
+        assertEquals(jobs.size(), queue.size());
+        assertSorted(queue.toSortedList());
+
+        final Random random = new Random(7);
+        int remaining = jobs.size();
+        for (int i = 0; i < 200; i++) {
+            final JobStatus job = jobs.get(random.nextInt(jobs.size()));
+            final boolean wasPending = queue.contains(job);
+            assertEquals(wasPending, queue.remove(job));
+            assertFalse(queue.contains(job));
+            if (wasPending) {
+                remaining--;
+            }
+        }
+        assertEquals(remaining, queue.size());
+        final ArrayList<JobStatus> sorted = queue.toSortedList();
+        assertEquals(remaining, sorted.size());
+        assertSorted(sorted);
+        for (int i = 0; i < sorted.size(); i++) {
+            assertTrue(queue.contains(sorted.get(i)));
+        }
+
+        queue.clear();
+        assertEquals(0, queue.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            assertFalse(queue.contains(jobs.get(i)));
+        }
+    }
+
+    @Test
+    public void testNarrowedWalk() {
+        final PendingJobQueue queue = new PendingJobQueue();
+        final JobStatus a1 = createJob(1, 1, 10);
+        final JobStatus b1 = createJob(2, 1, 20);
+        final JobStatus a2 = createJob(1, 2, 30);
+        final JobStatus b2 = createJob(2, 2, 40);
+        final JobStatus a3 = createJob(1, 3, 50);
+        queue.add(a3);
+        queue.add(b2);
+        queue.add(a2);
+        queue.add(b1);
+        queue.add(a1);
+
+        final SparseBooleanArray uids = new SparseBooleanArray();
+        uids.put(1, true);
+        queue.startWalk();
+        assertSame(a1, queue.nextInWalk(null));
+        assertSame(b1, queue.nextInWalk(null));
+        assertSame(a2, queue.nextInWalk(uids));
+        assertSame(a3, queue.nextInWalk(uids));
+        assertNull(queue.nextInWalk(uids));
+    }
+}
@@ -26,6 +26,7 @@ import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -50,6 +51,7 @@ import android.util.Log;
 import android.util.LongSparseArray;
 
 import com.android.internal.os.AtomicFile;
+import com.android.internal.os.BackgroundThread;
 import com.android.server.LocalServices;
 
 import org.junit.Before;
@@ -59,10 +61,12 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -176,6 +180,71 @@ public class PackageManagerSettingsTests {
         assertThat(hasEnabled, is(false));
     }
 
+    /** journal package changes, and read them back on top of packages.xml */
+    @Test
+    public void testJournaledWrite()
+            throws IOException, ReflectiveOperationException, IllegalAccessException {
+        writeOldFiles();
+        final File dataDir = InstrumentationRegistry.getContext().getFilesDir();
+        final File packagesXml = new File(dataDir, "system/packages.xml");
+        final File journal = new File(dataDir, "system/packages.journal");
+        Settings settings = new Settings(dataDir, new Object());
+        settings.mUseSettingsJournal = true;
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+
+        // The first write after reading is a full one
+        settings.writeLPr();
+        final byte[] written = Files.readAllBytes(packagesXml.toPath());
+        final long journalLength = journal.length();
+
+        // A package with a shared user and one with its own uid
+        settings.getPackageLPr(PACKAGE_NAME_1).versionCode = 1110;
+        settings.getPackageLPr(PACKAGE_NAME_2).versionCode = 16;
+        settings.writeLPr();
+        assertTrue(Arrays.equals(written, Files.readAllBytes(packagesXml.toPath())));
+        assertTrue(journal.length() > journalLength);
+
+        settings = new Settings(dataDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).versionCode, is(1110));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).sharedUser, is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_2).versionCode, is(16));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3).versionCode, is(15));
+        assertSame(settings.getPackageLPr(PACKAGE_NAME_2), settings.getUserIdLPr(11001));
+        verifyKeySetMetaData(settings);
+    }
+
+    /** changes to anything but the packages themselves write packages.xml in full */
+    @Test
+    public void testJournaledWriteFallsBackToFullWrite() throws IOException {
+        writeOldFiles();
+        final File dataDir = InstrumentationRegistry.getContext().getFilesDir();
+        final File packagesXml = new File(dataDir, "system/packages.xml");
+        final File journal = new File(dataDir, "system/packages.journal");
+        Settings settings = new Settings(dataDir, new Object());
+        settings.mUseSettingsJournal = true;
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writeLPr();
+        final byte[] written = Files.readAllBytes(packagesXml.toPath());
+
+        settings.getPackageLPr(PACKAGE_NAME_2).versionCode = 16;
+        settings.mReadExternalStorageEnforced = Boolean.TRUE;
+        settings.writeLPr();
+        assertFalse(Arrays.equals(written, Files.readAllBytes(packagesXml.toPath())));
+
+        // The journal was started over for the new packages.xml
+        settings = new Settings(dataDir, new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.mReadExternalStorageEnforced, is(Boolean.TRUE));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_2).versionCode, is(16));
+
+        // Turning journaling off removes the journal
+        assertThat(journal.exists(), is(true));
+        settings.mUseSettingsJournal = false;
+        settings.writeLPr();
+        assertThat(journal.exists(), is(false));
+    }
+
     private static final String PACKAGE_NAME = "com.android.bar";
     private static final String REAL_PACKAGE_NAME = "com.android.foo";
     private static final String PARENT_PACKAGE_NAME = "com.android.bar.parent";
@@ -536,6 +605,71 @@ public class PackageManagerSettingsTests {
                 false /*notLaunched*/, false /*stopped*/, true /*installed*/);
     }
 
+    @Test
+    public void testAsyncPackageRestrictionsWritesCoalesce() throws Exception {
+        writeOldFiles();
+        final Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+
+        // Hold the background thread so that all requests are pending at the same time
+        final CountDownLatch latch = new CountDownLatch(1);
+        BackgroundThread.getHandler().post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        final int writeCount = settings.getPackageRestrictionsWriteCount();
+        settings.writePackageRestrictionsAsyncLPr(UserHandle.USER_SYSTEM);
+        settings.getPackageLPr(PACKAGE_NAME_1).setStopped(true, UserHandle.USER_SYSTEM);
+        settings.writePackageRestrictionsAsyncLPr(UserHandle.USER_SYSTEM);
+        settings.writePackageRestrictionsAsyncLPr(UserHandle.USER_SYSTEM);
+        latch.countDown();
+        settings.waitForPackageRestrictionsWrites();
+        assertEquals(writeCount + 1, settings.getPackageRestrictionsWriteCount());
+
+        // The single write has the latest state
+        final Settings readSettings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(readSettings.readLPw(createFakeUsers()), is(true));
+        assertThat(readSettings.getPackageLPr(PACKAGE_NAME_1).getStopped(UserHandle.USER_SYSTEM),
+                is(true));
+    }
+
+    @Test
+    public void testRemoveUserCancelsPackageRestrictionsWrite() throws Exception {
+        writeOldFiles();
+        final Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        final int userId = 10;
+        final File userDir = new File(InstrumentationRegistry.getContext().getFilesDir(),
+                "system/users/" + userId);
+        final File restrictionsFile = new File(userDir, "package-restrictions.xml");
+
+        settings.writePackageRestrictionsLPr(userId);
+        assertTrue(restrictionsFile.exists());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        BackgroundThread.getHandler().post(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        settings.writePackageRestrictionsAsyncLPr(userId);
+        settings.removeUserLPw(userId);
+        latch.countDown();
+        settings.waitForPackageRestrictionsWrites();
+
+        assertThat(restrictionsFile.exists(), is(false));
+
+        // Later writes for the removed user are dropped as well
+        settings.writePackageRestrictionsLPr(userId);
+        assertThat(restrictionsFile.exists(), is(false));
+    }
+
     @Test
     public void testInsertPackageSetting() {
         final PackageSetting ps = createPackageSetting(0 /*sharedUserId*/, 0 /*pkgFlags*/);
@@ -66,17 +66,58 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 1000)
+    public void testCertificateCollectionFilter() {
+        final ParallelPackageParser parser = new TestParallelPackageParser(4);
+        parser.setCertificateCollectionFilter(
+                (pkg, scanFile) -> scanFile.getName().startsWith("changed"));
+        parser.submit(new File("changed"), 0);
+        parser.submit(new File("unchanged"), 0);
+        for (int i = 0; i < 2; i++) {
+            ParallelPackageParser.ParseResult result = parser.take();
+            Assert.assertNull(result.throwable);
+            Assert.assertEquals(result.scanFile.getName().startsWith("changed"),
+                    result.certificatesCollected);
+        }
+        parser.close();
+    }
+
+    @Test
+    public void testComputeThreadCount() {
+        final long total = 4L * 1024 * 1024 * 1024;
+        Assert.assertEquals(8, ParallelPackageParser.computeThreadCount(8, false, total / 2,
+                total));
+        Assert.assertEquals(ParallelPackageParser.MAX_ADAPTIVE_THREADS,
+                ParallelPackageParser.computeThreadCount(32, false, total / 2, total));
+        Assert.assertEquals(ParallelPackageParser.MIN_ADAPTIVE_THREADS,
+                ParallelPackageParser.computeThreadCount(1, false, total / 2, total));
+        // Low RAM devices and memory pressure shrink the pool
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(8, true, total / 2,
+                total));
+        Assert.assertEquals(4, ParallelPackageParser.computeThreadCount(8, false, total / 20,
+                total));
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
             super(null, false, null, null, null);
         }
 
+        TestParallelPackageParser(int threadCount) {
+            super(null, false, null, null, null, threadCount);
+        }
+
         @Override
         protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
                 int parseFlags) throws PackageParser.PackageParserException {
             // Do not actually parse the package for testing
-            return null;
+            return new PackageParser.Package(scanFile.getName());
+        }
+
+        @Override
+        protected void collectCertificates(PackageParser.Package pkg, int parseFlags) {
+            // Do not actually collect certificates for testing
         }
     }
 }
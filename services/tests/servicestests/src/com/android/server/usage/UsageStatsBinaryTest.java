@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.AtomicFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Test class for {@link UsageStatsBinary}.
+ *
+ * Run: adb shell am instrument -e class com.android.server.usage.UsageStatsBinaryTest -w \
+ *     com.android.frameworks.servicestests/android.support.test.runner.AndroidJUnitRunner
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UsageStatsBinaryTest {
+    private static final long BEGIN_TIME = 1000000;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getFilesDir(), "usagestats-binary");
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(new File(mDir, Long.toString(BEGIN_TIME)));
+    }
+
+    private static IntervalStats buildStats() {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME;
+        stats.events = new TimeSparseArray<>();
+
+        final Configuration config = new Configuration();
+        config.setToDefaults();
+        config.setLocale(Locale.US);
+        config.orientation = Configuration.ORIENTATION_LANDSCAPE;
+
+        for (int i = 0; i < 100; i++) {
+            final long time = BEGIN_TIME + i * 1000;
+            final String pkg = "com.android.test" + (i % 7);
+            final int type = (i % 3 == 0) ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            stats.update(pkg, time, type);
+            final UsageEvents.Event event = stats.buildEvent(pkg, pkg + ".Activity");
+            event.mTimeStamp = time;
+            event.mEventType = type;
+            stats.events.put(time, event);
+        }
+
+        final long configTime = BEGIN_TIME + 100500;
+        stats.updateConfigurationStats(config, configTime);
+        final UsageEvents.Event configEvent = stats.buildEvent("android", null);
+        configEvent.mTimeStamp = configTime;
+        configEvent.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
+        configEvent.mConfiguration = new Configuration(config);
+        stats.events.put(configTime, configEvent);
+
+        final long shortcutTime = BEGIN_TIME + 100700;
+        final UsageEvents.Event shortcutEvent = stats.buildEvent("com.android.test1", null);
+        shortcutEvent.mTimeStamp = shortcutTime;
+        shortcutEvent.mEventType = UsageEvents.Event.SHORTCUT_INVOCATION;
+        shortcutEvent.mShortcutId = "compose";
+        stats.events.put(shortcutTime, shortcutEvent);
+
+        stats.updateChooserCounts("com.android.test2", "text/plain", "android.intent.action.SEND");
+        return stats;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final IntervalStats stats = buildStats();
+        UsageStatsBinary.write(getFile(), stats);
+
+        final IntervalStats read = new IntervalStats();
+        assertTrue(UsageStatsBinary.read(getFile(), read, IntervalStats.SECTION_ALL,
+                Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(stats.beginTime, read.beginTime);
+        assertEquals(stats.endTime, read.endTime);
+
+        assertEquals(stats.packageStats.size(), read.packageStats.size());
+        for (int i = 0; i < stats.packageStats.size(); i++) {
+            final UsageStats expected = stats.packageStats.valueAt(i);
+            final UsageStats actual = read.packageStats.get(expected.mPackageName);
+            assertEquals(expected.mLastTimeUsed, actual.mLastTimeUsed);
+            assertEquals(expected.mTotalTimeInForeground, actual.mTotalTimeInForeground);
+            assertEquals(expected.mLastEvent, actual.mLastEvent);
+        }
+        assertEquals(1, (int) read.packageStats.get("com.android.test2").mChooserCounts
+                .get("android.intent.action.SEND").get("text/plain"));
+
+        assertEquals(1, read.configurations.size());
+        assertEquals(stats.activeConfiguration, read.activeConfiguration);
+        assertEquals(stats.configurations.valueAt(0).mActivationCount,
+                read.configurations.valueAt(0).mActivationCount);
+
+        assertEquals(stats.events.size(), read.events.size());
+        for (int i = 0; i < stats.events.size(); i++) {
+            final UsageEvents.Event expected = stats.events.valueAt(i);
+            final UsageEvents.Event actual = read.events.valueAt(i);
+            assertEquals(expected.mTimeStamp, actual.mTimeStamp);
+            assertEquals(expected.mPackage, actual.mPackage);
+            assertEquals(expected.mClass, actual.mClass);
+            assertEquals(expected.mEventType, actual.mEventType);
+            assertEquals(expected.mConfiguration, actual.mConfiguration);
+            assertEquals(expected.mShortcutId, actual.mShortcutId);
+        }
+    }
+
+    @Test
+    public void testReadSections() throws Exception {
+        UsageStatsBinary.write(getFile(), buildStats());
+
+        final IntervalStats read = new IntervalStats();
+        assertTrue(UsageStatsBinary.read(getFile(), read, IntervalStats.SECTION_EVENTS,
+                BEGIN_TIME + 9500, BEGIN_TIME + 20000));
+        assertTrue(read.packageStats.isEmpty());
+        assertTrue(read.configurations.isEmpty());
+        // Events at 10s up to and including 19s
+        assertEquals(10, read.events.size());
+        assertEquals(BEGIN_TIME + 10000, read.events.keyAt(0));
+        assertEquals(BEGIN_TIME + 19000, read.events.keyAt(9));
+
+        assertTrue(UsageStatsBinary.read(getFile(), read, IntervalStats.SECTION_PACKAGES,
+                Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(7, read.packageStats.size());
+        assertEquals(0, read.events.size());
+        assertNull(read.activeConfiguration);
+    }
+
+    @Test
+    public void testXmlIsNotBinary() throws Exception {
+        final IntervalStats stats = buildStats();
+        UsageStatsXml.write(getFile(), stats);
+        assertFalse(UsageStatsBinary.read(getFile(), new IntervalStats(),
+                IntervalStats.SECTION_ALL, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+}
@@ -409,6 +409,36 @@ public class DisplayContentTests extends WindowTestsBase {
                 SCREEN_ORIENTATION_LANDSCAPE, dc.getOrientation());
     }
 
+    @Test
+    public void testIncrementalLayout() throws Exception {
+        final WindowState otherApp = createWindow(null, TYPE_BASE_APPLICATION, "otherApp");
+        mDisplayContent.forAllWindows(w -> { w.mHaveFrame = true; },
+                true /* traverseTopToBottom */);
+        final WindowSurfacePlacer surfacePlacer = sWm.mWindowPlacerLocked;
+        surfacePlacer.setIncrementalLayoutEnabled(true);
+        try {
+            synchronized (sWm.mWindowMap) {
+                // Flush any layout requested while setting up.
+                mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+
+                // Only the windows of the app that asked for layout are visited.
+                int skipped = surfacePlacer.getPassWindowsSkipped();
+                mAppWindow.setDisplayLayoutNeeded();
+                mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+                assertEquals(skipped + 1, surfacePlacer.getPassWindowsSkipped());
+
+                // A layout requested by a system window visits everything.
+                skipped = surfacePlacer.getPassWindowsSkipped();
+                mStatusBarWindow.setDisplayLayoutNeeded();
+                otherApp.setDisplayLayoutNeeded();
+                mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+                assertEquals(skipped, surfacePlacer.getPassWindowsSkipped());
+            }
+        } finally {
+            surfacePlacer.setIncrementalLayoutEnabled(false);
+        }
+    }
+
     private static void verifySizes(DisplayContent displayContent, int expectedBaseWidth,
                              int expectedBaseHeight, int expectedBaseDensity) {
         assertEquals(displayContent.mBaseDisplayWidth, expectedBaseWidth);
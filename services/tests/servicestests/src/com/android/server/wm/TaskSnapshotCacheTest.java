@@ -17,9 +17,15 @@
 package com.android.server.wm;
 
 import static android.view.WindowManager.LayoutParams.FIRST_APPLICATION_WINDOW;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
+import android.app.ActivityManager.TaskSnapshot;
 import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -108,4 +114,120 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        // Room for one 100x100 snapshot but not for two
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* maxBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        final int taskId1 = window1.getTask().mTaskId;
+        final int taskId2 = window2.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId1, sWm.mCurrentUserId, createSnapshot());
+        mPersister.persistSnapshot(taskId2, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot snapshot1 = mCache.getSnapshot(taskId1, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */);
+        final TaskSnapshot snapshot2 = mCache.getSnapshot(taskId2, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(snapshot1);
+        assertNotNull(snapshot2);
+
+        // The first snapshot was dropped and has to be loaded again
+        assertSame(snapshot2, mCache.getSnapshot(taskId2, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+        assertNotSame(snapshot1, mCache.getSnapshot(taskId1, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+    }
+
+    @Test
+    public void testDowngradesRunningSnapshots() throws Exception {
+        // Room for one 100x100 snapshot and one reduced copy, but not for two snapshots
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* maxBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        assertTrue(mCache.getBytes() <= 60000);
+
+        // Starting windows don't restore from disk, so both have to stay in memory
+        final TaskSnapshot snapshot1 = mCache.getSnapshot(window1.getTask().mTaskId,
+                0 /* userId */, false /* restoreFromDisk */, false /* reducedResolution */);
+        final TaskSnapshot snapshot2 = mCache.getSnapshot(window2.getTask().mTaskId,
+                0 /* userId */, false /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(snapshot1);
+        assertNotNull(snapshot2);
+        assertTrue(snapshot1.isReducedResolution());
+        assertEquals(TaskSnapshotPersister.REDUCED_SCALE, snapshot1.getScale());
+        assertEquals((int) (100 * TaskSnapshotPersister.REDUCED_SCALE),
+                snapshot1.getSnapshot().getWidth());
+        assertFalse(snapshot2.isReducedResolution());
+    }
+
+    @Test
+    public void testRunningSnapshotsStayWithinBudget() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 60000 /* maxBytes */);
+        WindowState window = null;
+        for (int i = 0; i < 8; i++) {
+            window = createWindow(null, FIRST_APPLICATION_WINDOW, "window" + i);
+            mCache.putSnapshot(window.getTask(), createSnapshot());
+            assertTrue(mCache.getBytes() <= 60000);
+        }
+
+        // The most recent snapshot is kept at full resolution
+        final TaskSnapshot snapshot = mCache.getSnapshot(window.getTask().mTaskId,
+                0 /* userId */, false /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(snapshot);
+        assertFalse(snapshot.isReducedResolution());
+    }
+
+    @Test
+    public void testLowMemory() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 80000 /* maxBytes */);
+        final WindowState window1 = createWindow(null, FIRST_APPLICATION_WINDOW, "window1");
+        final WindowState window2 = createWindow(null, FIRST_APPLICATION_WINDOW, "window2");
+        mCache.putSnapshot(window1.getTask(), createSnapshot());
+        mCache.putSnapshot(window2.getTask(), createSnapshot());
+        assertEquals(80000, mCache.getBytes());
+
+        // Only half the budget is left while memory is low
+        mCache.setLowMemory(true);
+        assertTrue(mCache.getBytes() <= 40000);
+        assertTrue(mCache.getSnapshot(window1.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */)
+                .isReducedResolution());
+        assertTrue(mCache.getSnapshot(window2.getTask().mTaskId, 0 /* userId */,
+                false /* restoreFromDisk */, false /* reducedResolution */)
+                .isReducedResolution());
+    }
+
+    @Test
+    public void testLowMemory_restoresReduced() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 1024 * 1024 /* maxBytes */);
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        mCache.setLowMemory(true);
+        final TaskSnapshot snapshot = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(snapshot);
+        assertTrue(snapshot.isReducedResolution());
+    }
+
+    @Test
+    public void testRestoreFromDisk_cachedWithBudget() throws Exception {
+        mCache = new TaskSnapshotCache(sWm, mLoader, 1024 * 1024 /* maxBytes */);
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        final TaskSnapshot snapshot = mCache.getSnapshot(window.getTask().mTaskId,
+                sWm.mCurrentUserId, true /* restoreFromDisk */, false /* reducedResolution */);
+        assertNotNull(snapshot);
+        assertSame(snapshot, mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, false /* reducedResolution */));
+
+        // Restored snapshots don't stand in for running ones
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+    }
 }
@@ -25,6 +25,7 @@ import static org.junit.Assert.fail;
 
 import android.app.ActivityManager.TaskSnapshot;
 import android.content.res.Configuration;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.SystemClock;
 import android.platform.test.annotations.Presubmit;
@@ -127,6 +128,33 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertTrueForFiles(nonExistsFiles, file -> !file.exists(), " must not exist");
     }
 
+    @Test
+    public void testSkipUnchangedWrites() {
+        final TaskSnapshotPersister persister = new TaskSnapshotPersister(userId -> sFilesDir,
+                true /* skipUnchangedWrites */);
+        persister.start();
+        persister.persistSnapshot(1, mTestUserId, createSnapshot());
+        persister.waitForQueueEmpty();
+        final File[] files = new File[] { new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/1.jpg"),
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.jpg")};
+        assertTrueForFiles(files, File::exists, " must exist");
+        assertTrueForFiles(files, file -> file.setLastModified(0), " must be touchable");
+
+        // The same content again isn't written
+        persister.persistSnapshot(1, mTestUserId, createSnapshot());
+        persister.waitForQueueEmpty();
+        assertTrueForFiles(files, file -> file.lastModified() == 0, " must not be rewritten");
+
+        // Different content is
+        persister.persistSnapshot(1, mTestUserId, createSnapshot(1f /* scale */, Color.BLUE));
+        persister.waitForQueueEmpty();
+        assertTrueForFiles(files, file -> file.lastModified() != 0, " must be rewritten");
+        final TaskSnapshot snapshot = mLoader.loadTask(1, mTestUserId, false /* reduced */);
+        assertNotNull(snapshot);
+        assertEquals(TEST_INSETS, snapshot.getContentInsets());
+    }
+
     @Test
     public void testGetTaskId() {
         RemoveObsoleteFilesQueueItem removeObsoleteFilesQueueItem =
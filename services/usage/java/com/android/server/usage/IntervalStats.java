@@ -24,6 +24,12 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 
 class IntervalStats {
+    // The parts of an IntervalStats that a query can ask to have read from disk.
+    static final int SECTION_PACKAGES = 1 << 0;
+    static final int SECTION_CONFIGURATIONS = 1 << 1;
+    static final int SECTION_EVENTS = 1 << 2;
+    static final int SECTION_ALL = SECTION_PACKAGES | SECTION_CONFIGURATIONS | SECTION_EVENTS;
+
     public long beginTime;
     public long endTime;
     public long lastTimeSaved;
@@ -0,0 +1,510 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Xml;
+
+import com.android.internal.util.FastXmlSerializer;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * UsageStats reader/writer for the binary IntervalStats format.
+ *
+ * <p>The file is read through a memory map, and laid out so that a query only has to decode the
+ * parts of it that it looks at:</p>
+ * <ul>
+ * <li>a header with the end time and the offset of every section;</li>
+ * <li>a string table, indexed by the other sections, whose entries are only decoded when
+ * referenced;</li>
+ * <li>the package stats;</li>
+ * <li>a configuration table, each entry holding the XML attributes that
+ * {@link Configuration#writeXmlAttrs} produces, followed by the configuration stats;</li>
+ * <li>the event log, stored by column with the time column first, so that the events in a time
+ * range are found by binary search.</li>
+ * </ul>
+ * <p>As in the XML format, times are stored as offsets from the beginTime of the file.</p>
+ */
+final class UsageStatsBinary {
+    // "USB" followed by the version; never the start of an XML file.
+    private static final int MAGIC = 0x55534201;
+
+    private static final int HEADER_END_TIME = 4;
+    private static final int HEADER_STRINGS = 12;
+    private static final int HEADER_PACKAGES = 16;
+    private static final int HEADER_CONFIGS = 20;
+    private static final int HEADER_EVENTS = 24;
+    private static final int HEADER_SIZE = 28;
+
+    private static final String CONFIG_TAG = "config";
+
+    /**
+     * Reads {@code file} into {@code statsOut} if it is in the binary format.
+     *
+     * @param sections which of the {@code IntervalStats.SECTION_*} parts to read; the others are
+     *                 left empty
+     * @param eventsBegin the time of the first event to read, inclusive
+     * @param eventsEnd the time of the last event to read, exclusive
+     * @return false if {@code file} is not in the binary format, in which case {@code statsOut}
+     *         is untouched
+     */
+    static boolean read(AtomicFile file, IntervalStats statsOut, int sections, long eventsBegin,
+            long eventsEnd) throws IOException {
+        final ByteBuffer buffer;
+        FileInputStream in = null;
+        try {
+            in = file.openRead();
+            final FileChannel channel = in.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            return false;
+        }
+        statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+        try {
+            new Reader(buffer, statsOut).read(sections, eventsBegin, eventsEnd);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException
+                | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new ProtocolException("Corrupt usage stats file " + file.getBaseFile()
+                    + ": " + e);
+        }
+        statsOut.lastTimeSaved = file.getLastModifiedTime();
+        return true;
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        final byte[] data = toBytes(stats);
+        FileOutputStream fos = file.startWrite();
+        try {
+            fos.write(data);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    static byte[] toBytes(IntervalStats stats) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final StringTable strings = new StringTable();
+        final ArrayList<Configuration> configs = new ArrayList<>();
+
+        // The string and configuration tables are only complete once everything else has been
+        // laid out, so the sections referring to them are written first and the header is
+        // patched at the end.
+        final byte[] header = new byte[HEADER_SIZE];
+        out.write(header);
+
+        final int packagesOffset = out.size();
+        final int packageCount = stats.packageStats.size();
+        out.writeInt(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            out.writeInt(strings.indexOf(usageStats.mPackageName));
+            out.writeLong(usageStats.mLastTimeUsed - stats.beginTime);
+            out.writeLong(usageStats.mTotalTimeInForeground);
+            out.writeInt(usageStats.mLastEvent);
+            final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                    usageStats.mChooserCounts;
+            final int actionCount = chooserCounts != null ? chooserCounts.size() : 0;
+            out.writeInt(actionCount);
+            for (int j = 0; j < actionCount; j++) {
+                final ArrayMap<String, Integer> counts = chooserCounts.valueAt(j);
+                out.writeInt(strings.indexOf(chooserCounts.keyAt(j)));
+                final int categoryCount = counts != null ? counts.size() : 0;
+                out.writeInt(categoryCount);
+                for (int k = 0; k < categoryCount; k++) {
+                    out.writeInt(strings.indexOf(counts.keyAt(k)));
+                    out.writeInt(counts.valueAt(k));
+                }
+            }
+        }
+
+        final int eventsOffset = out.size();
+        final TimeSparseArray<UsageEvents.Event> events = stats.events;
+        final int eventCount = events != null ? events.size() : 0;
+        out.writeInt(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            out.writeLong(events.keyAt(i) - stats.beginTime);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(strings.indexOf(events.valueAt(i).mPackage));
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(strings.indexOf(events.valueAt(i).mClass));
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(events.valueAt(i).mFlags);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(events.valueAt(i).mEventType);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = events.valueAt(i);
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    out.writeInt(configIndexOf(configs, event.mConfiguration));
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    out.writeInt(strings.indexOf(event.mShortcutId));
+                    break;
+                default:
+                    out.writeInt(-1);
+                    break;
+            }
+        }
+
+        final int configsOffset = out.size();
+        final int configCount = stats.configurations.size();
+        final int[] configStatsIndices = new int[configCount];
+        for (int i = 0; i < configCount; i++) {
+            configStatsIndices[i] = configIndexOf(configs, stats.configurations.keyAt(i));
+        }
+        out.writeInt(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            final byte[] attrs = configToXml(configs.get(i));
+            out.writeInt(attrs.length);
+            out.write(attrs);
+        }
+        out.writeInt(configCount);
+        for (int i = 0; i < configCount; i++) {
+            final ConfigurationStats configStats = stats.configurations.valueAt(i);
+            out.writeInt(configStatsIndices[i]);
+            out.writeLong(configStats.mLastTimeActive - stats.beginTime);
+            out.writeLong(configStats.mTotalTimeActive);
+            out.writeInt(configStats.mActivationCount);
+            out.writeBoolean(stats.configurations.keyAt(i).equals(stats.activeConfiguration));
+        }
+
+        final int stringsOffset = out.size();
+        strings.write(out);
+        out.flush();
+
+        final ByteBuffer result = ByteBuffer.wrap(bytes.toByteArray());
+        result.putInt(0, MAGIC);
+        result.putLong(HEADER_END_TIME, stats.endTime - stats.beginTime);
+        result.putInt(HEADER_STRINGS, stringsOffset);
+        result.putInt(HEADER_PACKAGES, packagesOffset);
+        result.putInt(HEADER_CONFIGS, configsOffset);
+        result.putInt(HEADER_EVENTS, eventsOffset);
+        return result.array();
+    }
+
+    private static int configIndexOf(ArrayList<Configuration> configs, Configuration config) {
+        if (config == null) {
+            return -1;
+        }
+        final int index = configs.indexOf(config);
+        if (index >= 0) {
+            return index;
+        }
+        configs.add(config);
+        return configs.size() - 1;
+    }
+
+    private static byte[] configToXml(Configuration config) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final FastXmlSerializer xml = new FastXmlSerializer();
+        xml.setOutput(out, "utf-8");
+        xml.startTag(null, CONFIG_TAG);
+        Configuration.writeXmlAttrs(xml, config);
+        xml.endTag(null, CONFIG_TAG);
+        xml.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Assigns indices to strings in the order they are first seen.
+     */
+    private static final class StringTable {
+        private final ArrayMap<String, Integer> mIndices = new ArrayMap<>();
+
+        int indexOf(String str) {
+            if (str == null) {
+                return -1;
+            }
+            Integer index = mIndices.get(str);
+            if (index == null) {
+                index = mIndices.size();
+                mIndices.put(str, index);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            final int count = mIndices.size();
+            final String[] strings = new String[count];
+            for (int i = 0; i < count; i++) {
+                strings[mIndices.valueAt(i)] = mIndices.keyAt(i);
+            }
+            // An offset for every entry, so that any one of them can be decoded on its own.
+            final byte[][] encoded = new byte[count][];
+            int offset = out.size() + 4 + 4 * count;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(offset);
+                offset += 4 + encoded[i].length;
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(encoded[i].length);
+                out.write(encoded[i]);
+            }
+        }
+    }
+
+    /**
+     * Decodes one mapped file.  Strings and configurations are decoded the first time they are
+     * referenced.
+     */
+    private static final class Reader {
+        private final ByteBuffer mBuffer;
+        private final IntervalStats mStats;
+        private final int mStringsOffset;
+        private final String[] mStrings;
+        private Configuration[] mConfigs;
+
+        Reader(ByteBuffer buffer, IntervalStats stats) {
+            mBuffer = buffer;
+            mStats = stats;
+            mStringsOffset = buffer.getInt(HEADER_STRINGS);
+            mStrings = new String[buffer.getInt(mStringsOffset)];
+        }
+
+        void read(int sections, long eventsBegin, long eventsEnd) throws IOException {
+            mStats.packageStats.clear();
+            mStats.configurations.clear();
+            mStats.activeConfiguration = null;
+            if (mStats.events != null) {
+                mStats.events.clear();
+            }
+            mStats.endTime = mStats.beginTime + mBuffer.getLong(HEADER_END_TIME);
+
+            if ((sections & IntervalStats.SECTION_PACKAGES) != 0) {
+                readPackages();
+            }
+            if ((sections & IntervalStats.SECTION_CONFIGURATIONS) != 0) {
+                readConfigurations();
+            }
+            if ((sections & IntervalStats.SECTION_EVENTS) != 0) {
+                readEvents(eventsBegin, eventsEnd);
+            }
+        }
+
+        private String getString(int index) {
+            if (index < 0) {
+                return null;
+            }
+            String str = mStrings[index];
+            if (str == null) {
+                final int offset = mBuffer.getInt(mStringsOffset + 4 + 4 * index);
+                final int length = mBuffer.getInt(offset);
+                final byte[] bytes = new byte[length];
+                final ByteBuffer view = mBuffer.duplicate();
+                view.position(offset + 4);
+                view.get(bytes);
+                str = new String(bytes, StandardCharsets.UTF_8);
+                mStrings[index] = str;
+            }
+            return str;
+        }
+
+        private Configuration getConfiguration(int index) throws IOException {
+            if (index < 0) {
+                return null;
+            }
+            final int configsOffset = mBuffer.getInt(HEADER_CONFIGS);
+            if (mConfigs == null) {
+                mConfigs = new Configuration[mBuffer.getInt(configsOffset)];
+            }
+            if (mConfigs[index] == null) {
+                // The table entries are variable length, so walk to the one we want.
+                int offset = configsOffset + 4;
+                for (int i = 0; i < index; i++) {
+                    offset += 4 + mBuffer.getInt(offset);
+                }
+                final byte[] attrs = new byte[mBuffer.getInt(offset)];
+                final ByteBuffer view = mBuffer.duplicate();
+                view.position(offset + 4);
+                view.get(attrs);
+                mConfigs[index] = configFromXml(attrs);
+            }
+            return mConfigs[index];
+        }
+
+        private void readPackages() {
+            final ByteBuffer in = mBuffer.duplicate();
+            in.position(mBuffer.getInt(HEADER_PACKAGES));
+            final int packageCount = in.getInt();
+            for (int i = 0; i < packageCount; i++) {
+                final UsageStats stats = mStats.getOrCreateUsageStats(getString(in.getInt()));
+                stats.mLastTimeUsed = mStats.beginTime + in.getLong();
+                stats.mTotalTimeInForeground = in.getLong();
+                stats.mLastEvent = in.getInt();
+                final int actionCount = in.getInt();
+                if (actionCount > 0 && stats.mChooserCounts == null) {
+                    stats.mChooserCounts = new ArrayMap<>();
+                }
+                for (int j = 0; j < actionCount; j++) {
+                    final String action = getString(in.getInt());
+                    ArrayMap<String, Integer> counts = stats.mChooserCounts.get(action);
+                    if (counts == null) {
+                        counts = new ArrayMap<>();
+                        stats.mChooserCounts.put(action, counts);
+                    }
+                    final int categoryCount = in.getInt();
+                    for (int k = 0; k < categoryCount; k++) {
+                        final String category = getString(in.getInt());
+                        counts.put(category, in.getInt());
+                    }
+                }
+            }
+        }
+
+        private void readConfigurations() throws IOException {
+            final ByteBuffer in = mBuffer.duplicate();
+            final int configsOffset = mBuffer.getInt(HEADER_CONFIGS);
+            in.position(configsOffset);
+            final int tableSize = in.getInt();
+            for (int i = 0; i < tableSize; i++) {
+                final int length = in.getInt();
+                in.position(in.position() + length);
+            }
+            final int configCount = in.getInt();
+            for (int i = 0; i < configCount; i++) {
+                final Configuration config = getConfiguration(in.getInt());
+                final ConfigurationStats configStats =
+                        mStats.getOrCreateConfigurationStats(config);
+                configStats.mLastTimeActive = mStats.beginTime + in.getLong();
+                configStats.mTotalTimeActive = in.getLong();
+                configStats.mActivationCount = in.getInt();
+                if (in.get() != 0) {
+                    mStats.activeConfiguration = configStats.mConfiguration;
+                }
+            }
+        }
+
+        private void readEvents(long eventsBegin, long eventsEnd) throws IOException {
+            final int eventsOffset = mBuffer.getInt(HEADER_EVENTS);
+            final int eventCount = mBuffer.getInt(eventsOffset);
+            final int timesOffset = eventsOffset + 4;
+            // Compare as offsets, taking care not to overflow for open ended ranges.
+            final int first = eventsBegin <= mStats.beginTime ? 0
+                    : findFirstEvent(timesOffset, eventCount, eventsBegin - mStats.beginTime);
+            final int last = eventsEnd == Long.MAX_VALUE ? eventCount
+                    : findFirstEvent(timesOffset, eventCount, eventsEnd - mStats.beginTime);
+            if (first >= last) {
+                return;
+            }
+
+            final int packagesOffset = timesOffset + 8 * eventCount;
+            final int classesOffset = packagesOffset + 4 * eventCount;
+            final int flagsOffset = classesOffset + 4 * eventCount;
+            final int typesOffset = flagsOffset + 4 * eventCount;
+            final int extrasOffset = typesOffset + 4 * eventCount;
+            if (mStats.events == null) {
+                mStats.events = new TimeSparseArray<>(last - first);
+            }
+            for (int i = first; i < last; i++) {
+                final String packageName = getString(mBuffer.getInt(packagesOffset + 4 * i));
+                if (packageName == null) {
+                    throw new ProtocolException("no package for event " + i);
+                }
+                final UsageEvents.Event event = mStats.buildEvent(packageName,
+                        getString(mBuffer.getInt(classesOffset + 4 * i)));
+                event.mTimeStamp = mStats.beginTime + mBuffer.getLong(timesOffset + 8 * i);
+                event.mFlags = mBuffer.getInt(flagsOffset + 4 * i);
+                event.mEventType = mBuffer.getInt(typesOffset + 4 * i);
+                final int extra = mBuffer.getInt(extrasOffset + 4 * i);
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        // Each event gets its own copy, as with the XML format.
+                        final Configuration config = getConfiguration(extra);
+                        event.mConfiguration = config != null
+                                ? new Configuration(config) : new Configuration();
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        final String id = getString(extra);
+                        event.mShortcutId = (id != null) ? id.intern() : null;
+                        break;
+                }
+                mStats.events.put(event.mTimeStamp, event);
+            }
+        }
+
+        /**
+         * Returns the index of the first event at or after {@code timeOffset}, or
+         * {@code eventCount} if there is none.
+         */
+        private int findFirstEvent(int timesOffset, int eventCount, long timeOffset) {
+            int lo = 0;
+            int hi = eventCount;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (mBuffer.getLong(timesOffset + 8 * mid) < timeOffset) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static Configuration configFromXml(byte[] attrs) throws IOException {
+        final XmlPullParser parser = Xml.newPullParser();
+        try {
+            parser.setInput(new ByteArrayInputStream(attrs), "utf-8");
+            parser.nextTag();
+            final Configuration config = new Configuration();
+            Configuration.readXmlAttrs(parser, config);
+            return config;
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private UsageStatsBinary() {
+    }
+}
@@ -61,6 +61,12 @@ class UsageStatsDatabase {
     private static final int SELECTION_LOG_RETENTION_LEN =
             SystemProperties.getInt(RETENTION_LEN_KEY, 14);
 
+    // Whether stats files are written in the binary format of UsageStatsBinary rather than as
+    // XML.  Files in either format can always be read, so XML files are migrated as they are
+    // rewritten.
+    private static final boolean WRITE_BINARY =
+            SystemProperties.getBoolean("persist.sys.usagestats.binary", false);
+
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
@@ -154,7 +160,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readStatsFile(files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -357,7 +363,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readStatsFile(f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -391,6 +397,17 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, IntervalStats.SECTION_ALL,
+                combiner);
+    }
+
+    /**
+     * Find all {@link IntervalStats} for the given range and interval type.  Only the
+     * {@code sections} of them that the combiner looks at are guaranteed to be filled in, and
+     * only the events within the range.
+     */
+    public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            int sections, StatCombiner<T> combiner) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -443,7 +460,7 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    readStatsFile(f, stats, sections, beginTime, endTime);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -562,7 +579,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        readStatsFile(af, stats);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +587,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        writeStatsFile(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,11 +613,35 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            writeStatsFile(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
 
+    private static void readStatsFile(AtomicFile file, IntervalStats statsOut)
+            throws IOException {
+        readStatsFile(file, statsOut, IntervalStats.SECTION_ALL, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads a stats file in either format.  Binary files only have the given sections and the
+     * events in [eventsBegin, eventsEnd) decoded; XML files are always read in full.
+     */
+    private static void readStatsFile(AtomicFile file, IntervalStats statsOut, int sections,
+            long eventsBegin, long eventsEnd) throws IOException {
+        if (!UsageStatsBinary.read(file, statsOut, sections, eventsBegin, eventsEnd)) {
+            UsageStatsXml.read(file, statsOut);
+        }
+    }
+
+    private static void writeStatsFile(AtomicFile file, IntervalStats stats) throws IOException {
+        if (WRITE_BINARY) {
+            UsageStatsBinary.write(file, stats);
+        } else {
+            UsageStatsXml.write(file, stats);
+        }
+    }
+
 
     /* Backup/Restore Code */
     byte[] getBackupPayload(String key) {
@@ -730,7 +771,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            readStatsFile(statsFile, stats);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);